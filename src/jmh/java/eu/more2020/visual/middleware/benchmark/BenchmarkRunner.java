@@ -0,0 +1,37 @@
+package eu.more2020.visual.middleware.benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the benchmarks whose names match the given patterns, or all of them, as a baseline to compare changes against.
+ * Every benchmark reports its throughput and the allocation rate of the gc profiler, and the results are written to
+ * target/jmh-result.json.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        OptionsBuilder optionsBuilder = new OptionsBuilder();
+        if (args.length == 0) {
+            optionsBuilder.include(BenchmarkRunner.class.getPackage().getName() + ".*");
+        }
+        for (String pattern : args) {
+            optionsBuilder.include(pattern);
+        }
+        Options options = optionsBuilder
+                .mode(Mode.Throughput)
+                .timeUnit(TimeUnit.SECONDS)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-result.json")
+                .build();
+        new Runner(options).run();
+    }
+}
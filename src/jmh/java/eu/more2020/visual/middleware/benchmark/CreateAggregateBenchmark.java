@@ -0,0 +1,84 @@
+package eu.more2020.visual.middleware.benchmark;
+
+import eu.more2020.visual.middleware.cache.StorageType;
+import eu.more2020.visual.middleware.cache.TimeSeriesSpan;
+import eu.more2020.visual.middleware.cache.TimeSeriesSpanFactory;
+import eu.more2020.visual.middleware.domain.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building the spans of fetched aggregates, for every way of storing them.
+ * The fetched groups of every measure are split over the missing intervals of the measure, as after a query that pans over cached data.
+ * The spans are released right away, so that off-heap memory does not pile up.
+ * Run with "-prof gc" to get the bytes allocated per fetch (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CreateAggregateBenchmark {
+
+    private static final long AGGREGATE_INTERVAL = 1000L;
+
+    // The number of fetched groups per measure.
+    private static final int GROUPS = 8192;
+
+    // The number of missing intervals per measure.
+    @Param({"1", "16", "128"})
+    private int spanCount;
+
+    @Param({"1", "4"})
+    private int measureCount;
+
+    // Where the aggregates of the spans are stored.
+    @Param({"HEAP", "OFF_HEAP", "COMPRESSED"})
+    private StorageType storage;
+
+    private AggregatedDataPoints aggregatedDataPoints;
+
+    private Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure;
+
+    private Map<Integer, Long> aggregateIntervalsPerMeasure;
+
+    @Setup
+    public void setup() {
+        long from = 0;
+        long to = GROUPS * AGGREGATE_INTERVAL;
+        long spanInterval = GROUPS / spanCount * AGGREGATE_INTERVAL;
+        Random random = new Random(0);
+        List<AggregatedDataPoint> dataPoints = new ArrayList<>(GROUPS * measureCount);
+        missingIntervalsPerMeasure = new HashMap<>();
+        aggregateIntervalsPerMeasure = new HashMap<>();
+        for (int measure = 0; measure < measureCount; measure++) {
+            // The data sources return the groups of a measure together.
+            dataPoints.addAll(Spans.randomAggregatedDataPoints(from, to, measure, AGGREGATE_INTERVAL, random));
+            List<TimeInterval> missingIntervals = new ArrayList<>(spanCount);
+            for (int i = 0; i < spanCount; i++) {
+                long spanFrom = from + i * spanInterval;
+                missingIntervals.add(new TimeRange(spanFrom, i == spanCount - 1 ? to : spanFrom + spanInterval));
+            }
+            missingIntervalsPerMeasure.put(measure, missingIntervals);
+            aggregateIntervalsPerMeasure.put(measure, AGGREGATE_INTERVAL);
+        }
+        aggregatedDataPoints = Spans.aggregatedDataPoints(dataPoints, from, to);
+    }
+
+    @Benchmark
+    public int createAggregate() {
+        Map<Integer, List<TimeSeriesSpan>> spans = TimeSeriesSpanFactory.createAggregate(aggregatedDataPoints,
+                missingIntervalsPerMeasure, aggregateIntervalsPerMeasure, storage);
+        int count = 0;
+        for (List<TimeSeriesSpan> measureSpans : spans.values()) {
+            for (TimeSeriesSpan span : measureSpans) {
+                count++;
+                span.release();
+            }
+        }
+        return count;
+    }
+}
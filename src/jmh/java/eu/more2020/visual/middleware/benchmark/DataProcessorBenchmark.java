@@ -0,0 +1,99 @@
+package eu.more2020.visual.middleware.benchmark;
+
+import eu.more2020.visual.middleware.cache.DataProcessor;
+import eu.more2020.visual.middleware.cache.TimeSeriesSpan;
+import eu.more2020.visual.middleware.datasource.QueryExecutor.SQLQueryExecutor;
+import eu.more2020.visual.middleware.domain.Dataset.PostgreSQLDataset;
+import eu.more2020.visual.middleware.domain.PixelColumn;
+import eu.more2020.visual.middleware.domain.ViewPort;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link DataProcessor#processDatapoints} over the cached spans of a query, for every measure of the query.
+ * The spans of a measure are consecutive and together cover the query. No data source is queried.
+ * Run with "-prof gc" to get the bytes allocated per query (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataProcessorBenchmark {
+
+    private static final long AGGREGATE_INTERVAL = 1000L;
+
+    // The number of span groups per pixel column.
+    private static final int AGG_FACTOR = 4;
+
+    @Param({"500", "1000", "2000"})
+    private int width;
+
+    // The number of spans per measure.
+    @Param({"1", "16"})
+    private int spanCount;
+
+    @Param({"1", "4"})
+    private int measureCount;
+
+    private DataProcessor dataProcessor;
+
+    private ViewPort viewPort;
+
+    private List<List<TimeSeriesSpan>> spansPerMeasure;
+
+    private long from;
+
+    private long to;
+
+    private long pixelColumnInterval;
+
+    @Setup
+    public void setup() {
+        PostgreSQLDataset dataset = new PostgreSQLDataset("benchmark", "benchmark", "benchmark", "benchmark", "yyyy-MM-dd HH:mm:ss");
+        dataProcessor = new DataProcessor(new SQLQueryExecutor((Connection) null), dataset, 0);
+        viewPort = new ViewPort(width, 300);
+        from = 0;
+        pixelColumnInterval = AGGREGATE_INTERVAL * AGG_FACTOR;
+        to = pixelColumnInterval * width;
+        // Spans that start and end at the bounds of their groups.
+        long spanInterval = (to - from) / AGGREGATE_INTERVAL / spanCount * AGGREGATE_INTERVAL;
+        Random random = new Random(0);
+        spansPerMeasure = new ArrayList<>(measureCount);
+        for (int measure = 0; measure < measureCount; measure++) {
+            List<TimeSeriesSpan> spans = new ArrayList<>(spanCount);
+            for (int i = 0; i < spanCount; i++) {
+                long spanFrom = from + i * spanInterval;
+                long spanTo = i == spanCount - 1 ? to : spanFrom + spanInterval;
+                spans.add(Spans.randomAggregateSpan(spanFrom, spanTo, measure, AGGREGATE_INTERVAL, random));
+            }
+            spansPerMeasure.add(spans);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        dataProcessor.shutdown();
+    }
+
+    @Benchmark
+    public List<List<PixelColumn>> processDatapoints() {
+        List<List<PixelColumn>> pixelColumnsPerMeasure = new ArrayList<>(measureCount);
+        for (List<TimeSeriesSpan> spans : spansPerMeasure) {
+            List<PixelColumn> pixelColumns = new ArrayList<>(width);
+            for (int j = 0; j < width; j++) {
+                long pixelFrom = from + j * pixelColumnInterval;
+                pixelColumns.add(new PixelColumn(pixelFrom, pixelFrom + pixelColumnInterval, viewPort));
+            }
+            dataProcessor.processDatapoints(from, to, viewPort, pixelColumns, spans);
+            pixelColumnsPerMeasure.add(pixelColumns);
+        }
+        return pixelColumnsPerMeasure;
+    }
+}
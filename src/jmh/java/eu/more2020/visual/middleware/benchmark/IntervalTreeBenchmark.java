@@ -0,0 +1,71 @@
+package eu.more2020.visual.middleware.benchmark;
+
+import eu.more2020.visual.middleware.cache.IntervalTree;
+import eu.more2020.visual.middleware.cache.TimeSeriesSpan;
+import eu.more2020.visual.middleware.domain.TimeInterval;
+import eu.more2020.visual.middleware.domain.TimeRange;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures looking up the cached spans that overlap a query, for caches of different sizes.
+ * The spans are consecutive and a query overlaps a few of them, as when panning over a cached range.
+ * Run with "-prof gc" to get the bytes allocated per lookup (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IntervalTreeBenchmark {
+
+    private static final long SPAN_INTERVAL = 100_000L;
+
+    private static final int QUERIES = 1024;
+
+    @Param({"100", "1000", "10000"})
+    private int spanCount;
+
+    // The number of spans that a query overlaps.
+    @Param({"4"})
+    private int querySpans;
+
+    private IntervalTree<TimeSeriesSpan> intervalTree;
+
+    private TimeInterval[] queries;
+
+    private int query;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        intervalTree = new IntervalTree<>();
+        for (int i = 0; i < spanCount; i++) {
+            long from = i * SPAN_INTERVAL;
+            intervalTree.insert(Spans.randomAggregateSpan(from, from + SPAN_INTERVAL, 0, SPAN_INTERVAL / 10, random));
+        }
+        long queryInterval = querySpans * SPAN_INTERVAL;
+        long maxFrom = Math.max(1, spanCount * SPAN_INTERVAL - queryInterval);
+        queries = new TimeInterval[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            long from = (long) (random.nextDouble() * maxFrom);
+            queries[i] = new TimeRange(from, from + queryInterval);
+        }
+    }
+
+    @Benchmark
+    public int overlappers() {
+        TimeInterval timeInterval = queries[query++ & (QUERIES - 1)];
+        int overlapping = 0;
+        Iterator<TimeSeriesSpan> it = intervalTree.overlappers(timeInterval);
+        while (it.hasNext()) {
+            it.next();
+            overlapping++;
+        }
+        return overlapping;
+    }
+}
@@ -0,0 +1,66 @@
+package eu.more2020.visual.middleware.benchmark;
+
+import eu.more2020.visual.middleware.cache.AggregateTimeSeriesSpan;
+import eu.more2020.visual.middleware.domain.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the pixel error evaluation of a query, once over the range set and once over the reusable bitset.
+ * PixelErrorSetTest checks that both count the same wrong pixels.
+ * The perColumn benchmark also boxes the errors per column, over a new bitset per query.
+ * Run with "-prof gc" to get the bytes allocated per query (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MaxErrorEvaluatorBenchmark {
+
+    @Param({"500", "1000", "2000"})
+    private int width;
+
+    @Param({"300", "1000"})
+    private int height;
+
+    private ViewPort viewPort;
+
+    private List<PixelColumn> pixelColumns;
+
+    private PixelErrorSet rangeSet;
+
+    private PixelErrorSet bitSet;
+
+    @Setup
+    public void setup() {
+        viewPort = new ViewPort(width, height);
+        // Groups that do not align with the pixel columns, so that there are partially contained groups.
+        long pixelColumnInterval = 4500L;
+        long from = 0;
+        long to = pixelColumnInterval * width;
+        AggregateTimeSeriesSpan span = Spans.randomAggregateSpan(from, to, 0, 1000L, new Random(0));
+        pixelColumns = Spans.pixelColumns(span, from, pixelColumnInterval, viewPort);
+        rangeSet = new RangeSetPixelErrorSet();
+        bitSet = new BitSetPixelErrorSet(height);
+    }
+
+    @Benchmark
+    public double[] rangeSet() {
+        return new MaxErrorEvaluator(viewPort, pixelColumns, rangeSet).computeMaxPixelErrors();
+    }
+
+    @Benchmark
+    public double[] bitSet() {
+        return new MaxErrorEvaluator(viewPort, pixelColumns, bitSet).computeMaxPixelErrors();
+    }
+
+    @Benchmark
+    public List<Double> perColumn() {
+        return new MaxErrorEvaluator(viewPort, pixelColumns).computeMaxPixelErrorsPerColumn();
+    }
+}
@@ -0,0 +1,59 @@
+package eu.more2020.visual.middleware.benchmark;
+
+import com.google.common.collect.Range;
+import eu.more2020.visual.middleware.cache.AggregateTimeSeriesSpan;
+import eu.more2020.visual.middleware.domain.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures computing the inner pixel range of every pixel column of a query, which the error evaluation does before anything else.
+ * Run with "-prof gc" to get the bytes allocated per query (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PixelColumnBenchmark {
+
+    @Param({"500", "1000", "2000"})
+    private int width;
+
+    // The number of span groups per pixel column.
+    @Param({"4", "16"})
+    private int aggFactor;
+
+    private List<PixelColumn> pixelColumns;
+
+    private Stats viewPortStats;
+
+    @Setup
+    public void setup() {
+        ViewPort viewPort = new ViewPort(width, 300);
+        // Groups that do not align with the pixel columns, so that there are partially contained groups.
+        long aggregateInterval = 1000L;
+        long pixelColumnInterval = aggregateInterval * aggFactor + aggregateInterval / 2;
+        AggregateTimeSeriesSpan span = Spans.randomAggregateSpan(0, pixelColumnInterval * width, 0, aggregateInterval, new Random(0));
+        pixelColumns = Spans.pixelColumns(span, 0, pixelColumnInterval, viewPort);
+        StatsAggregator statsAggregator = new StatsAggregator();
+        for (PixelColumn pixelColumn : pixelColumns) {
+            statsAggregator.combine(pixelColumn.getStats());
+        }
+        viewPortStats = statsAggregator;
+    }
+
+    @Benchmark
+    public int computeMaxInnerPixelRange() {
+        int pixels = 0;
+        for (PixelColumn pixelColumn : pixelColumns) {
+            Range<Integer> range = pixelColumn.computeMaxInnerPixelRange(viewPortStats);
+            if (range != null) pixels += range.upperEndpoint() - range.lowerEndpoint();
+        }
+        return pixels;
+    }
+}
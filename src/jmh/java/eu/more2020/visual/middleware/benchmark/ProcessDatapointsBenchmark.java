@@ -0,0 +1,102 @@
+package eu.more2020.visual.middleware.benchmark;
+
+import eu.more2020.visual.middleware.cache.AggregateTimeSeriesSpan;
+import eu.more2020.visual.middleware.cache.StorageType;
+import eu.more2020.visual.middleware.cache.TimeSeriesSpanCursor;
+import eu.more2020.visual.middleware.domain.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures adding the groups of a cached span to the pixel columns of a query,
+ * once through the span iterator and once through the allocation-free span cursor, for every way of storing the span.
+ * Run with "-prof gc" to get the bytes allocated per query (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessDatapointsBenchmark {
+
+    @Param({"1000"})
+    private int width;
+
+    // The number of span groups per pixel column.
+    @Param({"4", "16"})
+    private int aggFactor;
+
+    // Where the aggregates of the span are stored.
+    @Param({"HEAP", "OFF_HEAP", "COMPRESSED"})
+    private StorageType storage;
+
+    private ViewPort viewPort;
+
+    private AggregateTimeSeriesSpan span;
+
+    private long from;
+
+    private long to;
+
+    private long pixelColumnInterval;
+
+    @Setup
+    public void setup() {
+        viewPort = new ViewPort(width, 300);
+        from = 0;
+        pixelColumnInterval = 1000L * aggFactor;
+        to = pixelColumnInterval * width;
+        span = Spans.randomAggregateSpan(from, to, 0, 1000L, new Random(0), storage);
+    }
+
+    @Benchmark
+    public List<PixelColumn> iterator() {
+        List<PixelColumn> pixelColumns = createPixelColumns();
+        Iterator<AggregatedDataPoint> it = span.iterator(from, to);
+        while (it.hasNext()) {
+            AggregatedDataPoint aggregatedDataPoint = it.next();
+            int pixelColumnIndex = (int) ((aggregatedDataPoint.getFrom() - from) / pixelColumnInterval);
+            if (pixelColumnIndex < width) {
+                pixelColumns.get(pixelColumnIndex).addAggregatedDataPoint(aggregatedDataPoint);
+            }
+            if (pixelColumnIndex < width - 1 && pixelColumns.get(pixelColumnIndex + 1).overlaps(aggregatedDataPoint)) {
+                pixelColumns.get(pixelColumnIndex + 1).addAggregatedDataPoint(aggregatedDataPoint);
+            }
+        }
+        return pixelColumns;
+    }
+
+    @Benchmark
+    public List<PixelColumn> cursor() {
+        List<PixelColumn> pixelColumns = createPixelColumns();
+        TimeSeriesSpanCursor cursor = span.cursor(from, to);
+        while (cursor.advance()) {
+            int pixelColumnIndex = (int) ((cursor.from() - from) / pixelColumnInterval);
+            if (pixelColumnIndex < width) {
+                pixelColumns.get(pixelColumnIndex).addAggregatedDataPoint(cursor);
+            }
+            if (pixelColumnIndex < width - 1) {
+                PixelColumn nextPixelColumn = pixelColumns.get(pixelColumnIndex + 1);
+                if (nextPixelColumn.getTo() > cursor.from() && cursor.to() > nextPixelColumn.getFrom()) {
+                    nextPixelColumn.addAggregatedDataPoint(cursor);
+                }
+            }
+        }
+        return pixelColumns;
+    }
+
+    private List<PixelColumn> createPixelColumns() {
+        List<PixelColumn> pixelColumns = new ArrayList<>(width);
+        for (int j = 0; j < width; j++) {
+            long pixelFrom = from + j * pixelColumnInterval;
+            pixelColumns.add(new PixelColumn(pixelFrom, pixelFrom + pixelColumnInterval, viewPort));
+        }
+        return pixelColumns;
+    }
+}
@@ -0,0 +1,94 @@
+package eu.more2020.visual.middleware.benchmark;
+
+import eu.more2020.visual.middleware.cache.AggregateTimeSeriesSpan;
+import eu.more2020.visual.middleware.cache.StorageType;
+import eu.more2020.visual.middleware.cache.TimeSeriesSpan;
+import eu.more2020.visual.middleware.cache.TimeSeriesSpanCursor;
+import eu.more2020.visual.middleware.cache.TimeSeriesSpanFactory;
+import eu.more2020.visual.middleware.domain.*;
+
+import java.util.*;
+
+/**
+ * Builds spans of random-walk data for the benchmarks.
+ */
+class Spans {
+
+    static AggregateTimeSeriesSpan randomAggregateSpan(long from, long to, int measure, long aggregateInterval, Random random) {
+        return randomAggregateSpan(from, to, measure, aggregateInterval, random, StorageType.HEAP);
+    }
+
+    static AggregateTimeSeriesSpan randomAggregateSpan(long from, long to, int measure, long aggregateInterval, Random random,
+                                                       StorageType storageType) {
+        List<AggregatedDataPoint> dataPoints = randomAggregatedDataPoints(from, to, measure, aggregateInterval, random);
+        Map<Integer, List<TimeInterval>> intervals = Collections.singletonMap(measure, Collections.singletonList(new TimeRange(from, to)));
+        Map<Integer, Long> aggregateIntervals = Collections.singletonMap(measure, aggregateInterval);
+        List<TimeSeriesSpan> spans = TimeSeriesSpanFactory.createAggregate(aggregatedDataPoints(dataPoints, from, to), intervals,
+                aggregateIntervals, storageType).get(measure);
+        return (AggregateTimeSeriesSpan) spans.get(0);
+    }
+
+    static List<AggregatedDataPoint> randomAggregatedDataPoints(long from, long to, int measure, long aggregateInterval, Random random) {
+        List<AggregatedDataPoint> dataPoints = new ArrayList<>();
+        double value = 0;
+        for (long t = from; t < to; t += aggregateInterval) {
+            StatsAggregator stats = new StatsAggregator();
+            // A few raw values per group, spread over the group
+            for (int i = 0; i < 4; i++) {
+                value += random.nextGaussian();
+                stats.accept(t + i * aggregateInterval / 4, value);
+            }
+            dataPoints.add(new ImmutableAggregatedDataPoint(t, Math.min(t + aggregateInterval, to), measure, stats));
+        }
+        return dataPoints;
+    }
+
+    /**
+     * Wraps data points that are already in memory, as if they were the results of a query from-to.
+     */
+    static AggregatedDataPoints aggregatedDataPoints(List<AggregatedDataPoint> dataPoints, long from, long to) {
+        return new AggregatedDataPoints() {
+            @Override
+            public Iterator<AggregatedDataPoint> iterator() {
+                return dataPoints.iterator();
+            }
+
+            @Override
+            public long getFrom() {
+                return from;
+            }
+
+            @Override
+            public long getTo() {
+                return to;
+            }
+        };
+    }
+
+    /**
+     * Adds the groups of the span to the pixel columns of a query from the given timestamp, like the data processor does.
+     */
+    static List<PixelColumn> pixelColumns(AggregateTimeSeriesSpan span, long from, long pixelColumnInterval, ViewPort viewPort) {
+        int width = viewPort.getWidth();
+        long to = from + pixelColumnInterval * width;
+        List<PixelColumn> pixelColumns = new ArrayList<>(width);
+        for (int j = 0; j < width; j++) {
+            long pixelFrom = from + j * pixelColumnInterval;
+            pixelColumns.add(new PixelColumn(pixelFrom, pixelFrom + pixelColumnInterval, viewPort));
+        }
+        TimeSeriesSpanCursor cursor = span.cursor(from, to);
+        while (cursor.advance()) {
+            int pixelColumnIndex = (int) ((cursor.from() - from) / pixelColumnInterval);
+            if (pixelColumnIndex < width) {
+                pixelColumns.get(pixelColumnIndex).addAggregatedDataPoint(cursor);
+            }
+            if (pixelColumnIndex < width - 1) {
+                PixelColumn nextPixelColumn = pixelColumns.get(pixelColumnIndex + 1);
+                if (nextPixelColumn.getTo() > cursor.from() && cursor.to() > nextPixelColumn.getFrom()) {
+                    nextPixelColumn.addAggregatedDataPoint(cursor);
+                }
+            }
+        }
+        return pixelColumns;
+    }
+}
@@ -0,0 +1,69 @@
+package eu.more2020.visual.middleware.cache;
+
+/**
+ * Holds the per group aggregates of an {@link AggregateTimeSeriesSpan}.
+ * For every group we store the count of non-missing raw values, the sum, the min and max values,
+ * and the timestamps of the min and max values.
+ */
+public interface AggregateStorage {
+
+    /*
+        Number of groups in this storage.
+     */
+    int size();
+
+    int getCount(int i);
+
+    double getSum(int i);
+
+    double getMinValue(int i);
+
+    long getMinTimestamp(int i);
+
+    double getMaxValue(int i);
+
+    long getMaxTimestamp(int i);
+
+    /*
+        Set the aggregates of group i.
+     */
+    void set(int i, int count, double sum, double minValue, long minTimestamp, double maxValue, long maxTimestamp);
+
+    /*
+        Create an empty storage of the same type with the given number of groups.
+     */
+    AggregateStorage allocate(int size);
+
+    /**
+     * Copies a range of groups of this storage to another one.
+     */
+    default void copyTo(int srcIndex, AggregateStorage dest, int destIndex, int length) {
+        for (int i = 0; i < length; i++) {
+            dest.set(destIndex + i, getCount(srcIndex + i), getSum(srcIndex + i),
+                    getMinValue(srcIndex + i), getMinTimestamp(srcIndex + i),
+                    getMaxValue(srcIndex + i), getMaxTimestamp(srcIndex + i));
+        }
+    }
+
+    /*
+        The counts of all groups.
+     */
+    int[] getCounts();
+
+    /*
+        Calculate the memory size of this storage, including any memory allocated outside the Java heap.
+     */
+    long calculateDeepMemorySize();
+
+    /*
+        Take an additional reference to the memory of this storage.
+     */
+    default void retain() {
+    }
+
+    /*
+        Drop a reference to the memory of this storage. The memory is freed when the last reference is dropped.
+     */
+    default void release() {
+    }
+}
@@ -6,7 +6,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Iterator;
-import java.util.stream.IntStream;
+import java.util.NoSuchElementException;
 
 /**
  * A {@link DataPoints} implementation that aggregates a series of consecutive
@@ -14,6 +14,7 @@ import java.util.stream.IntStream;
  * For each aggregation interval included we store 5 doubles,
  * i.e. the sum, min and max aggregate values, 2 longs corresponding to the timestamp of the min and max value, as well as the corresponding
  * non-missing value counts.
+ * The aggregates are kept in an {@link AggregateStorage}, on the Java heap, off-heap or compressed, as set by the {@link StorageType}.
  */
 public class AggregateTimeSeriesSpan implements TimeSeriesSpan {
 
@@ -22,15 +23,9 @@ public class AggregateTimeSeriesSpan implements TimeSeriesSpan {
     private int measure;
 
     /**
-     * The aggregate values for every window interval and for every measure.
+     * The aggregate values and the number of raw time series points for every window interval.
      */
-    private long[] aggregates;
-
-    /**
-     * The number of raw time series points behind every data point included in this time series span.
-     * When the time series span corresponds to raw, non aggregated data, this number is 1.
-     */
-    private int[] counts;
+    private AggregateStorage storage;
 
     // The start time value of the span
     private long from;
@@ -50,26 +45,38 @@ public class AggregateTimeSeriesSpan implements TimeSeriesSpan {
     private long aggregateInterval;
 
 
-    private void initialize(long from, long to, long aggregateInterval, int measure) {
+    private void initialize(long from, long to, long aggregateInterval, int measure, StorageType storageType) {
         this.size = DateTimeUtil.numberOfIntervals(from, to, aggregateInterval);
         this.from = from;
         this.to = to;
         this.aggregateInterval = aggregateInterval;
         LOG.debug("Initializing time series span ({},{}) measure = {} with size {}, aggregate interval {}", getFromDate(), getToDate(), measure, size, aggregateInterval);
         this.measure = measure;
-        this.counts = new int[size];
-        this.aggregates = new long[size * 5];
+        this.storage = storageType.allocate(size);
     }
 
 
     public AggregateTimeSeriesSpan(long from, long to, int measure, long aggregateInterval) {
-        initialize(from, to, aggregateInterval, measure);
+        this(from, to, measure, aggregateInterval, StorageType.HEAP);
+    }
+
+    public AggregateTimeSeriesSpan(long from, long to, int measure, long aggregateInterval, StorageType storageType) {
+        initialize(from, to, aggregateInterval, measure, storageType);
+    }
+
+    AggregateTimeSeriesSpan(long from, long to, int measure, long aggregateInterval, AggregateStorage storage) {
+        this.from = from;
+        this.to = to;
+        this.measure = measure;
+        this.aggregateInterval = aggregateInterval;
+        this.size = storage.size();
+        this.storage = storage;
     }
 
     protected void addAggregatedDataPoint(int i, AggregatedDataPoint aggregatedDataPoint) {
         Stats stats = aggregatedDataPoint.getStats();
-        counts[i] = stats.getCount();
         if (stats.getCount() == 0) {
+            storage.set(i, 0, 0, 0, 0, 0, 0);
             return;
         }
 
@@ -78,16 +85,11 @@ public class AggregateTimeSeriesSpan implements TimeSeriesSpan {
         double minValue = stats.getMinValue();
         double maxValue = stats.getMaxValue();
 
-        aggregates[5 * i] = Double.doubleToRawLongBits(stats.getSum());
-        aggregates[5 * i + 1] = Double.doubleToRawLongBits(minValue);
-        aggregates[5 * i + 2] = minTimestamp;
-        aggregates[5 * i + 3] = Double.doubleToRawLongBits(maxValue);
         // not sure if this helps. we do it to keep the last timestamp in case of same values in the interval
         if (maxValue == stats.getLastValue()){
-            aggregates[5 * i + 4] = stats.getLastTimestamp();
-        } else {
-            aggregates[5 * i + 4] = maxTimestamp;
+            maxTimestamp = stats.getLastTimestamp();
         }
+        storage.set(i, stats.getCount(), stats.getSum(), minValue, minTimestamp, maxValue, maxTimestamp);
     }
 
     /**
@@ -117,7 +119,36 @@ public class AggregateTimeSeriesSpan implements TimeSeriesSpan {
     }
 
     public int[] getCounts() {
-        return counts;
+        return storage.getCounts();
+    }
+
+    /**
+     * Returns the total number of raw time series points behind this span.
+     */
+    public long getTotalCount() {
+        long count = 0;
+        for (int i = 0; i < size; i++) count += storage.getCount(i);
+        return count;
+    }
+
+    AggregateStorage getStorage() {
+        return storage;
+    }
+
+    public StorageType getStorageType() {
+        if (storage instanceof OffHeapAggregateStorage) return StorageType.OFF_HEAP;
+        if (storage instanceof CompressedAggregateStorage) return StorageType.COMPRESSED;
+        return StorageType.HEAP;
+    }
+
+    @Override
+    public void retain() {
+        storage.retain();
+    }
+
+    @Override
+    public void release() {
+        storage.release();
     }
 
     public TimeInterval getResidual(){
@@ -134,6 +165,11 @@ public class AggregateTimeSeriesSpan implements TimeSeriesSpan {
         return new TimeSeriesSpanIterator(queryStartTimestamp, queryEndTimestamp);
     }
 
+    @Override
+    public TimeSeriesSpanCursor cursor(long queryStartTimestamp, long queryEndTimestamp) {
+        return new TimeSeriesSpanCursorImpl(queryStartTimestamp, queryEndTimestamp);
+    }
+
 
     public TimeRange getTimeRange() {
         return new TimeRange(getFrom(), getTo());
@@ -170,8 +206,6 @@ public class AggregateTimeSeriesSpan implements TimeSeriesSpan {
     public long calculateDeepMemorySize() {
         // Memory overhead for an object in a 64-bit JVM
         final int OBJECT_OVERHEAD = 16;
-        // Memory overhead for an array in a 64-bit JVM
-        final int ARRAY_OVERHEAD = 20;
         // Memory usage of int in a 64-bit JVM
         final int INT_SIZE = 4;
         // Memory usage of long in a 64-bit JVM
@@ -180,14 +214,12 @@ public class AggregateTimeSeriesSpan implements TimeSeriesSpan {
         final int REF_SIZE = 4;
 
 
-        long aggregatesMemory = REF_SIZE + ARRAY_OVERHEAD + aggregates.length * (REF_SIZE + ARRAY_OVERHEAD + ((long) size * 5 * LONG_SIZE));
-
-        long countsMemory = REF_SIZE + ARRAY_OVERHEAD + ((long) counts.length * INT_SIZE);
+        long storageMemory = REF_SIZE + storage.calculateDeepMemorySize();
 
         long aggregateIntervalMemory = 2 * REF_SIZE + OBJECT_OVERHEAD + LONG_SIZE;
 
         long deepMemorySize = REF_SIZE + OBJECT_OVERHEAD +
-                aggregatesMemory + countsMemory + LONG_SIZE + INT_SIZE + aggregateIntervalMemory;
+                storageMemory + LONG_SIZE + INT_SIZE + aggregateIntervalMemory;
 
 
         return deepMemorySize;
@@ -197,42 +229,212 @@ public class AggregateTimeSeriesSpan implements TimeSeriesSpan {
     public int getMeasure() { return measure; }
 
 
-/*    public TimeSeriesSpan rollup(AggregateInterval newAggregateInterval) {
+    /**
+     * Checks if this span and the given one can be merged into a single span.
+     * This is the case when both spans are of the same measure and aggregate interval, they overlap or are adjacent,
+     * and the groups of the later span are aligned with the groups of the earlier one.
+     *
+     * @param other another span
+     * @return true if the two spans can be merged
+     */
+    public boolean canMerge(AggregateTimeSeriesSpan other) {
+        if (measure != other.measure || aggregateInterval != other.aggregateInterval) return false;
+        AggregateTimeSeriesSpan first = from <= other.from ? this : other;
+        AggregateTimeSeriesSpan second = first == this ? other : this;
+        return second.from <= first.to && (second.from - first.from) % aggregateInterval == 0;
+    }
+
+    /**
+     * Merges this span with the given one into a span that covers both.
+     * The groups of the earlier span are kept up to the start of the later span, followed by all the groups of the later one.
+     * If one span encloses the other, the enclosing span is returned as is.
+     *
+     * @param other a span for which {@link #canMerge(AggregateTimeSeriesSpan)} is true
+     * @return the merged span
+     */
+    public AggregateTimeSeriesSpan merge(AggregateTimeSeriesSpan other) {
+        if (!canMerge(other)) {
+            throw new IllegalArgumentException("Cannot merge span " + this + " with " + other);
+        }
+        AggregateTimeSeriesSpan first = from <= other.from ? this : other;
+        AggregateTimeSeriesSpan second = first == this ? other : this;
+        if (second.to <= first.to) return first;
+        if (first.from == second.from) return second;
+
+        int offset = (int) ((second.from - first.from) / aggregateInterval);
+        int mergedSize = offset + second.size;
+        // The merged span is stored the same way as this one.
+        AggregateStorage mergedStorage = storage.allocate(mergedSize);
+        first.storage.copyTo(0, mergedStorage, 0, offset);
+        second.storage.copyTo(0, mergedStorage, offset, second.size);
+        return new AggregateTimeSeriesSpan(first.from, second.to, measure, aggregateInterval, mergedStorage);
+    }
+
+    /**
+     * Copies the groups of this span that overlap the range [from, to) to a new span with the same aggregate interval.
+     * The new span is stored the same way as this one.
+     *
+     * @param queryFrom The start timestamp of the range to copy.
+     * @param queryTo The end timestamp of the range to copy (not included).
+     * @return a new span with the overlapping groups
+     */
+    public AggregateTimeSeriesSpan slice(long queryFrom, long queryTo) {
+        int startIndex = getIndex(queryFrom);
+        int endIndex = getIndex(queryTo - 1) + 1;
+        long sliceFrom = from + startIndex * aggregateInterval;
+        long sliceTo = endIndex == size ? to : from + endIndex * aggregateInterval;
+        AggregateStorage sliceStorage = storage.allocate(endIndex - startIndex);
+        storage.copyTo(startIndex, sliceStorage, 0, endIndex - startIndex);
+        return new AggregateTimeSeriesSpan(sliceFrom, sliceTo, measure, aggregateInterval, sliceStorage);
+    }
+
+    /**
+     * Derives a span with a coarser aggregate interval from the groups of this span that overlap the range [from, to).
+     * Every group of the new span merges the min, max, sum and count of consecutive groups of this span.
+     * The new aggregate interval must be a multiple of the current one, so that no group of this span is split.
+     * The rolled up span is short-lived, so it is always stored on the heap.
+     *
+     * @param newAggregateInterval the aggregate interval of the new span
+     * @param queryFrom The start timestamp of the range to roll up.
+     * @param queryTo The end timestamp of the range to roll up (not included).
+     * @return a new span with the given aggregate interval
+     */
+    public AggregateTimeSeriesSpan rollup(long newAggregateInterval, long queryFrom, long queryTo) {
         // Validate that the new aggregate interval is larger than the current one
-        if (newAggregateInterval.toDuration().compareTo(this.aggregateInterval.toDuration()) <= 0) {
-            throw new IllegalArgumentException("The new aggregate interval must be larger than the current one.");
+        if (newAggregateInterval <= aggregateInterval || newAggregateInterval % aggregateInterval != 0) {
+            throw new IllegalArgumentException("The new aggregate interval must be a multiple of the current one.");
+        }
+        int factor = (int) (newAggregateInterval / aggregateInterval);
+        int startIndex = getIndex(queryFrom);
+        int endIndex = getIndex(queryTo - 1) + 1;
+        long rollupFrom = from + startIndex * aggregateInterval;
+        long rollupTo = endIndex == size ? to : from + endIndex * aggregateInterval;
+        int rollupSize = DateTimeUtil.numberOfIntervals(rollupFrom, rollupTo, newAggregateInterval);
+        AggregateStorage rollupStorage = StorageType.HEAP.allocate(rollupSize);
+
+        for (int i = startIndex; i < endIndex; i++) {
+            int count = storage.getCount(i);
+            if (count == 0) continue;
+            int j = (i - startIndex) / factor;
+            int rollupCount = rollupStorage.getCount(j);
+            if (rollupCount == 0) {
+                storage.copyTo(i, rollupStorage, j, 1);
+                continue;
+            }
+            double minValue = rollupStorage.getMinValue(j);
+            long minTimestamp = rollupStorage.getMinTimestamp(j);
+            double maxValue = rollupStorage.getMaxValue(j);
+            long maxTimestamp = rollupStorage.getMaxTimestamp(j);
+            if (storage.getMinValue(i) < minValue) {
+                minValue = storage.getMinValue(i);
+                minTimestamp = storage.getMinTimestamp(i);
+            }
+            // As in addAggregatedDataPoint, keep the latest timestamp in case of same max values.
+            if (storage.getMaxValue(i) >= maxValue) {
+                maxValue = storage.getMaxValue(i);
+                maxTimestamp = storage.getMaxTimestamp(i);
+            }
+            rollupStorage.set(j, rollupCount + count, rollupStorage.getSum(j) + storage.getSum(i),
+                    minValue, minTimestamp, maxValue, maxTimestamp);
+        }
+        return new AggregateTimeSeriesSpan(rollupFrom, rollupTo, measure, newAggregateInterval, rollupStorage);
+    }
+
+    private class TimeSeriesSpanCursorImpl implements TimeSeriesSpanCursor {
+
+        private final int endIndex;
+
+        private int currentIndex;
+
+        public TimeSeriesSpanCursorImpl(long queryStartTimestamp, long queryEndTimestamp) {
+            currentIndex = getIndex(queryStartTimestamp) - 1;
+            endIndex = queryEndTimestamp >= 0 ? getIndex(queryEndTimestamp - 1) + 1 : size;
+        }
+
+        @Override
+        public boolean advance() {
+            return ++currentIndex < endIndex;
+        }
+
+        @Override
+        public int measure() {
+            return measure;
+        }
+
+        @Override
+        public long from() {
+            return from + currentIndex * aggregateInterval;
+        }
+
+        @Override
+        public long to() {
+            return currentIndex == size - 1 ? to : from + (currentIndex + 1) * aggregateInterval;
+        }
+
+        @Override
+        public int count() {
+            return storage.getCount(currentIndex);
+        }
+
+        @Override
+        public double sum() {
+            return storage.getSum(currentIndex);
+        }
+
+        @Override
+        public double minValue() {
+            return storage.getMinValue(currentIndex);
         }
-        return TimeSeriesSpanFactory.createFromRaw(this, newAggregateInterval);
-    }*/
+
+        @Override
+        public long minTs() {
+            return storage.getMinTimestamp(currentIndex);
+        }
+
+        @Override
+        public double maxValue() {
+            return storage.getMaxValue(currentIndex);
+        }
+
+        @Override
+        public long maxTs() {
+            return storage.getMaxTimestamp(currentIndex);
+        }
+    }
 
     private class TimeSeriesSpanIterator implements Iterator<AggregatedDataPoint>, AggregatedDataPoint {
 
-        private Iterator<Integer> internalIt;
+        private final int endIndex;
 
         private long timestamp;
 
         private int currentIndex = -1;
 
+        private int nextIndex;
+
         public TimeSeriesSpanIterator(long queryStartTimestamp, long queryEndTimestamp) {
-            internalIt = IntStream.range(getIndex(queryStartTimestamp), queryEndTimestamp >= 0 ? getIndex(queryEndTimestamp - 1) + 1 : size)
-                    .iterator();
+            nextIndex = getIndex(queryStartTimestamp);
+            endIndex = queryEndTimestamp >= 0 ? getIndex(queryEndTimestamp - 1) + 1 : size;
         }
 
         @Override
         public boolean hasNext() {
-            return internalIt.hasNext();
+            return nextIndex < endIndex;
         }
 
         @Override
         public AggregatedDataPoint next() {
-            currentIndex = internalIt.next();
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            currentIndex = nextIndex++;
             timestamp = from + currentIndex * aggregateInterval;
             return this;
         }
 
         @Override
         public int getCount() {
-            return counts[currentIndex];
+            return storage.getCount(currentIndex);
         }
 
         @Override
@@ -243,37 +445,37 @@ public class AggregateTimeSeriesSpan implements TimeSeriesSpan {
 
                 @Override
                 public int getCount() {
-                    return counts[index];
+                    return storage.getCount(index);
                 }
 
                 @Override
                 public double getSum() {
-                    return Double.longBitsToDouble(aggregates[index * 5]);
+                    return storage.getSum(index);
                 }
 
                 @Override
                 public double getMinValue() {
-                    return Double.longBitsToDouble(aggregates[index * 5 + 1]);
+                    return storage.getMinValue(index);
                 }
 
                 @Override
                 public double getMaxValue() {
-                    return Double.longBitsToDouble(aggregates[index * 5 + 3]);
+                    return storage.getMaxValue(index);
                 }
 
                 @Override
                 public double getAverageValue() {
-                    return Double.longBitsToDouble(aggregates[index * 5]) / counts[index];
+                    return storage.getSum(index) / storage.getCount(index);
                 }
 
                 @Override
                 public long getMinTimestamp() {
-                    return aggregates[index * 5 + 2];
+                    return storage.getMinTimestamp(index);
                 }
 
                 @Override
                 public long getMaxTimestamp() {
-                    return aggregates[index * 5 + 4];
+                    return storage.getMaxTimestamp(index);
                 }
 
                 @Override
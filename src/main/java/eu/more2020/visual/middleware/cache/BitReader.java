@@ -0,0 +1,92 @@
+package eu.more2020.visual.middleware.cache;
+
+import static eu.more2020.visual.middleware.cache.BitWriter.POWERS_OF_TEN;
+import static eu.more2020.visual.middleware.cache.BitWriter.mask;
+
+/**
+ * Reads back the values written by a {@link BitWriter}, in the same order.
+ */
+class BitReader {
+
+    private final long[] words;
+
+    private int position;
+
+    BitReader(long[] words) {
+        this.words = words;
+    }
+
+    long readBits(int bits) {
+        int word = position >>> 6;
+        int free = 64 - (position & 63);
+        long value;
+        if (bits <= free) {
+            value = (words[word] >>> (free - bits)) & mask(bits);
+        } else {
+            long high = words[word] & mask(free);
+            value = (high << (bits - free)) | (words[word + 1] >>> (64 - (bits - free)));
+        }
+        position += bits;
+        return value;
+    }
+
+    long readSigned() {
+        long zigZag;
+        if (readBits(1) == 0) {
+            zigZag = 0;
+        } else if (readBits(1) == 0) {
+            zigZag = readBits(7);
+        } else if (readBits(1) == 0) {
+            zigZag = readBits(14);
+        } else if (readBits(1) == 0) {
+            zigZag = readBits(24);
+        } else {
+            zigZag = readBits(64);
+        }
+        return unZigZag(zigZag);
+    }
+
+    void readPacked(long[] values, int n) {
+        int width = (int) readBits(7);
+        for (int k = 0; k < n; k++) values[k] = width == 0 ? 0 : readBits(width);
+    }
+
+    long readXor(BitWriter.XorState state) {
+        if (readBits(1) == 0) return state.previous;
+        long xor;
+        if (readBits(1) == 0) {
+            xor = readBits(64 - state.leadingZeros - state.trailingZeros) << state.trailingZeros;
+        } else {
+            state.leadingZeros = (int) readBits(5);
+            int meaningfulBits = (int) readBits(6) + 1;
+            state.trailingZeros = 64 - state.leadingZeros - meaningfulBits;
+            xor = readBits(meaningfulBits) << state.trailingZeros;
+        }
+        state.previous ^= xor;
+        return state.previous;
+    }
+
+    /**
+     * Reads n double values written by {@link BitWriter#writeDoubles(long[], int[], int)} to the same indices.
+     */
+    void readDoubles(long[] values, int[] indices, int n) {
+        if (readBits(1) == 0) {
+            BitWriter.XorState state = new BitWriter.XorState();
+            for (int k = 0; k < n; k++) values[indices == null ? k : indices[k]] = readXor(state);
+            return;
+        }
+        double powerOfTen = POWERS_OF_TEN[(int) readBits(4)];
+        long scaled = readSigned();
+        values[indices == null ? 0 : indices[0]] = Double.doubleToRawLongBits(scaled / powerOfTen);
+        if (n == 1) return;
+        int width = (int) readBits(7);
+        for (int k = 1; k < n; k++) {
+            if (width != 0) scaled += unZigZag(readBits(width));
+            values[indices == null ? k : indices[k]] = Double.doubleToRawLongBits(scaled / powerOfTen);
+        }
+    }
+
+    static long unZigZag(long zigZag) {
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+}
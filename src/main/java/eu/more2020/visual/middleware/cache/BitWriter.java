@@ -0,0 +1,160 @@
+package eu.more2020.visual.middleware.cache;
+
+import java.util.Arrays;
+
+/**
+ * Writes values bit by bit to a growing array of longs, for the compressed storage of time series spans.
+ * Bits are written from the most significant bit of every long. See {@link BitReader} for reading them back.
+ */
+class BitWriter {
+
+    static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+
+    private long[] words = new long[8];
+
+    private int position;
+
+    void writeBits(long value, int bits) {
+        int word = position >>> 6;
+        if (word + 1 >= words.length) words = Arrays.copyOf(words, words.length * 2);
+        value &= mask(bits);
+        int free = 64 - (position & 63);
+        if (bits <= free) {
+            words[word] |= value << (free - bits);
+        } else {
+            words[word] |= value >>> (bits - free);
+            words[word + 1] |= value << (64 - (bits - free));
+        }
+        position += bits;
+    }
+
+    /**
+     * Writes a zig-zag encoded value with a variable length prefix: 0 for zero, then 10, 110, 1110 and 1111
+     * for values of up to 7, 14, 24 and 64 bits.
+     */
+    void writeSigned(long value) {
+        long zigZag = zigZag(value);
+        if (zigZag == 0) {
+            writeBits(0, 1);
+        } else if (zigZag >>> 7 == 0) {
+            writeBits(0b10, 2);
+            writeBits(zigZag, 7);
+        } else if (zigZag >>> 14 == 0) {
+            writeBits(0b110, 3);
+            writeBits(zigZag, 14);
+        } else if (zigZag >>> 24 == 0) {
+            writeBits(0b1110, 4);
+            writeBits(zigZag, 24);
+        } else {
+            writeBits(0b1111, 4);
+            writeBits(zigZag, 64);
+        }
+    }
+
+    /**
+     * Writes the first n unsigned values with the bit width of the largest one.
+     */
+    void writePacked(long[] values, int n) {
+        long or = 0;
+        for (int k = 0; k < n; k++) or |= values[k];
+        int width = 64 - Long.numberOfLeadingZeros(or);
+        writeBits(width, 7);
+        if (width == 0) return;
+        for (int k = 0; k < n; k++) writeBits(values[k], width);
+    }
+
+    /**
+     * Writes the XOR of a value with the previous one, as in Facebook's Gorilla.
+     */
+    void writeXor(XorState state, long value) {
+        long xor = value ^ state.previous;
+        state.previous = value;
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailingZeros = Long.numberOfTrailingZeros(xor);
+        if (state.leadingZeros >= 0 && leadingZeros >= state.leadingZeros && trailingZeros >= state.trailingZeros) {
+            writeBits(0b10, 2);
+            writeBits(xor >>> state.trailingZeros, 64 - state.leadingZeros - state.trailingZeros);
+            return;
+        }
+        int meaningfulBits = 64 - leadingZeros - trailingZeros;
+        writeBits(0b11, 2);
+        writeBits(leadingZeros, 5);
+        writeBits(meaningfulBits - 1, 6);
+        writeBits(xor >>> trailingZeros, meaningfulBits);
+        state.leadingZeros = leadingZeros;
+        state.trailingZeros = trailingZeros;
+    }
+
+    /**
+     * Writes n double values, given as their raw bits, at the given indices of the array, or at its first n positions if indices is null.
+     * Values with a few decimal digits, as most sensor measurements, are written as the deltas of the integers they are scaled to
+     * by a power of ten, when every value converts back exactly. Otherwise, the values are XOR encoded.
+     */
+    void writeDoubles(long[] values, int[] indices, int n) {
+        int exponent = decimalExponent(values, indices, n);
+        if (exponent < 0) {
+            writeBits(0, 1);
+            XorState state = new XorState();
+            for (int k = 0; k < n; k++) writeXor(state, values[indices == null ? k : indices[k]]);
+            return;
+        }
+        writeBits(1, 1);
+        writeBits(exponent, 4);
+        long[] deltas = new long[n];
+        long previous = 0;
+        for (int k = 0; k < n; k++) {
+            long scaled = Math.round(Double.longBitsToDouble(values[indices == null ? k : indices[k]]) * POWERS_OF_TEN[exponent]);
+            deltas[k] = zigZag(scaled - previous);
+            previous = scaled;
+        }
+        writeSigned(BitReader.unZigZag(deltas[0]));
+        if (n > 1) {
+            System.arraycopy(deltas, 1, deltas, 0, n - 1);
+            writePacked(deltas, n - 1);
+        }
+    }
+
+    long[] toArray() {
+        return Arrays.copyOf(words, (position + 63) >>> 6);
+    }
+
+    /**
+     * Returns the smallest number of decimal digits that all the values have, or -1 if some value has more.
+     */
+    private static int decimalExponent(long[] values, int[] indices, int n) {
+        for (int exponent = 0; exponent < POWERS_OF_TEN.length; exponent++) {
+            boolean exact = true;
+            for (int k = 0; k < n && exact; k++) {
+                long bits = values[indices == null ? k : indices[k]];
+                double scaled = Math.round(Double.longBitsToDouble(bits) * POWERS_OF_TEN[exponent]);
+                exact = Double.doubleToRawLongBits(scaled / POWERS_OF_TEN[exponent]) == bits;
+            }
+            if (exact) return exponent;
+        }
+        return -1;
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long mask(int bits) {
+        return bits == 64 ? -1L : (1L << bits) - 1;
+    }
+
+    /**
+     * The state of the XOR encoding of a sequence of values: the previous value and the window of its meaningful bits.
+     */
+    static class XorState {
+
+        long previous;
+
+        int leadingZeros = -1;
+
+        int trailingZeros;
+    }
+}
@@ -1,13 +1,32 @@
 package eu.more2020.visual.middleware.cache;
 
 import eu.more2020.visual.middleware.domain.Query.Query;
+import eu.more2020.visual.middleware.domain.TimeInterval;
+import eu.more2020.visual.middleware.domain.TimeRange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
+/**
+ * Holds the cached time series spans in one interval tree per measure.
+ * The cache manager is safe for concurrent use. Every measure has its own read-write lock,
+ * so queries on the same measure run in parallel and only inserts and evictions on that measure are exclusive.
+ * The eviction policy is guarded by its own monitor. It is updated on insert while holding the write lock of the measure,
+ * but a measure lock is never taken while holding the monitor, so the two cannot deadlock.
+ * <p>
+ * The cache owns a reference to the memory of every span in it (see {@link TimeSeriesSpan#retain()}).
+ * A span added to the cache hands its reference to the cache, and the cache releases it when the span is evicted or compacted.
+ * The spans returned by {@link #getFromCache(Query, long)} are retained for the caller, who must release them after reading them.
+ * <p>
+ * With a {@link DiskSpillTier}, evicted aggregate spans are written to disk instead of being dropped,
+ * and lookups also return the spilled spans, so that cold data are not fetched again from the data source.
+ */
 public class CacheManager {
 
     private final List<Integer> measures;
@@ -15,14 +34,187 @@ public class CacheManager {
 
     private final Map<Integer, IntervalTree<TimeSeriesSpan>> intervalTrees;
 
+    private final Map<Integer, ReadWriteLock> locks;
+
+    // The maximum number of groups of a span created by compacting smaller spans.
+    // It keeps spans small enough to be evicted at a fine granularity.
+    private static final int MAX_COMPACTED_SIZE = 100_000;
+
+    // The maximum deep memory size in bytes of the cached spans. When exceeded, spans are evicted.
+    private final long maxMemory;
+
+    private final EvictionPolicy evictionPolicy;
+
+    // The tier that evicted spans are spilled to. Null if evicted spans are dropped.
+    private final DiskSpillTier spillTier;
+
+    // The deep memory size in bytes of all the cached spans.
+    private final AtomicLong memorySize = new AtomicLong();
+
+    private final CacheMetrics metrics;
+
     public CacheManager(List<Integer> measures) {
+        this(measures, Long.MAX_VALUE, new LRUEvictionPolicy());
+    }
+
+    public CacheManager(List<Integer> measures, long maxMemory, EvictionPolicy evictionPolicy) {
+        this(measures, maxMemory, evictionPolicy, null);
+    }
+
+    public CacheManager(List<Integer> measures, long maxMemory, EvictionPolicy evictionPolicy, DiskSpillTier spillTier) {
+        this(measures, maxMemory, evictionPolicy, spillTier, new CacheMetrics("cache"));
+    }
+
+    /**
+     * @param metrics records the bytes cached and the evictions
+     */
+    public CacheManager(List<Integer> measures, long maxMemory, EvictionPolicy evictionPolicy, DiskSpillTier spillTier, CacheMetrics metrics) {
         this.measures = measures;
+        this.metrics = metrics;
+        this.maxMemory = maxMemory;
+        this.evictionPolicy = evictionPolicy;
+        this.spillTier = spillTier;
         this.intervalTrees = new HashMap<>();
-        measures.forEach(m -> intervalTrees.put(m, new IntervalTree<>()));
+        this.locks = new HashMap<>();
+        measures.forEach(m -> {
+            intervalTrees.put(m, new IntervalTree<>());
+            locks.put(m, new ReentrantReadWriteLock());
+        });
     }
 
     public void addToCache(List<TimeSeriesSpan> timeSeriesSpans) {
-        timeSeriesSpans.forEach(timeSeriesSpan -> getIntervalTree(timeSeriesSpan.getMeasure()).insert(timeSeriesSpan));
+        for (TimeSeriesSpan timeSeriesSpan : timeSeriesSpans) {
+            int measure = timeSeriesSpan.getMeasure();
+            List<TimeSeriesSpan> removed = new ArrayList<>();
+            TimeSeriesSpan inserted;
+            long addedMemory = 0;
+            getLock(measure).writeLock().lock();
+            try {
+                inserted = insert(getIntervalTree(measure), timeSeriesSpan, removed);
+                // Spans with an interval already in the tree are not inserted, so they are not accounted for.
+                if (inserted != null) {
+                    long removedMemory = removed.stream().mapToLong(TimeSeriesSpan::calculateDeepMemorySize).sum();
+                    addedMemory = inserted.calculateDeepMemorySize() - removedMemory;
+                    // The policy is updated before the lock is released. Otherwise, another insert could compact the inserted span
+                    // and remove it from the policy before it is added, leaving the policy with a span that is no longer cached.
+                    synchronized (evictionPolicy) {
+                        removed.forEach(evictionPolicy::onRemove);
+                        evictionPolicy.onInsert(inserted);
+                    }
+                }
+            } finally {
+                getLock(measure).writeLock().unlock();
+            }
+            memorySize.addAndGet(addedMemory);
+            metrics.addBytesCached(addedMemory);
+            // The compacted spans were copied to the inserted one, unless the inserted span is one of them,
+            // and a span that was not inserted is not kept.
+            for (TimeSeriesSpan removedSpan : removed) {
+                if (removedSpan != inserted) removedSpan.release();
+            }
+            if (inserted != timeSeriesSpan) timeSeriesSpan.release();
+        }
+        evict();
+    }
+
+    /**
+     * Inserts a span in the interval tree of its measure. Before insertion, an aggregate span is compacted with the
+     * cached spans that it overlaps or is adjacent to, when their groups are aligned and of the same aggregate interval.
+     * This way, the tree holds a few large spans instead of many small ones.
+     * Must be called while holding the write lock of the measure.
+     *
+     * @param intervalTree the interval tree of the span's measure
+     * @param timeSeriesSpan the span to insert
+     * @param removed the cached spans that were merged into the inserted one and removed from the tree
+     * @return the inserted span, or null if the tree already holds a span with the same interval
+     */
+    private TimeSeriesSpan insert(IntervalTree<TimeSeriesSpan> intervalTree, TimeSeriesSpan timeSeriesSpan, List<TimeSeriesSpan> removed) {
+        if (!(timeSeriesSpan instanceof AggregateTimeSeriesSpan)) {
+            return intervalTree.insert(timeSeriesSpan) ? timeSeriesSpan : null;
+        }
+        AggregateTimeSeriesSpan merged = (AggregateTimeSeriesSpan) timeSeriesSpan;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            // Extend the interval by one on each side to also get the adjacent spans.
+            List<TimeSeriesSpan> candidates = new ArrayList<>();
+            intervalTree.overlappers(new TimeRange(merged.getFrom() - 1, merged.getTo() + 1)).forEachRemaining(candidates::add);
+            for (TimeSeriesSpan candidate : candidates) {
+                if (!(candidate instanceof AggregateTimeSeriesSpan)) continue;
+                AggregateTimeSeriesSpan aggregateCandidate = (AggregateTimeSeriesSpan) candidate;
+                if (merged.getSize() + aggregateCandidate.getSize() > MAX_COMPACTED_SIZE || !merged.canMerge(aggregateCandidate)) continue;
+                AggregateTimeSeriesSpan next = merged.merge(aggregateCandidate);
+                // A span merged in an earlier iteration is only an intermediate copy, which is replaced by the new one.
+                if (next != merged && isIntermediate(merged, timeSeriesSpan, removed)) merged.release();
+                merged = next;
+                intervalTree.deleteInstance(candidate);
+                removed.add(candidate);
+                changed = true;
+            }
+        }
+        if (intervalTree.insert(merged)) {
+            if (!removed.isEmpty()) LOG.debug("Compacted {} cached spans into {}", removed.size(), merged);
+            return merged;
+        }
+        // A span with the interval of the merged one is already cached. Undo the compaction and drop the merged copy.
+        if (isIntermediate(merged, timeSeriesSpan, removed)) merged.release();
+        removed.forEach(intervalTree::insert);
+        removed.clear();
+        return intervalTree.insert(timeSeriesSpan) ? timeSeriesSpan : null;
+    }
+
+    /**
+     * Whether a span built while compacting is a copy that is neither the span being inserted nor one of the cached spans,
+     * so that it is owned by the compaction alone.
+     */
+    private static boolean isIntermediate(TimeSeriesSpan merged, TimeSeriesSpan timeSeriesSpan, List<TimeSeriesSpan> removed) {
+        if (merged == timeSeriesSpan) return false;
+        for (TimeSeriesSpan removedSpan : removed) {
+            if (removedSpan == merged) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Evicts spans, as chosen by the eviction policy, until the memory size of the cache is within the memory budget.
+     */
+    private void evict() {
+        while (memorySize.get() > maxMemory) {
+            TimeSeriesSpan victim;
+            synchronized (evictionPolicy) {
+                victim = evictionPolicy.evict();
+            }
+            if (victim == null) break;
+            int measure = victim.getMeasure();
+            boolean deleted;
+            getLock(measure).writeLock().lock();
+            try {
+                // Only the victim itself is removed, never another span with the same interval.
+                deleted = getIntervalTree(measure).deleteInstance(victim);
+            } finally {
+                getLock(measure).writeLock().unlock();
+            }
+            if (deleted) {
+                long victimMemory = victim.calculateDeepMemorySize();
+                memorySize.addAndGet(-victimMemory);
+                metrics.addBytesCached(-victimMemory);
+                metrics.recordEviction();
+                LOG.debug("Evicted time series span {}", victim);
+                if (spillTier != null) spillTier.spill(victim);
+                victim.release();
+            }
+        }
+    }
+
+    /**
+     * Returns the deep memory size in bytes of all the spans currently in the cache.
+     */
+    public long calculateDeepMemorySize() {
+        return memorySize.get();
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
     }
 
     public boolean areListsEqual(List<Integer> list1, List<Integer> list2){
@@ -34,20 +226,92 @@ public class CacheManager {
 
     public Map<Integer, List<TimeSeriesSpan>> getFromCache(Query query, long pixelColumnInterval) {
         // For each query measure, get the corresponding interval tree. From it retrieve the overlapping spans.
-        return query.getMeasures().stream().collect(Collectors.toMap(
+        Map<Integer, List<TimeSeriesSpan>> overlappingSpansPerMeasure = query.getMeasures().stream().collect(Collectors.toMap(
                 // Key: Measure
                 m -> m,
                 // Value: List of TimeSeriesSpan
-                m -> StreamSupport.stream(
-                                Spliterators.spliteratorUnknownSize(getIntervalTree(m).overlappers(query), 0), false)
-                        // Keep only spans with an aggregate interval that is half or less than the pixel column interval to ensure at least one fully contained in every pixel column that the span fully overlaps
-                        // This way, each of the groups of the resulting spans will overlap at most two pixel columns.
-                        .filter(span -> pixelColumnInterval >= 2 * span.getAggregateInterval())
-                        .collect(Collectors.toList())
+                m -> getFromCache(m, query, pixelColumnInterval)
         ));
+        synchronized (evictionPolicy) {
+            overlappingSpansPerMeasure.values().forEach(spans -> spans.forEach(evictionPolicy::onAccess));
+        }
+        return overlappingSpansPerMeasure;
+    }
+
+    /**
+     * Same as {@link #getFromCache(Query, long)} for a single measure of the query,
+     * so that the measures of a query can be looked up concurrently.
+     */
+    public List<TimeSeriesSpan> getFromCache(Query query, int measure, long pixelColumnInterval) {
+        List<TimeSeriesSpan> overlappingSpans = getFromCache(measure, query, pixelColumnInterval);
+        synchronized (evictionPolicy) {
+            overlappingSpans.forEach(evictionPolicy::onAccess);
+        }
+        return overlappingSpans;
+    }
+
+    private List<TimeSeriesSpan> getFromCache(int measure, TimeInterval interval, long pixelColumnInterval) {
+        // The overlapping spans are copied to a list and retained while holding the read lock,
+        // so that concurrent inserts and evictions never modify the tree during the traversal or free a returned span.
+        getLock(measure).readLock().lock();
+        try {
+            List<TimeSeriesSpan> spans = StreamSupport.stream(
+                            Spliterators.spliteratorUnknownSize(getIntervalTree(measure).overlappers(interval), 0), false)
+                    // Keep only spans with an aggregate interval that is half or less than the pixel column interval to ensure at least one fully contained in every pixel column that the span fully overlaps
+                    // This way, each of the groups of the resulting spans will overlap at most two pixel columns.
+                    .filter(span -> pixelColumnInterval >= 2 * span.getAggregateInterval())
+                    .collect(Collectors.toList());
+            spans.forEach(TimeSeriesSpan::retain);
+            if (spillTier != null) spans.addAll(getFromSpillTier(measure, interval, pixelColumnInterval));
+            return spans;
+        } finally {
+            getLock(measure).readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the spilled spans of a measure that overlap the interval, with the same aggregate interval filter as the cached ones.
+     */
+    private List<TimeSeriesSpan> getFromSpillTier(int measure, TimeInterval interval, long pixelColumnInterval) {
+        List<TimeSeriesSpan> spans = new ArrayList<>();
+        for (TimeSeriesSpan span : spillTier.getOverlapping(measure, interval)) {
+            if (pixelColumnInterval >= 2 * span.getAggregateInterval()) spans.add(span);
+            else span.release();
+        }
+        return spans;
+    }
+
+    /**
+     * Drops the spilled spans and deletes their files.
+     */
+    public void shutdown() {
+        if (spillTier != null) spillTier.close();
+    }
+
+    /**
+     * Returns all the cached spans, e.g. to snapshot the cache. The spans are retained for the caller, who must release them.
+     */
+    public List<TimeSeriesSpan> getAllFromCache() {
+        List<TimeSeriesSpan> spans = new ArrayList<>();
+        for (int measure : measures) {
+            getLock(measure).readLock().lock();
+            try {
+                for (TimeSeriesSpan span : getIntervalTree(measure)) {
+                    span.retain();
+                    spans.add(span);
+                }
+            } finally {
+                getLock(measure).readLock().unlock();
+            }
+        }
+        return spans;
     }
 
     protected IntervalTree<TimeSeriesSpan> getIntervalTree(int measure) {
-        return intervalTrees.get(measures.indexOf(measure));
+        return intervalTrees.get(measure);
+    }
+
+    protected ReadWriteLock getLock(int measure) {
+        return locks.get(measure);
     }
 }
@@ -0,0 +1,256 @@
+package eu.more2020.visual.middleware.cache;
+
+import eu.more2020.visual.middleware.domain.TimeInterval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the operational metrics of a cache and its data source. The components of the cache record into it as they work.
+ * Counters are {@link LongAdder}s and latencies go to {@link LatencyHistogram}s, so recording is cheap enough to stay on under load.
+ */
+public class CacheMetrics implements CacheMetricsMXBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CacheMetrics.class);
+
+    // Distinguishes the MBeans of caches over the same table.
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    // The prefetched intervals that are waiting for a query to read them. The oldest are dropped beyond this number.
+    private static final int MAX_PENDING_PREFETCHED_INTERVALS = 1024;
+
+    private final String dataSource;
+
+    private final Map<Integer, MeasureCounters> measureCounters = new ConcurrentHashMap<>();
+    private final LongAdder bytesCached = new LongAdder();
+    private final LongAdder spansEvicted = new LongAdder();
+    private final LongAdder fetches = new LongAdder();
+    private final LongAdder fetchedRows = new LongAdder();
+    private final LongAdder fetchedBytes = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+    private final LongAdder prefetchedIntervals = new LongAdder();
+    private final LongAdder usefulPrefetchedIntervals = new LongAdder();
+
+    // The measure, start and end of every prefetched interval that no query has read yet.
+    private final Deque<long[]> pendingPrefetchedIntervals = new ArrayDeque<>();
+
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+    private final LatencyHistogram errorEvaluationLatency = new LatencyHistogram();
+    private final LatencyHistogram fetchLatency = new LatencyHistogram();
+    private final LatencyHistogram spanBuildLatency = new LatencyHistogram();
+    private final LatencyHistogram prefetchLatency = new LatencyHistogram();
+
+    private ObjectName objectName;
+
+    public CacheMetrics(String dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, under the domain of this package.
+     * A failure to register is logged and does not affect the cache.
+     */
+    public synchronized void registerMBean() {
+        if (objectName != null) return;
+        try {
+            ObjectName name = new ObjectName("eu.more2020.visual.middleware:type=MinMaxCache,name=" + ObjectName.quote(dataSource)
+                    + ",instance=" + INSTANCES.getAndIncrement());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            LOG.warn("Could not register the metrics of {} with JMX", dataSource, e);
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (objectName == null) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOG.warn("Could not unregister the metrics of {} from JMX", dataSource, e);
+        }
+        objectName = null;
+    }
+
+    void recordLookup(int measure, boolean hit) {
+        MeasureCounters counters = measureCounters.computeIfAbsent(measure, m -> new MeasureCounters());
+        counters.lookups.increment();
+        if (hit) counters.hits.increment();
+    }
+
+    void addBytesCached(long bytes) {
+        bytesCached.add(bytes);
+    }
+
+    void recordEviction() {
+        spansEvicted.increment();
+    }
+
+    void recordFetch(long rows, long bytes, long nanos) {
+        fetches.increment();
+        fetchedRows.add(rows);
+        fetchedBytes.add(bytes);
+        fetchLatency.record(nanos);
+    }
+
+    void recordPrefetch(long nanos) {
+        prefetches.increment();
+        prefetchLatency.record(nanos);
+    }
+
+    /**
+     * Keeps the intervals fetched by prefetching, until a query reads them.
+     */
+    void recordPrefetched(Map<Integer, List<TimeInterval>> intervalsPerMeasure) {
+        synchronized (pendingPrefetchedIntervals) {
+            intervalsPerMeasure.forEach((measure, intervals) -> {
+                for (TimeInterval interval : intervals) {
+                    prefetchedIntervals.increment();
+                    pendingPrefetchedIntervals.addLast(new long[]{measure, interval.getFrom(), interval.getTo()});
+                    if (pendingPrefetchedIntervals.size() > MAX_PENDING_PREFETCHED_INTERVALS) pendingPrefetchedIntervals.removeFirst();
+                }
+            });
+        }
+    }
+
+    /**
+     * Marks the prefetched intervals of the measure that overlap the interval read by a query as useful.
+     */
+    void recordRead(int measure, TimeInterval interval) {
+        synchronized (pendingPrefetchedIntervals) {
+            Iterator<long[]> iterator = pendingPrefetchedIntervals.iterator();
+            while (iterator.hasNext()) {
+                long[] prefetched = iterator.next();
+                if (prefetched[0] == measure && prefetched[1] < interval.getTo() && prefetched[2] > interval.getFrom()) {
+                    usefulPrefetchedIntervals.increment();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    LatencyHistogram lookupLatency() {
+        return lookupLatency;
+    }
+
+    LatencyHistogram errorEvaluationLatency() {
+        return errorEvaluationLatency;
+    }
+
+    LatencyHistogram spanBuildLatency() {
+        return spanBuildLatency;
+    }
+
+    @Override
+    public String getDataSource() {
+        return dataSource;
+    }
+
+    @Override
+    public long getLookups() {
+        return measureCounters.values().stream().mapToLong(counters -> counters.lookups.sum()).sum();
+    }
+
+    @Override
+    public long getHits() {
+        return measureCounters.values().stream().mapToLong(counters -> counters.hits.sum()).sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long lookups = getLookups();
+        return lookups == 0 ? 0 : (double) getHits() / lookups;
+    }
+
+    @Override
+    public Map<Integer, Double> getHitRatioPerMeasure() {
+        Map<Integer, Double> hitRatios = new TreeMap<>();
+        measureCounters.forEach((measure, counters) -> hitRatios.put(measure, (double) counters.hits.sum() / counters.lookups.sum()));
+        return hitRatios;
+    }
+
+    @Override
+    public long getBytesCached() {
+        return bytesCached.sum();
+    }
+
+    @Override
+    public long getSpansEvicted() {
+        return spansEvicted.sum();
+    }
+
+    @Override
+    public long getFetches() {
+        return fetches.sum();
+    }
+
+    @Override
+    public long getFetchedRows() {
+        return fetchedRows.sum();
+    }
+
+    @Override
+    public long getFetchedBytes() {
+        return fetchedBytes.sum();
+    }
+
+    @Override
+    public long getPrefetches() {
+        return prefetches.sum();
+    }
+
+    @Override
+    public long getUsefulPrefetchedIntervals() {
+        return usefulPrefetchedIntervals.sum();
+    }
+
+    @Override
+    public long getPrefetchedIntervals() {
+        return prefetchedIntervals.sum();
+    }
+
+    @Override
+    public double getPrefetchUsefulness() {
+        long prefetched = getPrefetchedIntervals();
+        return prefetched == 0 ? 0 : (double) getUsefulPrefetchedIntervals() / prefetched;
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getLookupLatency() {
+        return lookupLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getErrorEvaluationLatency() {
+        return errorEvaluationLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getFetchLatency() {
+        return fetchLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getSpanBuildLatency() {
+        return spanBuildLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getPrefetchLatency() {
+        return prefetchLatency.snapshot();
+    }
+
+    private static class MeasureCounters {
+        private final LongAdder lookups = new LongAdder();
+        private final LongAdder hits = new LongAdder();
+    }
+}
@@ -0,0 +1,75 @@
+package eu.more2020.visual.middleware.cache;
+
+import java.util.Map;
+
+/**
+ * The operational metrics of a {@link MinMaxCache} and its data source, as exposed through JMX and to {@link MetricsReporter}s.
+ * Counts are totals since the cache was created, and latencies are in milliseconds.
+ */
+public interface CacheMetricsMXBean {
+
+    /**
+     * The table of the dataset and the kind of data source of the cache.
+     */
+    String getDataSource();
+
+    long getLookups();
+
+    /**
+     * The lookups of a measure whose cached spans were accurate enough, so that nothing was fetched for it.
+     */
+    long getHits();
+
+    double getHitRatio();
+
+    Map<Integer, Double> getHitRatioPerMeasure();
+
+    /**
+     * The deep memory size of the cached spans in bytes.
+     */
+    long getBytesCached();
+
+    long getSpansEvicted();
+
+    /**
+     * The queries to the data source, including those of prefetching and M4 queries.
+     */
+    long getFetches();
+
+    /**
+     * The result rows of the queries to the data source.
+     */
+    long getFetchedRows();
+
+    /**
+     * The bytes of the result rows of the queries to the data source, estimated from the size of a row.
+     */
+    long getFetchedBytes();
+
+    long getPrefetches();
+
+    /**
+     * The intervals fetched by prefetching that a later query read, out of those that were prefetched.
+     */
+    long getUsefulPrefetchedIntervals();
+
+    long getPrefetchedIntervals();
+
+    double getPrefetchUsefulness();
+
+    LatencyHistogram.Snapshot getLookupLatency();
+
+    LatencyHistogram.Snapshot getErrorEvaluationLatency();
+
+    /**
+     * The time of the queries to the data source, including reading their results into spans as they are streamed.
+     */
+    LatencyHistogram.Snapshot getFetchLatency();
+
+    /**
+     * The time to merge fetched spans and insert them in the cache.
+     */
+    LatencyHistogram.Snapshot getSpanBuildLatency();
+
+    LatencyHistogram.Snapshot getPrefetchLatency();
+}
@@ -2,14 +2,18 @@ package eu.more2020.visual.middleware.cache;
 
 import com.google.common.base.Stopwatch;
 
+import eu.more2020.visual.middleware.datasource.CsvQuery;
 import eu.more2020.visual.middleware.datasource.DataSourceQuery;
 import eu.more2020.visual.middleware.datasource.InfluxDBQuery;
 import eu.more2020.visual.middleware.datasource.ModelarDBQuery;
+import eu.more2020.visual.middleware.datasource.QueryExecutor.CsvQueryExecutor;
 import eu.more2020.visual.middleware.datasource.QueryExecutor.InfluxDBQueryExecutor;
 import eu.more2020.visual.middleware.datasource.QueryExecutor.QueryExecutor;
 import eu.more2020.visual.middleware.datasource.QueryExecutor.QueryExecutorFactory;
 import eu.more2020.visual.middleware.datasource.QueryExecutor.SQLQueryExecutor;
+import eu.more2020.visual.middleware.datasource.QueryExecutor.SyntheticQueryExecutor;
 import eu.more2020.visual.middleware.datasource.SQLQuery;
+import eu.more2020.visual.middleware.datasource.SyntheticQuery;
 import eu.more2020.visual.middleware.domain.*;
 import eu.more2020.visual.middleware.domain.Dataset.AbstractDataset;
 import eu.more2020.visual.middleware.domain.Query.Query;
@@ -19,7 +23,13 @@ import org.slf4j.LoggerFactory;
 
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 public class CacheQueryExecutor {
 
@@ -28,20 +38,80 @@ public class CacheQueryExecutor {
     private final Map<Integer, Integer> aggFactors;
 
     private final int initialAggFactor;
+
+    // The pool that evaluates the measures of a query in parallel, or null if they are evaluated in the calling thread.
+    private final ForkJoinPool measurePool;
+
     public CacheQueryExecutor(AbstractDataset dataset, int aggFactor) {
+        this(dataset, aggFactor, 1);
+    }
+
+    /**
+     * @param parallelism the number of threads that evaluate the measures of a query in parallel.
+     *                    With a parallelism of 1, the measures are evaluated one after the other in the calling thread.
+     */
+    public CacheQueryExecutor(AbstractDataset dataset, int aggFactor, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1, got " + parallelism);
+        }
         this.dataset = dataset;
-        this.aggFactors = new HashMap<>(dataset.getMeasures().size());
+        // Queries may run concurrently, so the agg factors are shared through a concurrent map.
+        this.aggFactors = new ConcurrentHashMap<>(dataset.getMeasures().size());
         this.initialAggFactor = aggFactor;
         for(int measure : dataset.getMeasures()) aggFactors.put(measure, aggFactor);
+        this.measurePool = parallelism > 1 ? new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("measures-" + dataset.getTable() + "-" + thread.getPoolIndex());
+            return thread;
+        }, null, false) : null;
+    }
+
+    /**
+     * Stops the threads that evaluate the measures of queries in parallel.
+     */
+    public void shutdown() {
+        if (measurePool != null) measurePool.shutdownNow();
+    }
+
+    /**
+     * Runs the action for every measure. The measures are independent, so they run in parallel on the measure pool if there is one.
+     * Returns when the action has completed for all measures, rethrowing the first failure.
+     */
+    private void forEachMeasure(Collection<Integer> measures, IntConsumer action) {
+        if (measurePool == null || measures.size() < 2) {
+            for (int measure : measures) action.accept(measure);
+            return;
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(measures.size());
+        for (int measure : measures) tasks.add(measurePool.submit(() -> action.accept(measure)));
+        for (ForkJoinTask<?> task : tasks) task.join();
     }
 
-    void updateAggFactor(int measure){
-        int prevAggFactor = aggFactors.get(measure);
-        aggFactors.put(measure, prevAggFactor * 2);
+    Map<Integer, Integer> getAggFactors() {
+        return new HashMap<>(aggFactors);
+    }
+
+    void setAggFactors(Map<Integer, Integer> aggFactors) {
+        aggFactors.forEach((measure, aggFactor) -> {
+            if (this.aggFactors.containsKey(measure)) this.aggFactors.put(measure, aggFactor);
+        });
     }
 
     public QueryResults executeQuery(Query query, CacheManager cacheManager,
                                      DataProcessor dataProcessor, PrefetchManager prefetchManager){
+        return executeQuery(query, cacheManager, dataProcessor, prefetchManager, null);
+    }
+
+    /**
+     * Executes a query, handing the results computed from the cached spans alone to a callback before the missing data are fetched.
+     *
+     * @param onCachedResults receives the results from the cached spans, with their error per measure and their time as progressive query time.
+     *                        It is only called if data are missing, in the thread of the query, and the query waits for it to return.
+     *                        Null if the results are only needed when complete.
+     * @return the complete results, with the same progressive query time
+     */
+    public QueryResults executeQuery(Query query, CacheManager cacheManager, DataProcessor dataProcessor, PrefetchManager prefetchManager,
+                                     Consumer<QueryResults> onCachedResults){
         LOG.info("Executing Visual Query {}", query);
         if(query.getAccuracy() == 1) return executeM4Query(query, dataProcessor.getQueryExecutor());
         long from = query.getFrom();
@@ -57,84 +127,73 @@ public class CacheQueryExecutor {
         LOG.debug("Pixel column interval: " + pixelColumnInterval + " ms");
         List<Integer> measures = Optional.ofNullable(query.getMeasures()).orElse(dataset.getMeasures());
 
-        // Initialize Pixel Columns
-        Map<Integer, List<PixelColumn>> pixelColumnsPerMeasure = new HashMap<>(measures.size()); // Lists of pixel columns. One list for every measure.
-        for (int measure : measures) {
-            List<PixelColumn> pixelColumns = new ArrayList<>();
-            for (long j = 0; j < viewPort.getWidth(); j++) {
-                long pixelFrom = from + (j * pixelColumnInterval);
-                long pixelTo = pixelFrom + pixelColumnInterval;
-                PixelColumn pixelColumn = new PixelColumn(pixelFrom, pixelTo, viewPort);
-                pixelColumns.add(pixelColumn);
-            }
-            pixelColumnsPerMeasure.put(measure, pixelColumns);
-        }
-
-        Map<Integer, List<TimeSeriesSpan>> overlappingSpansPerMeasure = cacheManager.getFromCache(query, pixelColumnInterval);
-        LOG.debug("Overlapping intervals per measure {}", overlappingSpansPerMeasure);
-        Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure = new HashMap<>(measures.size());
-        Map<Integer, Double> errorPerMeasure = new HashMap<>(measures.size());
-
-        // For each measure, get the overlapping spans, add them to pixel columns and calculate the error
-        // Compute the aggFactor, and if there is an error double it.
-        // Finally, add the measure as missing and flag its missing intervals.
-        for(int measure : measures){
-            // Get overlapping spans
-            List<TimeSeriesSpan> overlappingSpans = overlappingSpansPerMeasure.get(measure);
-
-            // Add to pixel columns
-            List<PixelColumn> pixelColumns =  pixelColumnsPerMeasure.get(measure);
-            dataProcessor.processDatapoints(from, to, viewPort, pixelColumns, overlappingSpans);
-
-            // Calculate Error
-            ErrorCalculator errorCalculator = new ErrorCalculator();
-            double errorForMeasure = errorCalculator.calculateTotalError(pixelColumns, viewPort, pixelColumnInterval, query.getAccuracy());
-            errorPerMeasure.put(measure, errorForMeasure);
-            List<TimeInterval> missingIntervalsForMeasure = errorCalculator.getMissingIntervals();
-
-            // Calculate aggFactor
-            double coveragePercentages = 0.0;
-            double totalAggFactors = 0.0;
-            for (TimeSeriesSpan overlappingSpan : overlappingSpans) {
-                long size = overlappingSpan.getAggregateInterval(); // ms
-                if(size <= dataset.getSamplingInterval().toMillis()) continue; // if raw data continue
-                double coveragePercentage = overlappingSpan.percentage(query); // coverage
-                int spanAggFactor = (int) ((double) (pixelColumnInterval) / size);
-                totalAggFactors += coveragePercentage * spanAggFactor;
-                coveragePercentages += coveragePercentage;
+        // The maps below are filled by the measure tasks, which may run in parallel.
+        Map<Integer, List<PixelColumn>> pixelColumnsPerMeasure = new ConcurrentHashMap<>(measures.size()); // Lists of pixel columns. One list for every measure.
+        Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure = new ConcurrentHashMap<>(measures.size());
+        // The missing intervals of the measures planned with raw data, which are fetched with a raw query.
+        Map<Integer, List<TimeInterval>> rawIntervalsPerMeasure = new ConcurrentHashMap<>(measures.size());
+        Map<Integer, Double> errorPerMeasure = new ConcurrentHashMap<>(measures.size());
+        // The agg factors used by this query. Other queries may update the shared agg factors concurrently.
+        Map<Integer, Integer> queryAggFactors = new ConcurrentHashMap<>(aggFactors);
+
+        // For each measure, get the overlapping spans, add them to pixel columns and calculate the error.
+        // Then plan how to get the data that the cached spans are missing or not accurate enough for.
+        Map<Integer, QueryPlan.MeasurePlan> measurePlans = new ConcurrentHashMap<>(measures.size());
+        forEachMeasure(measures, measure -> {
+            QueryPlan.MeasurePlan measurePlan = planMeasure(query, measure, queryAggFactors.get(measure), cacheManager, dataProcessor, pixelColumnsPerMeasure, true);
+            measurePlans.put(measure, measurePlan);
+            errorPerMeasure.put(measure, measurePlan.getCachedError());
+            QueryPlan.Candidate chosen = measurePlan.getChosen();
+            dataProcessor.getMetrics().recordLookup(measure, chosen.getMethod() == QueryPlan.Method.CACHE);
+            dataProcessor.getMetrics().recordRead(measure, query);
+            queryAggFactors.put(measure, chosen.getAggFactor());
+            if (chosen.getMethod() == QueryPlan.Method.MIN_MAX) {
+                LOG.debug("Getting {} for measure {}", chosen.getIntervals(), measure);
+                missingIntervalsPerMeasure.put(measure, new ArrayList<>(chosen.getIntervals()));
+            } else if (chosen.getMethod() == QueryPlan.Method.RAW) {
+                LOG.debug("Getting raw data of {} for measure {}", chosen.getIntervals(), measure);
+                rawIntervalsPerMeasure.put(measure, new ArrayList<>(chosen.getIntervals()));
             }
-            // The missing intervals get a value equal to the initial value
-            for(TimeInterval missingInterval : missingIntervalsForMeasure){
-                double coveragePercentage = missingInterval.percentage(query); // coverage
-                totalAggFactors += coveragePercentage * initialAggFactor;
-                coveragePercentages += coveragePercentage;
-            }
-            int meanWeightAggFactor = coveragePercentages != 0 ? (int) Math.ceil(totalAggFactors / coveragePercentages) : aggFactors.get(measure);
-            aggFactors.put(measure, meanWeightAggFactor);
-
-            // Update aggFactor if there is an error
-            if(errorCalculator.hasError()){
-                updateAggFactor(measure);
-                // Initialize ranges and measures to get all errored data.
-                missingIntervalsForMeasure = new ArrayList<>();
-                missingIntervalsForMeasure.add(new TimeRange(from, to));
-            }
-            LOG.debug("Getting {} for measure {}", missingIntervalsForMeasure, measure);
-            if(missingIntervalsForMeasure.size() > 0){
-                missingIntervalsPerMeasure.put(measure, missingIntervalsForMeasure);
-            }
-        }
+            aggFactors.put(measure, queryAggFactors.get(measure));
+        });
+        QueryPlan queryPlan = new QueryPlan(from, to, query.getAccuracy());
+        for (int measure : measures) queryPlan.add(measurePlans.get(measure));
+        LOG.info("{}", queryPlan);
+        List<Integer> plannedM4Measures = queryPlan.getMeasures(QueryPlan.Method.M4);
         LOG.info("Errors: {}", errorPerMeasure);
-        LOG.info("Agg factors: {}", aggFactors);
+        LOG.info("Agg factors: {}", queryAggFactors);
+
+        double progressiveQueryTime = 0;
+        if (onCachedResults != null && (missingIntervalsPerMeasure.size() > 0 || rawIntervalsPerMeasure.size() > 0 || !plannedM4Measures.isEmpty())) {
+            // The pixel columns are still updated with the fetched data, so the cached results copy what they need from them.
+            QueryResults cachedResults = new QueryResults();
+            setResultData(cachedResults, query, measures, pixelColumnsPerMeasure);
+            progressiveQueryTime = stopwatch.elapsed(TimeUnit.NANOSECONDS) / Math.pow(10d, 9);
+            cachedResults.setError(new HashMap<>(errorPerMeasure));
+            cachedResults.setQueryTime(progressiveQueryTime);
+            cachedResults.setProgressiveQueryTime(progressiveQueryTime);
+            cachedResults.setTimeRange(new TimeRange(from, to));
+            cachedResults.setAggFactors(new HashMap<>(queryAggFactors));
+            LOG.info("Cached results in {} sec", progressiveQueryTime);
+            onCachedResults.accept(cachedResults);
+        }
 
         // Fetch the missing data from the data source.
         // Give the measures with misses, their intervals and their respective agg factors.
         Map<Integer, List<TimeSeriesSpan>> missingTimeSeriesSpansPerMeasure = missingIntervalsPerMeasure.size() > 0 ?
-                dataProcessor.getMissing(from, to, missingIntervalsPerMeasure, aggFactors, viewPort, query.getQueryMethod()) : new HashMap<>(measures.size());
+                dataProcessor.getMissing(from, to, missingIntervalsPerMeasure, queryAggFactors, viewPort, query.getQueryMethod()) : new HashMap<>(measures.size());
+        if (rawIntervalsPerMeasure.size() > 0) {
+            try {
+                missingTimeSeriesSpansPerMeasure.putAll(dataProcessor.getMissing(from, to, rawIntervalsPerMeasure, queryAggFactors, viewPort, QueryMethod.RAW));
+            } catch (RuntimeException e) {
+                missingTimeSeriesSpansPerMeasure.values().forEach(spans -> spans.forEach(TimeSeriesSpan::release));
+                throw e;
+            }
+        }
 
-        List<Integer> measuresWithError = new ArrayList<>();
+        Set<Integer> erroredMeasures = ConcurrentHashMap.newKeySet();
         // For each measure with a miss, add the fetched data points to the pixel columns and recalculate the error.
-        for(int measureWithMiss : missingTimeSeriesSpansPerMeasure.keySet()) {
+        forEachMeasure(missingTimeSeriesSpansPerMeasure.keySet(), measureWithMiss -> {
             List<PixelColumn> pixelColumns = pixelColumnsPerMeasure.get(measureWithMiss);
             List<TimeSeriesSpan> timeSeriesSpans = missingTimeSeriesSpansPerMeasure.get(measureWithMiss);
             // Add to pixel columns
@@ -142,25 +201,152 @@ public class CacheQueryExecutor {
 
             // Recalculate error per measure
             ErrorCalculator errorCalculator = new ErrorCalculator();
+            long errorStart = System.nanoTime();
             double errorForMeasure = errorCalculator.calculateTotalError(pixelColumns, viewPort, pixelColumnInterval, query.getAccuracy());
-            if (errorCalculator.hasError()) measuresWithError.add(measureWithMiss);
+            dataProcessor.getMetrics().errorEvaluationLatency().recordSince(errorStart);
+            if (errorCalculator.hasError()) erroredMeasures.add(measureWithMiss);
             errorPerMeasure.put(measureWithMiss, errorForMeasure);
+            dataProcessor.getQueryPlanner().observe(queryPlan.get(measureWithMiss), errorForMeasure);
 
             // Add them all to the cache.
+            long insertStart = System.nanoTime();
             cacheManager.addToCache(timeSeriesSpans);
-        }
+            dataProcessor.getMetrics().spanBuildLatency().recordSince(insertStart);
+        });
         LOG.info("Errors: {}", errorPerMeasure);
-
-        // Fetch errored measures with M4
-        if(!measuresWithError.isEmpty()) {
-            Query m4Query = new Query(from , to, 1.0f, query.getFilter(), QueryMethod.M4, measuresWithError, query.getViewPort(), query.getOpType());
-            return executeM4Query(m4Query, dataProcessor.getQueryExecutor());
+        // Keep the order of the fetched measures, which does not depend on which task finished first.
+        List<Integer> measuresWithError = new ArrayList<>();
+        for (int measureWithMiss : missingTimeSeriesSpansPerMeasure.keySet()) {
+            if (erroredMeasures.contains(measureWithMiss)) measuresWithError.add(measureWithMiss);
         }
 
         // Query Results
-        Map<Integer, List<DataPoint>> resultData = new HashMap<>(measures.size());
-        Map<Integer, DoubleSummaryStatistics> measureStatsMap = new HashMap<>(measures.size());
+        setResultData(queryResults, query, measures, pixelColumnsPerMeasure);
+
+        // Fetch the measures planned with M4, and the errored ones, with a single M4 query that replaces their data.
+        List<Integer> m4Measures = new ArrayList<>();
         for (int measure : measures) {
+            if (plannedM4Measures.contains(measure) || measuresWithError.contains(measure)) m4Measures.add(measure);
+        }
+        if(!m4Measures.isEmpty()) {
+            Query m4Query = new Query(from , to, 1.0f, query.getFilter(), QueryMethod.M4, m4Measures, query.getViewPort(), query.getOpType());
+            long m4Start = System.nanoTime();
+            QueryResults m4QueryResults = executeM4Query(m4Query, dataProcessor.getQueryExecutor());
+            long m4Rows = m4QueryResults.getData().values().stream().mapToLong(List::size).sum();
+            dataProcessor.getMetrics().recordFetch(m4Rows, m4Rows * QueryPlanner.M4_ROW_BYTES, System.nanoTime() - m4Start);
+            for (int measure : m4Measures) {
+                List<DataPoint> dataPoints = m4QueryResults.getData().getOrDefault(measure, new ArrayList<>());
+                queryResults.getData().put(measure, dataPoints);
+                queryResults.getMeasureStats().put(measure, dataPoints.stream().mapToDouble(DataPoint::getValue).summaryStatistics());
+                errorPerMeasure.put(measure, 0.0);
+            }
+        }
+        queryTime = stopwatch.elapsed(TimeUnit.NANOSECONDS) / Math.pow(10d, 9);
+        stopwatch.stop();
+
+        // Prefetching runs in the background. Its time is reported by the prefetch manager and not included in the query time.
+        prefetchManager.prefetchAsync(query, queryAggFactors);
+
+        queryResults.setError(errorPerMeasure);
+        queryResults.setFlag(!m4Measures.isEmpty());
+        queryResults.setQueryTime(queryTime);
+        queryResults.setProgressiveQueryTime(progressiveQueryTime);
+        queryResults.setTimeRange(new TimeRange(from, to));
+        queryResults.setAggFactors(queryAggFactors);
+        return queryResults;
+    }
+
+    /**
+     * Plans a query without executing it. The cache is read, but the agg factors of the measures are not updated, the query planner
+     * learns nothing from the cached spans and nothing is fetched.
+     *
+     * @return the plan that {@link #executeQuery} would follow for the query, with the candidate plans of every measure
+     */
+    public QueryPlan explain(Query query, CacheManager cacheManager, DataProcessor dataProcessor) {
+        List<Integer> measures = Optional.ofNullable(query.getMeasures()).orElse(dataset.getMeasures());
+        Map<Integer, List<PixelColumn>> pixelColumnsPerMeasure = new ConcurrentHashMap<>(measures.size());
+        Map<Integer, QueryPlan.MeasurePlan> measurePlans = new ConcurrentHashMap<>(measures.size());
+        forEachMeasure(measures, measure -> {
+            if (query.getAccuracy() == 1) {
+                // Exact queries are always answered with M4.
+                QueryPlan.Candidate m4 = new QueryPlan.Candidate(QueryPlan.Method.M4, Collections.singletonList(new TimeRange(query.getFrom(), query.getTo())),
+                        aggFactors.get(measure), 0, 0, 0, 0, 1, 0);
+                measurePlans.put(measure, new QueryPlan.MeasurePlan(measure, Double.NaN, 0, Collections.singletonList(m4), m4));
+            }
+            else {
+                measurePlans.put(measure, planMeasure(query, measure, aggFactors.get(measure), cacheManager, dataProcessor, pixelColumnsPerMeasure, false));
+            }
+        });
+        QueryPlan queryPlan = new QueryPlan(query.getFrom(), query.getTo(), query.getAccuracy());
+        for (int measure : measures) queryPlan.add(measurePlans.get(measure));
+        return queryPlan;
+    }
+
+    /**
+     * Adds the cached spans of a measure to new pixel columns, calculates their error and plans how to get the data they are missing
+     * or not accurate enough for.
+     *
+     * @param aggFactor the current agg factor of the measure
+     * @param pixelColumnsPerMeasure receives the pixel columns of the measure
+     * @param learn whether the query planner learns from the error of the cached spans, i.e. whether the query is executed
+     */
+    private QueryPlan.MeasurePlan planMeasure(Query query, int measure, int aggFactor, CacheManager cacheManager, DataProcessor dataProcessor,
+                                              Map<Integer, List<PixelColumn>> pixelColumnsPerMeasure, boolean learn) {
+        long from = query.getFrom();
+        long to = query.getTo();
+        ViewPort viewPort = query.getViewPort();
+        long pixelColumnInterval = (to - from) / viewPort.getWidth();
+
+        // Get overlapping spans
+        long lookupStart = System.nanoTime();
+        List<TimeSeriesSpan> overlappingSpans = cacheManager.getFromCache(query, measure, pixelColumnInterval);
+        dataProcessor.getMetrics().lookupLatency().recordSince(lookupStart);
+        LOG.debug("Overlapping intervals for measure {}: {}", measure, overlappingSpans);
+
+        // Add to pixel columns. The groups of spans much finer than the pixel columns, e.g. after zooming out, are merged within every pixel column.
+        List<PixelColumn> pixelColumns = createPixelColumns(from, pixelColumnInterval, viewPort);
+        pixelColumnsPerMeasure.put(measure, pixelColumns);
+        dataProcessor.processDatapoints(from, to, viewPort, pixelColumns, overlappingSpans);
+
+        // Calculate Error
+        ErrorCalculator errorCalculator = new ErrorCalculator();
+        long errorStart = System.nanoTime();
+        double errorForMeasure = errorCalculator.calculateTotalError(pixelColumns, viewPort, pixelColumnInterval, query.getAccuracy());
+        dataProcessor.getMetrics().errorEvaluationLatency().recordSince(errorStart);
+        List<TimeInterval> missingIntervalsForMeasure = errorCalculator.getMissingIntervals();
+
+        // Calculate aggFactor
+        double coveragePercentages = 0.0;
+        double totalAggFactors = 0.0;
+        for (TimeSeriesSpan overlappingSpan : overlappingSpans) {
+            long size = overlappingSpan.getAggregateInterval(); // ms
+            if(size <= dataset.getSamplingInterval().toMillis()) continue; // if raw data continue
+            double coveragePercentage = overlappingSpan.percentage(query); // coverage
+            int spanAggFactor = (int) ((double) (pixelColumnInterval) / size);
+            totalAggFactors += coveragePercentage * spanAggFactor;
+            coveragePercentages += coveragePercentage;
+        }
+        // The missing intervals get a value equal to the initial value
+        for(TimeInterval missingInterval : missingIntervalsForMeasure){
+            double coveragePercentage = missingInterval.percentage(query); // coverage
+            totalAggFactors += coveragePercentage * initialAggFactor;
+            coveragePercentages += coveragePercentage;
+        }
+        int meanWeightAggFactor = coveragePercentages != 0 ? (int) Math.ceil(totalAggFactors / coveragePercentages) : aggFactor;
+        // The cached spans of the measure are not read again.
+        overlappingSpans.forEach(TimeSeriesSpan::release);
+
+        return dataProcessor.getQueryPlanner().plan(measure, from, to, viewPort, query.getAccuracy(), errorForMeasure, errorCalculator.hasError(),
+                missingIntervalsForMeasure, meanWeightAggFactor, initialAggFactor, learn);
+    }
+
+    /**
+     * Sets the data points and the stats of every measure from its pixel columns.
+     */
+    private void setResultData(QueryResults queryResults, Query query, List<Integer> measures, Map<Integer, List<PixelColumn>> pixelColumnsPerMeasure) {
+        Map<Integer, List<DataPoint>> resultData = new ConcurrentHashMap<>(measures.size());
+        Map<Integer, DoubleSummaryStatistics> measureStatsMap = new ConcurrentHashMap<>(measures.size());
+        forEachMeasure(measures, measure -> {
             int count = 0;
             double max = Double.MIN_VALUE;
             double min = Double.MAX_VALUE;
@@ -200,23 +386,22 @@ public class CacheQueryExecutor {
             DoubleSummaryStatistics measureStats = new
                     DoubleSummaryStatistics(count, min, max, sum);
             measureStatsMap.put(measure, measureStats);
+            dataPoints.sort(Comparator.comparingLong(DataPoint::getTimestamp));
             resultData.put(measure, dataPoints);
-        }
-        queryTime = stopwatch.elapsed(TimeUnit.NANOSECONDS) / Math.pow(10d, 9);
-        stopwatch.stop();
-
-        // Prefetching
-        prefetchManager.prefetch(query, aggFactors);
-
-        resultData.forEach((k, v) -> v.sort(Comparator.comparingLong(DataPoint::getTimestamp)));
+        });
         queryResults.setData(resultData);
         queryResults.setMeasureStats(measureStatsMap);
-        queryResults.setError(errorPerMeasure);
-        queryResults.setFlag(measuresWithError.size() > 0);
-        queryResults.setQueryTime(queryTime);
-        queryResults.setTimeRange(new TimeRange(from, to));
-        queryResults.setAggFactors(aggFactors);
-        return queryResults;
+    }
+
+    private List<PixelColumn> createPixelColumns(long from, long pixelColumnInterval, ViewPort viewPort) {
+        List<PixelColumn> pixelColumns = new ArrayList<>();
+        for (long j = 0; j < viewPort.getWidth(); j++) {
+            long pixelFrom = from + (j * pixelColumnInterval);
+            long pixelTo = pixelFrom + pixelColumnInterval;
+            PixelColumn pixelColumn = new PixelColumn(pixelFrom, pixelTo, viewPort);
+            pixelColumns.add(pixelColumn);
+        }
+        return pixelColumns;
     }
 
     private QueryResults executeM4Query(Query query, QueryExecutor queryExecutor) {
@@ -245,6 +430,10 @@ public class CacheQueryExecutor {
                     query.getFrom(), query.getTo(), missingTimeIntervalsPerMeasureName, numberOfGroupsPerMeasureName);
         else if (queryExecutor instanceof InfluxDBQueryExecutor)
             dataSourceQuery = new InfluxDBQuery(dataset.getSchema(), dataset.getTable(), query.getFrom(), query.getTo(), missingTimeIntervalsPerMeasureName, numberOfGroupsPerMeasureName);
+        else if (queryExecutor instanceof SyntheticQueryExecutor)
+            dataSourceQuery = new SyntheticQuery(query.getFrom(), query.getTo(), missingTimeIntervalsPerMeasureName, numberOfGroupsPerMeasureName);
+        else if (queryExecutor instanceof CsvQueryExecutor)
+            dataSourceQuery = new CsvQuery(query.getFrom(), query.getTo(), missingTimeIntervalsPerMeasureName, numberOfGroupsPerMeasureName);
         else {
             throw new RuntimeException("Unsupported query executor");
         }
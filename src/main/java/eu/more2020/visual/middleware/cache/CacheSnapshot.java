@@ -0,0 +1,317 @@
+package eu.more2020.visual.middleware.cache;
+
+import eu.more2020.visual.middleware.domain.Dataset.AbstractDataset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A snapshot of the contents of a cache in a binary file, to warm up the cache after a restart.
+ * The file holds the cached spans and the agg factors of every measure, and is tied to the identity and version of a dataset.
+ * <p>
+ * Everything is written in the native byte order of the machine that wrote it. The file starts with a header:
+ * the magic number, the format version, the byte order, the dataset identity and version, and the agg factors.
+ * It is followed by a record per span: a fixed size descriptor and the data of the span, padded to 8 bytes.
+ * The data of an aggregate span have the layout of {@link OffHeapAggregateStorage}, so restored aggregate spans
+ * read the memory-mapped file directly, without copying or deserializing their groups.
+ */
+public class CacheSnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CacheSnapshot.class);
+
+    private static final int MAGIC = 0x4D4D4353;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte AGGREGATE = 0;
+
+    private static final byte RAW = 1;
+
+    // type, padding, measure, from, to, aggregate interval, size, padding
+    private static final int DESCRIPTOR_SIZE = 40;
+
+    // The file is mapped in segments of at most this size, so that files larger than a single buffer can be read.
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private final String datasetIdentity;
+
+    private final String datasetVersion;
+
+    private final Map<Integer, Integer> aggFactors;
+
+    private final List<TimeSeriesSpan> spans;
+
+    private CacheSnapshot(String datasetIdentity, String datasetVersion, Map<Integer, Integer> aggFactors, List<TimeSeriesSpan> spans) {
+        this.datasetIdentity = datasetIdentity;
+        this.datasetVersion = datasetVersion;
+        this.aggFactors = aggFactors;
+        this.spans = spans;
+    }
+
+    /**
+     * Identifies the dataset whose data are cached.
+     */
+    public static String datasetIdentity(AbstractDataset dataset) {
+        return dataset.getClass().getSimpleName() + ":" + dataset.getSchema() + "." + dataset.getTable() + ":" + dataset.getId();
+    }
+
+    /**
+     * The version of the data of a dataset. It changes when the measures, the time range or the sampling interval of the dataset change,
+     * or when the given version does, e.g. after the data of the dataset were updated.
+     */
+    public static String datasetVersion(AbstractDataset dataset, String version) {
+        return version + ":" + Arrays.toString(dataset.getHeader()) + ":" + dataset.getTimeRange() + ":" + dataset.getSamplingInterval();
+    }
+
+    /**
+     * Writes a snapshot to the given path. The snapshot is written to a temporary file first,
+     * which then replaces any existing file, so that a failed write never leaves a partial snapshot behind.
+     */
+    public static void write(Path path, String datasetIdentity, String datasetVersion, Map<Integer, Integer> aggFactors,
+                             List<TimeSeriesSpan> spans) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.nativeOrder());
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            byte[] identity = datasetIdentity.getBytes(StandardCharsets.UTF_8);
+            byte[] version = datasetVersion.getBytes(StandardCharsets.UTF_8);
+            // magic, format version, byte order, the two strings and their lengths, padding, agg factor count, reserved, agg factors, span count
+            int headerSize = align(5 * Integer.BYTES + identity.length + version.length) + 2 * Integer.BYTES
+                    + aggFactors.size() * 2 * Integer.BYTES + Long.BYTES;
+            buffer = ensureCapacity(buffer, headerSize);
+            buffer.putInt(MAGIC);
+            buffer.putInt(FORMAT_VERSION);
+            buffer.putInt(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0);
+            buffer.putInt(identity.length).put(identity);
+            buffer.putInt(version.length).put(version);
+            pad(buffer);
+            buffer.putInt(aggFactors.size());
+            buffer.putInt(0);
+            for (Map.Entry<Integer, Integer> entry : aggFactors.entrySet()) {
+                buffer.putInt(entry.getKey());
+                buffer.putInt(entry.getValue());
+            }
+            buffer.putLong(spans.size());
+            writeFully(channel, buffer);
+
+            for (TimeSeriesSpan span : spans) {
+                buffer = ensureCapacity(buffer, recordSize(span));
+                writeRecord(buffer, span);
+                writeFully(channel, buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Wrote cache snapshot of {} spans to {}", spans.size(), path);
+    }
+
+    /**
+     * Reads a snapshot by memory-mapping the file at the given path.
+     * The restored aggregate spans are backed by the mapped file, which stays mapped as long as any of them is in use.
+     */
+    public static CacheSnapshot read(Path path) throws IOException {
+        return read(path, SEGMENT_SIZE);
+    }
+
+    /**
+     * Same as {@link #read(Path)}, mapping the file in segments of at most the given size.
+     */
+    static CacheSnapshot read(Path path, int segmentSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(path, channel, segmentSize);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated cache snapshot: " + path, e);
+        }
+    }
+
+    private static CacheSnapshot read(Path path, FileChannel channel, int segmentSize) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer segment = map(channel, 0, fileSize, segmentSize);
+        if (segment.remaining() < 16 || segment.getInt() != MAGIC) {
+            throw new IOException("Not a cache snapshot: " + path);
+        }
+        int formatVersion = segment.getInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported cache snapshot format version " + formatVersion + ": " + path);
+        }
+        boolean littleEndian = segment.getInt() == 1;
+        if (littleEndian != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)) {
+            throw new IOException("Cache snapshot was written with a different byte order: " + path);
+        }
+        String datasetIdentity = readString(segment);
+        String datasetVersion = readString(segment);
+        segment.position(align(segment.position()));
+        int aggFactorCount = segment.getInt();
+        segment.getInt();
+        if (aggFactorCount < 0 || aggFactorCount > segment.remaining() / (2 * Integer.BYTES)) {
+            throw new IOException("Corrupt cache snapshot header: " + path);
+        }
+        Map<Integer, Integer> aggFactors = new HashMap<>(aggFactorCount);
+        for (int i = 0; i < aggFactorCount; i++) {
+            aggFactors.put(segment.getInt(), segment.getInt());
+        }
+        long spanCount = segment.getLong();
+        long position = segment.position();
+        // Every span takes at least a descriptor.
+        if (spanCount < 0 || spanCount > (fileSize - position) / DESCRIPTOR_SIZE) {
+            throw new IOException("Corrupt cache snapshot header: " + path);
+        }
+
+        List<TimeSeriesSpan> spans = new ArrayList<>((int) spanCount);
+        long segmentStart = 0;
+        for (long i = 0; i < spanCount; i++) {
+            if (position + DESCRIPTOR_SIZE > fileSize) {
+                throw new IOException("Truncated cache snapshot: " + path);
+            }
+            if (position + DESCRIPTOR_SIZE > segmentStart + segment.capacity()) {
+                segmentStart = position;
+                segment = map(channel, segmentStart, fileSize - segmentStart, segmentSize);
+            }
+            ByteBuffer descriptor = segment.duplicate().order(ByteOrder.nativeOrder());
+            descriptor.position((int) (position - segmentStart));
+            byte type = descriptor.get();
+            descriptor.position(descriptor.position() + 3);
+            int measure = descriptor.getInt();
+            long from = descriptor.getLong();
+            long to = descriptor.getLong();
+            long aggregateInterval = descriptor.getLong();
+            int size = descriptor.getInt();
+            if (size < 0) {
+                throw new IOException("Corrupt cache snapshot: negative size of span " + i + ": " + path);
+            }
+            long dataSize = align((long) size * (type == AGGREGATE ? OffHeapAggregateStorage.bytes(1) : Long.BYTES + Double.BYTES));
+            long dataPosition = position + DESCRIPTOR_SIZE;
+            if (dataPosition + dataSize > fileSize) {
+                throw new IOException("Truncated cache snapshot: " + path);
+            }
+            if (DESCRIPTOR_SIZE + dataSize > segmentSize) {
+                throw new IOException("Span " + i + " of cache snapshot is larger than a segment: " + path);
+            }
+            if (dataPosition + dataSize > segmentStart + segment.capacity()) {
+                segmentStart = position;
+                segment = map(channel, segmentStart, fileSize - segmentStart, segmentSize);
+            }
+            ByteBuffer data = slice(segment, (int) (dataPosition - segmentStart), (int) dataSize);
+            if (type == AGGREGATE) {
+                spans.add(new AggregateTimeSeriesSpan(from, to, measure, aggregateInterval, new OffHeapAggregateStorage(data, size)));
+            } else if (type == RAW) {
+                long[] timestamps = new long[size];
+                double[] values = new double[size];
+                data.asLongBuffer().get(timestamps);
+                data.position(size * Long.BYTES);
+                data.asDoubleBuffer().get(values);
+                spans.add(new RawTimeSeriesSpan(from, to, measure, timestamps, values));
+            } else {
+                throw new IOException("Unknown span type " + type + " in cache snapshot: " + path);
+            }
+            position = dataPosition + dataSize;
+        }
+        LOG.info("Read cache snapshot of {} spans from {}", spans.size(), path);
+        return new CacheSnapshot(datasetIdentity, datasetVersion, aggFactors, spans);
+    }
+
+    public String getDatasetIdentity() {
+        return datasetIdentity;
+    }
+
+    public String getDatasetVersion() {
+        return datasetVersion;
+    }
+
+    public Map<Integer, Integer> getAggFactors() {
+        return aggFactors;
+    }
+
+    public List<TimeSeriesSpan> getSpans() {
+        return spans;
+    }
+
+    private static int recordSize(TimeSeriesSpan span) {
+        if (span instanceof AggregateTimeSeriesSpan) {
+            return DESCRIPTOR_SIZE + align(OffHeapAggregateStorage.bytes(((AggregateTimeSeriesSpan) span).getSize()));
+        }
+        return DESCRIPTOR_SIZE + align(((RawTimeSeriesSpan) span).getCount() * (Long.BYTES + Double.BYTES));
+    }
+
+    private static void writeRecord(ByteBuffer buffer, TimeSeriesSpan span) {
+        boolean aggregate = span instanceof AggregateTimeSeriesSpan;
+        int size = aggregate ? ((AggregateTimeSeriesSpan) span).getSize() : ((RawTimeSeriesSpan) span).getCount();
+        buffer.put(aggregate ? AGGREGATE : RAW);
+        buffer.put(new byte[3]);
+        buffer.putInt(span.getMeasure());
+        buffer.putLong(span.getFrom());
+        buffer.putLong(span.getTo());
+        buffer.putLong(span.getAggregateInterval());
+        buffer.putInt(size);
+        buffer.putInt(0);
+        if (aggregate) {
+            // Copy the groups in the layout of the off-heap storage, whatever the storage of the span.
+            int dataSize = OffHeapAggregateStorage.bytes(size);
+            ByteBuffer data = slice(buffer, buffer.position(), dataSize);
+            ((AggregateTimeSeriesSpan) span).getStorage().copyTo(0, new OffHeapAggregateStorage(data, size), 0, size);
+            buffer.position(buffer.position() + dataSize);
+        } else {
+            // A compressed span decodes all of its data points for each of these, so they are only called once.
+            RawTimeSeriesSpan rawSpan = (RawTimeSeriesSpan) span;
+            long[] timestamps = rawSpan.getTimestamps();
+            double[] values = rawSpan.getValues();
+            for (int i = 0; i < size; i++) buffer.putLong(timestamps[i]);
+            for (int i = 0; i < size; i++) buffer.putDouble(values[i]);
+        }
+        pad(buffer);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size, int segmentSize) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size, segmentSize)).order(ByteOrder.nativeOrder());
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int size) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position).limit(position + size);
+        return duplicate.slice().order(ByteOrder.nativeOrder());
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Corrupt cache snapshot header");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity) {
+        buffer.clear();
+        if (buffer.capacity() >= capacity) return buffer;
+        return ByteBuffer.allocate(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    private static void pad(ByteBuffer buffer) {
+        while (buffer.position() % Long.BYTES != 0) buffer.put((byte) 0);
+    }
+
+    private static int align(int position) {
+        return (position + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    private static long align(long position) {
+        return (position + Long.BYTES - 1) & -Long.BYTES;
+    }
+}
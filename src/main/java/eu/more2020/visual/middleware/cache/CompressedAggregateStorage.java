@@ -0,0 +1,320 @@
+package eu.more2020.visual.middleware.cache;
+
+import static eu.more2020.visual.middleware.cache.BitReader.unZigZag;
+import static eu.more2020.visual.middleware.cache.BitWriter.zigZag;
+
+/**
+ * Stores the aggregates on the Java heap, losslessly compressed in blocks of {@link #BLOCK_SIZE} consecutive groups.
+ * <p>
+ * A block is stored column by column. Integer columns are bit-packed with the width of their largest value in the block.
+ * The counts are delta encoded. The min timestamps are stored as their distance from a line through the first and last one,
+ * which is about their offset within the group, and the max timestamps as their offset from the min one.
+ * All timestamps of a block are divided by the greatest common divisor of these offsets, which is the sampling interval for regular time series.
+ * The sum, min and max values are converted to integers by a power of ten and delta encoded, if they have only a few decimal digits.
+ * Otherwise, they are XOR encoded against the value of the previous group, as in Facebook's Gorilla.
+ * Empty groups only store their count.
+ * <p>
+ * Groups are written in order, while the span is filled, into an uncompressed pending block that is encoded when the next block is written to,
+ * or when the storage is first read. Reads decode a whole block at a time and keep the last decoded block per thread,
+ * so that iterating over a span decodes each block only once.
+ * Like the other storages, groups must not be written while the storage is read by other threads.
+ */
+public class CompressedAggregateStorage implements AggregateStorage {
+
+    static final int BLOCK_SIZE = 64;
+
+    private static final Block EMPTY_BLOCK = new Block(BLOCK_SIZE);
+
+    // The last block decoded by every thread.
+    private static final ThreadLocal<Block> DECODED = new ThreadLocal<>();
+
+    private final int size;
+
+    // The encoded blocks. A null block has only empty groups. Encoded blocks are never modified, so they can be shared between storages.
+    private final long[][] blocks;
+
+    // The block being written, or null.
+    private volatile Block pending;
+
+    public CompressedAggregateStorage(int size) {
+        this.size = size;
+        this.blocks = new long[(size + BLOCK_SIZE - 1) / BLOCK_SIZE][];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getCount(int i) {
+        return block(i).counts[i % BLOCK_SIZE];
+    }
+
+    @Override
+    public double getSum(int i) {
+        return Double.longBitsToDouble(block(i).sums[i % BLOCK_SIZE]);
+    }
+
+    @Override
+    public double getMinValue(int i) {
+        return Double.longBitsToDouble(block(i).minValues[i % BLOCK_SIZE]);
+    }
+
+    @Override
+    public long getMinTimestamp(int i) {
+        return block(i).minTimestamps[i % BLOCK_SIZE];
+    }
+
+    @Override
+    public double getMaxValue(int i) {
+        return Double.longBitsToDouble(block(i).maxValues[i % BLOCK_SIZE]);
+    }
+
+    @Override
+    public long getMaxTimestamp(int i) {
+        return block(i).maxTimestamps[i % BLOCK_SIZE];
+    }
+
+    @Override
+    public void set(int i, int count, double sum, double minValue, long minTimestamp, double maxValue, long maxTimestamp) {
+        int blockIndex = i / BLOCK_SIZE;
+        Block block = pending;
+        if (block == null || block.index != blockIndex) {
+            if (block != null) seal();
+            block = blocks[blockIndex] == null ? new Block(BLOCK_SIZE) : decode(blocks[blockIndex]);
+            block.index = blockIndex;
+            pending = block;
+        }
+        int j = i % BLOCK_SIZE;
+        block.counts[j] = count;
+        block.sums[j] = Double.doubleToRawLongBits(sum);
+        block.minValues[j] = Double.doubleToRawLongBits(minValue);
+        block.minTimestamps[j] = minTimestamp;
+        block.maxValues[j] = Double.doubleToRawLongBits(maxValue);
+        block.maxTimestamps[j] = maxTimestamp;
+    }
+
+    @Override
+    public AggregateStorage allocate(int size) {
+        return new CompressedAggregateStorage(size);
+    }
+
+    /**
+     * Copies a range of groups to another storage. When both storages are compressed and their blocks are aligned,
+     * the encoded blocks that are copied as a whole are shared instead of decoded and encoded again.
+     */
+    @Override
+    public void copyTo(int srcIndex, AggregateStorage dest, int destIndex, int length) {
+        if (!(dest instanceof CompressedAggregateStorage) || (srcIndex - destIndex) % BLOCK_SIZE != 0) {
+            AggregateStorage.super.copyTo(srcIndex, dest, destIndex, length);
+            return;
+        }
+        CompressedAggregateStorage compressedDest = (CompressedAggregateStorage) dest;
+        seal();
+        int i = 0;
+        while (i < length) {
+            int src = srcIndex + i;
+            int dst = destIndex + i;
+            int srcBlockLength = Math.min(BLOCK_SIZE, size - src / BLOCK_SIZE * BLOCK_SIZE);
+            int destBlockLength = Math.min(BLOCK_SIZE, compressedDest.size - dst / BLOCK_SIZE * BLOCK_SIZE);
+            // Share a whole source block that fills a whole destination block.
+            if (src % BLOCK_SIZE == 0 && i + srcBlockLength <= length && srcBlockLength == destBlockLength) {
+                compressedDest.seal();
+                compressedDest.blocks[dst / BLOCK_SIZE] = blocks[src / BLOCK_SIZE];
+                i += srcBlockLength;
+                continue;
+            }
+            int end = Math.min(length, i + BLOCK_SIZE - src % BLOCK_SIZE);
+            AggregateStorage.super.copyTo(src, dest, dst, end - i);
+            i = end;
+        }
+    }
+
+    @Override
+    public int[] getCounts() {
+        int[] counts = new int[size];
+        for (int b = 0; b < blocks.length; b++) {
+            int start = b * BLOCK_SIZE;
+            System.arraycopy(block(start).counts, 0, counts, start, Math.min(BLOCK_SIZE, size - start));
+        }
+        return counts;
+    }
+
+    @Override
+    public long calculateDeepMemorySize() {
+        // Memory overhead for an object in a 64-bit JVM
+        final int OBJECT_OVERHEAD = 16;
+        // Memory overhead for an array in a 64-bit JVM
+        final int ARRAY_OVERHEAD = 20;
+        // Memory usage of long in a 64-bit JVM
+        final int LONG_SIZE = 8;
+        // Memory usage of a reference in a 64-bit JVM with a heap size less than 32 GB
+        final int REF_SIZE = 4;
+
+        // The size is taken when the span is cached, so account for the pending block encoded.
+        if (pending != null) seal();
+        long blocksMemory = REF_SIZE + ARRAY_OVERHEAD + (long) blocks.length * REF_SIZE;
+        for (long[] block : blocks) {
+            if (block != null) blocksMemory += ARRAY_OVERHEAD + (long) block.length * LONG_SIZE;
+        }
+        return OBJECT_OVERHEAD + blocksMemory + REF_SIZE;
+    }
+
+    /**
+     * Returns the decoded block of group i.
+     */
+    private Block block(int i) {
+        if (pending != null) seal();
+        long[] encoded = blocks[i / BLOCK_SIZE];
+        if (encoded == null) return EMPTY_BLOCK;
+        Block block = DECODED.get();
+        if (block == null || block.encoded != encoded) {
+            block = decode(encoded);
+            DECODED.set(block);
+        }
+        return block;
+    }
+
+    /**
+     * Encodes the pending block, if any.
+     */
+    private synchronized void seal() {
+        Block block = pending;
+        if (block == null) return;
+        int length = Math.min(BLOCK_SIZE, size - block.index * BLOCK_SIZE);
+        blocks[block.index] = encode(block, length);
+        pending = null;
+    }
+
+    private static long[] encode(Block block, int length) {
+        int[] nonEmpty = new int[length];
+        int nonEmptyCount = 0;
+        for (int j = 0; j < length; j++) {
+            if (block.counts[j] != 0) nonEmpty[nonEmptyCount++] = j;
+        }
+        if (nonEmptyCount == 0) return null;
+
+        BitWriter writer = new BitWriter();
+        writer.writeBits(length, 7);
+        long[] packed = new long[length];
+        int previousCount = 0;
+        for (int j = 0; j < length; j++) {
+            packed[j] = zigZag(block.counts[j] - previousCount);
+            previousCount = block.counts[j];
+        }
+        writer.writePacked(packed, length);
+
+        // The min timestamps are predicted by a line through the first and last one, which is close to the start of every group.
+        int first = nonEmpty[0];
+        int last = nonEmpty[nonEmptyCount - 1];
+        long origin = block.minTimestamps[first];
+        long scale = 0;
+        for (int k = 0; k < nonEmptyCount; k++) {
+            int j = nonEmpty[k];
+            scale = gcd(scale, block.minTimestamps[j] - origin);
+            scale = gcd(scale, block.maxTimestamps[j] - block.minTimestamps[j]);
+        }
+        if (scale <= 0) scale = 1;
+        long stride = last == first ? 0 : Math.round((double) ((block.minTimestamps[last] - origin) / scale) / (last - first));
+        writer.writeBits(origin, 64);
+        writer.writeSigned(scale);
+        writer.writeSigned(stride);
+        for (int k = 0; k < nonEmptyCount; k++) {
+            int j = nonEmpty[k];
+            packed[k] = zigZag((block.minTimestamps[j] - origin) / scale - (j - first) * stride);
+        }
+        writer.writePacked(packed, nonEmptyCount);
+        for (int k = 0; k < nonEmptyCount; k++) {
+            int j = nonEmpty[k];
+            packed[k] = zigZag((block.maxTimestamps[j] - block.minTimestamps[j]) / scale);
+        }
+        writer.writePacked(packed, nonEmptyCount);
+
+        writer.writeDoubles(block.sums, nonEmpty, nonEmptyCount);
+        writer.writeDoubles(block.minValues, nonEmpty, nonEmptyCount);
+        writer.writeDoubles(block.maxValues, nonEmpty, nonEmptyCount);
+        return writer.toArray();
+    }
+
+    private static Block decode(long[] encoded) {
+        Block block = new Block(BLOCK_SIZE);
+        BitReader reader = new BitReader(encoded);
+        // The last block of a storage may be shorter. Its missing groups are decoded as empty ones.
+        int length = (int) reader.readBits(7);
+        long[] packed = new long[length];
+        reader.readPacked(packed, length);
+        int[] nonEmpty = new int[length];
+        int nonEmptyCount = 0;
+        int count = 0;
+        for (int j = 0; j < length; j++) {
+            count += (int) unZigZag(packed[j]);
+            block.counts[j] = count;
+            if (count != 0) nonEmpty[nonEmptyCount++] = j;
+        }
+
+        int first = nonEmpty[0];
+        long origin = reader.readBits(64);
+        long scale = reader.readSigned();
+        long stride = reader.readSigned();
+        reader.readPacked(packed, nonEmptyCount);
+        for (int k = 0; k < nonEmptyCount; k++) {
+            int j = nonEmpty[k];
+            block.minTimestamps[j] = origin + (unZigZag(packed[k]) + (j - first) * stride) * scale;
+        }
+        reader.readPacked(packed, nonEmptyCount);
+        for (int k = 0; k < nonEmptyCount; k++) {
+            int j = nonEmpty[k];
+            block.maxTimestamps[j] = block.minTimestamps[j] + unZigZag(packed[k]) * scale;
+        }
+
+        reader.readDoubles(block.sums, nonEmpty, nonEmptyCount);
+        reader.readDoubles(block.minValues, nonEmpty, nonEmptyCount);
+        reader.readDoubles(block.maxValues, nonEmpty, nonEmptyCount);
+        block.encoded = encoded;
+        return block;
+    }
+
+    private static long gcd(long a, long b) {
+        a = Math.abs(a);
+        b = Math.abs(b);
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * The decoded groups of a block.
+     */
+    private static class Block {
+
+        private int index;
+
+        // The encoded block this was decoded from.
+        private long[] encoded;
+
+        private final int[] counts;
+
+        private final long[] sums;
+
+        private final long[] minValues;
+
+        private final long[] minTimestamps;
+
+        private final long[] maxValues;
+
+        private final long[] maxTimestamps;
+
+        private Block(int length) {
+            counts = new int[length];
+            sums = new long[length];
+            minValues = new long[length];
+            minTimestamps = new long[length];
+            maxValues = new long[length];
+            maxTimestamps = new long[length];
+        }
+    }
+}
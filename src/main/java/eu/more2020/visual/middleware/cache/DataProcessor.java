@@ -2,32 +2,103 @@ package eu.more2020.visual.middleware.cache;
 
 import eu.more2020.visual.middleware.datasource.DataSource;
 import eu.more2020.visual.middleware.datasource.DataSourceFactory;
+import eu.more2020.visual.middleware.datasource.QueryExecutor.CsvQueryExecutor;
+import eu.more2020.visual.middleware.datasource.QueryExecutor.InfluxDBQueryExecutor;
 import eu.more2020.visual.middleware.datasource.QueryExecutor.QueryExecutor;
+import eu.more2020.visual.middleware.datasource.QueryExecutor.SQLQueryExecutor;
+import eu.more2020.visual.middleware.datasource.QueryExecutor.SyntheticQueryExecutor;
 import eu.more2020.visual.middleware.domain.*;
 import eu.more2020.visual.middleware.domain.Dataset.AbstractDataset;
 import eu.more2020.visual.middleware.domain.Query.QueryMethod;
-import eu.more2020.visual.middleware.util.DateTimeUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DataProcessor {
 
     private final AbstractDataset dataset;
     private final DataSource dataSource;
+
+    // The data sources of the fetch connections, borrowed by the fetch tasks, or null if missing data are fetched with a single query.
+    private final BlockingQueue<DataSource> fetchDataSources;
+
+    private final ExecutorService fetchExecutor;
+
+    private final int fetchParallelism;
+
+    // The fetches of concurrent queries that are in flight, shared to avoid fetching the same data twice.
+    private final InFlightFetches inFlightFetches = new InFlightFetches();
     private final int dataReductionRatio;
 
     private final QueryExecutor queryExecutor;
 
-    private final int RAW_FACTOR = 6;
+    private final QueryPlanner queryPlanner;
+
+    private final CacheMetrics metrics;
+
+    private final StorageType storageType;
 
 
     public DataProcessor(QueryExecutor queryExecutor, AbstractDataset dataset, int dataReductionRatio){
+        this(queryExecutor, dataset, dataReductionRatio, StorageType.HEAP);
+    }
+
+    public DataProcessor(QueryExecutor queryExecutor, AbstractDataset dataset, int dataReductionRatio, StorageType storageType){
+        this(Collections.singletonList(queryExecutor), dataset, dataReductionRatio, storageType);
+    }
+
+    /**
+     * @param queryExecutors the query executors of the connections to the data source. The first one is also used for M4 queries.
+     *                       With more than one, the missing data are fetched with concurrent sub-queries, one per connection at a time.
+     */
+    public DataProcessor(List<QueryExecutor> queryExecutors, AbstractDataset dataset, int dataReductionRatio, StorageType storageType){
+        this(queryExecutors, dataset, dataReductionRatio, storageType, new CacheMetrics(dataset.getTable()));
+    }
+
+    /**
+     * @param metrics records the queries to the data source and their results
+     */
+    public DataProcessor(List<QueryExecutor> queryExecutors, AbstractDataset dataset, int dataReductionRatio, StorageType storageType,
+                         CacheMetrics metrics){
+        if (queryExecutors.isEmpty()) {
+            throw new IllegalArgumentException("At least one query executor is required");
+        }
         this.dataset = dataset;
-        this.queryExecutor = queryExecutor;
+        this.queryExecutor = queryExecutors.get(0);
         this.dataSource = DataSourceFactory.getDataSource(queryExecutor, dataset);
         this.dataReductionRatio = dataReductionRatio;
+        this.storageType = storageType;
+        this.fetchParallelism = queryExecutors.size();
+        this.metrics = metrics;
+        this.queryPlanner = new QueryPlanner(dataset, queryExecutor instanceof SQLQueryExecutor || queryExecutor instanceof InfluxDBQueryExecutor
+                || queryExecutor instanceof SyntheticQueryExecutor || queryExecutor instanceof CsvQueryExecutor);
+        if (fetchParallelism > 1) {
+            fetchDataSources = new ArrayBlockingQueue<>(fetchParallelism);
+            fetchDataSources.add(dataSource);
+            for (QueryExecutor fetchQueryExecutor : queryExecutors.subList(1, fetchParallelism)) {
+                fetchDataSources.add(DataSourceFactory.getDataSource(fetchQueryExecutor, dataset));
+            }
+            AtomicInteger threadCount = new AtomicInteger();
+            fetchExecutor = Executors.newFixedThreadPool(fetchParallelism, runnable -> {
+                Thread thread = new Thread(runnable, "fetch-" + dataset.getTable() + "-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            fetchDataSources = null;
+            fetchExecutor = null;
+        }
+    }
+
+    /**
+     * Stops the threads that fetch missing data concurrently.
+     */
+    public void shutdown() {
+        if (fetchExecutor != null) fetchExecutor.shutdownNow();
     }
 
     private static final Logger LOG = LoggerFactory.getLogger(DataProcessor.class);
@@ -44,18 +115,27 @@ public class DataProcessor {
     public void processDatapoints(long from, long to, ViewPort viewPort,
                                    List<PixelColumn> pixelColumns, List<TimeSeriesSpan> timeSeriesSpans) {
         for (TimeSeriesSpan span : timeSeriesSpans) {
+            // The cursors expose the data points as primitives, so that no objects are allocated per data point.
             if (span instanceof AggregateTimeSeriesSpan) {
-                Iterator<AggregatedDataPoint> iterator = ((AggregateTimeSeriesSpan) span).iterator(from, to);
-                while (iterator.hasNext()) {
-                    AggregatedDataPoint aggregatedDataPoint = iterator.next();
-                    addAggregatedDataPointToPixelColumns(from, to, viewPort, pixelColumns, aggregatedDataPoint);
-                }
+                addAggregateSpanToPixelColumns(from, to, viewPort, pixelColumns, span);
             }
             else if (span instanceof RawTimeSeriesSpan){
-                Iterator<DataPoint> iterator = ((RawTimeSeriesSpan) span).iterator(from, to);
-                while (iterator.hasNext()) {
-                    DataPoint dataPoint = iterator.next();
-                    addDataPointToPixelColumns(from, to, viewPort, pixelColumns, dataPoint);
+                TimeSeriesSpanCursor cursor = span.cursor(from, to);
+                int previousIndex = -1;
+                long previousTimestamp = 0;
+                double previousValue = 0;
+                while (cursor.advance()) {
+                    long timestamp = cursor.minTs();
+                    double value = cursor.minValue();
+                    int pixelColumnIndex = addDataPointToPixelColumns(from, to, viewPort, pixelColumns, timestamp, value);
+                    // The segment from the previous data point crosses into this pixel column, and is all there is between the two.
+                    if (previousIndex >= 0 && pixelColumnIndex != previousIndex && pixelColumnIndex < viewPort.getWidth()) {
+                        pixelColumns.get(previousIndex).addRawSegment(previousTimestamp, previousValue, timestamp, value);
+                        pixelColumns.get(pixelColumnIndex).addRawSegment(previousTimestamp, previousValue, timestamp, value);
+                    }
+                    previousIndex = pixelColumnIndex;
+                    previousTimestamp = timestamp;
+                    previousValue = value;
                 }
             }
             else{
@@ -83,6 +163,7 @@ public class DataProcessor {
     /**
      * Get missing data between the range from-to. THe data are fetched for each measure and each measure has a list of missingIntervals as well as
      * an aggregationFactor.
+     * With {@link QueryMethod#RAW}, the raw data points are fetched instead of groups, into raw spans stored as set by the storage type.
      * @param from start of query
      * @param to end of query
      * @param missingIntervalsPerMeasure missing intervals per measure
@@ -96,47 +177,340 @@ public class DataProcessor {
         Map<Integer, Integer> numberOfGroups = new HashMap<>(missingIntervalsPerMeasure.size());
         Map<Integer, Long> aggregateIntervals = new HashMap<>(missingIntervalsPerMeasure.size());
 
-        int rawNoOfGroups = DateTimeUtil.numberOfIntervals(from, to, RAW_FACTOR * dataset.getSamplingInterval().toMillis());
-
         for(int measure : aggFactors.keySet()) {
-            int noOfGroups = aggFactors.get(measure) * viewPort.getWidth();
-            if(noOfGroups > rawNoOfGroups) noOfGroups = rawNoOfGroups * RAW_FACTOR; // If its RAW_FACTOR times the sampling interval, fetch with sampling interval.
-            numberOfGroups.put(measure, noOfGroups);
-            aggregateIntervals.put(measure, (to - from) / numberOfGroups.get(measure));
+            numberOfGroups.put(measure, queryPlanner.getNumberOfGroups(from, to, aggFactors.get(measure), viewPort));
+            // Raw data have no aggregate interval, like the raw spans they are kept in.
+            aggregateIntervals.put(measure, queryMethod == QueryMethod.RAW ? -1 : (to - from) / numberOfGroups.get(measure));
+        }
+        // Only fetch the intervals that no concurrent query is already fetching, and wait for the rest.
+        InFlightFetches.Claim claim = inFlightFetches.claim(missingIntervalsPerMeasure, aggregateIntervals, queryMethod);
+        Map<Integer, List<TimeInterval>> toFetch = claim.getToFetch();
+        try {
+            if (!toFetch.isEmpty()) {
+                long start = System.nanoTime();
+                timeSeriesSpans = fetch(from, to, toFetch, numberOfGroups, aggregateIntervals, queryMethod);
+                recordFetch(timeSeriesSpans, queryMethod, System.nanoTime() - start);
+                timeSeriesSpans.forEach(queryPlanner::observe);
+            }
+            inFlightFetches.complete(claim, timeSeriesSpans);
+        } catch (Throwable e) {
+            // Errors fail the claim too, so that the queries waiting for it are never left waiting.
+            inFlightFetches.fail(claim, e);
+            release(timeSeriesSpans);
+            throw e;
+        }
+        Map<Integer, List<TimeSeriesSpan>> sharedSpans;
+        try {
+            sharedSpans = inFlightFetches.await(claim);
+        } catch (RuntimeException e) {
+            release(timeSeriesSpans);
+            throw e;
+        }
+        for (Map.Entry<Integer, List<TimeSeriesSpan>> entry : sharedSpans.entrySet()) {
+            List<TimeSeriesSpan> spans = timeSeriesSpans.computeIfAbsent(entry.getKey(), m -> new ArrayList<>());
+            spans.addAll(entry.getValue());
+            spans.sort(Comparator.comparingLong(TimeSeriesSpan::getFrom));
+        }
+        return timeSeriesSpans;
+    }
+
+    private static void release(Map<Integer, List<TimeSeriesSpan>> timeSeriesSpans) {
+        timeSeriesSpans.values().forEach(spans -> spans.forEach(TimeSeriesSpan::release));
+    }
+
+    /**
+     * Records a fetch with a row per non-empty group of the fetched spans, or four rows for M4, or a row per raw data point.
+     */
+    private void recordFetch(Map<Integer, List<TimeSeriesSpan>> timeSeriesSpans, QueryMethod queryMethod, long nanos) {
+        long groups = 0;
+        long rawDataPoints = 0;
+        for (List<TimeSeriesSpan> spans : timeSeriesSpans.values()) {
+            for (TimeSeriesSpan span : spans) {
+                if (span instanceof RawTimeSeriesSpan) {
+                    rawDataPoints += ((RawTimeSeriesSpan) span).getCount();
+                    continue;
+                }
+                for (int count : span.getCounts()) {
+                    if (count > 0) groups++;
+                }
+            }
+        }
+        if (queryMethod == QueryMethod.RAW) {
+            metrics.recordFetch(rawDataPoints, rawDataPoints * QueryPlanner.RAW_ROW_BYTES, nanos);
+        } else if (queryMethod == QueryMethod.M4) {
+            long rows = groups * QueryPlanner.M4_ROWS_PER_COLUMN;
+            metrics.recordFetch(rows, rows * QueryPlanner.M4_ROW_BYTES, nanos);
+        } else {
+            metrics.recordFetch(groups, groups * QueryPlanner.MIN_MAX_ROW_BYTES, nanos);
+        }
+    }
+
+    /**
+     * The number of missing intervals that were not fetched, because a concurrent query was already fetching them.
+     */
+    public long getSharedFetchCount() {
+        return inFlightFetches.getSharedCount();
+    }
+
+    private Map<Integer, List<TimeSeriesSpan>> fetch(long from, long to, Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure,
+                                                     Map<Integer, Integer> numberOfGroups, Map<Integer, Long> aggregateIntervals,
+                                                     QueryMethod queryMethod) {
+        if (fetchExecutor != null) {
+            return getMissingConcurrently(from, to, missingIntervalsPerMeasure, numberOfGroups, aggregateIntervals, queryMethod);
+        }
+        if (queryMethod == QueryMethod.RAW) {
+            LOG.info("Fetching missing raw data from data source");
+            Map<Integer, List<TimeSeriesSpan>> timeSeriesSpans = fetchRaw(dataSource, from, to, missingIntervalsPerMeasure);
+            LOG.info("Fetched missing raw data from data source");
+            return timeSeriesSpans;
         }
         AggregatedDataPoints missingDataPoints = null;
         LOG.info("Fetching missing data from data source");
         missingDataPoints = dataSource.getAggregatedDataPoints(from, to, missingIntervalsPerMeasure, numberOfGroups, queryMethod);
         LOG.info("Fetched missing data from data source");
-        timeSeriesSpans = TimeSeriesSpanFactory.createAggregate(missingDataPoints, missingIntervalsPerMeasure, aggregateIntervals);
+        return TimeSeriesSpanFactory.createAggregate(missingDataPoints, missingIntervalsPerMeasure, aggregateIntervals, storageType);
+    }
+
+    /**
+     * Fetches the raw data points of the missing intervals into raw spans, with a query per measure,
+     * since the data points of a raw query do not carry their measure.
+     */
+    private Map<Integer, List<TimeSeriesSpan>> fetchRaw(DataSource dataSource, long from, long to,
+                                                        Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure) {
+        Map<Integer, List<TimeSeriesSpan>> timeSeriesSpans = new HashMap<>(missingIntervalsPerMeasure.size());
+        try {
+            for (Map.Entry<Integer, List<TimeInterval>> entry : missingIntervalsPerMeasure.entrySet()) {
+                Map<Integer, List<TimeInterval>> measureIntervals = Collections.singletonMap(entry.getKey(), entry.getValue());
+                DataPoints dataPoints = dataSource.getDataPoints(from, to, measureIntervals);
+                timeSeriesSpans.putAll(TimeSeriesSpanFactory.createRaw(dataPoints, measureIntervals, storageType));
+            }
+        } catch (RuntimeException e) {
+            release(timeSeriesSpans);
+            throw e;
+        }
+        return timeSeriesSpans;
+    }
+
+    /**
+     * Fetches the missing data with independent sub-queries that run concurrently, each on its own connection.
+     * There is a sub-query per measure. If there are fewer measures than connections, the intervals of each measure are also split
+     * into consecutive chunks. The groups of a sub-query are aligned as in the single query, since every sub-query keeps the query range and the number of groups.
+     * Each sub-query creates its spans while reading its results, and the spans are merged in the order of the intervals.
+     * If a sub-query fails, the spans of the other ones are released, and the sub-queries that have not started are skipped.
+     * Running sub-queries are never interrupted, so that a connection is never returned in the middle of reading results.
+     */
+    private Map<Integer, List<TimeSeriesSpan>> getMissingConcurrently(long from, long to, Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure,
+                                                                      Map<Integer, Integer> numberOfGroups, Map<Integer, Long> aggregateIntervals,
+                                                                      QueryMethod queryMethod) {
+        int chunksPerMeasure = Math.max(1, fetchParallelism / missingIntervalsPerMeasure.size());
+        List<Future<?>> futures = new ArrayList<>();
+        // The spans of every sub-query, in order. Once the fetch has failed, the spans of the sub-queries are released instead of kept.
+        List<Map<Integer, List<TimeSeriesSpan>>> results = new ArrayList<>();
+        AtomicBoolean failed = new AtomicBoolean();
+        for (Map.Entry<Integer, List<TimeInterval>> entry : missingIntervalsPerMeasure.entrySet()) {
+            int measure = entry.getKey();
+            List<TimeInterval> intervals = entry.getValue();
+            int chunkSize = (intervals.size() + chunksPerMeasure - 1) / chunksPerMeasure;
+            for (int i = 0; i < intervals.size(); i += chunkSize) {
+                Map<Integer, List<TimeInterval>> subIntervals = Collections.singletonMap(measure,
+                        new ArrayList<>(intervals.subList(i, Math.min(intervals.size(), i + chunkSize))));
+                Map<Integer, Integer> subNumberOfGroups = Collections.singletonMap(measure, numberOfGroups.get(measure));
+                int index = results.size();
+                results.add(null);
+                futures.add(fetchExecutor.submit(() -> {
+                    if (failed.get()) return null;
+                    Map<Integer, List<TimeSeriesSpan>> spans;
+                    DataSource fetchDataSource = fetchDataSources.take();
+                    try {
+                        if (queryMethod == QueryMethod.RAW) {
+                            spans = fetchRaw(fetchDataSource, from, to, subIntervals);
+                        } else {
+                            AggregatedDataPoints missingDataPoints = fetchDataSource.getAggregatedDataPoints(from, to, subIntervals, subNumberOfGroups, queryMethod);
+                            spans = TimeSeriesSpanFactory.createAggregate(missingDataPoints, subIntervals, aggregateIntervals, storageType);
+                        }
+                    } finally {
+                        fetchDataSources.add(fetchDataSource);
+                    }
+                    synchronized (results) {
+                        if (failed.get()) release(spans);
+                        else results.set(index, spans);
+                    }
+                    return null;
+                }));
+            }
+        }
+        LOG.info("Fetching missing data from data source with {} sub-queries", futures.size());
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failConcurrentFetch(futures, results, failed);
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            failConcurrentFetch(futures, results, failed);
+            throw new RuntimeException(e.getCause());
+        }
+        Map<Integer, List<TimeSeriesSpan>> timeSeriesSpans = new HashMap<>(missingIntervalsPerMeasure.size());
+        for (Map<Integer, List<TimeSeriesSpan>> result : results) {
+            result.forEach((measure, spans) -> timeSeriesSpans.computeIfAbsent(measure, m -> new ArrayList<>()).addAll(spans));
+        }
+        LOG.info("Fetched missing data from data source");
         return timeSeriesSpans;
     }
 
+    /**
+     * Releases the spans of the sub-queries that have completed, and makes the other ones release theirs.
+     * The sub-queries that have not started are cancelled, while the running ones are left to complete.
+     */
+    private static void failConcurrentFetch(List<Future<?>> futures, List<Map<Integer, List<TimeSeriesSpan>>> results, AtomicBoolean failed) {
+        futures.forEach(future -> future.cancel(false));
+        synchronized (results) {
+            failed.set(true);
+            for (Map<Integer, List<TimeSeriesSpan>> result : results) {
+                if (result != null) release(result);
+            }
+        }
+    }
+
     private int getPixelColumnForTimestamp(long timestamp, long from, long to, int width) {
         long aggregateInterval = (to - from) / width;
         return (int) ((timestamp - from) / aggregateInterval);
     }
 
-    private void addAggregatedDataPointToPixelColumns(long from, long to, ViewPort viewPort, List<PixelColumn> pixelColumns, AggregatedDataPoint aggregatedDataPoint) {
-        int pixelColumnIndex = getPixelColumnForTimestamp(aggregatedDataPoint.getFrom(), from, to, viewPort.getWidth());
+    /**
+     * Adds the groups of an aggregate span to the pixel columns. The groups inside a pixel column, after its first non-empty one and
+     * before its last non-empty one, are added as a single group that covers them all, with their min and max data points.
+     * None of them touches the boundaries of the pixel column or holds its first or last data point, so they only add to its covered range
+     * and its min and max, and the pixel column ends up the same as with every group added. Its error and results are therefore the same too,
+     * with most of the work saved for spans that are much finer than the pixel columns, e.g. after zooming out.
+     */
+    private void addAggregateSpanToPixelColumns(long from, long to, ViewPort viewPort, List<PixelColumn> pixelColumns, TimeSeriesSpan span) {
+        TimeSeriesSpanCursor cursor = span.cursor(from, to);
+        InnerGroups innerGroups = new InnerGroups();
+        while (cursor.advance()) {
+            int pixelColumnIndex = getPixelColumnForTimestamp(cursor.from(), from, to, viewPort.getWidth());
+            PixelColumn pixelColumn = pixelColumnIndex < viewPort.getWidth() ? pixelColumns.get(pixelColumnIndex) : null;
+            boolean inner = pixelColumn != null && pixelColumn.getFrom() < cursor.from() && cursor.to() < pixelColumn.getTo();
+            if (innerGroups.pixelColumn != null && (!inner || innerGroups.pixelColumn != pixelColumn)) {
+                innerGroups.flush();
+            }
+            if (inner) {
+                innerGroups.add(pixelColumn, cursor);
+            } else {
+                addAggregatedDataPointToPixelColumns(from, to, viewPort, pixelColumns, cursor);
+            }
+        }
+        innerGroups.flush();
+    }
+
+    /**
+     * The groups inside a pixel column, in order, of which the ones after the first non-empty group are held back and merged,
+     * until a group that is not inside the pixel column is reached.
+     */
+    private static class InnerGroups {
+
+        private PixelColumn pixelColumn;
+
+        private boolean nonEmptyAdded;
+
+        // The range of the groups held back, and the count and the min and max data points of the ones merged, i.e. all but the last non-empty one.
+        private long mergedFrom = -1;
+        private long mergedTo;
+        private int mergedCount;
+        private final StatsAggregator mergedStats = new StatsAggregator();
+
+        // The last non-empty group held back, which may be the last one of the pixel column.
+        private int lastCount;
+        private long lastFrom;
+        private long lastTo;
+        private double lastMinValue;
+        private long lastMinTimestamp;
+        private double lastMaxValue;
+        private long lastMaxTimestamp;
+
+        private void add(PixelColumn pixelColumn, TimeSeriesSpanCursor cursor) {
+            this.pixelColumn = pixelColumn;
+            if (!nonEmptyAdded) {
+                pixelColumn.addAggregatedDataPoint(cursor);
+                nonEmptyAdded = cursor.count() > 0;
+                return;
+            }
+            if (mergedFrom < 0) mergedFrom = cursor.from();
+            mergedTo = cursor.to();
+            if (cursor.count() == 0) return;
+            if (lastCount > 0) {
+                // The data points are merged in the order the pixel column would have taken them, so that ties keep the same timestamps.
+                mergedStats.accept(lastMinTimestamp, lastMinValue);
+                mergedStats.accept(lastMaxTimestamp, lastMaxValue);
+                mergedCount += lastCount;
+            }
+            lastCount = cursor.count();
+            lastFrom = cursor.from();
+            lastTo = cursor.to();
+            lastMinValue = cursor.minValue();
+            lastMinTimestamp = cursor.minTs();
+            lastMaxValue = cursor.maxValue();
+            lastMaxTimestamp = cursor.maxTs();
+        }
+
+        private void flush() {
+            if (pixelColumn == null) return;
+            if (mergedCount > 0) {
+                pixelColumn.addAggregatedDataPoint(mergedFrom, mergedTo, mergedCount, mergedStats.getMinValue(), mergedStats.getMinTimestamp(),
+                        mergedStats.getMaxValue(), mergedStats.getMaxTimestamp());
+            } else if (mergedFrom >= 0) {
+                // Only empty groups, and the last non-empty one, were held back, so they just add their range.
+                pixelColumn.addAggregatedDataPoint(mergedFrom, mergedTo, 0, 0, 0, 0, 0);
+            }
+            if (lastCount > 0) {
+                pixelColumn.addAggregatedDataPoint(lastFrom, lastTo, lastCount, lastMinValue, lastMinTimestamp, lastMaxValue, lastMaxTimestamp);
+            }
+            pixelColumn = null;
+            nonEmptyAdded = false;
+            mergedFrom = -1;
+            mergedCount = 0;
+            mergedStats.clear();
+            lastCount = 0;
+        }
+    }
+
+    private void addAggregatedDataPointToPixelColumns(long from, long to, ViewPort viewPort, List<PixelColumn> pixelColumns, TimeSeriesSpanCursor cursor) {
+        int pixelColumnIndex = getPixelColumnForTimestamp(cursor.from(), from, to, viewPort.getWidth());
         if (pixelColumnIndex < viewPort.getWidth()) {
-            pixelColumns.get(pixelColumnIndex).addAggregatedDataPoint(aggregatedDataPoint);
+            pixelColumns.get(pixelColumnIndex).addAggregatedDataPoint(cursor);
         }
         // Since we only consider spans with intervals smaller than the pixel column interval, we know that the data point will not overlap more than two pixel columns.
-        if (pixelColumnIndex <  viewPort.getWidth() - 1 && pixelColumns.get(pixelColumnIndex + 1).overlaps(aggregatedDataPoint)) {
+        if (pixelColumnIndex <  viewPort.getWidth() - 1) {
+            PixelColumn nextPixelColumn = pixelColumns.get(pixelColumnIndex + 1);
             // If the next pixel column overlaps the data point, then we need to add the data point to the next pixel column as well.
-            pixelColumns.get(pixelColumnIndex + 1).addAggregatedDataPoint(aggregatedDataPoint);
+            if (nextPixelColumn.getTo() > cursor.from() && cursor.to() > nextPixelColumn.getFrom()) {
+                nextPixelColumn.addAggregatedDataPoint(cursor);
+            }
         }
     }
 
-    private void addDataPointToPixelColumns(long from, long to, ViewPort viewPort, List<PixelColumn> pixelColumns, DataPoint dataPoint){
-        int pixelColumnIndex = getPixelColumnForTimestamp(dataPoint.getTimestamp(), from, to, viewPort.getWidth());
+    /**
+     * @return the index of the pixel column of the data point, which is the view port width if it is after the last pixel column
+     */
+    private int addDataPointToPixelColumns(long from, long to, ViewPort viewPort, List<PixelColumn> pixelColumns, long timestamp, double value){
+        int pixelColumnIndex = getPixelColumnForTimestamp(timestamp, from, to, viewPort.getWidth());
         if (pixelColumnIndex < viewPort.getWidth()) {
-            pixelColumns.get(pixelColumnIndex).addDataPoint(dataPoint);
+            pixelColumns.get(pixelColumnIndex).addDataPoint(timestamp, value);
         }
+        return Math.min(pixelColumnIndex, viewPort.getWidth());
     }
 
     public QueryExecutor getQueryExecutor() {
         return queryExecutor;
     }
+
+    public QueryPlanner getQueryPlanner() {
+        return queryPlanner;
+    }
+
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
 }
@@ -0,0 +1,206 @@
+package eu.more2020.visual.middleware.cache;
+
+import eu.more2020.visual.middleware.domain.TimeInterval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A second cache tier on local disk for the aggregate spans evicted from the memory of the {@link CacheManager}.
+ * A cold span is cheaper to read back from a local file than to fetch again from the data source.
+ * <p>
+ * Spilled spans are appended to segment files of a fixed size, that are memory-mapped.
+ * The groups of a spilled span are written in the layout of {@link OffHeapAggregateStorage},
+ * so the span is read back by wrapping its region of the mapped segment, without copying.
+ * The spilled spans of every measure are indexed in an interval tree.
+ * When the disk budget is exceeded, the oldest segment is dropped as a whole with all its spans.
+ * <p>
+ * The spill tier is safe for concurrent use. Like the cache manager, it owns a reference to every span in it,
+ * and the spans returned by {@link #getOverlapping(int, TimeInterval)} are retained for the caller.
+ */
+public class DiskSpillTier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DiskSpillTier.class);
+
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final long maxDiskBytes;
+
+    private final Map<Integer, IntervalTree<TimeSeriesSpan>> intervalTrees = new HashMap<>();
+
+    // The segments, oldest first. The last one is the segment that spans are appended to.
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private boolean closed;
+
+    public DiskSpillTier(Path directory, long maxDiskBytes) {
+        this(directory, maxDiskBytes, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory the directory of the segment files, preferably on a local SSD
+     * @param maxDiskBytes the disk budget in bytes. When exceeded, the oldest segment is dropped.
+     * @param segmentSize the size in bytes of each segment file. Spans larger than a segment are not spilled.
+     */
+    public DiskSpillTier(Path directory, long maxDiskBytes, int segmentSize) {
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Writes an evicted span to the spill tier. Only aggregate spans are spilled.
+     * The span itself is not kept, so the caller still releases it.
+     *
+     * @return true if the span was spilled
+     */
+    public boolean spill(TimeSeriesSpan span) {
+        if (!(span instanceof AggregateTimeSeriesSpan)) return false;
+        AggregateTimeSeriesSpan aggregateSpan = (AggregateTimeSeriesSpan) span;
+        int size = aggregateSpan.getSize();
+        int bytes = OffHeapAggregateStorage.bytes(size);
+        if (bytes > segmentSize) return false;
+        List<TimeSeriesSpan> dropped = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            if (closed) return false;
+            IntervalTree<TimeSeriesSpan> intervalTree = intervalTrees.computeIfAbsent(span.getMeasure(), m -> new IntervalTree<>());
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.position + bytes > segmentSize) {
+                segment = createSegment();
+                segments.addLast(segment);
+                // Only the segment being appended to is left when all others are dropped.
+                while (segments.size() > 1 && (long) segments.size() * segmentSize > maxDiskBytes) {
+                    dropSegment(segments.removeFirst(), dropped);
+                }
+            }
+            ByteBuffer region = segment.buffer.duplicate();
+            region.position(segment.position).limit(segment.position + bytes);
+            OffHeapAggregateStorage storage = new OffHeapAggregateStorage(region.slice().order(ByteOrder.nativeOrder()), size);
+            aggregateSpan.getStorage().copyTo(0, storage, 0, size);
+            AggregateTimeSeriesSpan spilledSpan = new AggregateTimeSeriesSpan(span.getFrom(), span.getTo(), span.getMeasure(),
+                    span.getAggregateInterval(), storage);
+            // Keep 8 byte alignment for the longs of the next span.
+            segment.position += (bytes + Long.BYTES - 1) & -Long.BYTES;
+            if (!intervalTree.insert(spilledSpan)) {
+                // A span with the same interval is already spilled. Its space in the segment is wasted until the segment is dropped.
+                spilledSpan.release();
+                return false;
+            }
+            segment.spans.add(spilledSpan);
+            LOG.debug("Spilled time series span {}", span);
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Could not spill time series span {} to disk", span, e);
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+            dropped.forEach(TimeSeriesSpan::release);
+        }
+    }
+
+    /**
+     * Returns the spilled spans of a measure that overlap the given interval, retained for the caller.
+     */
+    public List<TimeSeriesSpan> getOverlapping(int measure, TimeInterval interval) {
+        lock.readLock().lock();
+        try {
+            IntervalTree<TimeSeriesSpan> intervalTree = intervalTrees.get(measure);
+            if (intervalTree == null) return new ArrayList<>();
+            List<TimeSeriesSpan> spans = new ArrayList<>();
+            intervalTree.overlappers(interval).forEachRemaining(spans::add);
+            spans.forEach(TimeSeriesSpan::retain);
+            return spans;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the size in bytes of the segment files on disk.
+     */
+    public long getDiskSize() {
+        lock.readLock().lock();
+        try {
+            return (long) segments.size() * segmentSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drops all spilled spans and deletes the segment files.
+     */
+    public void close() {
+        List<TimeSeriesSpan> dropped = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            while (!segments.isEmpty()) dropSegment(segments.removeFirst(), dropped);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        dropped.forEach(TimeSeriesSpan::release);
+    }
+
+    private Segment createSegment() throws IOException {
+        Files.createDirectories(directory);
+        Path path = Files.createTempFile(directory, "spill-", ".seg");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            LOG.debug("Created spill segment {}", path);
+            return new Segment(path, buffer);
+        }
+    }
+
+    /**
+     * Removes the spans of a segment from the index and deletes its file.
+     * The spans are released by the caller after the lock is released; readers that still hold them keep the mapping alive.
+     */
+    private void dropSegment(Segment segment, List<TimeSeriesSpan> dropped) {
+        for (TimeSeriesSpan span : segment.spans) {
+            intervalTrees.get(span.getMeasure()).deleteInstance(span);
+            dropped.add(span);
+        }
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            LOG.warn("Could not delete spill segment {}", segment.path, e);
+        }
+        LOG.debug("Dropped spill segment {} of {} spans", segment.path, segment.spans.size());
+    }
+
+    private static class Segment {
+
+        private final Path path;
+
+        private final ByteBuffer buffer;
+
+        private final List<TimeSeriesSpan> spans = new ArrayList<>();
+
+        private int position;
+
+        private Segment(Path path, ByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer.order(ByteOrder.nativeOrder());
+        }
+    }
+}
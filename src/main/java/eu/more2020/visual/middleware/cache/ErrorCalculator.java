@@ -22,12 +22,12 @@ public class ErrorCalculator {
         // Calculate errors using processed data
         maxErrorEvaluator = new MaxErrorEvaluator(viewPort, pixelColumns);
         this.pixelColumnInterval = pixelColumnInterval;
-        List<Double> pixelColumnErrors = maxErrorEvaluator.computeMaxPixelErrorsPerColumn();
+        double[] pixelColumnErrors = maxErrorEvaluator.computeMaxPixelErrors();
         // Find the part of the query interval that is not covered by the spans in the interval tree.
         int validColumns = 0;
         error = 0.0;
-        for (Double pixelColumnError : pixelColumnErrors) {
-            if(pixelColumnError != null) {
+        for (double pixelColumnError : pixelColumnErrors) {
+            if(!Double.isNaN(pixelColumnError)) {
                 validColumns += 1;
                 error += pixelColumnError;
             }
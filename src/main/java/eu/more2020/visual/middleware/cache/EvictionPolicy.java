@@ -0,0 +1,30 @@
+package eu.more2020.visual.middleware.cache;
+
+/**
+ * Decides which time series span should leave the cache when the {@link CacheManager} exceeds its memory budget.
+ * The cache manager notifies the policy every time a span is inserted, accessed or removed,
+ * and asks it for a victim while the memory budget is exceeded.
+ */
+public interface EvictionPolicy {
+
+    /*
+        Called after a span has been inserted into the cache.
+     */
+    void onInsert(TimeSeriesSpan span);
+
+    /*
+        Called every time a span is used to answer a query.
+     */
+    void onAccess(TimeSeriesSpan span);
+
+    /*
+        Called when a span leaves the cache for any reason other than eviction.
+     */
+    void onRemove(TimeSeriesSpan span);
+
+    /**
+     * Selects the next span to be evicted and stops tracking it.
+     * @return the victim span, or null if the policy does not track any span.
+     */
+    TimeSeriesSpan evict();
+}
@@ -0,0 +1,19 @@
+package eu.more2020.visual.middleware.cache;
+
+import java.util.Locale;
+
+public class EvictionPolicyFactory {
+
+    public static EvictionPolicy getEvictionPolicy(String type) {
+        switch (type.toLowerCase(Locale.ROOT)) {
+            case "lru":
+                return new LRUEvictionPolicy();
+            case "lfu":
+                return new LFUEvictionPolicy();
+            case "gds":
+                return new GreedyDualSizeEvictionPolicy();
+            default:
+                throw new IllegalArgumentException("Unsupported eviction policy " + type);
+        }
+    }
+}
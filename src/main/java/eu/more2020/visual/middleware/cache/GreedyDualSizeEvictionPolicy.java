@@ -0,0 +1,43 @@
+package eu.more2020.visual.middleware.cache;
+
+/**
+ * Cost-aware GreedyDual-Size eviction policy.
+ * Every span gets a priority H = L + cost / size, where cost is the estimated cost of fetching the span again from the
+ * data source and size its deep memory size. The span with the lowest H is evicted and L is raised to its priority,
+ * so that spans that have not been accessed for a long time age out.
+ * The refetch cost is estimated as the number of raw data points that the data source has to scan to rebuild the span.
+ */
+public class GreedyDualSizeEvictionPolicy extends PriorityEvictionPolicy {
+
+    // The inflation value L.
+    private double inflation = 0;
+
+    @Override
+    protected double insertPriority(TimeSeriesSpan span) {
+        return inflation + (double) refetchCost(span) / Math.max(1, span.calculateDeepMemorySize());
+    }
+
+    @Override
+    protected double accessPriority(TimeSeriesSpan span, double priority) {
+        return insertPriority(span);
+    }
+
+    @Override
+    protected void onEvict(double priority) {
+        inflation = priority;
+    }
+
+    /**
+     * Estimates the number of raw data points the data source must scan to recreate the span.
+     * A constant of 1 accounts for the round trip of the query itself.
+     */
+    static long refetchCost(TimeSeriesSpan span) {
+        long cost = 1;
+        if (span instanceof RawTimeSeriesSpan) {
+            cost += ((RawTimeSeriesSpan) span).getCount();
+        } else {
+            cost += ((AggregateTimeSeriesSpan) span).getTotalCount();
+        }
+        return cost;
+    }
+}
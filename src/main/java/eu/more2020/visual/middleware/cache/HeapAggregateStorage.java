@@ -0,0 +1,108 @@
+package eu.more2020.visual.middleware.cache;
+
+/**
+ * Stores the aggregates in two primitive arrays on the Java heap.
+ */
+public class HeapAggregateStorage implements AggregateStorage {
+
+    /**
+     * The aggregate values for every window interval.
+     */
+    private final long[] aggregates;
+
+    /**
+     * The number of raw time series points behind every group.
+     */
+    private final int[] counts;
+
+    public HeapAggregateStorage(int size) {
+        this.counts = new int[size];
+        this.aggregates = new long[size * 5];
+    }
+
+    @Override
+    public int size() {
+        return counts.length;
+    }
+
+    @Override
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    @Override
+    public double getSum(int i) {
+        return Double.longBitsToDouble(aggregates[5 * i]);
+    }
+
+    @Override
+    public double getMinValue(int i) {
+        return Double.longBitsToDouble(aggregates[5 * i + 1]);
+    }
+
+    @Override
+    public long getMinTimestamp(int i) {
+        return aggregates[5 * i + 2];
+    }
+
+    @Override
+    public double getMaxValue(int i) {
+        return Double.longBitsToDouble(aggregates[5 * i + 3]);
+    }
+
+    @Override
+    public long getMaxTimestamp(int i) {
+        return aggregates[5 * i + 4];
+    }
+
+    @Override
+    public void set(int i, int count, double sum, double minValue, long minTimestamp, double maxValue, long maxTimestamp) {
+        counts[i] = count;
+        aggregates[5 * i] = Double.doubleToRawLongBits(sum);
+        aggregates[5 * i + 1] = Double.doubleToRawLongBits(minValue);
+        aggregates[5 * i + 2] = minTimestamp;
+        aggregates[5 * i + 3] = Double.doubleToRawLongBits(maxValue);
+        aggregates[5 * i + 4] = maxTimestamp;
+    }
+
+    @Override
+    public AggregateStorage allocate(int size) {
+        return new HeapAggregateStorage(size);
+    }
+
+    @Override
+    public void copyTo(int srcIndex, AggregateStorage dest, int destIndex, int length) {
+        if (!(dest instanceof HeapAggregateStorage)) {
+            AggregateStorage.super.copyTo(srcIndex, dest, destIndex, length);
+            return;
+        }
+        HeapAggregateStorage heapDest = (HeapAggregateStorage) dest;
+        System.arraycopy(counts, srcIndex, heapDest.counts, destIndex, length);
+        System.arraycopy(aggregates, srcIndex * 5, heapDest.aggregates, destIndex * 5, length * 5);
+    }
+
+    @Override
+    public int[] getCounts() {
+        return counts;
+    }
+
+    @Override
+    public long calculateDeepMemorySize() {
+        // Memory overhead for an object in a 64-bit JVM
+        final int OBJECT_OVERHEAD = 16;
+        // Memory overhead for an array in a 64-bit JVM
+        final int ARRAY_OVERHEAD = 20;
+        // Memory usage of int in a 64-bit JVM
+        final int INT_SIZE = 4;
+        // Memory usage of long in a 64-bit JVM
+        final int LONG_SIZE = 8;
+        // Memory usage of a reference in a 64-bit JVM with a heap size less than 32 GB
+        final int REF_SIZE = 4;
+
+        long aggregatesMemory = REF_SIZE + ARRAY_OVERHEAD + ((long) aggregates.length * LONG_SIZE);
+
+        long countsMemory = REF_SIZE + ARRAY_OVERHEAD + ((long) counts.length * INT_SIZE);
+
+        return OBJECT_OVERHEAD + aggregatesMemory + countsMemory;
+    }
+}
@@ -0,0 +1,223 @@
+package eu.more2020.visual.middleware.cache;
+
+import eu.more2020.visual.middleware.domain.Query.QueryMethod;
+import eu.more2020.visual.middleware.domain.TimeInterval;
+import eu.more2020.visual.middleware.domain.TimeRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the fetches of missing data that are in flight, so that concurrent queries that miss the same data
+ * fetch it once. A query first claims its missing intervals. The parts of them that are already being fetched by another query
+ * for the same measure, aggregate interval and query method are waited for, and only the remainder is fetched by the query itself.
+ * When a query completes its fetch, it copies the groups every waiter needs from its new spans, before these are added to the cache.
+ * A query always completes its own fetch before waiting for other ones, so queries never wait for each other in a cycle.
+ * A query whose fetch fails must still fail its claim, and waiting is bounded, so that a query never waits forever for another one.
+ */
+class InFlightFetches {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InFlightFetches.class);
+
+    private final List<Fetch> fetches = new ArrayList<>();
+
+    private final AtomicLong sharedCount = new AtomicLong();
+
+    // How long a query waits in total for the fetches of other queries, by default.
+    static final long DEFAULT_AWAIT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final long awaitTimeoutMillis;
+
+    InFlightFetches() {
+        this(DEFAULT_AWAIT_TIMEOUT_MILLIS);
+    }
+
+    InFlightFetches(long awaitTimeoutMillis) {
+        this.awaitTimeoutMillis = awaitTimeoutMillis;
+    }
+
+    /**
+     * Claims the missing intervals of a query.
+     *
+     * @param missingIntervalsPerMeasure the missing intervals per measure, sorted by their start
+     * @param aggregateIntervals the aggregate interval of the fetch of each measure
+     * @return the claim, with the intervals the query must fetch itself
+     */
+    synchronized Claim claim(Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure, Map<Integer, Long> aggregateIntervals,
+                             QueryMethod queryMethod) {
+        Claim claim = new Claim();
+        for (Map.Entry<Integer, List<TimeInterval>> entry : missingIntervalsPerMeasure.entrySet()) {
+            int measure = entry.getKey();
+            long aggregateInterval = aggregateIntervals.get(measure);
+            List<Fetch> sameFetches = new ArrayList<>();
+            for (Fetch fetch : fetches) {
+                if (fetch.measure == measure && fetch.aggregateInterval == aggregateInterval && fetch.queryMethod == queryMethod) {
+                    sameFetches.add(fetch);
+                }
+            }
+            sameFetches.sort(Comparator.comparingLong(fetch -> fetch.interval.getFrom()));
+            List<TimeInterval> remainder = new ArrayList<>();
+            for (TimeInterval interval : entry.getValue()) {
+                long position = interval.getFrom();
+                for (Fetch fetch : sameFetches) {
+                    if (fetch.interval.getTo() <= position || fetch.interval.getFrom() >= interval.getTo()) continue;
+                    if (fetch.interval.getFrom() > position) {
+                        remainder.add(new TimeRange(position, fetch.interval.getFrom()));
+                    }
+                    long coveredTo = Math.min(interval.getTo(), fetch.interval.getTo());
+                    Waiter waiter = new Waiter(new TimeRange(Math.max(position, fetch.interval.getFrom()), coveredTo));
+                    fetch.waiters.add(waiter);
+                    claim.waiters.add(waiter);
+                    position = coveredTo;
+                }
+                if (position < interval.getTo()) {
+                    remainder.add(position == interval.getFrom() ? interval : new TimeRange(position, interval.getTo()));
+                }
+            }
+            if (remainder.isEmpty()) continue;
+            claim.toFetch.put(measure, remainder);
+            for (TimeInterval interval : remainder) {
+                Fetch fetch = new Fetch(measure, aggregateInterval, queryMethod, interval);
+                fetches.add(fetch);
+                claim.fetches.add(fetch);
+            }
+        }
+        if (!claim.waiters.isEmpty()) {
+            sharedCount.addAndGet(claim.waiters.size());
+            LOG.info("Waiting for {} in-flight fetches of other queries", claim.waiters.size());
+        }
+        return claim;
+    }
+
+    /**
+     * Completes the fetches of a claim, handing every waiter a copy of the groups it needs.
+     *
+     * @param fetchedSpans the spans fetched for the claim, per measure
+     */
+    void complete(Claim claim, Map<Integer, List<TimeSeriesSpan>> fetchedSpans) {
+        for (Fetch fetch : remove(claim)) {
+            List<TimeSeriesSpan> spans = fetchedSpans.getOrDefault(fetch.measure, Collections.emptyList());
+            for (Waiter waiter : fetch.waiters) {
+                List<TimeSeriesSpan> slices = new ArrayList<>();
+                for (TimeSeriesSpan span : spans) {
+                    if (span.getFrom() < waiter.interval.getTo() && span.getTo() > waiter.interval.getFrom()) {
+                        slices.add(span instanceof AggregateTimeSeriesSpan
+                                ? ((AggregateTimeSeriesSpan) span).slice(waiter.interval.getFrom(), waiter.interval.getTo())
+                                : ((RawTimeSeriesSpan) span).slice(waiter.interval.getFrom(), waiter.interval.getTo()));
+                    }
+                }
+                // A waiter that gave up does not take its copies, so they are released here.
+                if (!waiter.spans.complete(slices)) slices.forEach(TimeSeriesSpan::release);
+            }
+        }
+    }
+
+    /**
+     * Fails the fetches of a claim and the queries waiting for them.
+     */
+    void fail(Claim claim, Throwable cause) {
+        for (Fetch fetch : remove(claim)) {
+            fetch.waiters.forEach(waiter -> waiter.spans.completeExceptionally(cause));
+        }
+    }
+
+    /**
+     * Waits for the fetches of other queries that the claim depends on, for at most the await timeout in total.
+     * If a fetch fails or the wait times out, the spans copied so far are released and the remaining waits are abandoned.
+     * @return the spans copied from these fetches, per measure
+     */
+    Map<Integer, List<TimeSeriesSpan>> await(Claim claim) {
+        Map<Integer, List<TimeSeriesSpan>> spans = new HashMap<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(awaitTimeoutMillis);
+        int i = 0;
+        try {
+            for (; i < claim.waiters.size(); i++) {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                for (TimeSeriesSpan span : claim.waiters.get(i).spans.get(remaining, TimeUnit.NANOSECONDS)) {
+                    spans.computeIfAbsent(span.getMeasure(), m -> new ArrayList<>()).add(span);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandon(claim, i, spans);
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            abandon(claim, i, spans);
+            throw new RuntimeException(e.getCause());
+        } catch (TimeoutException e) {
+            abandon(claim, i, spans);
+            throw new RuntimeException("Timed out after " + awaitTimeoutMillis + " ms waiting for the in-flight fetches of other queries", e);
+        }
+        return spans;
+    }
+
+    /**
+     * Releases the spans copied for a claim, and gives up the waits from the given one on.
+     * The copies of a fetch that has already completed are released, and those of a fetch still in flight are released when it completes.
+     */
+    private void abandon(Claim claim, int from, Map<Integer, List<TimeSeriesSpan>> spans) {
+        spans.values().forEach(measureSpans -> measureSpans.forEach(TimeSeriesSpan::release));
+        for (Waiter waiter : claim.waiters.subList(from, claim.waiters.size())) {
+            if (!waiter.spans.cancel(false) && !waiter.spans.isCompletedExceptionally()) {
+                waiter.spans.join().forEach(TimeSeriesSpan::release);
+            }
+        }
+    }
+
+    /**
+     * The number of intervals that were not fetched, because they were already being fetched by another query.
+     */
+    long getSharedCount() {
+        return sharedCount.get();
+    }
+
+    /**
+     * Removes the fetches of a claim, so that no more waiters are added to them.
+     */
+    private synchronized List<Fetch> remove(Claim claim) {
+        fetches.removeAll(claim.fetches);
+        return claim.fetches;
+    }
+
+    static class Claim {
+        // The intervals that the query fetches itself, per measure.
+        private final Map<Integer, List<TimeInterval>> toFetch = new LinkedHashMap<>();
+        private final List<Fetch> fetches = new ArrayList<>();
+        private final List<Waiter> waiters = new ArrayList<>();
+
+        Map<Integer, List<TimeInterval>> getToFetch() {
+            return toFetch;
+        }
+    }
+
+    private static class Fetch {
+        private final int measure;
+        private final long aggregateInterval;
+        private final QueryMethod queryMethod;
+        private final TimeInterval interval;
+        // Only modified while holding the lock of the in-flight fetches, and read after the fetch is removed from them.
+        private final List<Waiter> waiters = new ArrayList<>();
+
+        private Fetch(int measure, long aggregateInterval, QueryMethod queryMethod, TimeInterval interval) {
+            this.measure = measure;
+            this.aggregateInterval = aggregateInterval;
+            this.queryMethod = queryMethod;
+            this.interval = interval;
+        }
+    }
+
+    private static class Waiter {
+        private final TimeInterval interval;
+        private final CompletableFuture<List<TimeSeriesSpan>> spans = new CompletableFuture<>();
+
+        private Waiter(TimeInterval interval) {
+            this.interval = interval;
+        }
+    }
+}
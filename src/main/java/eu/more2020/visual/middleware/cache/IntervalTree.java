@@ -259,6 +259,19 @@ public class IntervalTree<T extends TimeInterval> implements Iterable<T> {
         return search(t).delete();  // false if t.isNil()
     }
 
+    /**
+     * Deletes the given instance from this IntervalTree.
+     * <p>
+     * Unlike {@link #delete(TimeInterval)}, the tree remains unchanged if it holds
+     * a different value with the same interval.
+     * @param t - the instance to delete from the tree
+     * @return whether or not the instance was removed from this IntervalTree
+     */
+    public boolean deleteInstance(T t) {
+        Node n = search(t);
+        return n.interval == t && n.delete();
+    }
+
     /**
      * Deletes the smallest Interval from this IntervalTree.
      * <p>
@@ -0,0 +1,18 @@
+package eu.more2020.visual.middleware.cache;
+
+/**
+ * Evicts the least frequently used time series span.
+ * Among spans with the same access frequency, the least recently used one is evicted.
+ */
+public class LFUEvictionPolicy extends PriorityEvictionPolicy {
+
+    @Override
+    protected double insertPriority(TimeSeriesSpan span) {
+        return 1;
+    }
+
+    @Override
+    protected double accessPriority(TimeSeriesSpan span, double priority) {
+        return priority + 1;
+    }
+}
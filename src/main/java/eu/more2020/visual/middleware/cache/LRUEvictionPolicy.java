@@ -0,0 +1,37 @@
+package eu.more2020.visual.middleware.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least recently used time series span.
+ */
+public class LRUEvictionPolicy implements EvictionPolicy {
+
+    // Access-ordered map. The eldest entry is the least recently used span.
+    private final LinkedHashMap<TimeSeriesSpan, Boolean> spans = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public void onInsert(TimeSeriesSpan span) {
+        spans.put(span, Boolean.TRUE);
+    }
+
+    @Override
+    public void onAccess(TimeSeriesSpan span) {
+        spans.get(span);
+    }
+
+    @Override
+    public void onRemove(TimeSeriesSpan span) {
+        spans.remove(span);
+    }
+
+    @Override
+    public TimeSeriesSpan evict() {
+        Iterator<TimeSeriesSpan> it = spans.keySet().iterator();
+        if (!it.hasNext()) return null;
+        TimeSeriesSpan victim = it.next();
+        it.remove();
+        return victim;
+    }
+}
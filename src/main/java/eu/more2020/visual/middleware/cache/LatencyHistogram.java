@@ -0,0 +1,105 @@
+package eu.more2020.visual.middleware.cache;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies with a bucket per power of two nanoseconds.
+ * Recording is lock-free and allocation-free, so it can stay on under load. Percentiles are approximated by the upper bound of their bucket.
+ */
+public class LatencyHistogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets.incrementAndGet(nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos));
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * Records the time elapsed since the given {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[buckets.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        double maxMillis = toMillis(max.get());
+        // The bucket of a percentile may extend beyond the largest latency recorded.
+        return new Snapshot(total, total == 0 ? 0 : toMillis(sum.sum()) / total,
+                Math.min(maxMillis, percentile(counts, total, 0.5)), Math.min(maxMillis, percentile(counts, total, 0.99)), maxMillis);
+    }
+
+    private static double percentile(long[] counts, long total, double p) {
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            // Bucket i holds the latencies in [2^i, 2^(i+1)) nanoseconds.
+            if (seen >= rank) return toMillis(i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1);
+        }
+        return 0;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1_000_000d;
+    }
+
+    /**
+     * The latencies recorded so far, in milliseconds.
+     */
+    public static class Snapshot {
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p99;
+        private final double max;
+
+        @ConstructorProperties({"count", "mean", "p50", "p99", "max"})
+        public Snapshot(long count, double mean, double p50, double p99, double max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, mean=%.3f ms, p50=%.3f ms, p99=%.3f ms, max=%.3f ms", count, mean, p50, p99, max);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package eu.more2020.visual.middleware.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the metrics of a cache to the log.
+ */
+public class LoggingMetricsReporter implements MetricsReporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoggingMetricsReporter.class);
+
+    @Override
+    public void report(CacheMetricsMXBean metrics) {
+        LOG.info("Metrics of {}: hit ratio {} over {} lookups, {} bytes cached, {} spans evicted, {} fetches of {} rows and {} bytes, "
+                        + "prefetch usefulness {} over {} prefetches",
+                metrics.getDataSource(), metrics.getHitRatio(), metrics.getLookups(), metrics.getBytesCached(), metrics.getSpansEvicted(),
+                metrics.getFetches(), metrics.getFetchedRows(), metrics.getFetchedBytes(),
+                metrics.getPrefetchUsefulness(), metrics.getPrefetches());
+        LOG.info("Latencies of {}: lookup [{}], error evaluation [{}], fetch [{}], span build [{}], prefetch [{}]",
+                metrics.getDataSource(), metrics.getLookupLatency(), metrics.getErrorEvaluationLatency(), metrics.getFetchLatency(),
+                metrics.getSpanBuildLatency(), metrics.getPrefetchLatency());
+    }
+}
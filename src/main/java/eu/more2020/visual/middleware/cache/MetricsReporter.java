@@ -0,0 +1,10 @@
+package eu.more2020.visual.middleware.cache;
+
+/**
+ * Publishes the metrics of a cache, e.g. to a monitoring system. Reporters are called periodically on a background thread,
+ * see {@link MinMaxCache#addMetricsReporter}.
+ */
+public interface MetricsReporter {
+
+    void report(CacheMetricsMXBean metrics);
+}
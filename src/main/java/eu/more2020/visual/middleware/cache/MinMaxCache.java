@@ -8,6 +8,18 @@ import eu.more2020.visual.middleware.domain.QueryResults;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
 
 public class MinMaxCache {
     private static final Logger LOG = LoggerFactory.getLogger(MinMaxCache.class);
@@ -16,21 +28,230 @@ public class MinMaxCache {
     private final CacheManager cacheManager;
     private final PrefetchManager prefetchManager;
     private final DataProcessor dataProcessor;
+    private final AbstractDataset dataset;
+
+    // Runs the progressive queries, which keep fetching missing data after their cached results are returned.
+    private final ExecutorService progressiveExecutor;
+
+    private final CacheMetrics metrics;
+
+    // Runs the metrics reporters, created when the first one is added.
+    private ScheduledExecutorService reporterExecutor;
 
     public MinMaxCache(QueryExecutor dataQueryExecutor, AbstractDataset dataset, double prefetchingFactor, int aggFactor, int dataReductionRatio) {
+        this(dataQueryExecutor, dataset, prefetchingFactor, aggFactor, dataReductionRatio, Long.MAX_VALUE, new LRUEvictionPolicy());
+    }
+
+    /**
+     * @param maxMemory the memory budget of the cache in bytes. When exceeded, spans are evicted.
+     * @param evictionPolicy the policy that selects which spans to evict
+     */
+    public MinMaxCache(QueryExecutor dataQueryExecutor, AbstractDataset dataset, double prefetchingFactor, int aggFactor, int dataReductionRatio,
+                       long maxMemory, EvictionPolicy evictionPolicy) {
+        this(dataQueryExecutor, dataset, prefetchingFactor, aggFactor, dataReductionRatio, maxMemory, evictionPolicy, StorageType.HEAP);
+    }
+
+    /**
+     * @param maxMemory the memory budget of the cache in bytes, including off-heap memory. When exceeded, spans are evicted.
+     * @param evictionPolicy the policy that selects which spans to evict
+     * @param storageType where the aggregates of the cached spans are stored
+     */
+    public MinMaxCache(QueryExecutor dataQueryExecutor, AbstractDataset dataset, double prefetchingFactor, int aggFactor, int dataReductionRatio,
+                       long maxMemory, EvictionPolicy evictionPolicy, StorageType storageType) {
+        this(dataQueryExecutor, dataset, prefetchingFactor, aggFactor, dataReductionRatio, maxMemory, evictionPolicy, storageType, 1);
+    }
+
+    /**
+     * @param maxMemory the memory budget of the cache in bytes, including off-heap memory. When exceeded, spans are evicted.
+     * @param evictionPolicy the policy that selects which spans to evict
+     * @param storageType where the aggregates of the cached spans are stored
+     * @param parallelism the number of threads that evaluate the measures of a query in parallel
+     */
+    public MinMaxCache(QueryExecutor dataQueryExecutor, AbstractDataset dataset, double prefetchingFactor, int aggFactor, int dataReductionRatio,
+                       long maxMemory, EvictionPolicy evictionPolicy, StorageType storageType, int parallelism) {
+        this(Collections.singletonList(dataQueryExecutor), dataset, prefetchingFactor, aggFactor, dataReductionRatio, maxMemory, evictionPolicy,
+                storageType, parallelism);
+    }
+
+    /**
+     * @param dataQueryExecutors the query executors of the connections to the data source.
+     *                           Missing data are fetched with concurrent sub-queries over all of them.
+     * @param maxMemory the memory budget of the cache in bytes, including off-heap memory. When exceeded, spans are evicted.
+     * @param evictionPolicy the policy that selects which spans to evict
+     * @param storageType where the aggregates of the cached spans are stored
+     * @param parallelism the number of threads that evaluate the measures of a query in parallel
+     */
+    public MinMaxCache(List<QueryExecutor> dataQueryExecutors, AbstractDataset dataset, double prefetchingFactor, int aggFactor, int dataReductionRatio,
+                       long maxMemory, EvictionPolicy evictionPolicy, StorageType storageType, int parallelism) {
+        this(dataQueryExecutors, dataset, prefetchingFactor, aggFactor, dataReductionRatio, maxMemory, evictionPolicy, storageType, parallelism, null);
+    }
+
+    /**
+     * @param dataQueryExecutors the query executors of the connections to the data source.
+     *                           Missing data are fetched with concurrent sub-queries over all of them.
+     * @param maxMemory the memory budget of the cache in bytes, including off-heap memory. When exceeded, spans are evicted.
+     * @param evictionPolicy the policy that selects which spans to evict
+     * @param storageType where the aggregates of the cached spans are stored
+     * @param parallelism the number of threads that evaluate the measures of a query in parallel
+     * @param spillTier the disk tier that evicted spans are spilled to, or null to drop them
+     */
+    public MinMaxCache(List<QueryExecutor> dataQueryExecutors, AbstractDataset dataset, double prefetchingFactor, int aggFactor, int dataReductionRatio,
+                       long maxMemory, EvictionPolicy evictionPolicy, StorageType storageType, int parallelism, DiskSpillTier spillTier) {
         // Constructor logic for MinMaxCache
-        cacheQueryExecutor = new CacheQueryExecutor(dataset, aggFactor);
-        cacheManager = new CacheManager(dataset.getMeasures());
-        dataProcessor = new DataProcessor(dataQueryExecutor, dataset, dataReductionRatio);
+        this.dataset = dataset;
+        metrics = new CacheMetrics(dataset.getTable() + " (" + dataQueryExecutors.get(0).getClass().getSimpleName() + ")");
+        metrics.registerMBean();
+        cacheQueryExecutor = new CacheQueryExecutor(dataset, aggFactor, parallelism);
+        cacheManager = new CacheManager(dataset.getMeasures(), maxMemory, evictionPolicy, spillTier, metrics);
+        dataProcessor = new DataProcessor(dataQueryExecutors, dataset, dataReductionRatio, storageType, metrics);
         prefetchManager = new PrefetchManager(dataset, prefetchingFactor, cacheManager, dataProcessor);
+        progressiveExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "progressive-" + dataset.getTable());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public QueryResults executeQuery(Query query) {
         return cacheQueryExecutor.executeQuery(query, cacheManager, dataProcessor, prefetchManager);
     }
 
+    /**
+     * Executes a query progressively. The results computed from the cached spans alone, with the error of each measure from the
+     * {@link ErrorCalculator}, are handed to the callback in the calling thread, before this returns and without waiting for the data source.
+     * The missing data are fetched in the background, and the returned future completes with the refined results.
+     * If nothing is missing, the callback receives the complete results, and the future is already completed with them.
+     *
+     * @param onCachedResults receives the results from the cached spans, e.g. to render a first frame
+     * @return the refined results, once the missing data are fetched
+     */
+    public CompletableFuture<QueryResults> executeQueryProgressively(Query query, Consumer<QueryResults> onCachedResults) {
+        CompletableFuture<QueryResults> cachedResults = new CompletableFuture<>();
+        CompletableFuture<QueryResults> refinedResults = CompletableFuture.supplyAsync(() ->
+                cacheQueryExecutor.executeQuery(query, cacheManager, dataProcessor, prefetchManager, cachedResults::complete), progressiveExecutor);
+        // If nothing was missing, or the query failed before its cached results, the outcome of the query is also the first one.
+        refinedResults.whenComplete((results, e) -> {
+            if (e != null) cachedResults.completeExceptionally(e);
+            else cachedResults.complete(results);
+        });
+        QueryResults firstResults;
+        try {
+            firstResults = cachedResults.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+        onCachedResults.accept(firstResults);
+        return refinedResults;
+    }
+
+    /**
+     * Plans a query against the current cache without executing it, e.g. to tune the costs of the {@link QueryPlanner}.
+     */
+    public QueryPlan explain(Query query) {
+        return cacheQueryExecutor.explain(query, cacheManager, dataProcessor);
+    }
+
+    public QueryPlanner getQueryPlanner() {
+        return dataProcessor.getQueryPlanner();
+    }
+
+    /**
+     * The metrics of this cache and its data source, which are also registered with JMX.
+     */
+    public CacheMetricsMXBean getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Reports the metrics of this cache periodically on a background thread, until the cache is shut down.
+     */
+    public synchronized void addMetricsReporter(MetricsReporter reporter, long period, TimeUnit unit) {
+        if (reporterExecutor == null) {
+            reporterExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-" + dataset.getTable());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        reporterExecutor.scheduleAtFixedRate(() -> {
+            try {
+                reporter.report(metrics);
+            } catch (RuntimeException e) {
+                LOG.warn("Metrics reporter {} failed", reporter, e);
+            }
+        }, period, period, unit);
+    }
+
+    public PrefetchManager getPrefetchManager() {
+        return prefetchManager;
+    }
+
+    /**
+     * Stops the background prefetching, the progressive queries, the parallel measure evaluation, the concurrent fetching
+     * and the metrics reporters of this cache, unregisters its metrics from JMX and deletes the files of its spill tier.
+     */
+    public synchronized void shutdown() {
+        if (reporterExecutor != null) reporterExecutor.shutdownNow();
+        metrics.unregisterMBean();
+        prefetchManager.shutdown();
+        progressiveExecutor.shutdownNow();
+        cacheQueryExecutor.shutdown();
+        dataProcessor.shutdown();
+        cacheManager.shutdown();
+    }
+
+    public void saveSnapshot(Path path) throws IOException {
+        saveSnapshot(path, "");
+    }
+
+    /**
+     * Writes the cached spans and the agg factors of the measures to a snapshot file, so that a restarted cache can be warmed up from it.
+     *
+     * @param version the version of the data of the dataset, e.g. a timestamp of its last update.
+     *                A snapshot is only restored for the same version.
+     */
+    public void saveSnapshot(Path path, String version) throws IOException {
+        List<TimeSeriesSpan> spans = cacheManager.getAllFromCache();
+        try {
+            CacheSnapshot.write(path, CacheSnapshot.datasetIdentity(dataset), CacheSnapshot.datasetVersion(dataset, version),
+                    cacheQueryExecutor.getAggFactors(), spans);
+        } finally {
+            spans.forEach(TimeSeriesSpan::release);
+        }
+    }
+
+    public boolean restoreSnapshot(Path path) throws IOException {
+        return restoreSnapshot(path, "");
+    }
+
+    /**
+     * Adds the spans of a snapshot file to the cache and restores the agg factors of the measures.
+     * The restored aggregate spans read the memory-mapped file and count towards the memory budget of the cache like any other span.
+     *
+     * @param version the version of the data of the dataset, which must match the version of the snapshot
+     * @return false if the snapshot was written for another dataset or version of the data, and was not restored
+     */
+    public boolean restoreSnapshot(Path path, String version) throws IOException {
+        CacheSnapshot snapshot = CacheSnapshot.read(path);
+        if (!snapshot.getDatasetIdentity().equals(CacheSnapshot.datasetIdentity(dataset))
+                || !snapshot.getDatasetVersion().equals(CacheSnapshot.datasetVersion(dataset, version))) {
+            LOG.warn("Ignoring cache snapshot {} of dataset {}, version {}", path, snapshot.getDatasetIdentity(), snapshot.getDatasetVersion());
+            snapshot.getSpans().forEach(TimeSeriesSpan::release);
+            return false;
+        }
+        cacheQueryExecutor.setAggFactors(snapshot.getAggFactors());
+        cacheManager.addToCache(snapshot.getSpans());
+        LOG.info("Restored {} cached spans from {}", snapshot.getSpans().size(), path);
+        return true;
+    }
+
     public long calculateDeepMemorySize() {
-        return 0;
+        return cacheManager.calculateDeepMemorySize();
+    }
+
+    CacheManager getCacheManager() {
+        return cacheManager;
     }
 }
 
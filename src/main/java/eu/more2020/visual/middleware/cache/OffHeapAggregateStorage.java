@@ -0,0 +1,180 @@
+package eu.more2020.visual.middleware.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores the aggregates in a direct buffer outside the Java heap.
+ * The 5 aggregates of every group are laid out as consecutive longs, followed by the int counts of all groups.
+ * <p>
+ * The memory is reference counted. The storage starts with a single reference, owned by its creator.
+ * It is freed as soon as the last reference is released, instead of waiting for the garbage collector to reclaim the buffer.
+ * Reading the storage after it is freed is not allowed.
+ */
+public class OffHeapAggregateStorage implements AggregateStorage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapAggregateStorage.class);
+
+    private static final int AGGREGATES_SIZE = 5 * Long.BYTES;
+
+    // sun.misc.Unsafe#invokeCleaner, used to free a direct buffer immediately. Null if not available.
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            LOG.warn("Direct buffers cannot be freed explicitly, off-heap memory will be freed by the garbage collector", e);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final int size;
+
+    private final int countsOffset;
+
+    private ByteBuffer buffer;
+
+    // False if the buffer is a region of memory owned by someone else, e.g. of a memory-mapped snapshot file, that must not be freed.
+    private final boolean owned;
+
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    public OffHeapAggregateStorage(int size) {
+        this.size = size;
+        this.countsOffset = size * AGGREGATES_SIZE;
+        this.buffer = ByteBuffer.allocateDirect(bytes(size)).order(ByteOrder.nativeOrder());
+        this.owned = true;
+    }
+
+    /**
+     * Wraps a region of memory that already holds the aggregates of size groups in the layout of this storage.
+     * The region is not freed by this storage.
+     * @param buffer a buffer of {@link #bytes(int)} bytes in the native byte order, starting at the region
+     */
+    OffHeapAggregateStorage(ByteBuffer buffer, int size) {
+        this.size = size;
+        this.countsOffset = size * AGGREGATES_SIZE;
+        this.buffer = buffer;
+        this.owned = false;
+    }
+
+    /**
+     * The number of bytes of the aggregates of the given number of groups.
+     */
+    static int bytes(int size) {
+        return size * (AGGREGATES_SIZE + Integer.BYTES);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getCount(int i) {
+        return buffer.getInt(countsOffset + i * Integer.BYTES);
+    }
+
+    @Override
+    public double getSum(int i) {
+        return buffer.getDouble(i * AGGREGATES_SIZE);
+    }
+
+    @Override
+    public double getMinValue(int i) {
+        return buffer.getDouble(i * AGGREGATES_SIZE + Long.BYTES);
+    }
+
+    @Override
+    public long getMinTimestamp(int i) {
+        return buffer.getLong(i * AGGREGATES_SIZE + 2 * Long.BYTES);
+    }
+
+    @Override
+    public double getMaxValue(int i) {
+        return buffer.getDouble(i * AGGREGATES_SIZE + 3 * Long.BYTES);
+    }
+
+    @Override
+    public long getMaxTimestamp(int i) {
+        return buffer.getLong(i * AGGREGATES_SIZE + 4 * Long.BYTES);
+    }
+
+    @Override
+    public void set(int i, int count, double sum, double minValue, long minTimestamp, double maxValue, long maxTimestamp) {
+        int offset = i * AGGREGATES_SIZE;
+        buffer.putInt(countsOffset + i * Integer.BYTES, count);
+        buffer.putDouble(offset, sum);
+        buffer.putDouble(offset + Long.BYTES, minValue);
+        buffer.putLong(offset + 2 * Long.BYTES, minTimestamp);
+        buffer.putDouble(offset + 3 * Long.BYTES, maxValue);
+        buffer.putLong(offset + 4 * Long.BYTES, maxTimestamp);
+    }
+
+    @Override
+    public AggregateStorage allocate(int size) {
+        return new OffHeapAggregateStorage(size);
+    }
+
+    @Override
+    public int[] getCounts() {
+        int[] counts = new int[size];
+        buffer.duplicate().order(ByteOrder.nativeOrder()).position(countsOffset).asIntBuffer().get(counts);
+        return counts;
+    }
+
+    @Override
+    public long calculateDeepMemorySize() {
+        // Object header, fields and the heap part of the direct buffer
+        final int HEAP_OVERHEAD = 128;
+        return HEAP_OVERHEAD + (long) bytes(size);
+    }
+
+    @Override
+    public void retain() {
+        int count;
+        do {
+            count = references.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Off-heap storage has already been freed");
+            }
+        } while (!references.compareAndSet(count, count + 1));
+    }
+
+    @Override
+    public void release() {
+        int count = references.decrementAndGet();
+        if (count == 0) {
+            free();
+        } else if (count < 0) {
+            LOG.warn("Off-heap storage released more times than retained");
+        }
+    }
+
+    private void free() {
+        ByteBuffer freed = buffer;
+        // Drop the reference to the freed memory, so that a read after free fails instead of reading freed memory.
+        buffer = null;
+        if (!owned || INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, freed);
+        } catch (Exception e) {
+            LOG.warn("Could not free off-heap storage", e);
+        }
+    }
+}
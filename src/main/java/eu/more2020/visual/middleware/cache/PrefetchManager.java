@@ -11,12 +11,34 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+/**
+ * Prefetches data around the interval of every query.
+ * Prefetching runs on a single background thread with a bounded queue, so queries return without waiting for it.
+ * A prefetch task that has not started when a newer query for the same measures arrives is cancelled, as it is superseded by the newer one.
+ * Queries for other measures, e.g. of other users, keep their own prefetch task, up to {@link #MAX_PENDING} waiting tasks,
+ * beyond which the oldest waiting one is dropped. Queries carry no user or session, so users that view the same measures
+ * do supersede each other's prefetching.
+ */
 public class PrefetchManager {
 
+    public enum PrefetchOutcome {
+        // Missing data were fetched and inserted in the cache.
+        COMPLETED,
+        // Everything in the prefetching interval was already cached.
+        CACHED,
+        // A newer query for the same measures arrived, or the queue was full, before the prefetch task started.
+        SUPERSEDED,
+        FAILED
+    }
+
     private final AbstractDataset dataset;
     private final DataProcessor dataProcessor;
     private final CacheManager cacheManager;
@@ -24,12 +46,95 @@ public class PrefetchManager {
 
     private static final Logger LOG = LoggerFactory.getLogger(MinMaxCache.class);
 
+    // The number of prefetch tasks that can wait for the background thread, for different measures.
+    static final int MAX_PENDING = 16;
+
+    private final ThreadPoolExecutor executor;
+
+    // The prefetch task of the latest query for every set of measures, if it has not completed yet.
+    private final Map<Set<Integer>, Future<?>> pendingPrefetches = new HashMap<>();
+
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong cachedCount = new AtomicLong();
+    private final AtomicLong supersededCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private volatile double lastPrefetchTime = 0;
+    private volatile PrefetchOutcome lastOutcome;
+
     public PrefetchManager(AbstractDataset dataset, double prefetchingFactor,
                            CacheManager cacheManager, DataProcessor dataProcessor) {
         this.prefetchingFactor = prefetchingFactor;
         this.cacheManager = cacheManager;
         this.dataProcessor = dataProcessor;
         this.dataset = dataset;
+        // One worker and room for a waiting task per set of measures. Superseded tasks are removed from the queue,
+        // and when it is full the oldest waiting task is cancelled to make room.
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_PENDING),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "prefetch-" + dataset.getTable());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, executor) -> {
+                    if (executor.isShutdown()) return;
+                    Runnable oldest = executor.getQueue().poll();
+                    if (oldest instanceof Future && ((Future<?>) oldest).cancel(false)) {
+                        supersededCount.incrementAndGet();
+                        lastOutcome = PrefetchOutcome.SUPERSEDED;
+                    }
+                    executor.execute(runnable);
+                });
+    }
+
+    /**
+     * Schedules prefetching around the given query on the background thread and returns immediately.
+     * Any prefetch task of a previous query for the same measures that has not started yet is cancelled.
+     */
+    public synchronized void prefetchAsync(Query query, Map<Integer, Integer> aggFactors) {
+        if (prefetchingFactor == 0) return;
+        Set<Integer> measures = new HashSet<>(query.getMeasures());
+        Future<?> pendingPrefetch = pendingPrefetches.remove(measures);
+        if (pendingPrefetch != null && pendingPrefetch.cancel(false)) {
+            executor.remove((Runnable) pendingPrefetch);
+            supersededCount.incrementAndGet();
+            lastOutcome = PrefetchOutcome.SUPERSEDED;
+        }
+        pendingPrefetches.values().removeIf(Future::isDone);
+        Map<Integer, Integer> prefetchAggFactors = new HashMap<>(aggFactors);
+        pendingPrefetch = executor.submit(() -> {
+            long start = System.nanoTime();
+            PrefetchOutcome outcome;
+            try {
+                outcome = prefetch(query, prefetchAggFactors) ? PrefetchOutcome.COMPLETED : PrefetchOutcome.CACHED;
+            } catch (RuntimeException e) {
+                LOG.error("Prefetching for {} failed", query, e);
+                outcome = PrefetchOutcome.FAILED;
+            }
+            long nanos = System.nanoTime() - start;
+            lastPrefetchTime = nanos / Math.pow(10d, 9);
+            dataProcessor.getMetrics().recordPrefetch(nanos);
+            lastOutcome = outcome;
+            switch (outcome) {
+                case COMPLETED:
+                    completedCount.incrementAndGet();
+                    break;
+                case CACHED:
+                    cachedCount.incrementAndGet();
+                    break;
+                default:
+                    failedCount.incrementAndGet();
+            }
+            LOG.info("Prefetching finished: {} in {} sec", outcome, lastPrefetchTime);
+        });
+        pendingPrefetches.put(measures, pendingPrefetch);
+    }
+
+    /**
+     * Stops the background prefetching thread. Pending prefetch tasks are dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
     }
 
     long[] extendInterval(long from, long to, double factor){
@@ -41,8 +146,12 @@ public class PrefetchManager {
         return new long[]{newFrom, newTo};
     }
 
-    public void prefetch(Query query, Map<Integer, Integer> aggFactors){
-        if(prefetchingFactor == 0) return;
+    /**
+     * Prefetches the missing data around the given query, in the calling thread.
+     * @return true if data were fetched from the data source, false if the prefetching interval was already cached.
+     */
+    public boolean prefetch(Query query, Map<Integer, Integer> aggFactors){
+        if(prefetchingFactor == 0) return false;
         // Setup prefetching range
         long[] prefetchingInterval = extendInterval(query.getFrom(), query.getTo(), prefetchingFactor);
         long prefetchingFrom = prefetchingInterval[0];
@@ -86,16 +195,48 @@ public class PrefetchManager {
             ErrorCalculator errorCalculator = new ErrorCalculator();
             errorCalculator.calculateTotalError(pixelColumns, viewPort, pixelColumnInterval, prefetchQuery.getAccuracy());
             List<TimeInterval> missingIntervalsForMeasure = errorCalculator.getMissingIntervals();
+            overlappingSpans.forEach(TimeSeriesSpan::release);
             if(!missingIntervalsForMeasure.isEmpty())
                 missingIntervalsPerMeasure.put(measure, missingIntervalsForMeasure);
         }
         LOG.info("Prefetching: {}", missingIntervalsPerMeasure);
-        if(missingIntervalsPerMeasure.isEmpty()) return;
+        if(missingIntervalsPerMeasure.isEmpty()) return false;
         Map<Integer, List<TimeSeriesSpan>> missingTimeSeriesSpanPerMeasure =
                 dataProcessor.getMissing(from, to, missingIntervalsPerMeasure, aggFactors, viewPort, queryMethod);
+        dataProcessor.getMetrics().recordPrefetched(missingIntervalsPerMeasure);
+        long insertStart = System.nanoTime();
         for(int measureWithMiss : missingTimeSeriesSpanPerMeasure.keySet()) {
             cacheManager.addToCache(missingTimeSeriesSpanPerMeasure.get(measureWithMiss));
         }
+        dataProcessor.getMetrics().spanBuildLatency().recordSince(insertStart);
         LOG.info("Inserted new time series spans into interval tree");
+        return true;
+    }
+
+    /**
+     * The duration in seconds of the latest prefetch task that ran.
+     */
+    public double getLastPrefetchTime() {
+        return lastPrefetchTime;
+    }
+
+    public PrefetchOutcome getLastOutcome() {
+        return lastOutcome;
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public long getCachedCount() {
+        return cachedCount.get();
+    }
+
+    public long getSupersededCount() {
+        return supersededCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
     }
 }
@@ -0,0 +1,83 @@
+package eu.more2020.visual.middleware.cache;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Base class for eviction policies that assign a numeric priority to every span and evict the span with the lowest one.
+ * Ties are broken in favor of evicting the span that was inserted or accessed first.
+ */
+public abstract class PriorityEvictionPolicy implements EvictionPolicy {
+
+    private final Map<TimeSeriesSpan, Entry> entries = new HashMap<>();
+
+    private final TreeSet<Entry> queue = new TreeSet<>(Comparator.comparingDouble((Entry e) -> e.priority)
+            .thenComparingLong(e -> e.sequence));
+
+    private long sequence = 0;
+
+    /**
+     * Computes the priority of a span, when it is inserted in the cache.
+     */
+    protected abstract double insertPriority(TimeSeriesSpan span);
+
+    /**
+     * Computes the new priority of a span, when it is accessed.
+     * @param span the accessed span
+     * @param priority the current priority of the span
+     */
+    protected abstract double accessPriority(TimeSeriesSpan span, double priority);
+
+    /**
+     * Hook called with the priority of every evicted span.
+     */
+    protected void onEvict(double priority) {
+    }
+
+    @Override
+    public void onInsert(TimeSeriesSpan span) {
+        onRemove(span);
+        Entry entry = new Entry(span, insertPriority(span), sequence++);
+        entries.put(span, entry);
+        queue.add(entry);
+    }
+
+    @Override
+    public void onAccess(TimeSeriesSpan span) {
+        Entry entry = entries.get(span);
+        if (entry == null) return;
+        queue.remove(entry);
+        entry.priority = accessPriority(span, entry.priority);
+        entry.sequence = sequence++;
+        queue.add(entry);
+    }
+
+    @Override
+    public void onRemove(TimeSeriesSpan span) {
+        Entry entry = entries.remove(span);
+        if (entry != null) queue.remove(entry);
+    }
+
+    @Override
+    public TimeSeriesSpan evict() {
+        Entry entry = queue.pollFirst();
+        if (entry == null) return null;
+        entries.remove(entry.span);
+        onEvict(entry.priority);
+        return entry.span;
+    }
+
+    private static class Entry {
+        private final TimeSeriesSpan span;
+        private double priority;
+        private long sequence;
+
+        private Entry(TimeSeriesSpan span, double priority, long sequence) {
+            this.span = span;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package eu.more2020.visual.middleware.cache;
+
+import eu.more2020.visual.middleware.domain.TimeInterval;
+import eu.more2020.visual.middleware.util.DateTimeUtil;
+
+import java.util.*;
+
+/**
+ * The plan of a query, with the way the data of each measure are obtained and the candidate plans that were considered for it.
+ * Its string form is the explain-plan output.
+ */
+public class QueryPlan {
+
+    public enum Method {
+        // The cached spans are accurate enough and nothing is fetched.
+        CACHE,
+        // Min-max aggregates of the fetched intervals, cached for later queries.
+        MIN_MAX,
+        // The raw data points of the fetched intervals, cached in raw spans for later queries.
+        RAW,
+        // An M4 query over the whole range, whose results are not cached.
+        M4
+    }
+
+    private final long from;
+    private final long to;
+    private final double accuracy;
+    private final Map<Integer, MeasurePlan> measurePlans = new LinkedHashMap<>();
+
+    QueryPlan(long from, long to, double accuracy) {
+        this.from = from;
+        this.to = to;
+        this.accuracy = accuracy;
+    }
+
+    void add(MeasurePlan measurePlan) {
+        measurePlans.put(measurePlan.getMeasure(), measurePlan);
+    }
+
+    public MeasurePlan get(int measure) {
+        return measurePlans.get(measure);
+    }
+
+    public Collection<MeasurePlan> getMeasurePlans() {
+        return measurePlans.values();
+    }
+
+    /**
+     * The measures whose chosen plan uses the given method, in the order of the query.
+     */
+    public List<Integer> getMeasures(Method method) {
+        List<Integer> measures = new ArrayList<>();
+        for (MeasurePlan measurePlan : measurePlans.values()) {
+            if (measurePlan.getChosen().getMethod() == method) measures.add(measurePlan.getMeasure());
+        }
+        return measures;
+    }
+
+    /**
+     * Describes the chosen plan of every measure, with the estimates of all its candidate plans.
+     */
+    public String explain() {
+        StringBuilder explain = new StringBuilder();
+        explain.append("Query plan for ").append(DateTimeUtil.format(from)).append(" - ").append(DateTimeUtil.format(to))
+                .append(" with accuracy ").append(accuracy);
+        for (MeasurePlan measurePlan : measurePlans.values()) {
+            explain.append(System.lineSeparator()).append(measurePlan);
+            for (Candidate candidate : measurePlan.getCandidates()) {
+                explain.append(System.lineSeparator())
+                        .append(candidate == measurePlan.getChosen() ? "  * " : "    ")
+                        .append(candidate)
+                        .append(candidate.getExpectedError() > 1 - accuracy ? " (not accurate enough)" : "");
+            }
+        }
+        return explain.toString();
+    }
+
+    @Override
+    public String toString() {
+        return explain();
+    }
+
+    public static class MeasurePlan {
+        private final int measure;
+        private final double cachedError;
+        private final double coverage;
+        private final List<Candidate> candidates;
+        private final Candidate chosen;
+
+        MeasurePlan(int measure, double cachedError, double coverage, List<Candidate> candidates, Candidate chosen) {
+            this.measure = measure;
+            this.cachedError = cachedError;
+            this.coverage = coverage;
+            this.candidates = candidates;
+            this.chosen = chosen;
+        }
+
+        public int getMeasure() {
+            return measure;
+        }
+
+        /**
+         * The error of the cached spans over the part of the query they cover, or NaN if they cover none of it.
+         */
+        public double getCachedError() {
+            return cachedError;
+        }
+
+        /**
+         * The fraction of the query range that is covered by the cached spans.
+         */
+        public double getCoverage() {
+            return coverage;
+        }
+
+        public List<Candidate> getCandidates() {
+            return candidates;
+        }
+
+        public Candidate getChosen() {
+            return chosen;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Measure %d: cached error %.4f over %.1f%% of the range", measure, cachedError, coverage * 100);
+        }
+    }
+
+    public static class Candidate {
+        private final Method method;
+        private final List<TimeInterval> intervals;
+        private final int aggFactor;
+        private final long rowsScanned;
+        private final long bytesTransferred;
+        private final double expectedError;
+        private final double cost;
+        // The part of the query range that is fetched, and the error of the cached spans that are kept for the rest of it.
+        final double fetchedFraction;
+        final double keptError;
+
+        Candidate(Method method, List<TimeInterval> intervals, int aggFactor, long rowsScanned, long bytesTransferred,
+                  double expectedError, double cost, double fetchedFraction, double keptError) {
+            this.method = method;
+            this.intervals = intervals;
+            this.aggFactor = aggFactor;
+            this.rowsScanned = rowsScanned;
+            this.bytesTransferred = bytesTransferred;
+            this.expectedError = expectedError;
+            this.cost = cost;
+            this.fetchedFraction = fetchedFraction;
+            this.keptError = keptError;
+        }
+
+        public Method getMethod() {
+            return method;
+        }
+
+        /**
+         * The intervals that are fetched from the data source.
+         */
+        public List<TimeInterval> getIntervals() {
+            return intervals;
+        }
+
+        /**
+         * The number of groups per pixel column that are fetched, or the agg factor of the cached spans if nothing is aggregated.
+         */
+        public int getAggFactor() {
+            return aggFactor;
+        }
+
+        public long getRowsScanned() {
+            return rowsScanned;
+        }
+
+        public long getBytesTransferred() {
+            return bytesTransferred;
+        }
+
+        public double getExpectedError() {
+            return expectedError;
+        }
+
+        public double getCost() {
+            return cost;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s agg factor %d over %d intervals: %d rows scanned, %d bytes transferred, error %.4f, cost %.0f",
+                    method, aggFactor, intervals.size(), rowsScanned, bytesTransferred, expectedError, cost);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package eu.more2020.visual.middleware.cache;
+
+import eu.more2020.visual.middleware.cache.QueryPlan.Candidate;
+import eu.more2020.visual.middleware.cache.QueryPlan.MeasurePlan;
+import eu.more2020.visual.middleware.cache.QueryPlan.Method;
+import eu.more2020.visual.middleware.domain.TimeInterval;
+import eu.more2020.visual.middleware.domain.TimeRange;
+import eu.more2020.visual.middleware.domain.ViewPort;
+import eu.more2020.visual.middleware.domain.Dataset.AbstractDataset;
+import eu.more2020.visual.middleware.util.DateTimeUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses how the data of each measure of a query are obtained: from the cache alone, with min-max aggregates of the missing
+ * or of all the data, with the raw data, or with an M4 query.
+ * The cost of each candidate plan is estimated from the rows it scans and the bytes it transfers, and the cheapest plan that is expected
+ * to meet the accuracy of the query is chosen.
+ * The rows are estimated from the density of every measure, learned from the counts of the fetched aggregates.
+ * The error of min-max aggregates is expected to fall in inverse proportion to the number of groups per pixel column,
+ * with a constant per measure that is learned from the errors of the queries.
+ */
+public class QueryPlanner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryPlanner.class);
+
+    // The approximate size of a result row: the measure, the group and its min and max for a min-max query, a timestamp more for M4,
+    // and a timestamp and a value for raw data.
+    static final int MIN_MAX_ROW_BYTES = 32;
+    static final int M4_ROW_BYTES = 40;
+    static final int RAW_ROW_BYTES = 16;
+    // An M4 query returns the first, last, min and max row of every pixel column.
+    static final int M4_ROWS_PER_COLUMN = 4;
+    // With fewer groups per pixel column, most groups overlap two columns, so the error does not follow the model.
+    private static final int MIN_AGG_FACTOR = 2;
+    // The weight of a new observation of the error constant of a measure.
+    private static final double SMOOTHING = 0.5;
+
+    private final AbstractDataset dataset;
+    private final boolean m4Supported;
+
+    private volatile double scanCostPerRow = 1;
+    private volatile double transferCostPerByte = 0.25;
+
+    // The number of raw data points and the duration they were counted over, per measure.
+    private final Map<Integer, long[]> densities = new ConcurrentHashMap<>();
+    // The error of min-max aggregates times their number of groups per pixel column, per measure.
+    private final Map<Integer, Double> errorConstants = new ConcurrentHashMap<>();
+
+    /**
+     * @param m4Supported whether the query executor of the dataset can run M4 queries
+     */
+    public QueryPlanner(AbstractDataset dataset, boolean m4Supported) {
+        this.dataset = dataset;
+        this.m4Supported = m4Supported;
+    }
+
+    /**
+     * Sets the relative costs of scanning a row in the data source and of transferring a byte of the results.
+     */
+    public void setCosts(double scanCostPerRow, double transferCostPerByte) {
+        this.scanCostPerRow = scanCostPerRow;
+        this.transferCostPerByte = transferCostPerByte;
+    }
+
+    /**
+     * Plans the data of a measure, after its cached spans have been evaluated.
+     *
+     * @param cachedError the error of the cached spans, or NaN if they cover no pixel column
+     * @param cachedHasError whether the cached spans are not accurate enough where they cover the query
+     * @param missingIntervals the intervals that the cached spans do not cover
+     * @param aggFactor the agg factor of the cached spans
+     * @param initialAggFactor the agg factor that is expected to meet the accuracy before any error is observed
+     * @param learn whether to learn the error constant of the measure from the cached spans. False when only explaining a query,
+     *              so that asking for a plan does not change the plans of later queries.
+     */
+    MeasurePlan plan(int measure, long from, long to, ViewPort viewPort, double accuracy, double cachedError, boolean cachedHasError,
+                     List<TimeInterval> missingIntervals, int aggFactor, int initialAggFactor, boolean learn) {
+        double maxError = 1 - accuracy;
+        long range = to - from;
+        int width = viewPort.getWidth();
+        long missing = 0;
+        for (TimeInterval missingInterval : missingIntervals) {
+            missing += Math.min(to, missingInterval.getTo()) - Math.max(from, missingInterval.getFrom());
+        }
+        double coverage = Double.isNaN(cachedError) ? 0 : 1 - (double) missing / range;
+        // The cached spans show how far the error is from that of their agg factor.
+        if (learn && cachedHasError && aggFactor > 0) observe(measure, cachedError * aggFactor);
+        double errorConstant = errorConstants.getOrDefault(measure, maxError * initialAggFactor);
+
+        List<Candidate> candidates = new ArrayList<>();
+        if (missing == 0 && !cachedHasError) {
+            candidates.add(new Candidate(Method.CACHE, Collections.emptyList(), aggFactor, 0, 0, cachedError, 0, 0, cachedError));
+        }
+        else {
+            // Unless the cached spans are not accurate enough, only the missing intervals are fetched, and the error of the cached part is kept.
+            boolean partial = !cachedHasError;
+            List<TimeInterval> intervals = partial ? missingIntervals : Collections.singletonList(new TimeRange(from, to));
+            double fetchedFraction = partial ? (double) missing / range : 1;
+            double keptError = partial && coverage > 0 ? coverage * cachedError : 0;
+            long fetchedRows = estimateRows(measure, (long) (fetchedFraction * range));
+            int samples = DateTimeUtil.numberOfIntervals(from, to, dataset.getSamplingInterval().toMillis());
+
+            // The fetched aggregates are cached for later queries that may only see them, so they must meet the accuracy by themselves.
+            int requiredAggFactor = maxError > 0 ? (int) Math.min(Integer.MAX_VALUE, Math.ceil(errorConstant / maxError)) : Integer.MAX_VALUE;
+            int minMaxAggFactor = Math.max(MIN_AGG_FACTOR, requiredAggFactor);
+            if ((long) minMaxAggFactor * width < samples) {
+                long rows = Math.min(fetchedRows, (long) (fetchedFraction * minMaxAggFactor * width));
+                candidates.add(candidate(Method.MIN_MAX, intervals, minMaxAggFactor, fetchedRows, rows * MIN_MAX_ROW_BYTES,
+                        keptError + fetchedFraction * errorConstant / minMaxAggFactor, fetchedFraction, keptError));
+            }
+            int rawAggFactor = Math.max(1, (samples + width - 1) / width);
+            candidates.add(candidate(Method.RAW, intervals, rawAggFactor, fetchedRows, fetchedRows * RAW_ROW_BYTES,
+                    keptError, fetchedFraction, keptError));
+            // The results of M4 are not cached, so it is only considered when the cached spans are not accurate enough
+            // and the whole range is fetched anyway, and it costs twice as much, as a later query over the range pays for it again.
+            if (m4Supported && cachedHasError) {
+                long rows = estimateRows(measure, range);
+                long bytes = Math.min(rows, (long) M4_ROWS_PER_COLUMN * width) * M4_ROW_BYTES;
+                double cost = 2 * (rows * scanCostPerRow + bytes * transferCostPerByte);
+                candidates.add(new Candidate(Method.M4, Collections.singletonList(new TimeRange(from, to)), aggFactor, rows, bytes, 0, cost, 1, 0));
+            }
+        }
+        Candidate chosen = null;
+        for (Candidate candidate : candidates) {
+            if (candidate.getExpectedError() > maxError) continue;
+            if (chosen == null || candidate.getCost() < chosen.getCost()
+                    || (candidate.getCost() == chosen.getCost() && candidate.getExpectedError() < chosen.getExpectedError())) chosen = candidate;
+        }
+        // The raw data meet any accuracy the kept cached spans allow, so this only happens if the model is off.
+        if (chosen == null) chosen = candidates.get(candidates.size() - 1);
+        return new MeasurePlan(measure, cachedError, coverage, candidates, chosen);
+    }
+
+    private Candidate candidate(Method method, List<TimeInterval> intervals, int aggFactor, long rowsScanned, long bytesTransferred,
+                                double expectedError, double fetchedFraction, double keptError) {
+        double cost = rowsScanned * scanCostPerRow + bytesTransferred * transferCostPerByte;
+        return new Candidate(method, intervals, aggFactor, rowsScanned, bytesTransferred, expectedError, cost, fetchedFraction, keptError);
+    }
+
+    /**
+     * The number of groups to fetch for the range with the given agg factor. A group is never shorter than the sampling interval,
+     * so an agg factor beyond it fetches the raw data.
+     */
+    int getNumberOfGroups(long from, long to, int aggFactor, ViewPort viewPort) {
+        int samples = DateTimeUtil.numberOfIntervals(from, to, dataset.getSamplingInterval().toMillis());
+        return (int) Math.max(1, Math.min((long) aggFactor * viewPort.getWidth(), samples));
+    }
+
+    /**
+     * Learns the density of a measure from the counts of its fetched spans.
+     */
+    void observe(int measure, List<TimeSeriesSpan> spans) {
+        long count = 0;
+        long duration = 0;
+        for (TimeSeriesSpan span : spans) {
+            if (span instanceof AggregateTimeSeriesSpan) count += ((AggregateTimeSeriesSpan) span).getTotalCount();
+            else count += ((RawTimeSeriesSpan) span).getCount();
+            duration += span.getTo() - span.getFrom();
+        }
+        if (duration == 0) return;
+        long finalCount = count, finalDuration = duration;
+        densities.merge(measure, new long[]{count, duration}, (d, n) -> new long[]{d[0] + finalCount, d[1] + finalDuration});
+    }
+
+    /**
+     * Learns the error constant of a measure from the error of a query after its planned data were fetched.
+     */
+    void observe(MeasurePlan measurePlan, double error) {
+        Candidate chosen = measurePlan.getChosen();
+        if (chosen.getMethod() != Method.MIN_MAX || Double.isNaN(error) || chosen.fetchedFraction == 0) return;
+        double fetchedError = Math.max(0, error - chosen.keptError) / chosen.fetchedFraction;
+        observe(measurePlan.getMeasure(), fetchedError * chosen.getAggFactor());
+    }
+
+    private void observe(int measure, double errorConstant) {
+        double updated = errorConstants.merge(measure, errorConstant, (previous, observed) -> (1 - SMOOTHING) * previous + SMOOTHING * observed);
+        LOG.debug("Error constant of measure {}: {}", measure, updated);
+    }
+
+    private long estimateRows(int measure, long duration) {
+        long[] density = densities.get(measure);
+        if (density == null) return duration / Math.max(1, dataset.getSamplingInterval().toMillis());
+        return (long) ((double) density[0] / density[1] * duration);
+    }
+}
@@ -12,10 +12,18 @@ import java.util.*;
 /**
  * A {@link DataPoints} implementation that stores  a series of consecutive
  * raw data points.
+ * <p>
+ * The data points are either kept in two primitive arrays, or compressed in blocks of {@link #BLOCK_SIZE} points.
+ * In a compressed block, the timestamps are delta-of-delta encoded and the values XOR encoded as in Facebook's Gorilla,
+ * or delta encoded as scaled integers when they have only a few decimal digits.
+ * The first timestamp of every block is kept uncompressed, so that a timestamp is looked up with a binary search
+ * over the blocks followed by one within a single decoded block.
  */
 public class RawTimeSeriesSpan implements TimeSeriesSpan {
     private static final Logger LOG = LoggerFactory.getLogger(RawTimeSeriesSpan.class);
 
+    static final int BLOCK_SIZE = 128;
+
     int count = 0;
     /**
      * The raw datapoint values.
@@ -39,27 +47,45 @@ public class RawTimeSeriesSpan implements TimeSeriesSpan {
      */
     private int measure;
 
+    // The first timestamp of every compressed block, or null if the span is not compressed.
+    private long[] blockTimestamps;
+
+    // The compressed blocks of data points, or null if the span is not compressed.
+    private long[][] blocks;
+
     public RawTimeSeriesSpan(long from, long to, int measure) {
         this.from = from;
         this.to = to;
         this.measure = measure;
     }
 
+    RawTimeSeriesSpan(long from, long to, int measure, long[] timestamps, double[] values) {
+        this(from, to, measure);
+        this.timestamps = timestamps;
+        this.values = values;
+        this.count = timestamps.length;
+    }
+
+    private RawTimeSeriesSpan(long from, long to, int measure, int count, long[] blockTimestamps, long[][] blocks) {
+        this(from, to, measure);
+        this.count = count;
+        this.blockTimestamps = blockTimestamps;
+        this.blocks = blocks;
+    }
+
     /**
      * @param dataPoints
      */
 
 
     public void build(List<DataPoint> dataPoints) {
-        ArrayList<Double> valuesList = new ArrayList<>();
-        ArrayList<Long> timestampsList = new ArrayList<>();
+        values = new double[dataPoints.size()];
+        timestamps = new long[dataPoints.size()];
         for (DataPoint dataPoint : dataPoints) {
-            timestampsList.add(dataPoint.getTimestamp());
-            valuesList.add(dataPoint.getValue());
+            timestamps[count] = dataPoint.getTimestamp();
+            values[count] = dataPoint.getValue();
             count ++;
         }
-        values = valuesList.stream().mapToDouble(Double::doubleValue).toArray();
-        timestamps = timestampsList.stream().mapToLong(Long::longValue).toArray();
     }
 
 
@@ -70,12 +96,84 @@ public class RawTimeSeriesSpan implements TimeSeriesSpan {
      * @return A positive index.
      */
     private int getIndex(final long timestamp) {
-        int index = Arrays.binarySearch(timestamps, timestamp);
-        if (index < 0) {
-            // If not exact match, convert negative index to insertion point
-            index = -(index + 1);
+        if (blocks == null) return insertionPoint(Arrays.binarySearch(timestamps, timestamp));
+        int block = Arrays.binarySearch(blockTimestamps, timestamp);
+        if (block >= 0) return block * BLOCK_SIZE;
+        block = -(block + 1) - 1;
+        if (block < 0) return 0;
+        long[] decodedTimestamps = new long[BLOCK_SIZE];
+        int blockLength = decodeTimestamps(block, decodedTimestamps);
+        return block * BLOCK_SIZE + insertionPoint(Arrays.binarySearch(decodedTimestamps, 0, blockLength, timestamp));
+    }
+
+    private static int insertionPoint(int index) {
+        // If not exact match, convert negative index to insertion point
+        return index < 0 ? -(index + 1) : index;
+    }
+
+    /**
+     * Decodes the timestamps of a compressed block.
+     *
+     * @return the number of data points in the block
+     */
+    private int decodeTimestamps(int block, long[] decodedTimestamps) {
+        return decodeBlock(block, decodedTimestamps, null);
+    }
+
+    /**
+     * Decodes the timestamps and the raw bits of the values of a compressed block. The values are not decoded if decodedValues is null.
+     *
+     * @return the number of data points in the block
+     */
+    private int decodeBlock(int block, long[] decodedTimestamps, long[] decodedValues) {
+        int blockLength = Math.min(BLOCK_SIZE, count - block * BLOCK_SIZE);
+        BitReader reader = new BitReader(blocks[block]);
+        long timestamp = blockTimestamps[block];
+        long delta = 0;
+        decodedTimestamps[0] = timestamp;
+        for (int i = 1; i < blockLength; i++) {
+            delta += reader.readSigned();
+            timestamp += delta;
+            decodedTimestamps[i] = timestamp;
+        }
+        if (decodedValues != null) reader.readDoubles(decodedValues, null, blockLength);
+        return blockLength;
+    }
+
+    /**
+     * Encodes a block of data points, with the first timestamp kept apart in the block index.
+     */
+    private static long[] encodeBlock(long[] timestamps, long[] values, int blockLength) {
+        BitWriter writer = new BitWriter();
+        long previousDelta = 0;
+        for (int i = 1; i < blockLength; i++) {
+            long delta = timestamps[i] - timestamps[i - 1];
+            writer.writeSigned(delta - previousDelta);
+            previousDelta = delta;
+        }
+        writer.writeDoubles(values, null, blockLength);
+        return writer.toArray();
+    }
+
+    public boolean isCompressed() {
+        return blocks != null;
+    }
+
+    /**
+     * Copies the data points of this span in the range [from, to) to a new span over the part of the range that this span covers.
+     * The new span is compressed if this one is.
+     *
+     * @param queryFrom The start timestamp of the range to copy.
+     * @param queryTo The end timestamp of the range to copy (not included).
+     * @return a new span with the data points in the range
+     */
+    public RawTimeSeriesSpan slice(long queryFrom, long queryTo) {
+        Builder builder = new Builder(Math.max(from, queryFrom), Math.min(to, queryTo), measure, isCompressed());
+        Points points = new Points();
+        for (int i = getIndex(queryFrom), end = getIndex(queryTo); i < end; i++) {
+            builder.add(points.timestamp(i), points.value(i));
         }
-        return index;
+        return builder.build();
     }
 
     public TimeRange getTimeRange() {
@@ -91,6 +189,11 @@ public class RawTimeSeriesSpan implements TimeSeriesSpan {
         return new RawTimeSeriesSpanIterator(queryStartTimestamp, queryEndTimestamp);
     }
 
+    @Override
+    public TimeSeriesSpanCursor cursor(long queryStartTimestamp, long queryEndTimestamp) {
+        return new RawTimeSeriesSpanCursor(queryStartTimestamp, queryEndTimestamp);
+    }
+
     @Override
     public int[] getCounts() {
         return new int[0];
@@ -140,6 +243,25 @@ public class RawTimeSeriesSpan implements TimeSeriesSpan {
         return getFromDate() + " - " + getToDate();
     }
 
+    long[] getTimestamps() {
+        if (blocks == null) return timestamps;
+        long[] allTimestamps = new long[count];
+        long[] decodedTimestamps = new long[BLOCK_SIZE];
+        for (int block = 0; block < blocks.length; block++) {
+            int blockLength = decodeTimestamps(block, decodedTimestamps);
+            System.arraycopy(decodedTimestamps, 0, allTimestamps, block * BLOCK_SIZE, blockLength);
+        }
+        return allTimestamps;
+    }
+
+    double[] getValues() {
+        if (blocks == null) return values;
+        double[] allValues = new double[count];
+        Points points = new Points();
+        for (int i = 0; i < count; i++) allValues[i] = points.value(i);
+        return allValues;
+    }
+
     public int getCount() {
         return count;
     }
@@ -164,6 +286,13 @@ public class RawTimeSeriesSpan implements TimeSeriesSpan {
         final int REF_SIZE = 4;
 
 
+        if (blocks != null) {
+            long blocksMemory = REF_SIZE + ARRAY_OVERHEAD + (long) blocks.length * REF_SIZE;
+            for (long[] block : blocks) blocksMemory += ARRAY_OVERHEAD + (long) block.length * LONG_SIZE;
+            long blockTimestampsMemory = REF_SIZE + ARRAY_OVERHEAD + (long) blockTimestamps.length * LONG_SIZE;
+            return REF_SIZE + OBJECT_OVERHEAD + blocksMemory + blockTimestampsMemory;
+        }
+
         long valuesByMeasureMemory = REF_SIZE + ARRAY_OVERHEAD + (values.length * DOUBLE_SIZE);
 
         long timestampsMemory = REF_SIZE + ARRAY_OVERHEAD + (timestamps.length * LONG_SIZE);
@@ -179,10 +308,107 @@ public class RawTimeSeriesSpan implements TimeSeriesSpan {
         return measure;
     }
 
+    /**
+     * Reads the data points by index, decoding one compressed block at a time.
+     */
+    private class Points {
+
+        private final long[] decodedTimestamps;
+
+        private final long[] decodedValues;
+
+        private int block = -1;
+
+        private Points() {
+            decodedTimestamps = blocks == null ? null : new long[BLOCK_SIZE];
+            decodedValues = blocks == null ? null : new long[BLOCK_SIZE];
+        }
+
+        long timestamp(int i) {
+            if (blocks == null) return timestamps[i];
+            return decodedTimestamps[seek(i)];
+        }
+
+        double value(int i) {
+            if (blocks == null) return values[i];
+            return Double.longBitsToDouble(decodedValues[seek(i)]);
+        }
+
+        private int seek(int i) {
+            if (i / BLOCK_SIZE != block) {
+                block = i / BLOCK_SIZE;
+                decodeBlock(block, decodedTimestamps, decodedValues);
+            }
+            return i % BLOCK_SIZE;
+        }
+    }
+
+    private class RawTimeSeriesSpanCursor implements TimeSeriesSpanCursor {
+        private final int endIndex;
+        private int currentIndex;
+        private final Points points = new Points();
+
+        public RawTimeSeriesSpanCursor(long queryStartTimestamp, long queryEndTimestamp) {
+            currentIndex = getIndex(queryStartTimestamp) - 1;
+            endIndex = getIndex(queryEndTimestamp);
+        }
+
+        @Override
+        public boolean advance() {
+            return ++currentIndex < endIndex;
+        }
+
+        @Override
+        public int measure() {
+            return measure;
+        }
+
+        @Override
+        public long from() {
+            return points.timestamp(currentIndex);
+        }
+
+        @Override
+        public long to() {
+            return points.timestamp(currentIndex) + 1;
+        }
+
+        @Override
+        public int count() {
+            return 1;
+        }
+
+        @Override
+        public double sum() {
+            return points.value(currentIndex);
+        }
+
+        @Override
+        public double minValue() {
+            return points.value(currentIndex);
+        }
+
+        @Override
+        public long minTs() {
+            return points.timestamp(currentIndex);
+        }
+
+        @Override
+        public double maxValue() {
+            return points.value(currentIndex);
+        }
+
+        @Override
+        public long maxTs() {
+            return points.timestamp(currentIndex);
+        }
+    }
+
     private class RawTimeSeriesSpanIterator implements Iterator<DataPoint> {
         private int startIndex;
         private int endIndex;
         private int currentIndex;
+        private final Points points = new Points();
 
         public RawTimeSeriesSpanIterator(long queryStartTimestamp, long queryEndTimestamp) {
             startIndex = getIndex(queryStartTimestamp);
@@ -201,8 +427,8 @@ public class RawTimeSeriesSpan implements TimeSeriesSpan {
                 throw new NoSuchElementException();
             }
 
-            final long timestamp = timestamps[currentIndex];
-            final double value = values[currentIndex];
+            final long timestamp = points.timestamp(currentIndex);
+            final double value = points.value(currentIndex);
             currentIndex++;
 
             return new DataPoint() {
@@ -218,4 +444,73 @@ public class RawTimeSeriesSpan implements TimeSeriesSpan {
             };
         }
     }
+
+    /**
+     * Builds a raw span from data points added one at a time in timestamp order, without boxing them.
+     * A compressed span is encoded block by block while the data points are added.
+     */
+    public static class Builder {
+
+        private final long from;
+
+        private final long to;
+
+        private final int measure;
+
+        private final boolean compressed;
+
+        private long[] timestamps = new long[BLOCK_SIZE];
+
+        private long[] values = new long[BLOCK_SIZE];
+
+        // The number of data points in the arrays. For a compressed span, the data points of the block being filled.
+        private int size;
+
+        private int count;
+
+        private long[] blockTimestamps = new long[16];
+
+        private final List<long[]> blocks = new ArrayList<>();
+
+        public Builder(long from, long to, int measure, boolean compressed) {
+            this.from = from;
+            this.to = to;
+            this.measure = measure;
+            this.compressed = compressed;
+        }
+
+        public Builder add(long timestamp, double value) {
+            if (size == timestamps.length) {
+                if (compressed) {
+                    flushBlock();
+                } else {
+                    timestamps = Arrays.copyOf(timestamps, size * 2);
+                    values = Arrays.copyOf(values, size * 2);
+                }
+            }
+            timestamps[size] = timestamp;
+            values[size] = Double.doubleToRawLongBits(value);
+            size++;
+            count++;
+            return this;
+        }
+
+        public RawTimeSeriesSpan build() {
+            if (!compressed) {
+                double[] doubleValues = new double[size];
+                for (int i = 0; i < size; i++) doubleValues[i] = Double.longBitsToDouble(values[i]);
+                return new RawTimeSeriesSpan(from, to, measure, Arrays.copyOf(timestamps, size), doubleValues);
+            }
+            if (size > 0) flushBlock();
+            return new RawTimeSeriesSpan(from, to, measure, count, Arrays.copyOf(blockTimestamps, blocks.size()),
+                    blocks.toArray(new long[0][]));
+        }
+
+        private void flushBlock() {
+            if (blocks.size() == blockTimestamps.length) blockTimestamps = Arrays.copyOf(blockTimestamps, blocks.size() * 2);
+            blockTimestamps[blocks.size()] = timestamps[0];
+            blocks.add(encodeBlock(timestamps, values, size));
+            size = 0;
+        }
+    }
 }
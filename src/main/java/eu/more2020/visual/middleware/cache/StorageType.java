@@ -0,0 +1,24 @@
+package eu.more2020.visual.middleware.cache;
+
+/**
+ * Where the aggregates of the cached {@link AggregateTimeSeriesSpan}s are stored.
+ */
+public enum StorageType {
+    // Primitive arrays on the Java heap.
+    HEAP,
+    // Direct memory outside the Java heap, so that large caches do not add to the garbage collection work.
+    OFF_HEAP,
+    // Losslessly compressed blocks on the Java heap, to fit more groups or raw data points in the memory budget at some decoding cost.
+    COMPRESSED;
+
+    public AggregateStorage allocate(int size) {
+        switch (this) {
+            case OFF_HEAP:
+                return new OffHeapAggregateStorage(size);
+            case COMPRESSED:
+                return new CompressedAggregateStorage(size);
+            default:
+                return new HeapAggregateStorage(size);
+        }
+    }
+}
@@ -12,6 +12,11 @@ public interface TimeSeriesSpan extends DataPoints {
      */
     Iterator iterator(long from, long to);
 
+    /*
+        Allocation-free cursor for the data points in this time series span that fall within [from, to).
+     */
+    TimeSeriesSpanCursor cursor(long from, long to);
+
     /**
      * The number of time series points fetched form the database behind every data point included in this time series span.
      * When the time series span corresponds to raw, non aggregated data, this number is 1.
@@ -32,4 +37,17 @@ public interface TimeSeriesSpan extends DataPoints {
         Return the aggregate Interval of this span. For raw it is equal to -1.
      */
     long getAggregateInterval();
+
+    /*
+        Take a reference to the memory of this span while reading it, so that it is not freed if the span is evicted.
+        Every call must be followed by a call to release(). Spans on the heap do not need references and ignore them.
+     */
+    default void retain() {
+    }
+
+    /*
+        Drop a reference to the memory of this span. Spans stored off-heap free their memory when the last reference is dropped.
+     */
+    default void release() {
+    }
 }
@@ -0,0 +1,46 @@
+package eu.more2020.visual.middleware.cache;
+
+/**
+ * A cursor over the data points of a time series span that fall within a time range.
+ * Unlike the span iterators, the cursor exposes the current data point through primitive accessors,
+ * so moving over the data points of a span does not allocate any objects.
+ * A raw data point is exposed as a group of count 1, with its value as min and max and the interval [timestamp, timestamp + 1).
+ */
+public interface TimeSeriesSpanCursor {
+
+    /*
+        Move to the next data point. Must be called before reading the first data point.
+        Returns false if there are no more data points.
+     */
+    boolean advance();
+
+    /*
+        Measure of the span.
+     */
+    int measure();
+
+    /*
+        Start of the current data point (inclusive).
+     */
+    long from();
+
+    /*
+        End of the current data point (exclusive).
+     */
+    long to();
+
+    /*
+        Number of raw values behind the current data point. The aggregates below are undefined when it is 0.
+     */
+    int count();
+
+    double sum();
+
+    double minValue();
+
+    long minTs();
+
+    double maxValue();
+
+    long maxTs();
+}
@@ -20,26 +20,39 @@ public class TimeSeriesSpanFactory {
      * @return A list of RawTimeSeriesSpan for each measure
      */
     public static Map<Integer, List<TimeSeriesSpan>> createRaw(DataPoints dataPoints, Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure){
+        return createRaw(dataPoints, missingIntervalsPerMeasure, StorageType.HEAP);
+    }
+
+    /**
+     * Same as {@link #createRaw(DataPoints, Map)}, with the raw spans compressed if the storage type is {@link StorageType#COMPRESSED}.
+     * The data points are added to the spans as they are read, without collecting them first.
+     * They must come one measure after the other, in the order of the map, and sorted by timestamp within a measure.
+     * Data points outside the ranges are skipped.
+     */
+    public static Map<Integer, List<TimeSeriesSpan>> createRaw(DataPoints dataPoints, Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure,
+                                                               StorageType storageType){
         Map<Integer, List<TimeSeriesSpan>> spans = new HashMap<>();
         Iterator<DataPoint> it = dataPoints.iterator();
         DataPoint dataPoint = null;
+        // Whether the last data point read is past the range it was read for, and still has to be added to a later one.
+        boolean changed = false;
         for (Integer measure : missingIntervalsPerMeasure.keySet()) {
             List<TimeSeriesSpan> timeSeriesSpansForMeasure = new ArrayList<>();
-            boolean changed = false;
             for(TimeInterval range : missingIntervalsPerMeasure.get(measure)) {
-                RawTimeSeriesSpan timeSeriesSpan = new RawTimeSeriesSpan(range.getFrom(), range.getTo(), measure);
-                List<DataPoint> dataPointsList = new ArrayList<>();
-                while (it.hasNext()) {
+                RawTimeSeriesSpan.Builder builder = new RawTimeSeriesSpan.Builder(range.getFrom(), range.getTo(), measure,
+                        storageType == StorageType.COMPRESSED);
+                while (changed || it.hasNext()) {
                     if (!changed) dataPoint = it.next();
                     else changed = false;
                     if (dataPoint.getTimestamp() >= range.getTo() ) {
                         changed = true;
                         break;
                     }
+                    if (dataPoint.getTimestamp() < range.getFrom()) continue;
                     LOG.debug("Adding {} between {}-{}", dataPoint.getTimestamp(), range.getFrom(), range.getTo());
-                    dataPointsList.add(dataPoint);
+                    builder.add(dataPoint.getTimestamp(), dataPoint.getValue());
                 }
-                timeSeriesSpan.build(dataPointsList);
+                RawTimeSeriesSpan timeSeriesSpan = builder.build();
                 timeSeriesSpansForMeasure.add(timeSeriesSpan);
                 LOG.info("Created raw time series span:" + timeSeriesSpan);
             }
@@ -59,43 +72,108 @@ public class TimeSeriesSpanFactory {
     public static Map<Integer, List<TimeSeriesSpan>> createAggregate(AggregatedDataPoints aggregatedDataPoints,
                                                                      Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure,
                                                                      Map<Integer, Long> aggregateIntervalsPerMeasure) {
-        Map<Integer, List<TimeSeriesSpan>> spans = new HashMap<>();
-        Iterator<AggregatedDataPoint> it = aggregatedDataPoints.iterator();
-        AggregatedDataPoint aggregatedDataPoint = null;
-        boolean changed = false;
-        for (Integer measure : missingIntervalsPerMeasure.keySet()) {
-            long aggregateInterval = aggregateIntervalsPerMeasure.get(measure);
-            List<TimeSeriesSpan> timeSeriesSpansForMeasure = new ArrayList<>();
-            for (TimeInterval range : missingIntervalsPerMeasure.get(measure)) {
-                int j = 0;
-                AggregateTimeSeriesSpan timeSeriesSpan = new AggregateTimeSeriesSpan(range.getFrom(), range.getTo(), measure, aggregateInterval);
-                // This is to handle missing fetched data.
-                // There is not a 1-1 mapping between the fetched aggregate data and the time series span we are creating.
-                // Postgres omits results if there is no data in the group (InfluxDB has a fill empty clause and handles this, so we create the empty data points in the iterator).
-                // We use this solution to see when the time series span changes.
-                while (j < (timeSeriesSpan.getSize() - 1)) {
-                    if (!changed){ // if there is a change keep the previous datapoint to process
-                        if(it.hasNext()) aggregatedDataPoint = it.next();
-                        else break;
-                    }
-                    if (aggregatedDataPoint.getTimestamp() < range.getFrom()
-                            || aggregatedDataPoint.getTimestamp() >= range.getTo() || aggregatedDataPoint.getMeasure() != measure) {
-                        changed = true;
-                        break;
-                    }
-                    else {
-                        changed = false;
-                        j = DateTimeUtil.indexInInterval(range.getFrom(), range.getTo(), aggregateInterval, aggregatedDataPoint.getTimestamp());
-                        LOG.debug("Adding {} between {}-{} with aggregate interval {} for measure {} at position {}",
-                                aggregatedDataPoint.getTimestamp(), range.getFrom(), range.getTo(), aggregateInterval, measure, j);
-                        timeSeriesSpan.addAggregatedDataPoint(j, aggregatedDataPoint);
-                    }
+        return createAggregate(aggregatedDataPoints, missingIntervalsPerMeasure, aggregateIntervalsPerMeasure, StorageType.HEAP);
+    }
+
+    /**
+     * Read from iterators and create time series spans, with their aggregates stored as set by the storage type.
+     * @param aggregatedDataPoints fetched aggregated data points
+     * @param missingIntervalsPerMeasure  list of ranges for each measure that this points belong to
+     * @param aggregateIntervalsPerMeasure aggregate intervals with which to fetch data for each measure
+     * @param storageType where to store the aggregates of the spans
+     * @return A list of AggregateTimeSeriesSpan for each measure
+     */
+    public static Map<Integer, List<TimeSeriesSpan>> createAggregate(AggregatedDataPoints aggregatedDataPoints,
+                                                                     Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure,
+                                                                     Map<Integer, Long> aggregateIntervalsPerMeasure,
+                                                                     StorageType storageType) {
+        AggregateSpanSink sink = new AggregateSpanSink(missingIntervalsPerMeasure, aggregateIntervalsPerMeasure, storageType);
+        // The data source decodes its results straight into the storage of the spans.
+        aggregatedDataPoints.writeTo(sink);
+        return sink.getSpans();
+    }
+
+    /**
+     * Writes the groups it receives into the spans of the missing intervals, at the position of their start timestamp.
+     * There is not a 1-1 mapping between the fetched aggregate data and the spans.
+     * Postgres omits results if there is no data in the group, so these groups are left empty.
+     * Groups outside the missing intervals are ignored.
+     */
+    private static class AggregateSpanSink implements AggregatedDataPointSink {
+
+        private final Map<Integer, List<TimeSeriesSpan>> spans = new HashMap<>();
+
+        private final Map<Integer, MeasureSpans> spansPerMeasure = new HashMap<>();
+
+        // The spans of the measure of the last group, as the groups of a measure are fetched together.
+        private MeasureSpans last;
+
+        private AggregateSpanSink(Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure,
+                                  Map<Integer, Long> aggregateIntervalsPerMeasure, StorageType storageType) {
+            for (Integer measure : missingIntervalsPerMeasure.keySet()) {
+                long aggregateInterval = aggregateIntervalsPerMeasure.get(measure);
+                List<TimeInterval> ranges = missingIntervalsPerMeasure.get(measure);
+                AggregateTimeSeriesSpan[] timeSeriesSpans = new AggregateTimeSeriesSpan[ranges.size()];
+                for (int i = 0; i < timeSeriesSpans.length; i++) {
+                    TimeInterval range = ranges.get(i);
+                    timeSeriesSpans[i] = new AggregateTimeSeriesSpan(range.getFrom(), range.getTo(), measure, aggregateInterval, storageType);
                 }
-                timeSeriesSpansForMeasure.add(timeSeriesSpan);
+                spans.put(measure, new ArrayList<>(Arrays.asList(timeSeriesSpans)));
+                spansPerMeasure.put(measure, new MeasureSpans(measure, timeSeriesSpans));
             }
-            spans.put(measure, timeSeriesSpansForMeasure);
         }
-        return spans;
+
+        @Override
+        public void accept(int measure, long from, long to, int count, double sum,
+                           double minValue, long minTimestamp, double maxValue, long maxTimestamp) {
+            if (last == null || last.measure != measure) {
+                last = spansPerMeasure.get(measure);
+                if (last == null) return;
+            }
+            AggregateTimeSeriesSpan timeSeriesSpan = last.find(from);
+            if (timeSeriesSpan == null) return;
+            int j = DateTimeUtil.indexInInterval(timeSeriesSpan.getFrom(), timeSeriesSpan.getTo(), timeSeriesSpan.getAggregateInterval(), from);
+            LOG.debug("Adding {} between {}-{} with aggregate interval {} for measure {} at position {}",
+                    from, timeSeriesSpan.getFrom(), timeSeriesSpan.getTo(), timeSeriesSpan.getAggregateInterval(), measure, j);
+            if (count == 0) {
+                timeSeriesSpan.getStorage().set(j, 0, 0, 0, 0, 0, 0);
+            } else {
+                timeSeriesSpan.getStorage().set(j, count, sum, minValue, minTimestamp, maxValue, maxTimestamp);
+            }
+        }
+
+        private Map<Integer, List<TimeSeriesSpan>> getSpans() {
+            return spans;
+        }
+    }
+
+    private static class MeasureSpans {
+
+        private final int measure;
+
+        private final AggregateTimeSeriesSpan[] spans;
+
+        // The span that was last written to.
+        private int current;
+
+        private MeasureSpans(int measure, AggregateTimeSeriesSpan[] spans) {
+            this.measure = measure;
+            this.spans = spans;
+        }
+
+        /**
+         * Returns the span that contains the timestamp, or null. The groups usually arrive in order, so the current and next spans are checked first.
+         */
+        private AggregateTimeSeriesSpan find(long timestamp) {
+            for (int k = 0; k < spans.length; k++) {
+                int i = (current + k) % spans.length;
+                if (timestamp >= spans[i].getFrom() && timestamp < spans[i].getTo()) {
+                    current = i;
+                    return spans[i];
+                }
+            }
+            return null;
+        }
     }
 }
 
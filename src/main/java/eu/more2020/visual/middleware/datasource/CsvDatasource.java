@@ -0,0 +1,182 @@
+package eu.more2020.visual.middleware.datasource;
+
+import eu.more2020.visual.middleware.datasource.QueryExecutor.CsvQueryExecutor;
+import eu.more2020.visual.middleware.domain.*;
+import eu.more2020.visual.middleware.domain.Dataset.CsvDataset;
+import eu.more2020.visual.middleware.domain.Query.QueryMethod;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * A data source over a {@link CsvDataset}, which reads the rows it needs straight from the file with the help of its index.
+ */
+public class CsvDatasource implements DataSource {
+
+    CsvQueryExecutor csvQueryExecutor;
+    CsvDataset dataset;
+
+    public CsvDatasource(CsvQueryExecutor csvQueryExecutor, CsvDataset dataset) {
+        this.dataset = dataset;
+        this.csvQueryExecutor = csvQueryExecutor;
+    }
+
+    @Override
+    public AggregatedDataPoints getAggregatedDataPoints(long from, long to,
+                                                        Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure, Map<Integer, Integer> numberOfGroups, QueryMethod queryMethod) {
+        return new CsvAggregatedDataPoints(from, to, missingIntervalsPerMeasure, numberOfGroups, queryMethod);
+    }
+
+    @Override
+    public DataPoints getDataPoints(long from, long to, List<Integer> measures) {
+        Map<Integer, List<TimeInterval>> missingTimeIntervalsPerMeasure = new HashMap<>();
+        for (Integer measure : measures) {
+            List<TimeInterval> timeIntervalsForMeasure = new ArrayList<>();
+            timeIntervalsForMeasure.add(new TimeRange(from, to));
+            missingTimeIntervalsPerMeasure.put(measure, timeIntervalsForMeasure);
+        }
+        return new CsvDataPoints(from, to, missingTimeIntervalsPerMeasure);
+    }
+
+    @Override
+    public DataPoints getDataPoints(long from, long to, Map<Integer, List<TimeInterval>> missingTimeIntervalsPerMeasure) {
+        return new CsvDataPoints(from, to, missingTimeIntervalsPerMeasure);
+    }
+
+    @Override
+    public DataPoints getAllDataPoints(List<Integer> measures) {
+        return getDataPoints(dataset.getTimeRange().getFrom(), dataset.getTimeRange().getTo(), measures);
+    }
+
+    private Map<String, List<TimeInterval>> byMeasureName(Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure) {
+        return missingIntervalsPerMeasure.entrySet().stream()
+                .collect(Collectors.toMap(entry -> dataset.getHeader()[entry.getKey()], Map.Entry::getValue,
+                        (v1, v2) -> v1, LinkedHashMap::new));
+    }
+
+    /**
+     * The raw points of the missing intervals, one measure after the other.
+     */
+    final class CsvDataPoints implements DataPoints {
+
+        private final CsvQuery csvQuery;
+
+        public CsvDataPoints(long from, long to, Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure) {
+            this.csvQuery = new CsvQuery(from, to, byMeasureName(missingIntervalsPerMeasure));
+        }
+
+        @NotNull
+        public Iterator<DataPoint> iterator() {
+            return csvQueryExecutor.executeRawQuery(csvQuery).getData().values().stream()
+                    .flatMap(List::stream).iterator();
+        }
+
+        @Override
+        public long getFrom() {
+            return csvQuery.getFrom();
+        }
+
+        @Override
+        public long getTo() {
+            return csvQuery.getTo();
+        }
+
+        @Override
+        public String getFromDate() {
+            return getFromDate("yyyy-MM-dd HH:mm:ss");
+        }
+
+        @Override
+        public String getToDate() {
+            return getToDate("yyyy-MM-dd HH:mm:ss");
+        }
+
+        @Override
+        public String getFromDate(String format) {
+            return Instant.ofEpochMilli(csvQuery.getFrom()).atZone(ZoneId.of("UTC")).format(DateTimeFormatter.ofPattern(format));
+        }
+
+        @Override
+        public String getToDate(String format) {
+            return Instant.ofEpochMilli(csvQuery.getTo()).atZone(ZoneId.of("UTC")).format(DateTimeFormatter.ofPattern(format));
+        }
+    }
+
+    final class CsvAggregatedDataPoints implements AggregatedDataPoints {
+
+        private final CsvQuery csvQuery;
+        private final QueryMethod queryMethod;
+
+        public CsvAggregatedDataPoints(long from, long to, Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure,
+                                             Map<Integer, Integer> numberOfGroups, QueryMethod queryMethod) {
+            Map<String, Integer> numberOfGroupsPerMeasureName = numberOfGroups.entrySet().stream()
+                    .collect(Collectors.toMap(entry -> dataset.getHeader()[entry.getKey()], Map.Entry::getValue,
+                            (v1, v2) -> v1, LinkedHashMap::new));
+            this.csvQuery = new CsvQuery(from, to, byMeasureName(missingIntervalsPerMeasure), numberOfGroupsPerMeasureName);
+            this.queryMethod = queryMethod;
+        }
+
+        @NotNull
+        public Iterator<AggregatedDataPoint> iterator() {
+            List<AggregatedDataPoint> aggregatedDataPoints = new ArrayList<>();
+            csvQueryExecutor.execute(csvQuery, queryMethod,
+                    (measure, from, to, count, sum, minValue, minTimestamp, maxValue, maxTimestamp) -> {
+                        StatsAggregator statsAggregator = new StatsAggregator();
+                        statsAggregator.accept(count, sum, minValue, minTimestamp, maxValue, maxTimestamp);
+                        aggregatedDataPoints.add(new ImmutableAggregatedDataPoint(from, to, measure, statsAggregator));
+                    });
+            return aggregatedDataPoints.iterator();
+        }
+
+        /**
+         * Aggregates the rows straight into the sink as they are read, without creating a data point per group.
+         */
+        @Override
+        public void writeTo(AggregatedDataPointSink sink) {
+            csvQueryExecutor.execute(csvQuery, queryMethod, sink);
+        }
+
+        @Override
+        public String toString() {
+            return "CsvDataPoints{" +
+                    "measures=" + csvQuery.getMissingIntervalsPerMeasure().keySet() +
+                    ", from=" + csvQuery.getFrom() +
+                    ", to=" + csvQuery.getTo() +
+                    '}';
+        }
+
+        @Override
+        public long getFrom() {
+            return csvQuery.getFrom();
+        }
+
+        @Override
+        public long getTo() {
+            return csvQuery.getTo();
+        }
+
+        @Override
+        public String getFromDate() {
+            return getFromDate("yyyy-MM-dd HH:mm:ss");
+        }
+
+        @Override
+        public String getToDate() {
+            return getToDate("yyyy-MM-dd HH:mm:ss");
+        }
+
+        @Override
+        public String getFromDate(String format) {
+            return Instant.ofEpochMilli(csvQuery.getFrom()).atZone(ZoneId.of("UTC")).format(DateTimeFormatter.ofPattern(format));
+        }
+
+        @Override
+        public String getToDate(String format) {
+            return Instant.ofEpochMilli(csvQuery.getTo()).atZone(ZoneId.of("UTC")).format(DateTimeFormatter.ofPattern(format));
+        }
+    }
+}
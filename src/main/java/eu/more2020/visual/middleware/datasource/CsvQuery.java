@@ -0,0 +1,40 @@
+package eu.more2020.visual.middleware.datasource;
+
+import eu.more2020.visual.middleware.domain.TimeInterval;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A query to a {@link eu.more2020.visual.middleware.domain.Dataset.CsvDataset}, answered from its file with the help of a
+ * {@link eu.more2020.visual.middleware.index.csv.CsvTTI}. The skeletons only describe what is computed, for logging.
+ */
+public class CsvQuery extends DataSourceQuery {
+
+    public CsvQuery(long from, long to, Map<String, List<TimeInterval>> missingIntervalsPerMeasure, Map<String, Integer> numberOfGroups) {
+        super(from, to, missingIntervalsPerMeasure, numberOfGroups);
+    }
+
+    public CsvQuery(long from, long to, Map<String, List<TimeInterval>> missingIntervalsPerMeasure) {
+        super(from, to, missingIntervalsPerMeasure);
+    }
+
+    @Override
+    public String m4QuerySkeleton() {
+        return "first, last, min and max of " + describe();
+    }
+
+    @Override
+    public String minMaxQuerySkeleton() {
+        return "min and max of " + describe();
+    }
+
+    @Override
+    public String rawQuerySkeleton() {
+        return "rows of " + missingIntervalsPerMeasure;
+    }
+
+    private String describe() {
+        return "groups " + aggregateIntervals + " ms wide over " + missingIntervalsPerMeasure;
+    }
+}
@@ -1,20 +1,30 @@
 package eu.more2020.visual.middleware.datasource;
 
+import eu.more2020.visual.middleware.datasource.QueryExecutor.CsvQueryExecutor;
+import eu.more2020.visual.middleware.datasource.QueryExecutor.H2QueryExecutor;
 import eu.more2020.visual.middleware.datasource.QueryExecutor.InfluxDBQueryExecutor;
 import eu.more2020.visual.middleware.datasource.QueryExecutor.ModelarDBQueryExecutor;
 import eu.more2020.visual.middleware.datasource.QueryExecutor.QueryExecutor;
 import eu.more2020.visual.middleware.datasource.QueryExecutor.SQLQueryExecutor;
+import eu.more2020.visual.middleware.datasource.QueryExecutor.SyntheticQueryExecutor;
 import eu.more2020.visual.middleware.domain.Dataset.*;
 
 public class DataSourceFactory {
 
     public static DataSource getDataSource(QueryExecutor queryExecutor, AbstractDataset dataset) {
-       if(dataset instanceof PostgreSQLDataset)
+       // An H2 dataset is also a PostgreSQL dataset, so it is checked first.
+       if(dataset instanceof H2Dataset)
+            return new H2Datasource((H2QueryExecutor) queryExecutor, (H2Dataset) dataset);
+       else if(dataset instanceof PostgreSQLDataset)
             return new PostgreSQLDatasource((SQLQueryExecutor) queryExecutor, (PostgreSQLDataset) dataset);
         else if(dataset instanceof InfluxDBDataset)
             return new InfluxDBDatasource((InfluxDBQueryExecutor) queryExecutor, (InfluxDBDataset) dataset);
         else if(dataset instanceof ModelarDBDataset)
             return new ModelarDBDatasource((ModelarDBQueryExecutor) queryExecutor, (ModelarDBDataset) dataset);
+        else if(dataset instanceof SyntheticDataset)
+            return new SyntheticDatasource((SyntheticQueryExecutor) queryExecutor, (SyntheticDataset) dataset);
+        else if(dataset instanceof CsvDataset)
+            return new CsvDatasource((CsvQueryExecutor) queryExecutor, (CsvDataset) dataset);
         throw new IllegalArgumentException("Unsupported Datasource");
     }
 }
@@ -0,0 +1,15 @@
+package eu.more2020.visual.middleware.datasource;
+
+import eu.more2020.visual.middleware.datasource.QueryExecutor.H2QueryExecutor;
+import eu.more2020.visual.middleware.domain.Dataset.H2Dataset;
+
+/**
+ * Fetches the data of an {@link H2Dataset} with the same MIN_MAX and M4 queries as {@link PostgreSQLDatasource},
+ * which H2 runs unchanged. It needs no external database, so the cache can run end to end on a single machine.
+ */
+public class H2Datasource extends PostgreSQLDatasource {
+
+    public H2Datasource(H2QueryExecutor h2QueryExecutor, H2Dataset dataset) {
+        super(h2QueryExecutor, dataset);
+    }
+}
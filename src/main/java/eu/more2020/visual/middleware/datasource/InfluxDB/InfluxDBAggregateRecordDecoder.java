@@ -0,0 +1,82 @@
+package eu.more2020.visual.middleware.datasource.InfluxDB;
+
+import com.influxdb.query.FluxRecord;
+import eu.more2020.visual.middleware.datasource.DataSource;
+import eu.more2020.visual.middleware.domain.AggregatedDataPointSink;
+import eu.more2020.visual.middleware.domain.NonTimestampedStatsAggregator;
+import eu.more2020.visual.middleware.util.DateTimeUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Decodes the streamed records of a min-max query into a sink, grouping them as {@link InfluxDBAggregateDataPointsIterator} does,
+ * without holding the query results in memory. A group ends at the time of the first record of the next group,
+ * so it is written to the sink when the next group starts, or when its table or the query ends.
+ * Call {@link #finish()} after the last record.
+ */
+public class InfluxDBAggregateRecordDecoder implements Consumer<FluxRecord> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DataSource.class);
+
+    private final AggregatedDataPointSink sink;
+    private final Map<String, Integer> measuresMap;
+
+    // Reused for every group.
+    private final NonTimestampedStatsAggregator statsAggregator = new NonTimestampedStatsAggregator();
+
+    private Integer currentTable;
+    private int current;
+    private long groupTimestamp, groupEndTimestamp;
+    private String measure;
+    private boolean pending;
+
+    public InfluxDBAggregateRecordDecoder(AggregatedDataPointSink sink, Map<String, Integer> measuresMap) {
+        this.sink = sink;
+        this.measuresMap = measuresMap;
+    }
+
+    @Override
+    public void accept(FluxRecord record) {
+        if (!record.getTable().equals(currentTable)) {
+            if (pending) flush(groupEndTimestamp);
+            currentTable = record.getTable();
+            current = 0;
+            groupTimestamp = ((Instant) record.getValues().get("_start")).toEpochMilli();
+            groupEndTimestamp = ((Instant) record.getValues().get("_stop")).toEpochMilli();
+        }
+        // Every 2 records make a group.
+        if (current % 2 == 0) {
+            if (pending) flush(((Instant) record.getValues().get("_time")).toEpochMilli());
+            statsAggregator.clear();
+            pending = true;
+        }
+        measure = record.getField();
+        if (record.getValue() != null) { // check for empty value
+            statsAggregator.accept((double) record.getValue());
+        }
+        current++;
+    }
+
+    /**
+     * Writes the last group to the sink.
+     */
+    public void finish() {
+        if (pending) flush(groupEndTimestamp);
+    }
+
+    private void flush(long currentGroupTimestamp) {
+        pending = false;
+        // Empty groups are skipped and the next group starts where the last non-empty one ended.
+        if (statsAggregator.getCount() == 0) return;
+        statsAggregator.setFrom(groupTimestamp);
+        statsAggregator.setTo(currentGroupTimestamp);
+        LOG.debug("Created aggregate Datapoint {} - {} with min: {} and max: {} ",
+                DateTimeUtil.format(groupTimestamp), DateTimeUtil.format(currentGroupTimestamp), statsAggregator.getMinValue(), statsAggregator.getMaxValue());
+        sink.accept(measuresMap.get(measure), groupTimestamp, currentGroupTimestamp, statsAggregator);
+        groupTimestamp = currentGroupTimestamp;
+    }
+}
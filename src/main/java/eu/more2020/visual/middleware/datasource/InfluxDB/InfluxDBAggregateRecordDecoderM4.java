@@ -0,0 +1,67 @@
+package eu.more2020.visual.middleware.datasource.InfluxDB;
+
+import com.influxdb.query.FluxRecord;
+import eu.more2020.visual.middleware.datasource.DataSource;
+import eu.more2020.visual.middleware.domain.AggregatedDataPointSink;
+import eu.more2020.visual.middleware.domain.StatsAggregator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Decodes the streamed records of an M4 query into a sink, grouping them as {@link InfluxDBAggregateDataPointsIteratorM4} does,
+ * without holding the query results in memory.
+ */
+public class InfluxDBAggregateRecordDecoderM4 implements Consumer<FluxRecord> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DataSource.class);
+
+    private final AggregatedDataPointSink sink;
+    private final Map<String, Integer> measuresMap;
+
+    // Reused for every group.
+    private final StatsAggregator statsAggregator = new StatsAggregator();
+
+    private Integer currentTable;
+    private int current;
+    private long groupTimestamp;
+
+    public InfluxDBAggregateRecordDecoderM4(AggregatedDataPointSink sink, Map<String, Integer> measuresMap) {
+        this.sink = sink;
+        this.measuresMap = measuresMap;
+    }
+
+    /*
+       Collect every 4 records into a group.
+       Group timestamp represents the start time of the group, and the stop time of its last record is its end.
+    * */
+    @Override
+    public void accept(FluxRecord record) {
+        if (!record.getTable().equals(currentTable)) {
+            currentTable = record.getTable();
+            current = 0;
+            groupTimestamp = ((Instant) record.getValues().get("_start")).toEpochMilli();
+        }
+        if (current % 4 == 0) statsAggregator.clear();
+        if (record.getValue() != null) { // check for empty value
+            double value = (double) record.getValue();
+            long timestamp = ((Instant) record.getValues().get("_time")).toEpochMilli();
+            statsAggregator.accept(timestamp, value);
+        }
+        current++;
+        if (current % 4 == 0) {
+            long currentGroupTimestamp = ((Instant) record.getValues().get("_stop")).toEpochMilli();
+            // The aggregates of an empty window are all empty values.
+            if (statsAggregator.getCount() != 0) {
+                LOG.debug("Created aggregate Datapoint {} - {} with first: {}, last: {}, min: {} and max: {} ",
+                        groupTimestamp, currentGroupTimestamp, statsAggregator.getFirstValue(),
+                        statsAggregator.getLastValue(), statsAggregator.getMinValue(), statsAggregator.getMaxValue());
+            }
+            sink.accept(measuresMap.get(record.getField()), groupTimestamp, currentGroupTimestamp, statsAggregator);
+            groupTimestamp = currentGroupTimestamp;
+        }
+    }
+}
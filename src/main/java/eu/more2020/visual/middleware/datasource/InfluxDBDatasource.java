@@ -5,6 +5,8 @@ import com.google.common.collect.Iterators;
 import com.influxdb.query.FluxTable;
 import eu.more2020.visual.middleware.datasource.InfluxDB.InfluxDBAggregateDataPointsIterator;
 import eu.more2020.visual.middleware.datasource.InfluxDB.InfluxDBAggregateDataPointsIteratorM4;
+import eu.more2020.visual.middleware.datasource.InfluxDB.InfluxDBAggregateRecordDecoder;
+import eu.more2020.visual.middleware.datasource.InfluxDB.InfluxDBAggregateRecordDecoderM4;
 import eu.more2020.visual.middleware.datasource.InfluxDB.InfluxDBDataPointsIterator;
 import eu.more2020.visual.middleware.domain.*;
 import eu.more2020.visual.middleware.domain.Dataset.InfluxDBDataset;
@@ -151,6 +153,21 @@ public class InfluxDBDatasource implements DataSource {
             }
         }
 
+        /**
+         * Decodes the records into the sink as they are streamed from the response, without collecting the flux tables.
+         */
+        @Override
+        public void writeTo(AggregatedDataPointSink sink) {
+            if(queryMethod == QueryMethod.M4){
+                influxDBQueryExecutor.executeM4InfluxQuery(influxDBQuery, new InfluxDBAggregateRecordDecoderM4(sink, measuresMap));
+            }
+            else {
+                InfluxDBAggregateRecordDecoder decoder = new InfluxDBAggregateRecordDecoder(sink, measuresMap);
+                influxDBQueryExecutor.executeMinMaxInfluxQuery(influxDBQuery, decoder);
+                decoder.finish();
+            }
+        }
+
         @Override
         public long getFrom() {
             return influxDBQuery.getFrom();
@@ -21,6 +21,9 @@ public class PostgreSQLAggregateDataPointsIterator implements Iterator<Aggregate
     private final Map<String, Long> aggregateIntervals;
     private final Map<String, Integer> measuresMap;
 
+    // The timestamps of the group of the current row.
+    private long firstTimestamp, lastTimestamp;
+
     public PostgreSQLAggregateDataPointsIterator(ResultSet resultSet,
                                                  Map<String, List<TimeInterval>> missingIntervalsPerMeasure,
                                                  Map<String, Long> aggregateIntervals, Map<String, Integer> measuresMap) throws SQLException {
@@ -48,32 +51,53 @@ public class PostgreSQLAggregateDataPointsIterator implements Iterator<Aggregate
         NonTimestampedStatsAggregator statsAggregator = new NonTimestampedStatsAggregator();
         // get row data
         try {
-            String measure = resultSet.getString(1);
-            int k = resultSet.getInt(2);
-            double v_min = resultSet.getDouble(3);
-            double v_max = resultSet.getDouble(4);
-            int unionGroup = resultSet.getInt(5); // signifies the union id
-
-            Long aggregateInterval = aggregateIntervals.get(measure);
-
-            TimeInterval correspondingInterval = unionTimeIntervals.get(unionGroup);
-
-            long firstTimestamp = correspondingInterval.getFrom() + k * aggregateInterval;
-            long lastTimestamp = correspondingInterval.getFrom() + ((k + 1) * aggregateInterval);
-            if(firstTimestamp + aggregateInterval > correspondingInterval.getTo()) {
-                lastTimestamp = correspondingInterval.getTo();
-            }
-            statsAggregator.setFrom(firstTimestamp);
-            statsAggregator.setTo(lastTimestamp);
-            statsAggregator.accept(v_min);
-            statsAggregator.accept(v_max);
-
-            LOG.debug("Created aggregate Datapoint {} - {} with min: {} and max: {} ",
-                    DateTimeUtil.format(firstTimestamp), DateTimeUtil.format(lastTimestamp), statsAggregator.getMinValue(), statsAggregator.getMaxValue());
-            return new ImmutableAggregatedDataPoint(firstTimestamp, lastTimestamp, measuresMap.get(measure), statsAggregator);
+            int measure = readRow(statsAggregator);
+            return new ImmutableAggregatedDataPoint(firstTimestamp, lastTimestamp, measure, statsAggregator);
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return null;
     }
+
+    /**
+     * Decodes the remaining rows directly into the sink, reusing one aggregator for all of them.
+     */
+    public void writeTo(AggregatedDataPointSink sink) throws SQLException {
+        NonTimestampedStatsAggregator statsAggregator = new NonTimestampedStatsAggregator();
+        while (resultSet.next()) {
+            statsAggregator.clear();
+            int measure = readRow(statsAggregator);
+            sink.accept(measure, firstTimestamp, lastTimestamp, statsAggregator);
+        }
+    }
+
+    /**
+     * Reads the current row into the aggregator and the group timestamps.
+     * @return the measure of the row
+     */
+    private int readRow(NonTimestampedStatsAggregator statsAggregator) throws SQLException {
+        String measure = resultSet.getString(1);
+        int k = resultSet.getInt(2);
+        double v_min = resultSet.getDouble(3);
+        double v_max = resultSet.getDouble(4);
+        int unionGroup = resultSet.getInt(5); // signifies the union id
+
+        Long aggregateInterval = aggregateIntervals.get(measure);
+
+        TimeInterval correspondingInterval = unionTimeIntervals.get(unionGroup);
+
+        firstTimestamp = correspondingInterval.getFrom() + k * aggregateInterval;
+        lastTimestamp = correspondingInterval.getFrom() + ((k + 1) * aggregateInterval);
+        if(firstTimestamp + aggregateInterval > correspondingInterval.getTo()) {
+            lastTimestamp = correspondingInterval.getTo();
+        }
+        statsAggregator.setFrom(firstTimestamp);
+        statsAggregator.setTo(lastTimestamp);
+        statsAggregator.accept(v_min);
+        statsAggregator.accept(v_max);
+
+        LOG.debug("Created aggregate Datapoint {} - {} with min: {} and max: {} ",
+                DateTimeUtil.format(firstTimestamp), DateTimeUtil.format(lastTimestamp), statsAggregator.getMinValue(), statsAggregator.getMaxValue());
+        return measuresMap.get(measure);
+    }
 }
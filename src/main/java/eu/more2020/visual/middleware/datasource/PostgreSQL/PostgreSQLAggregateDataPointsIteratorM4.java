@@ -23,6 +23,9 @@ public class PostgreSQLAggregateDataPointsIteratorM4 implements Iterator<Aggrega
 
     private final Map<String, Integer> measuresMap;
 
+    // The timestamps of the group of the current row.
+    private long firstTimestamp, lastTimestamp;
+
 
     public PostgreSQLAggregateDataPointsIteratorM4(ResultSet resultSet,
                                                    Map<String, List<TimeInterval>> missingIntervalsPerMeasure,
@@ -55,38 +58,55 @@ public class PostgreSQLAggregateDataPointsIteratorM4 implements Iterator<Aggrega
     @Override
     public AggregatedDataPoint next() {
         try {
-            String measure = resultSet.getString(1);
-            long t_min = resultSet.getLong(2);
-            long t_max = resultSet.getLong(3);
-            double value = resultSet.getDouble(4);
-            int k = resultSet.getInt(5);
-            int unionGroup = resultSet.getInt(6); // signifies the union id
-            Long aggregateInterval = aggregateIntervals.get(measure);
-
             StatsAggregator statsAggregator = new StatsAggregator();
-
-            TimeInterval correspondingInterval = unionTimeIntervals.get(unionGroup);
-
-            long firstTimestamp = correspondingInterval.getFrom() + k * aggregateInterval;
-            long lastTimestamp = correspondingInterval.getFrom() + ((k + 1) * aggregateInterval);
-            if(firstTimestamp + aggregateInterval > correspondingInterval.getTo()) {
-                lastTimestamp = correspondingInterval.getTo();
-            }
-            DataPoint dataPoint1 = new ImmutableDataPoint(t_min, value);
-            DataPoint dataPoint2 = new ImmutableDataPoint(t_max, value);
-            statsAggregator.accept(dataPoint1);
-            statsAggregator.accept(dataPoint2);
-            LOG.debug("Created aggregate Datapoint {} - {} with firsts: {}, last: {}, min: {} and max: {} ",
-                    DateTimeUtil.format(firstTimestamp), DateTimeUtil.format(lastTimestamp),
-                    statsAggregator.getFirstValue(),
-                    statsAggregator.getLastValue(),
-                    statsAggregator.getMinValue(),
-                    statsAggregator.getMaxValue());
-            return new ImmutableAggregatedDataPoint(firstTimestamp, lastTimestamp, measuresMap.get(measure), statsAggregator);
+            int measure = readRow(statsAggregator);
+            return new ImmutableAggregatedDataPoint(firstTimestamp, lastTimestamp, measure, statsAggregator);
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return null;
     }
-}
 
+    /**
+     * Decodes the remaining rows directly into the sink, reusing one aggregator for all of them.
+     */
+    public void writeTo(AggregatedDataPointSink sink) throws SQLException {
+        StatsAggregator statsAggregator = new StatsAggregator();
+        while (resultSet.next()) {
+            statsAggregator.clear();
+            int measure = readRow(statsAggregator);
+            sink.accept(measure, firstTimestamp, lastTimestamp, statsAggregator);
+        }
+    }
+
+    /**
+     * Reads the current row into the aggregator and the group timestamps.
+     * @return the measure of the row
+     */
+    private int readRow(StatsAggregator statsAggregator) throws SQLException {
+        String measure = resultSet.getString(1);
+        long t_min = resultSet.getLong(2);
+        long t_max = resultSet.getLong(3);
+        double value = resultSet.getDouble(4);
+        int k = resultSet.getInt(5);
+        int unionGroup = resultSet.getInt(6); // signifies the union id
+        Long aggregateInterval = aggregateIntervals.get(measure);
+
+        TimeInterval correspondingInterval = unionTimeIntervals.get(unionGroup);
+
+        firstTimestamp = correspondingInterval.getFrom() + k * aggregateInterval;
+        lastTimestamp = correspondingInterval.getFrom() + ((k + 1) * aggregateInterval);
+        if(firstTimestamp + aggregateInterval > correspondingInterval.getTo()) {
+            lastTimestamp = correspondingInterval.getTo();
+        }
+        statsAggregator.accept(t_min, value);
+        statsAggregator.accept(t_max, value);
+        LOG.debug("Created aggregate Datapoint {} - {} with firsts: {}, last: {}, min: {} and max: {} ",
+                DateTimeUtil.format(firstTimestamp), DateTimeUtil.format(lastTimestamp),
+                statsAggregator.getFirstValue(),
+                statsAggregator.getLastValue(),
+                statsAggregator.getMinValue(),
+                statsAggregator.getMaxValue());
+        return measuresMap.get(measure);
+    }
+}
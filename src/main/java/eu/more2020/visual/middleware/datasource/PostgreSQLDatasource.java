@@ -19,6 +19,9 @@ import java.util.stream.Collectors;
 
 public class PostgreSQLDatasource implements DataSource {
 
+    // The number of rows fetched at a time when the aggregates are streamed into spans.
+    private static final int FETCH_SIZE = 10000;
+
     SQLQueryExecutor sqlQueryExecutor;
     PostgreSQLDataset dataset;
 
@@ -173,6 +176,27 @@ public class PostgreSQLDatasource implements DataSource {
             return Iterators.concat(new Iterator[0]);
         }
 
+        /**
+         * Decodes the rows into the sink as they are fetched, without creating a data point per row.
+         * A failed query is rethrown, so that the fetch fails instead of leaving the groups empty.
+         */
+        @Override
+        public void writeTo(AggregatedDataPointSink sink) {
+            try {
+                if (queryMethod == QueryMethod.M4) {
+                    sqlQueryExecutor.executeM4SqlQuery(sqlQuery, FETCH_SIZE, resultSet ->
+                            new PostgreSQLAggregateDataPointsIteratorM4(resultSet, sqlQuery.getMissingIntervalsPerMeasure(), sqlQuery.getAggregateIntervals(), measuresMap)
+                                    .writeTo(sink));
+                } else {
+                    sqlQueryExecutor.executeMinMaxSqlQuery(sqlQuery, FETCH_SIZE, resultSet ->
+                            new PostgreSQLAggregateDataPointsIterator(resultSet, sqlQuery.getMissingIntervalsPerMeasure(), sqlQuery.getAggregateIntervals(), measuresMap)
+                                    .writeTo(sink));
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
         @Override
         public String toString() {
             return "PostgreSQLDataPoints{" +
@@ -0,0 +1,361 @@
+package eu.more2020.visual.middleware.datasource.QueryExecutor;
+
+import com.univocity.parsers.csv.CsvParser;
+import eu.more2020.visual.middleware.datasource.CsvQuery;
+import eu.more2020.visual.middleware.datasource.DataSourceQuery;
+import eu.more2020.visual.middleware.domain.*;
+import eu.more2020.visual.middleware.domain.Dataset.CsvDataset;
+import eu.more2020.visual.middleware.domain.Query.QueryMethod;
+import eu.more2020.visual.middleware.index.TimeSeriesIndexUtil;
+import eu.more2020.visual.middleware.index.TreeNode;
+import eu.more2020.visual.middleware.index.csv.CsvTTI;
+import eu.more2020.visual.middleware.index.csv.CsvTreeNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.temporal.TemporalField;
+import java.util.*;
+
+/**
+ * Answers the queries of a {@link CsvDataset} from its file, using a {@link CsvTTI} over it to read only the rows that are needed.
+ * The leaves of the index hold the file offset, the number of rows and the stats of every measure for a period of time, e.g. an hour.
+ * A min-max group that covers whole leaves takes their stats, and only the leaves that cross the bounds of a group are read from the file.
+ * M4 groups need the timestamps of their extremes, which the index does not keep, so all the leaves they overlap are read.
+ * The groups are emitted by a {@link GroupEmitter}.
+ */
+public class CsvQueryExecutor implements QueryExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CsvQueryExecutor.class);
+
+    private final CsvTTI csvTTI;
+    private final CsvDataset dataset;
+    private final Map<String, Integer> measuresMap = new HashMap<>();
+
+    /**
+     * The index is built here if it has not been, as it fills in the header of the dataset.
+     */
+    public CsvQueryExecutor(CsvTTI csvTTI) {
+        this.csvTTI = csvTTI;
+        this.dataset = csvTTI.getDataset();
+        initialize(csvTTI.getCsv());
+        String[] header = dataset.getHeader();
+        for (int i = 0; i < header.length; i++) {
+            measuresMap.put(header[i], i);
+        }
+    }
+
+    @Override
+    public QueryResults execute(DataSourceQuery q, QueryMethod method) {
+        switch (method) {
+            case M4:
+                return executeM4Query(q);
+            case RAW:
+                return executeRawQuery(q);
+            case MIN_MAX:
+                return executeMinMaxQuery(q);
+            default:
+                throw new UnsupportedOperationException("Unsupported Query Method");
+        }
+    }
+
+    @Override
+    public QueryResults executeM4Query(DataSourceQuery q) {
+        return collect((CsvQuery) q, GroupEmitter.collecting(QueryMethod.M4));
+    }
+
+    @Override
+    public QueryResults executeMinMaxQuery(DataSourceQuery q) {
+        return collect((CsvQuery) q, GroupEmitter.collecting(QueryMethod.MIN_MAX));
+    }
+
+    @Override
+    public QueryResults executeRawQuery(DataSourceQuery q) {
+        LOG.info("Executing Query: \n" + q.rawQuerySkeleton());
+        HashMap<Integer, List<DataPoint>> data = new HashMap<>();
+        try (RowReader rowReader = new RowReader()) {
+            for (Map.Entry<String, List<TimeInterval>> entry : q.getMissingIntervalsPerMeasure().entrySet()) {
+                int measure = measuresMap.get(entry.getKey());
+                List<DataPoint> dataPoints = data.computeIfAbsent(measure, m -> new ArrayList<>());
+                for (TimeInterval interval : entry.getValue()) {
+                    List<Leaf> leaves = leaves(interval.getFrom(), interval.getTo());
+                    for (int i = 0; i < leaves.size(); i++) {
+                        rowReader.read(leaves, i, (timestamp, row) -> {
+                            if (timestamp >= interval.getFrom() && timestamp < interval.getTo()) {
+                                dataPoints.add(new ImmutableDataPoint(timestamp, Double.parseDouble(row[measure])));
+                            }
+                        });
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        QueryResults queryResults = new QueryResults();
+        queryResults.setData(data);
+        return queryResults;
+    }
+
+    /**
+     * Computes the groups of every missing interval of the query and passes them to the sink, in the order of the measures and intervals.
+     */
+    public void execute(CsvQuery q, QueryMethod method, AggregatedDataPointSink sink) {
+        execute(q, GroupEmitter.toSink(method, sink));
+    }
+
+    private QueryResults collect(CsvQuery q, GroupEmitter emitter) {
+        execute(q, emitter);
+        return emitter.getResults();
+    }
+
+    private void execute(CsvQuery q, GroupEmitter emitter) {
+        QueryMethod method = emitter.getMethod();
+        LOG.info("Executing Query: \n" + (method == QueryMethod.M4 ? q.m4QuerySkeleton() : q.minMaxQuerySkeleton()));
+        Group group = new Group(emitter);
+        try (RowReader rowReader = new RowReader()) {
+            for (Map.Entry<String, List<TimeInterval>> entry : q.getMissingIntervalsPerMeasure().entrySet()) {
+                int measure = measuresMap.get(entry.getKey());
+                long aggregateInterval = Math.max(1, q.getAggregateIntervals().get(entry.getKey()));
+                for (TimeInterval interval : entry.getValue()) {
+                    long from = interval.getFrom();
+                    long to = interval.getTo();
+                    group.start(measure, from, to, aggregateInterval);
+                    List<Leaf> leaves = leaves(from, to);
+                    for (int i = 0; i < leaves.size(); i++) {
+                        Leaf leaf = leaves.get(i);
+                        long firstGroup = (Math.max(leaf.from, from) - from) / aggregateInterval;
+                        long lastGroup = (Math.min(leaf.to, to) - 1 - from) / aggregateInterval;
+                        if (method == QueryMethod.MIN_MAX && leaf.from >= from && leaf.to <= to && firstGroup == lastGroup) {
+                            DoubleSummaryStatistics stats = leaf.node.getStats().get(measure);
+                            group.combine(firstGroup, stats.getCount(), stats.getMin(), stats.getMax());
+                        } else {
+                            rowReader.read(leaves, i, (timestamp, row) -> {
+                                if (timestamp >= from && timestamp < to) {
+                                    group.accept((timestamp - from) / aggregateInterval, timestamp, Double.parseDouble(row[measure]));
+                                }
+                            });
+                        }
+                    }
+                    group.emit();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The leaves of the index that overlap [from, to), in time order.
+     */
+    private List<Leaf> leaves(long from, long to) {
+        List<Leaf> leaves = new ArrayList<>();
+        if (csvTTI.getRoot() != null) addLeaves(csvTTI.getRoot(), LocalDateTime.of(1970, 1, 1, 0, 0), from, to, leaves);
+        return leaves;
+    }
+
+    private void addLeaves(CsvTreeNode node, LocalDateTime start, long from, long to, List<Leaf> leaves) {
+        Collection<TreeNode> children = node.getChildren();
+        if (children == null || children.isEmpty()) {
+            TemporalField field = TimeSeriesIndexUtil.TEMPORAL_HIERARCHY.get(node.getLevel() - 1);
+            leaves.add(new Leaf(node, csvTTI.toTimestamp(start), csvTTI.toTimestamp(start.plus(1, field.getBaseUnit()))));
+            return;
+        }
+        TemporalField field = TimeSeriesIndexUtil.TEMPORAL_HIERARCHY.get(node.getLevel());
+        for (TreeNode child : children) {
+            LocalDateTime childStart = start.with(field, child.getLabel());
+            long childFrom = csvTTI.toTimestamp(childStart);
+            long childTo = csvTTI.toTimestamp(childStart.plus(1, field.getBaseUnit()));
+            if (childTo <= from || childFrom >= to) continue;
+            addLeaves((CsvTreeNode) child, childStart, from, to, leaves);
+        }
+    }
+
+    @Override
+    public void initialize(String path) {
+        if (csvTTI.isInitialized()) return;
+        try {
+            csvTTI.initialize(CsvTTI.DEFAULT_LEAF_LEVEL);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void drop() {
+    }
+
+    @Override
+    public List<TableInfo> getTableInfo() {
+        return Collections.singletonList(new TableInfo(dataset.getTable()));
+    }
+
+    @Override
+    public List<String> getColumns(String tableName) {
+        return Arrays.asList(dataset.getHeader());
+    }
+
+    @Override
+    public List<Object[]> getSample(String schema, String tableName) {
+        List<Object[]> resultList = new ArrayList<>();
+        CsvParser parser = new CsvParser(csvTTI.createCsvParserSettings());
+        parser.beginParsing(Paths.get(csvTTI.getCsv()).toFile(), StandardCharsets.US_ASCII);
+        if (dataset.getHasHeader()) parser.parseNext();
+        String[] row;
+        while (resultList.size() < 10 && (row = parser.parseNext()) != null) {
+            resultList.add(row);
+        }
+        parser.stopParsing();
+        return resultList;
+    }
+
+    public CsvTTI getCsvTTI() {
+        return csvTTI;
+    }
+
+    private static class Leaf {
+        private final CsvTreeNode node;
+        private final long from;
+        private final long to;
+
+        private Leaf(CsvTreeNode node, long from, long to) {
+            this.node = node;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private interface RowConsumer {
+        void accept(long timestamp, String[] row);
+    }
+
+    /**
+     * Reads the rows of leaves from the file. In a file sorted by time, the rows of a leaf follow the rows of the previous one,
+     * so reading a leaf right after the one before it continues where the reader is, without seeking.
+     */
+    private class RowReader implements AutoCloseable {
+        private final FileChannel channel;
+        private final CsvParser parser = new CsvParser(csvTTI.createCsvParserSettings());
+        private final int timeIndex = dataset.getMeasureIndex(dataset.getTimeCol());
+        private BufferedReader reader;
+        private long readerOffset = -1;
+
+        private RowReader() throws IOException {
+            channel = FileChannel.open(Paths.get(csvTTI.getCsv()), StandardOpenOption.READ);
+        }
+
+        private void read(List<Leaf> leaves, int i, RowConsumer consumer) throws IOException {
+            Leaf leaf = leaves.get(i);
+            if (reader == null || readerOffset != leaf.node.getFileOffsetStart()) {
+                channel.position(leaf.node.getFileOffsetStart());
+                reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.US_ASCII.newDecoder(), -1));
+            }
+            for (int j = 0; j < leaf.node.getDataPointCount(); j++) {
+                String line;
+                while ((line = reader.readLine()) != null && line.isEmpty()) ;
+                if (line == null) {
+                    readerOffset = -1;
+                    return;
+                }
+                String[] row = parser.parseLine(line);
+                consumer.accept(csvTTI.toTimestamp(csvTTI.parseStringToDate(row[timeIndex])), row);
+            }
+            readerOffset = i + 1 < leaves.size() ? leaves.get(i + 1).node.getFileOffsetStart() : -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * The extremes and the first and last rows of the group of an interval that is being read, which is emitted when a row of a later group comes.
+     */
+    private static class Group {
+        private final GroupEmitter emitter;
+
+        private int measure;
+        private long intervalFrom;
+        private long intervalTo;
+        private long aggregateInterval;
+
+        private long index;
+        private long count;
+        private long firstTimestamp;
+        private double firstValue;
+        private long lastTimestamp;
+        private double lastValue;
+        private long minTimestamp;
+        private double minValue;
+        private long maxTimestamp;
+        private double maxValue;
+
+        private Group(GroupEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        private void start(int measure, long intervalFrom, long intervalTo, long aggregateInterval) {
+            this.measure = measure;
+            this.intervalFrom = intervalFrom;
+            this.intervalTo = intervalTo;
+            this.aggregateInterval = aggregateInterval;
+            this.index = -1;
+            this.count = 0;
+        }
+
+        private void moveTo(long index) {
+            if (index == this.index) return;
+            emit();
+            this.index = index;
+            count = 0;
+            minValue = Double.POSITIVE_INFINITY;
+            maxValue = Double.NEGATIVE_INFINITY;
+        }
+
+        private void accept(long index, long timestamp, double value) {
+            moveTo(index);
+            if (count == 0) {
+                firstTimestamp = timestamp;
+                firstValue = value;
+            }
+            if (value < minValue) {
+                minValue = value;
+                minTimestamp = timestamp;
+            }
+            if (value > maxValue) {
+                maxValue = value;
+                maxTimestamp = timestamp;
+            }
+            lastTimestamp = timestamp;
+            lastValue = value;
+            count++;
+        }
+
+        /**
+         * Adds the stats of a leaf of the index, whose rows all fall in the group. Only used for min-max groups.
+         */
+        private void combine(long index, long count, double min, double max) {
+            if (count == 0) return;
+            moveTo(index);
+            minValue = Math.min(minValue, min);
+            maxValue = Math.max(maxValue, max);
+            this.count += count;
+        }
+
+        private void emit() {
+            if (count == 0) return;
+            long from = intervalFrom + index * aggregateInterval;
+            long to = Math.min(from + aggregateInterval, intervalTo);
+            emitter.emit(measure, from, to, firstTimestamp, firstValue, minTimestamp, minValue, maxTimestamp, maxValue, lastTimestamp, lastValue);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package eu.more2020.visual.middleware.datasource.QueryExecutor;
+
+import eu.more2020.visual.middleware.domain.*;
+import eu.more2020.visual.middleware.domain.Query.QueryMethod;
+
+import java.util.*;
+
+/**
+ * Emits the min-max and M4 groups that a query executor computes in process, instead of reading them from the results of a query,
+ * in the same form as the groups of the SQL queries. Groups start at the start of their interval, and groups without points are
+ * never emitted. Min-max groups only carry their extremes, while M4 groups carry their first, min, max and last points,
+ * each point once, the way the M4 query returns a row per extreme.
+ * <p>
+ * The groups are either passed to a sink as they are emitted, or collected into {@link QueryResults}.
+ */
+final class GroupEmitter {
+
+    private final QueryMethod method;
+    // The sink of the groups, or null if they are collected.
+    private final AggregatedDataPointSink sink;
+    private final HashMap<Integer, List<DataPoint>> data = new HashMap<>();
+    private final StatsAggregator statsAggregator = new StatsAggregator();
+    private final NonTimestampedStatsAggregator nonTimestampedStatsAggregator = new NonTimestampedStatsAggregator();
+
+    private GroupEmitter(QueryMethod method, AggregatedDataPointSink sink) {
+        this.method = method;
+        this.sink = sink;
+    }
+
+    static GroupEmitter toSink(QueryMethod method, AggregatedDataPointSink sink) {
+        return new GroupEmitter(method, sink);
+    }
+
+    static GroupEmitter collecting(QueryMethod method) {
+        return new GroupEmitter(method, null);
+    }
+
+    QueryMethod getMethod() {
+        return method;
+    }
+
+    /**
+     * Emits a non-empty group [from, to). The timestamps are ignored for min-max groups.
+     */
+    void emit(int measure, long from, long to, long firstTimestamp, double firstValue, long minTimestamp, double minValue,
+              long maxTimestamp, double maxValue, long lastTimestamp, double lastValue) {
+        if (method == QueryMethod.M4) {
+            statsAggregator.clear();
+            add(measure, firstTimestamp, firstValue);
+            if (minTimestamp != firstTimestamp) add(measure, minTimestamp, minValue);
+            if (maxTimestamp != firstTimestamp && maxTimestamp != minTimestamp) add(measure, maxTimestamp, maxValue);
+            if (lastTimestamp != firstTimestamp && lastTimestamp != minTimestamp && lastTimestamp != maxTimestamp) {
+                add(measure, lastTimestamp, lastValue);
+            }
+            if (sink != null) sink.accept(measure, from, to, statsAggregator);
+        } else {
+            nonTimestampedStatsAggregator.clear();
+            nonTimestampedStatsAggregator.setFrom(from);
+            nonTimestampedStatsAggregator.setTo(to);
+            nonTimestampedStatsAggregator.accept(minValue);
+            nonTimestampedStatsAggregator.accept(maxValue);
+            if (sink != null) {
+                sink.accept(measure, from, to, nonTimestampedStatsAggregator);
+            } else {
+                List<DataPoint> dataPoints = data.computeIfAbsent(measure, m -> new ArrayList<>());
+                dataPoints.add(new ImmutableDataPoint(nonTimestampedStatsAggregator.getMinTimestamp(), minValue));
+                dataPoints.add(new ImmutableDataPoint(nonTimestampedStatsAggregator.getMaxTimestamp(), maxValue));
+            }
+        }
+    }
+
+    private void add(int measure, long timestamp, double value) {
+        if (sink != null) statsAggregator.accept(timestamp, value);
+        else data.computeIfAbsent(measure, m -> new ArrayList<>()).add(new ImmutableDataPoint(timestamp, value));
+    }
+
+    /**
+     * The collected groups, with the points of every measure sorted by time.
+     */
+    QueryResults getResults() {
+        data.forEach((k, v) -> v.sort(Comparator.comparingLong(DataPoint::getTimestamp)));
+        QueryResults queryResults = new QueryResults();
+        queryResults.setData(data);
+        return queryResults;
+    }
+}
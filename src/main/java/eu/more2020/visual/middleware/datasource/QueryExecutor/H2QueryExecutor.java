@@ -0,0 +1,112 @@
+package eu.more2020.visual.middleware.datasource.QueryExecutor;
+
+import eu.more2020.visual.middleware.datasource.SQLQuery;
+import eu.more2020.visual.middleware.domain.Dataset.AbstractDataset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs the queries of {@link SQLQueryExecutor} against an in-process H2 database.
+ * H2 accepts the PostgreSQL MIN_MAX and M4 queries as they are. M4 queries use window functions instead of a join though,
+ * as H2 evaluates the joined groups once per row, see {@link SQLQuery#m4WindowQuerySkeleton()}.
+ */
+public class H2QueryExecutor extends SQLQueryExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(H2QueryExecutor.class);
+
+    // The column names of the tables created by the PostgreSQL init queries, used when the dataset does not set them.
+    private static final String DEFAULT_TIME_COL = "timestamp";
+    private static final String DEFAULT_ID_COL = "id";
+    private static final String DEFAULT_VALUE_COL = "value";
+
+    public H2QueryExecutor(Connection connection) {
+        super(connection);
+    }
+
+    public H2QueryExecutor(Connection connection, AbstractDataset dataset) {
+        super(connection, dataset);
+    }
+
+    @Override
+    public ResultSet executeM4SqlQuery(SQLQuery q) throws SQLException {
+        return execute(q.m4WindowQuerySkeleton());
+    }
+
+    @Override
+    public void executeM4SqlQuery(SQLQuery q, int fetchSize, ResultSetConsumer consumer) throws SQLException {
+        execute(q.m4WindowQuerySkeleton(), fetchSize, consumer);
+    }
+
+    /**
+     * Loads a CSV file with a header into the table of the dataset, in the same layout as the PostgreSQL init queries:
+     * a row per timestamp and measure. The first column of the file holds the timestamps and every other column is a measure,
+     * named after its header. Timestamps must be in the ISO format, e.g. 2018-01-03 00:00:00, and empty values are loaded as null.
+     */
+    @Override
+    public void initialize(String path) throws SQLException {
+        String timeCol = dataset.getTimeCol() == null ? DEFAULT_TIME_COL : dataset.getTimeCol();
+        String idCol = dataset.getIdCol() == null ? DEFAULT_ID_COL : dataset.getIdCol();
+        String valueCol = dataset.getValueCol() == null ? DEFAULT_VALUE_COL : dataset.getValueCol();
+        String tmpTable = schema + "." + table + "_tmp";
+        List<String> statements = new ArrayList<>();
+        statements.add("CREATE SCHEMA IF NOT EXISTS " + schema);
+        statements.add("CREATE TABLE " + tmpTable + " AS SELECT * FROM CSVREAD('" + path.replace("'", "''") + "', NULL, "
+                + "'caseSensitiveColumnNames=true')");
+        for (String statement : statements) {
+            LOG.info("Executing: " + statement);
+            connection.prepareStatement(statement).executeUpdate();
+        }
+        List<String> columns = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT * FROM " + tmpTable + " LIMIT 0")) {
+            ResultSetMetaData metaData = resultSet.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                columns.add(metaData.getColumnName(i));
+            }
+        }
+        statements.clear();
+        statements.add("CREATE TABLE " + schema + "." + table + "(\n" +
+                "  " + timeCol + " TIMESTAMP NOT NULL\n" +
+                "  ," + idCol + " VARCHAR NOT NULL\n" +
+                "  ," + valueCol + " DOUBLE\n" +
+                "  ,PRIMARY KEY(" + idCol + ", " + timeCol + ")\n" +
+                ")");
+        String csvTimeCol = quote(columns.get(0));
+        for (String column : columns.subList(1, columns.size())) {
+            statements.add("INSERT INTO " + schema + "." + table + "(" + timeCol + ", " + idCol + ", " + valueCol + ")\n" +
+                    "SELECT CAST(" + csvTimeCol + " AS TIMESTAMP), '" + column.replace("'", "''") + "', " +
+                    "CAST(NULLIF(" + quote(column) + ", '') AS DOUBLE) FROM " + tmpTable);
+        }
+        statements.add("DROP TABLE " + tmpTable);
+        for (String statement : statements) {
+            LOG.info("Executing: " + statement);
+            connection.prepareStatement(statement).executeUpdate();
+        }
+    }
+
+    @Override
+    public void drop() throws SQLException {
+        // H2 fails to drop a table of a missing schema, even with IF EXISTS.
+        try (ResultSet schemas = connection.getMetaData().getSchemas(null, schema.toUpperCase(Locale.ROOT))) {
+            if (!schemas.next()) return;
+        }
+        String[] statements = {"DROP TABLE IF EXISTS " + schema + "." + table, "DROP TABLE IF EXISTS " + schema + "." + table + "_tmp"};
+        for (String statement : statements) {
+            LOG.info("Executing: " + statement);
+            connection.prepareStatement(statement).executeUpdate();
+        }
+    }
+
+    private static String quote(String column) {
+        return "\"" + column.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -5,6 +5,7 @@ import com.influxdb.client.InfluxDBClient;
 import com.influxdb.client.QueryApi;
 import com.influxdb.client.WriteApi;
 import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.exceptions.InfluxException;
 import com.influxdb.query.FluxRecord;
 import com.influxdb.query.FluxTable;
 import com.opencsv.bean.CsvToBean;
@@ -28,6 +29,9 @@ import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 public class InfluxDBQueryExecutor implements QueryExecutor {
 
@@ -332,6 +336,39 @@ public class InfluxDBQueryExecutor implements QueryExecutor {
         return queryApi.query(query);
     }
 
+    public void executeM4InfluxQuery(InfluxDBQuery q, Consumer<FluxRecord> consumer) {
+        String flux = q.m4QuerySkeleton();
+        execute(flux, consumer);
+    }
+
+    public void executeMinMaxInfluxQuery(InfluxDBQuery q, Consumer<FluxRecord> consumer) {
+        String flux = q.minMaxQuerySkeleton();
+        execute(flux, consumer);
+    }
+
+    /**
+     * Executes a query and passes its records to the consumer, in order, as they are parsed from the response,
+     * instead of collecting them into tables first. Returns after the last record is consumed.
+     */
+    public void execute(String query, Consumer<FluxRecord> consumer) {
+        QueryApi queryApi = influxDBClient.getQueryApi();
+        LOG.info("Executing Query: \n" + query);
+        CountDownLatch completed = new CountDownLatch(1);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        queryApi.query(query, (cancellable, record) -> consumer.accept(record), throwable -> {
+            error.set(throwable);
+            completed.countDown();
+        }, completed::countDown);
+        try {
+            completed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InfluxException(e);
+        }
+        if (error.get() instanceof RuntimeException) throw (RuntimeException) error.get();
+        if (error.get() != null) throw new InfluxException(error.get());
+    }
+
     @Override
     public List<TableInfo>  getTableInfo() {
         String fluxQuery = "import \"influxdata/influxdb/schema\"\n"
@@ -1,14 +1,21 @@
 package eu.more2020.visual.middleware.datasource.QueryExecutor;
 
 import eu.more2020.visual.middleware.domain.Dataset.*;
+import eu.more2020.visual.middleware.domain.H2.H2Connection;
 import eu.more2020.visual.middleware.domain.ModelarDB.ModelarDBConnection;
 import eu.more2020.visual.middleware.domain.PostgreSQL.JDBCConnection;
+import eu.more2020.visual.middleware.index.csv.CsvTTI;
 import eu.more2020.visual.middleware.domain.InfluxDB.InfluxDBConnection;
 
 public class QueryExecutorFactory {
 
     public static QueryExecutor getQueryExecutor(AbstractDataset dataset) {
-        if(dataset instanceof PostgreSQLDataset) {
+        if(dataset instanceof H2Dataset) {
+            H2Connection h2Connection = new H2Connection(((H2Dataset) dataset).getConfig());
+            h2Connection.connect();
+            return h2Connection.getQueryExecutor(dataset);
+        }
+        else if(dataset instanceof PostgreSQLDataset) {
             JDBCConnection postgreSQLConnection = new JDBCConnection(((PostgreSQLDataset) dataset).getConfig());
             postgreSQLConnection.connect();
             return postgreSQLConnection.getQueryExecutor(dataset);
@@ -22,6 +29,12 @@ public class QueryExecutorFactory {
             ModelarDBConnection modelarDBConnection = new ModelarDBConnection(((ModelarDBDataset) dataset).getConfig());
             return modelarDBConnection.getSqlQueryExecutor(dataset);
         }
+        else if(dataset instanceof SyntheticDataset) {
+            return new SyntheticQueryExecutor((SyntheticDataset) dataset);
+        }
+        else if(dataset instanceof CsvDataset) {
+            return new CsvQueryExecutor(new CsvTTI(dataset.getPath(), (CsvDataset) dataset));
+        }
         throw new IllegalArgumentException("Unsupported Datasource");
     }
 }
@@ -132,6 +132,16 @@ public class SQLQueryExecutor implements QueryExecutor {
         return execute(query);
     }
 
+    public void executeM4SqlQuery(SQLQuery q, int fetchSize, ResultSetConsumer consumer) throws SQLException {
+        String query = q.m4QuerySkeleton();
+        execute(query, fetchSize, consumer);
+    }
+
+    public void executeMinMaxSqlQuery(SQLQuery q, int fetchSize, ResultSetConsumer consumer) throws SQLException {
+        String query = q.minMaxQuerySkeleton();
+        execute(query, fetchSize, consumer);
+    }
+
 
     private QueryResults collect(ResultSet resultSet) throws SQLException {
         QueryResults queryResults = new QueryResults();
@@ -158,6 +168,41 @@ public class SQLQueryExecutor implements QueryExecutor {
         return preparedStatement.executeQuery();
     }
 
+    /**
+     * Executes a query and passes its result set to the consumer, which reads the rows once, in order.
+     * The rows are fetched from the server in batches of the fetch size instead of all at once, if the driver supports it.
+     * The PostgreSQL driver only does so outside of auto-commit mode, so the query runs in a transaction of its own,
+     * and the auto-commit mode of the connection is restored afterwards. Only one such query runs on the connection at a time,
+     * as another one would end the transaction that its rows are fetched in. The result set and its statement are closed on return.
+     */
+    public void execute(String query, int fetchSize, ResultSetConsumer consumer) throws SQLException {
+        LOG.info("Executing Query: \n" + query);
+        synchronized (connection) {
+            boolean autoCommit = connection.getAutoCommit();
+            if (autoCommit) connection.setAutoCommit(false);
+            try (PreparedStatement preparedStatement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                preparedStatement.setFetchSize(fetchSize);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    consumer.accept(resultSet);
+                }
+            } finally {
+                if (autoCommit) {
+                    // The query only read, so its transaction is rolled back, which also ends it after a failure.
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the result set of a query run by {@link #execute(String, int, ResultSetConsumer)}.
+     */
+    @FunctionalInterface
+    public interface ResultSetConsumer {
+        void accept(ResultSet resultSet) throws SQLException;
+    }
+
     public String getTable() {
         return table;
     }
@@ -0,0 +1,195 @@
+package eu.more2020.visual.middleware.datasource.QueryExecutor;
+
+import eu.more2020.visual.middleware.datasource.DataSourceQuery;
+import eu.more2020.visual.middleware.datasource.Synthetic.RandomWalk;
+import eu.more2020.visual.middleware.datasource.SyntheticQuery;
+import eu.more2020.visual.middleware.domain.*;
+import eu.more2020.visual.middleware.domain.Dataset.SyntheticDataset;
+import eu.more2020.visual.middleware.domain.Query.QueryMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Answers the queries of a {@link SyntheticDataset} by generating its points, in place of a database.
+ * Min-max and M4 groups are computed like the SQL queries compute them, and emitted by a {@link GroupEmitter}.
+ * To stand in for a real database in experiments, every query waits for a fixed latency plus a cost per row it scans.
+ */
+public class SyntheticQueryExecutor implements QueryExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SyntheticQueryExecutor.class);
+
+    private final SyntheticDataset dataset;
+    private final RandomWalk randomWalk;
+    private final Map<String, Integer> measuresMap = new HashMap<>();
+    private final long latencyNanos;
+    private final double rowCostNanos;
+
+    public SyntheticQueryExecutor(SyntheticDataset dataset) {
+        this(dataset, 0, 0);
+    }
+
+    public SyntheticQueryExecutor(SyntheticDataset dataset, long latencyNanos, double rowCostNanos) {
+        this.dataset = dataset;
+        this.randomWalk = dataset.getRandomWalk();
+        this.latencyNanos = latencyNanos;
+        this.rowCostNanos = rowCostNanos;
+        String[] header = dataset.getHeader();
+        for (int i = 0; i < header.length; i++) {
+            measuresMap.put(header[i], i);
+        }
+    }
+
+    @Override
+    public QueryResults execute(DataSourceQuery q, QueryMethod method) {
+        switch (method) {
+            case M4:
+                return executeM4Query(q);
+            case RAW:
+                return executeRawQuery(q);
+            case MIN_MAX:
+                return executeMinMaxQuery(q);
+            default:
+                throw new UnsupportedOperationException("Unsupported Query Method");
+        }
+    }
+
+    @Override
+    public QueryResults executeM4Query(DataSourceQuery q) {
+        return collect((SyntheticQuery) q, GroupEmitter.collecting(QueryMethod.M4));
+    }
+
+    @Override
+    public QueryResults executeMinMaxQuery(DataSourceQuery q) {
+        return collect((SyntheticQuery) q, GroupEmitter.collecting(QueryMethod.MIN_MAX));
+    }
+
+    @Override
+    public QueryResults executeRawQuery(DataSourceQuery q) {
+        LOG.info("Executing Query: \n" + q.rawQuerySkeleton());
+        simulateCost(q);
+        HashMap<Integer, List<DataPoint>> data = new HashMap<>();
+        q.getMissingIntervalsPerMeasure().forEach((measureName, intervals) -> {
+            int measure = measuresMap.get(measureName);
+            List<DataPoint> dataPoints = data.computeIfAbsent(measure, m -> new ArrayList<>());
+            for (TimeInterval interval : intervals) {
+                for (long i = toIndex(interval.getFrom()); i < toIndex(interval.getTo()); i++) {
+                    dataPoints.add(new ImmutableDataPoint(toTimestamp(i), randomWalk.value(measure, i)));
+                }
+            }
+        });
+        data.forEach((k, v) -> v.sort(Comparator.comparingLong(DataPoint::getTimestamp)));
+        QueryResults queryResults = new QueryResults();
+        queryResults.setData(data);
+        return queryResults;
+    }
+
+    /**
+     * Computes the groups of every missing interval of the query and passes them to the sink, in the order of the measures and intervals.
+     */
+    public void execute(SyntheticQuery q, QueryMethod method, AggregatedDataPointSink sink) {
+        execute(q, GroupEmitter.toSink(method, sink));
+    }
+
+    private QueryResults collect(SyntheticQuery q, GroupEmitter emitter) {
+        execute(q, emitter);
+        return emitter.getResults();
+    }
+
+    private void execute(SyntheticQuery q, GroupEmitter emitter) {
+        QueryMethod method = emitter.getMethod();
+        LOG.info("Executing Query: \n" + (method == QueryMethod.M4 ? q.m4QuerySkeleton() : q.minMaxQuerySkeleton()));
+        simulateCost(q);
+        RandomWalk.Range range = new RandomWalk.Range();
+        q.getMissingIntervalsPerMeasure().forEach((measureName, intervals) -> {
+            int measure = measuresMap.get(measureName);
+            long aggregateInterval = Math.max(1, q.getAggregateIntervals().get(measureName));
+            for (TimeInterval interval : intervals) {
+                for (long from = interval.getFrom(); from < interval.getTo(); from += aggregateInterval) {
+                    long to = Math.min(from + aggregateInterval, interval.getTo());
+                    long fromIndex = toIndex(from);
+                    long toIndex = toIndex(to);
+                    if (fromIndex >= toIndex) continue;
+                    randomWalk.aggregate(measure, fromIndex, toIndex, range);
+                    emitter.emit(measure, from, to, toTimestamp(fromIndex), range.getFirstValue(),
+                            toTimestamp(range.getMinIndex()), range.getMinValue(), toTimestamp(range.getMaxIndex()), range.getMaxValue(),
+                            toTimestamp(toIndex - 1), range.getLastValue());
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for as long as a database would take to scan the rows of the missing intervals of the query.
+     */
+    private void simulateCost(DataSourceQuery q) {
+        long rows = 0;
+        for (List<TimeInterval> intervals : q.getMissingIntervalsPerMeasure().values()) {
+            for (TimeInterval interval : intervals) {
+                rows += Math.max(0, toIndex(interval.getTo()) - toIndex(interval.getFrom()));
+            }
+        }
+        long nanos = latencyNanos + (long) (rows * rowCostNanos);
+        long deadline = System.nanoTime() + nanos;
+        // Parking may return early, so it is repeated until the deadline.
+        for (long remaining = nanos; remaining > 0; remaining = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * The index of the first point at or after the timestamp, within the points of the dataset.
+     */
+    private long toIndex(long timestamp) {
+        long interval = dataset.getSamplingInterval().toMillis();
+        long offset = timestamp - dataset.getTimeRange().getFrom();
+        if (offset <= 0) return 0;
+        return Math.min(randomWalk.getRows(), (offset + interval - 1) / interval);
+    }
+
+    private long toTimestamp(long index) {
+        return dataset.getTimeRange().getFrom() + index * dataset.getSamplingInterval().toMillis();
+    }
+
+    @Override
+    public void initialize(String path) {
+        LOG.info("The synthetic dataset {} is generated on the fly, there is nothing to load", dataset.getTable());
+    }
+
+    @Override
+    public void drop() {
+    }
+
+    @Override
+    public List<TableInfo> getTableInfo() {
+        return Collections.singletonList(new TableInfo(dataset.getTable(), dataset.getSchema()));
+    }
+
+    @Override
+    public List<String> getColumns(String tableName) {
+        List<String> columns = new ArrayList<>();
+        columns.add(dataset.getTimeCol());
+        columns.addAll(Arrays.asList(dataset.getHeader()));
+        return columns;
+    }
+
+    @Override
+    public List<Object[]> getSample(String schema, String tableName) {
+        List<Object[]> resultList = new ArrayList<>();
+        for (long i = 0; i < Math.min(10, randomWalk.getRows()); i++) {
+            Object[] row = new Object[dataset.getHeader().length + 1];
+            row[0] = toTimestamp(i);
+            for (int measure = 0; measure < dataset.getHeader().length; measure++) {
+                row[measure + 1] = randomWalk.value(measure, i);
+            }
+            resultList.add(row);
+        }
+        return resultList;
+    }
+
+    public SyntheticDataset getDataset() {
+        return dataset;
+    }
+}
@@ -74,6 +74,25 @@ public class SQLQuery extends DataSourceQuery {
                 "(" + timeCol + " >= " + "'" + range.getFromDate("yyyy-MM-dd HH:mm:ss.SSS") + "'" + " AND " + timeCol + " < " + "'" + range.getToDate("yyyy-MM-dd HH:mm:ss.SSS") + "'" + " AND QA." + idCol + " = '" + measure + "' ) \n" ;
     }
 
+    /**
+     * Same rows as {@link #m4Skeleton}, but the extremes of every group are computed with window functions over the filtered rows
+     * instead of joining the table with its groups. Databases that cannot use an index for the join, like H2, run this in linear time.
+     */
+    private String m4WindowSkeleton(TimeInterval range, String measure, int width, int i) {
+        return "SELECT " + idCol + " , " + timeCol + " , " + valueCol + " , k, " + i + " as u_id \n" +
+                "FROM (SELECT " + idCol + " , " + timeCol + " , " + valueCol + " , k, \n" +
+                "min(" + valueCol + " ) OVER (PARTITION BY k) as v_min, max(" + valueCol + " ) OVER (PARTITION BY k) as v_max, \n" +
+                "min(" + timeCol + " ) OVER (PARTITION BY k) as t_min, max(" + timeCol + " ) OVER (PARTITION BY k) as t_max \n" +
+                "FROM (SELECT " + idCol + " , " + timeCol + " , " + valueCol + " , floor( \n" +
+                "((EXTRACT(EPOCH FROM " + timeCol + ") * 1000) - " + from + " ) / ((" + to + " - " + from + " ) / " + width + " )) as k \n" +
+                "FROM " + schema + "." + table + " \n" +
+                "WHERE " +
+                calculateFilter(range, measure) +
+                ") as Q ) as QA \n" +
+                "WHERE " + valueCol + " = v_min OR " + valueCol + " = v_max OR \n" +
+                timeCol + " = t_min OR " + timeCol + " = t_max \n";
+    }
+
     private String m4QuerySkeletonCreator() {
         AtomicInteger idx = new AtomicInteger();
         return missingIntervalsPerMeasure.entrySet().stream()
@@ -84,6 +103,15 @@ public class SQLQuery extends DataSourceQuery {
 
     }
 
+    private String m4WindowQuerySkeletonCreator() {
+        AtomicInteger idx = new AtomicInteger();
+        return missingIntervalsPerMeasure.entrySet().stream()
+                .flatMap(entry -> entry.getValue().stream()
+                        .map(range -> m4WindowSkeleton(range, entry.getKey(), numberOfGroups.get(entry.getKey()), idx.getAndIncrement()))
+                )
+                .collect(Collectors.joining(" UNION ALL "));
+    }
+
     private String minMaxSkeleton(TimeInterval range, String measure, int i ) {
         return "SELECT " + idCol + " , floor( \n" +
                 "((EXTRACT(epoch FROM " + timeCol + " ) * 1000) - " + range.getFrom() + " ) / " + aggregateIntervals.get(measure) + ") as k, \n" +
@@ -112,7 +140,18 @@ public class SQLQuery extends DataSourceQuery {
 
     @Override
     public String m4QuerySkeleton() {
-        return "WITH Q_M AS (" + m4QuerySkeletonCreator() + ") \n" +
+        return m4QuerySkeleton(m4QuerySkeletonCreator());
+    }
+
+    /**
+     * The M4 query with the extremes of the groups computed by window functions, see {@link #m4WindowSkeleton}.
+     */
+    public String m4WindowQuerySkeleton() {
+        return m4QuerySkeleton(m4WindowQuerySkeletonCreator());
+    }
+
+    private String m4QuerySkeleton(String m4QuerySkeletonCreator) {
+        return "WITH Q_M AS (" + m4QuerySkeletonCreator + ") \n" +
                 "SELECT " + idCol + " , EXTRACT(EPOCH FROM MIN(" + timeCol + ")) * 1000 AS min_time , EXTRACT(EPOCH FROM MAX(" + timeCol + ")) * 1000 AS max_time, " + valueCol + " , k, u_id FROM Q_M \n" +
                 "GROUP BY " + idCol + " , k , " + valueCol + " , u_id \n" +
                 "ORDER BY u_id, k, " + idCol;
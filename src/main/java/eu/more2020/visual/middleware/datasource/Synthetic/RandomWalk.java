@@ -0,0 +1,258 @@
+package eu.more2020.visual.middleware.datasource.Synthetic;
+
+import java.util.SplittableRandom;
+
+/**
+ * A deterministic random walk per measure that can be read at any position, without generating the points before it.
+ * The walk is split in blocks. The first values of the blocks are a random walk of their own, with steps as large as the spread of a block,
+ * and the values inside a block are a random walk pinned to the first values of the block and of the next one.
+ * The min and max of every block are kept once computed, so aggregating a range only generates the blocks it partially covers.
+ */
+public class RandomWalk {
+
+    static final int BLOCK_SIZE = 4096;
+
+    private final long rows;
+    private final long seed;
+    private final long blocks;
+    private final MeasureBlocks[] measureBlocks;
+
+    // The block that was generated last by each thread, as consecutive groups usually fall in the same block.
+    private final ThreadLocal<Block> lastBlock = ThreadLocal.withInitial(Block::new);
+
+    public RandomWalk(long rows, int measures, long seed) {
+        this.rows = rows;
+        this.seed = seed;
+        this.blocks = (rows + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        this.measureBlocks = new MeasureBlocks[measures];
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public int getMeasureCount() {
+        return measureBlocks.length;
+    }
+
+    public double value(int measure, long index) {
+        Block block = block(measure, index / BLOCK_SIZE);
+        return block.values[(int) (index % BLOCK_SIZE)];
+    }
+
+    /**
+     * Aggregates the points of the measure with indexes in [from, to) into the range.
+     */
+    public void aggregate(int measure, long from, long to, Range range) {
+        range.clear();
+        if (from >= to) return;
+        MeasureBlocks measureBlocks = measureBlocks(measure);
+        for (long b = from / BLOCK_SIZE; b <= (to - 1) / BLOCK_SIZE; b++) {
+            long blockFrom = b * BLOCK_SIZE;
+            int length = blockLength(b);
+            int start = (int) Math.max(0, from - blockFrom);
+            int end = (int) Math.min(length, to - blockFrom);
+            if (start == 0 && end == length) {
+                summarize(measure, measureBlocks, b);
+                int i = (int) b;
+                range.combine(blockFrom, measureBlocks.starts[i], measureBlocks.minValues[i], measureBlocks.minOffsets[i],
+                        measureBlocks.maxValues[i], measureBlocks.maxOffsets[i], measureBlocks.lastValues[i], length);
+            } else {
+                double[] values = block(measure, b).values;
+                for (int j = start; j < end; j++) {
+                    range.accept(blockFrom + j, values[j]);
+                }
+            }
+        }
+    }
+
+    private int blockLength(long block) {
+        return (int) Math.min(BLOCK_SIZE, rows - block * BLOCK_SIZE);
+    }
+
+    private synchronized MeasureBlocks measureBlocks(int measure) {
+        if (measureBlocks[measure] == null) measureBlocks[measure] = new MeasureBlocks(measure);
+        return measureBlocks[measure];
+    }
+
+    private void summarize(int measure, MeasureBlocks measureBlocks, long b) {
+        int i = (int) b;
+        synchronized (measureBlocks) {
+            if (measureBlocks.summarized[i]) return;
+        }
+        double[] values = block(measure, b).values;
+        int length = blockLength(b);
+        int minOffset = 0;
+        int maxOffset = 0;
+        for (int j = 1; j < length; j++) {
+            if (values[j] < values[minOffset]) minOffset = j;
+            if (values[j] > values[maxOffset]) maxOffset = j;
+        }
+        synchronized (measureBlocks) {
+            measureBlocks.minValues[i] = values[minOffset];
+            measureBlocks.minOffsets[i] = minOffset;
+            measureBlocks.maxValues[i] = values[maxOffset];
+            measureBlocks.maxOffsets[i] = maxOffset;
+            measureBlocks.lastValues[i] = values[length - 1];
+            measureBlocks.summarized[i] = true;
+        }
+    }
+
+    /**
+     * Generates the values of a block in the buffer of the calling thread, unless they are there already.
+     * The steps are drawn twice from the same generator: first to find where the walk would end, and then to pin it to the start of the next block.
+     */
+    private Block block(int measure, long b) {
+        Block block = lastBlock.get();
+        if (block.measure == measure && block.index == b) return block;
+        MeasureBlocks measureBlocks = measureBlocks(measure);
+        int length = blockLength(b);
+        double start = measureBlocks.starts[(int) b];
+        double end = measureBlocks.starts[(int) b + 1];
+
+        long blockSeed = seed(measure, b + 1);
+        SplittableRandom random = new SplittableRandom(blockSeed);
+        double walk = 0;
+        for (int j = 0; j < length; j++) {
+            walk += step(random);
+        }
+        double drift = (walk - (end - start)) / length;
+
+        random = new SplittableRandom(blockSeed);
+        walk = 0;
+        block.values[0] = start;
+        for (int j = 1; j < length; j++) {
+            walk += step(random);
+            block.values[j] = start + walk - j * drift;
+        }
+        block.measure = measure;
+        block.index = b;
+        return block;
+    }
+
+    /**
+     * The seed of a generator of the measure. The first values of the blocks use the stream 0, and block b uses the stream b + 1.
+     */
+    private long seed(int measure, long stream) {
+        return new SplittableRandom(seed + measure * 0x9E3779B97F4A7C15L + stream * 0xC2B2AE3D27D4EB4FL).nextLong();
+    }
+
+    private static double step(SplittableRandom random) {
+        return random.nextDouble() * 2 - 1;
+    }
+
+    /**
+     * The first value and the extremes of every block of a measure. The extremes are computed the first time the whole block is aggregated.
+     */
+    private class MeasureBlocks {
+        private final double[] starts;
+        private final double[] minValues;
+        private final int[] minOffsets;
+        private final double[] maxValues;
+        private final int[] maxOffsets;
+        private final double[] lastValues;
+        private final boolean[] summarized;
+
+        private MeasureBlocks(int measure) {
+            int count = Math.toIntExact(blocks);
+            starts = new double[count + 1];
+            minValues = new double[count];
+            minOffsets = new int[count];
+            maxValues = new double[count];
+            maxOffsets = new int[count];
+            lastValues = new double[count];
+            summarized = new boolean[count];
+            // A uniform step in [-1, 1) has a variance of 1/3, so a block of n steps spreads with a deviation of sqrt(n / 3).
+            SplittableRandom random = new SplittableRandom(seed(measure, 0));
+            for (int b = 0; b < count; b++) {
+                starts[b + 1] = starts[b] + gaussian(random) * Math.sqrt(blockLength(b) / 3d);
+            }
+        }
+
+        private double gaussian(SplittableRandom random) {
+            return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+        }
+    }
+
+    private static class Block {
+        private final double[] values = new double[BLOCK_SIZE];
+        private int measure = -1;
+        private long index = -1;
+    }
+
+    /**
+     * The count, first and last values and the extremes of the points of a range, with the indexes of the extremes.
+     * Ties are broken in favour of the earliest point.
+     */
+    public static class Range {
+        private long count;
+        private double firstValue;
+        private double lastValue;
+        private double minValue;
+        private long minIndex;
+        private double maxValue;
+        private long maxIndex;
+
+        void clear() {
+            count = 0;
+            minValue = Double.POSITIVE_INFINITY;
+            maxValue = Double.NEGATIVE_INFINITY;
+        }
+
+        void accept(long index, double value) {
+            if (count == 0) firstValue = value;
+            if (value < minValue) {
+                minValue = value;
+                minIndex = index;
+            }
+            if (value > maxValue) {
+                maxValue = value;
+                maxIndex = index;
+            }
+            lastValue = value;
+            count++;
+        }
+
+        void combine(long from, double first, double min, int minOffset, double max, int maxOffset, double last, int length) {
+            if (count == 0) firstValue = first;
+            if (min < minValue) {
+                minValue = min;
+                minIndex = from + minOffset;
+            }
+            if (max > maxValue) {
+                maxValue = max;
+                maxIndex = from + maxOffset;
+            }
+            lastValue = last;
+            count += length;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getFirstValue() {
+            return firstValue;
+        }
+
+        public double getLastValue() {
+            return lastValue;
+        }
+
+        public double getMinValue() {
+            return minValue;
+        }
+
+        public long getMinIndex() {
+            return minIndex;
+        }
+
+        public double getMaxValue() {
+            return maxValue;
+        }
+
+        public long getMaxIndex() {
+            return maxIndex;
+        }
+    }
+}
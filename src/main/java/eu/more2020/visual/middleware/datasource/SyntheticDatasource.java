@@ -0,0 +1,182 @@
+package eu.more2020.visual.middleware.datasource;
+
+import eu.more2020.visual.middleware.datasource.QueryExecutor.SyntheticQueryExecutor;
+import eu.more2020.visual.middleware.domain.*;
+import eu.more2020.visual.middleware.domain.Dataset.SyntheticDataset;
+import eu.more2020.visual.middleware.domain.Query.QueryMethod;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * A data source over a {@link SyntheticDataset}, whose points are generated when they are requested.
+ */
+public class SyntheticDatasource implements DataSource {
+
+    SyntheticQueryExecutor syntheticQueryExecutor;
+    SyntheticDataset dataset;
+
+    public SyntheticDatasource(SyntheticQueryExecutor syntheticQueryExecutor, SyntheticDataset dataset) {
+        this.dataset = dataset;
+        this.syntheticQueryExecutor = syntheticQueryExecutor;
+    }
+
+    @Override
+    public AggregatedDataPoints getAggregatedDataPoints(long from, long to,
+                                                        Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure, Map<Integer, Integer> numberOfGroups, QueryMethod queryMethod) {
+        return new SyntheticAggregatedDataPoints(from, to, missingIntervalsPerMeasure, numberOfGroups, queryMethod);
+    }
+
+    @Override
+    public DataPoints getDataPoints(long from, long to, List<Integer> measures) {
+        Map<Integer, List<TimeInterval>> missingTimeIntervalsPerMeasure = new HashMap<>();
+        for (Integer measure : measures) {
+            List<TimeInterval> timeIntervalsForMeasure = new ArrayList<>();
+            timeIntervalsForMeasure.add(new TimeRange(from, to));
+            missingTimeIntervalsPerMeasure.put(measure, timeIntervalsForMeasure);
+        }
+        return new SyntheticDataPoints(from, to, missingTimeIntervalsPerMeasure);
+    }
+
+    @Override
+    public DataPoints getDataPoints(long from, long to, Map<Integer, List<TimeInterval>> missingTimeIntervalsPerMeasure) {
+        return new SyntheticDataPoints(from, to, missingTimeIntervalsPerMeasure);
+    }
+
+    @Override
+    public DataPoints getAllDataPoints(List<Integer> measures) {
+        return getDataPoints(dataset.getTimeRange().getFrom(), dataset.getTimeRange().getTo(), measures);
+    }
+
+    private Map<String, List<TimeInterval>> byMeasureName(Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure) {
+        return missingIntervalsPerMeasure.entrySet().stream()
+                .collect(Collectors.toMap(entry -> dataset.getHeader()[entry.getKey()], Map.Entry::getValue,
+                        (v1, v2) -> v1, LinkedHashMap::new));
+    }
+
+    /**
+     * The raw points of the missing intervals, one measure after the other.
+     */
+    final class SyntheticDataPoints implements DataPoints {
+
+        private final SyntheticQuery syntheticQuery;
+
+        public SyntheticDataPoints(long from, long to, Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure) {
+            this.syntheticQuery = new SyntheticQuery(from, to, byMeasureName(missingIntervalsPerMeasure));
+        }
+
+        @NotNull
+        public Iterator<DataPoint> iterator() {
+            return syntheticQueryExecutor.executeRawQuery(syntheticQuery).getData().values().stream()
+                    .flatMap(List::stream).iterator();
+        }
+
+        @Override
+        public long getFrom() {
+            return syntheticQuery.getFrom();
+        }
+
+        @Override
+        public long getTo() {
+            return syntheticQuery.getTo();
+        }
+
+        @Override
+        public String getFromDate() {
+            return getFromDate("yyyy-MM-dd HH:mm:ss");
+        }
+
+        @Override
+        public String getToDate() {
+            return getToDate("yyyy-MM-dd HH:mm:ss");
+        }
+
+        @Override
+        public String getFromDate(String format) {
+            return Instant.ofEpochMilli(syntheticQuery.getFrom()).atZone(ZoneId.of("UTC")).format(DateTimeFormatter.ofPattern(format));
+        }
+
+        @Override
+        public String getToDate(String format) {
+            return Instant.ofEpochMilli(syntheticQuery.getTo()).atZone(ZoneId.of("UTC")).format(DateTimeFormatter.ofPattern(format));
+        }
+    }
+
+    final class SyntheticAggregatedDataPoints implements AggregatedDataPoints {
+
+        private final SyntheticQuery syntheticQuery;
+        private final QueryMethod queryMethod;
+
+        public SyntheticAggregatedDataPoints(long from, long to, Map<Integer, List<TimeInterval>> missingIntervalsPerMeasure,
+                                             Map<Integer, Integer> numberOfGroups, QueryMethod queryMethod) {
+            Map<String, Integer> numberOfGroupsPerMeasureName = numberOfGroups.entrySet().stream()
+                    .collect(Collectors.toMap(entry -> dataset.getHeader()[entry.getKey()], Map.Entry::getValue,
+                            (v1, v2) -> v1, LinkedHashMap::new));
+            this.syntheticQuery = new SyntheticQuery(from, to, byMeasureName(missingIntervalsPerMeasure), numberOfGroupsPerMeasureName);
+            this.queryMethod = queryMethod;
+        }
+
+        @NotNull
+        public Iterator<AggregatedDataPoint> iterator() {
+            List<AggregatedDataPoint> aggregatedDataPoints = new ArrayList<>();
+            syntheticQueryExecutor.execute(syntheticQuery, queryMethod,
+                    (measure, from, to, count, sum, minValue, minTimestamp, maxValue, maxTimestamp) -> {
+                        StatsAggregator statsAggregator = new StatsAggregator();
+                        statsAggregator.accept(count, sum, minValue, minTimestamp, maxValue, maxTimestamp);
+                        aggregatedDataPoints.add(new ImmutableAggregatedDataPoint(from, to, measure, statsAggregator));
+                    });
+            return aggregatedDataPoints.iterator();
+        }
+
+        /**
+         * Generates the groups straight into the sink, without creating a data point per group.
+         */
+        @Override
+        public void writeTo(AggregatedDataPointSink sink) {
+            syntheticQueryExecutor.execute(syntheticQuery, queryMethod, sink);
+        }
+
+        @Override
+        public String toString() {
+            return "SyntheticDataPoints{" +
+                    "measures=" + syntheticQuery.getMissingIntervalsPerMeasure().keySet() +
+                    ", from=" + syntheticQuery.getFrom() +
+                    ", to=" + syntheticQuery.getTo() +
+                    '}';
+        }
+
+        @Override
+        public long getFrom() {
+            return syntheticQuery.getFrom();
+        }
+
+        @Override
+        public long getTo() {
+            return syntheticQuery.getTo();
+        }
+
+        @Override
+        public String getFromDate() {
+            return getFromDate("yyyy-MM-dd HH:mm:ss");
+        }
+
+        @Override
+        public String getToDate() {
+            return getToDate("yyyy-MM-dd HH:mm:ss");
+        }
+
+        @Override
+        public String getFromDate(String format) {
+            return Instant.ofEpochMilli(syntheticQuery.getFrom()).atZone(ZoneId.of("UTC")).format(DateTimeFormatter.ofPattern(format));
+        }
+
+        @Override
+        public String getToDate(String format) {
+            return Instant.ofEpochMilli(syntheticQuery.getTo()).atZone(ZoneId.of("UTC")).format(DateTimeFormatter.ofPattern(format));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package eu.more2020.visual.middleware.domain;
+
+/**
+ * Receives the aggregated data points fetched from a data source as they are decoded,
+ * as primitive values instead of an {@link AggregatedDataPoint} instance per group.
+ */
+public interface AggregatedDataPointSink {
+
+    /**
+     * Receives the aggregates of a group. The timestamps of the min and max values are ignored if the count is 0.
+     *
+     * @param measure The measure of the group
+     * @param from The start of the group
+     * @param to The end of the group
+     */
+    void accept(int measure, long from, long to, int count, double sum,
+                double minValue, long minTimestamp, double maxValue, long maxTimestamp);
+
+    /**
+     * Receives the stats of a group. The stats are read before this returns, so they can be reused for the next group.
+     */
+    default void accept(int measure, long from, long to, Stats stats) {
+        if (stats.getCount() == 0) {
+            accept(measure, from, to, 0, 0, 0, 0, 0, 0);
+            return;
+        }
+        long maxTimestamp = stats.getMaxTimestamp();
+        // Keep the last timestamp in case of same values in the interval, as the spans always did.
+        if (stats.getMaxValue() == stats.getLastValue()) {
+            maxTimestamp = stats.getLastTimestamp();
+        }
+        accept(measure, from, to, stats.getCount(), stats.getSum(),
+                stats.getMinValue(), stats.getMinTimestamp(), stats.getMaxValue(), maxTimestamp);
+    }
+}
@@ -1,3 +1,15 @@
 package eu.more2020.visual.middleware.domain;
 
-public interface AggregatedDataPoints extends Iterable<AggregatedDataPoint>, TimeInterval { }
+public interface AggregatedDataPoints extends Iterable<AggregatedDataPoint>, TimeInterval {
+
+    /**
+     * Passes all the aggregated data points to the sink, in the order of the iterator.
+     * Data sources override this to decode their results directly into the sink, without creating a data point per group.
+     */
+    default void writeTo(AggregatedDataPointSink sink) {
+        for (AggregatedDataPoint aggregatedDataPoint : this) {
+            sink.accept(aggregatedDataPoint.getMeasure(), aggregatedDataPoint.getFrom(), aggregatedDataPoint.getTo(),
+                    aggregatedDataPoint.getStats());
+        }
+    }
+}
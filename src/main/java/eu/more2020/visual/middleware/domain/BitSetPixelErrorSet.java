@@ -0,0 +1,138 @@
+package eu.more2020.visual.middleware.domain;
+
+import java.util.Arrays;
+
+/**
+ * A {@link PixelErrorSet} over reusable bitsets of the pixel ids [0, height] of a view port.
+ * Besides the pixels, it keeps the edges between consecutive pixels that are covered by the same added range,
+ * since ranges like [1, 3] and [4, 6] stay disjoint in a range set. This way the count is the same as the one of
+ * {@link RangeSetPixelErrorSet}, without allocating.
+ * Pixel ids outside [0, height] may occur for groups that are partially outside the view port,
+ * in which case the column falls back to a range set.
+ */
+public class BitSetPixelErrorSet implements PixelErrorSet {
+
+    // The number of pixel ids, height + 1, since the max value of the view port gets the pixel id height.
+    private final int size;
+
+    private final long[] pixels;
+
+    // Bit i is set if pixels i and i + 1 are in the same added range.
+    private final long[] edges;
+
+    private boolean empty = true;
+
+    private RangeSetPixelErrorSet overflow;
+
+    private boolean overflowed = false;
+
+    public BitSetPixelErrorSet(int height) {
+        this.size = height + 1;
+        this.pixels = new long[(size + 63) >>> 6];
+        this.edges = new long[(size + 63) >>> 6];
+    }
+
+    @Override
+    public void clear() {
+        if (!empty) {
+            Arrays.fill(pixels, 0L);
+            Arrays.fill(edges, 0L);
+            empty = true;
+        }
+        overflowed = false;
+    }
+
+    @Override
+    public void add(int lower, int upper) {
+        if (lower > upper) {
+            throw new IllegalArgumentException("Invalid pixel range [" + lower + ", " + upper + "]");
+        }
+        if (!overflowed && (lower < 0 || upper >= size)) {
+            switchToRangeSet();
+        }
+        if (overflowed) {
+            overflow.add(lower, upper);
+            return;
+        }
+        setBits(pixels, lower, upper);
+        if (lower < upper) {
+            setBits(edges, lower, upper - 1);
+        }
+        empty = false;
+    }
+
+    @Override
+    public int removeAndCount(int lower, int upper) {
+        if (lower > upper) {
+            throw new IllegalArgumentException("Invalid pixel range [" + lower + ", " + upper + "]");
+        }
+        if (overflowed) {
+            return overflow.removeAndCount(lower, upper);
+        }
+        if (empty) {
+            return 0;
+        }
+        int count = countBits(pixels, 0, size - 1) - countBits(pixels, Math.max(lower, 0), Math.min(upper, size - 1));
+        // A range cut at the lower or upper end of the removed range still counts the pixel at the cut.
+        if (isSet(edges, lower - 1)) count++;
+        if (isSet(edges, upper)) count++;
+        return count;
+    }
+
+    /**
+     * Moves the ranges added so far to a range set. Every maximal run of pixels connected by edges is one range.
+     */
+    private void switchToRangeSet() {
+        if (overflow == null) {
+            overflow = new RangeSetPixelErrorSet();
+        } else {
+            overflow.clear();
+        }
+        int i = 0;
+        while (!empty && i < size) {
+            if (!isSet(pixels, i)) {
+                i++;
+                continue;
+            }
+            int lower = i;
+            while (isSet(edges, i)) i++;
+            overflow.add(lower, i);
+            i++;
+        }
+        overflowed = true;
+    }
+
+    private boolean isSet(long[] bits, int i) {
+        return i >= 0 && i < size && (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private static void setBits(long[] bits, int from, int to) {
+        int fromWord = from >>> 6;
+        int toWord = to >>> 6;
+        long fromMask = -1L << from;
+        long toMask = -1L >>> (63 - (to & 63));
+        if (fromWord == toWord) {
+            bits[fromWord] |= fromMask & toMask;
+            return;
+        }
+        bits[fromWord] |= fromMask;
+        for (int w = fromWord + 1; w < toWord; w++) bits[w] = -1L;
+        bits[toWord] |= toMask;
+    }
+
+    private static int countBits(long[] bits, int from, int to) {
+        if (from > to) {
+            return 0;
+        }
+        int fromWord = from >>> 6;
+        int toWord = to >>> 6;
+        long fromMask = -1L << from;
+        long toMask = -1L >>> (63 - (to & 63));
+        if (fromWord == toWord) {
+            return Long.bitCount(bits[fromWord] & fromMask & toMask);
+        }
+        int count = Long.bitCount(bits[fromWord] & fromMask);
+        for (int w = fromWord + 1; w < toWord; w++) count += Long.bitCount(bits[w]);
+        return count + Long.bitCount(bits[toWord] & toMask);
+    }
+}
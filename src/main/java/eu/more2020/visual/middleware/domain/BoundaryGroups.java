@@ -0,0 +1,92 @@
+package eu.more2020.visual.middleware.domain;
+
+import java.util.Arrays;
+
+/**
+ * The groups that cross the left or the right boundary of a {@link PixelColumn}.
+ * Only the interval, count, min and max of every group are kept, in primitive arrays, in the order the groups were added.
+ * A group is referred to by its index.
+ */
+public class BoundaryGroups {
+
+    private long[] froms = new long[0];
+    private long[] tos = new long[0];
+    private int[] counts = new int[0];
+    private double[] minValues = new double[0];
+    private double[] maxValues = new double[0];
+
+    private int size = 0;
+
+    public void add(long from, long to, int count, double minValue, double maxValue) {
+        if (size == froms.length) {
+            int capacity = Math.max(2, size * 2);
+            froms = Arrays.copyOf(froms, capacity);
+            tos = Arrays.copyOf(tos, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            minValues = Arrays.copyOf(minValues, capacity);
+            maxValues = Arrays.copyOf(maxValues, capacity);
+        }
+        froms[size] = from;
+        tos[size] = to;
+        counts[size] = count;
+        minValues[size] = minValue;
+        maxValues[size] = maxValue;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getFrom(int i) {
+        return froms[i];
+    }
+
+    public long getTo(int i) {
+        return tos[i];
+    }
+
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    public double getMinValue(int i) {
+        return minValues[i];
+    }
+
+    public double getMaxValue(int i) {
+        return maxValues[i];
+    }
+
+    /**
+     * Returns the index of the shortest group that ends at or after the given timestamp.
+     * Among groups of the same length, the first one added is returned.
+     *
+     * @return the index of the group, or -1 if there is no such group
+     */
+    public int shortestEndingAtOrAfter(long timestamp) {
+        int shortest = -1;
+        for (int i = 0; i < size; i++) {
+            if (tos[i] >= timestamp && (shortest < 0 || tos[i] - froms[i] < tos[shortest] - froms[shortest])) {
+                shortest = i;
+            }
+        }
+        return shortest;
+    }
+
+    /**
+     * Returns the index of the shortest group that starts at or before the given timestamp.
+     * Among groups of the same length, the first one added is returned.
+     *
+     * @return the index of the group, or -1 if there is no such group
+     */
+    public int shortestStartingAtOrBefore(long timestamp) {
+        int shortest = -1;
+        for (int i = 0; i < size; i++) {
+            if (froms[i] <= timestamp && (shortest < 0 || tos[i] - froms[i] < tos[shortest] - froms[shortest])) {
+                shortest = i;
+            }
+        }
+        return shortest;
+    }
+}
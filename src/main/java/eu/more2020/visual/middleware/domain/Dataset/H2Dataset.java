@@ -0,0 +1,26 @@
+package eu.more2020.visual.middleware.domain.Dataset;
+
+import eu.more2020.visual.middleware.domain.H2.H2Connection;
+
+import java.sql.SQLException;
+
+/**
+ * A dataset in a table of an in-process H2 database, laid out like the PostgreSQL tables: a row per timestamp and measure.
+ */
+public class H2Dataset extends PostgreSQLDataset {
+
+    public H2Dataset(String config, String id, String schema, String table,
+                     String timeFormat, String timeCol, String idCol, String valueCol) throws SQLException {
+        super(config, id, schema, table, timeFormat);
+        setTimeCol(timeCol);
+        setIdCol(idCol);
+        setValueCol(valueCol);
+        H2Connection h2Connection = new H2Connection(config);
+        h2Connection.connect();
+        this.fillPostgreSQLDatasetInfo(h2Connection.getQueryExecutor());
+    }
+
+    public H2Dataset(String config, String id, String schema, String table, String timeFormat) {
+        super(config, id, schema, table, timeFormat);
+    }
+}
@@ -40,7 +40,7 @@ public class PostgreSQLDataset extends AbstractDataset {
         this.config = config;
     }
 
-    private void fillPostgreSQLDatasetInfo(SQLQueryExecutor sqlQueryExecutor) throws SQLException {
+    protected void fillPostgreSQLDatasetInfo(SQLQueryExecutor sqlQueryExecutor) throws SQLException {
         ResultSet resultSet;
         // Header query
         String headerQuery = "SELECT DISTINCT(" + getIdCol() + ") FROM " + getSchema() + "." + getTable() + " \n" +
@@ -0,0 +1,88 @@
+package eu.more2020.visual.middleware.domain.Dataset;
+
+import eu.more2020.visual.middleware.datasource.Synthetic.RandomWalk;
+import eu.more2020.visual.middleware.domain.TimeRange;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A dataset that is generated on the fly as a random walk per measure, instead of being read from a database.
+ * It has the shape of the synthetic tables: one point per sampling interval for each of the measures value_1 to value_5.
+ * The number of points follows from the name of the table, e.g. synthetic1m has a million and synthetic1b a billion.
+ */
+public class SyntheticDataset extends AbstractDataset {
+
+    private static final Pattern TABLE_SIZE = Pattern.compile("synthetic(\\d+)([kmb])", Pattern.CASE_INSENSITIVE);
+
+    public static final int DEFAULT_MEASURES = 5;
+    public static final Duration DEFAULT_SAMPLING_INTERVAL = Duration.ofSeconds(1);
+    // 2020-01-01 00:00:00 UTC
+    public static final long DEFAULT_START = 1577836800000L;
+    public static final long DEFAULT_SEED = 2020L;
+
+    private final long rows;
+    private final long seed;
+
+    private transient RandomWalk randomWalk;
+
+    public SyntheticDataset(String id, String schema, String table) {
+        this(id, schema, table, rows(table), DEFAULT_MEASURES, DEFAULT_SAMPLING_INTERVAL, DEFAULT_START, DEFAULT_SEED);
+    }
+
+    public SyntheticDataset(String id, String schema, String table, long rows, int measures,
+                            Duration samplingInterval, long start, long seed) {
+        super(id, table, schema, "yyyy-MM-dd[ HH:mm:ss.SSS]", "timestamp", "id", "value");
+        if (rows < 2) throw new IllegalArgumentException("A synthetic dataset needs at least two points, got " + rows);
+        this.rows = rows;
+        this.seed = seed;
+        setHeader(IntStream.rangeClosed(1, measures).mapToObj(i -> "value_" + i).toArray(String[]::new));
+        setSamplingInterval(samplingInterval);
+        // Like the database datasets, the time range ends at the last timestamp.
+        setTimeRange(new TimeRange(start, start + (rows - 1) * samplingInterval.toMillis()));
+    }
+
+    /**
+     * The number of points of a synthetic table, from the suffix of its name.
+     */
+    public static long rows(String table) {
+        Matcher matcher = TABLE_SIZE.matcher(table);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Synthetic tables are named like synthetic1m or synthetic1b, got " + table);
+        }
+        long rows = Long.parseLong(matcher.group(1));
+        switch (matcher.group(2).toLowerCase()) {
+            case "k":
+                return rows * 1_000L;
+            case "m":
+                return rows * 1_000_000L;
+            default:
+                return rows * 1_000_000_000L;
+        }
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * The generator of the points, shared by everything that reads the dataset so that the extremes it computes are reused.
+     */
+    public synchronized RandomWalk getRandomWalk() {
+        if (randomWalk == null) randomWalk = new RandomWalk(rows, getHeader().length, seed);
+        return randomWalk;
+    }
+
+    @Override
+    public List<Integer> getMeasures() {
+        return IntStream.range(0, getHeader().length).boxed().collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,88 @@
+package eu.more2020.visual.middleware.domain.H2;
+
+import eu.more2020.visual.middleware.datasource.QueryExecutor.H2QueryExecutor;
+import eu.more2020.visual.middleware.domain.DatabaseConnection;
+import eu.more2020.visual.middleware.domain.Dataset.AbstractDataset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * A connection to an in-process H2 database. With the in-memory URL of h2.cfg, every connection of the JVM sees the same database,
+ * which lives until the JVM exits.
+ */
+public class H2Connection implements DatabaseConnection {
+    private static final Logger LOG = LoggerFactory.getLogger(H2Connection.class);
+
+    String config;
+    String host;
+    String user;
+    String password;
+    Connection connection;
+    private final Properties properties = new Properties();
+
+    public H2Connection(String config) {
+        this.config = config;
+        InputStream inputStream
+                = getClass().getClassLoader().getResourceAsStream(config);
+        try {
+            properties.load(inputStream);
+            host = properties.getProperty("host");
+            user = properties.getProperty("user");
+            password = properties.getProperty("password");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public H2Connection(String host, String user, String password){
+        this.host = host;
+        this.user = user;
+        this.password = password;
+    }
+
+    @Override
+    public void connect() {
+        connection = null;
+        try {
+            Class.forName("org.h2.Driver");
+            connection = DriverManager
+                    .getConnection(host, user, password);
+            LOG.info("Initialized H2 connection {}", host);
+        } catch (Exception e) {
+            e.printStackTrace();
+            LOG.error(e.getClass().getName()+": "+e.getMessage());
+        }
+    }
+
+    @Override
+    public void closeConnection() throws SQLException {
+        try {
+            connection.close();
+        } catch (Exception e) {
+            LOG.error(e.getClass().getName()+": "+e.getMessage());
+            throw e;
+        }
+    }
+
+    @Override
+    public H2QueryExecutor getQueryExecutor() {
+        return new H2QueryExecutor(connection);
+    }
+
+    @Override
+    public H2QueryExecutor getQueryExecutor(AbstractDataset dataset) {
+        return new H2QueryExecutor(connection, dataset);
+    }
+
+    @Override
+    public String getType() {
+        return "h2";
+    }
+}
@@ -1,8 +1,5 @@
 package eu.more2020.visual.middleware.domain;
 
-import com.google.common.collect.Range;
-import com.google.common.collect.RangeSet;
-import com.google.common.collect.TreeRangeSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,44 +16,66 @@ public class MaxErrorEvaluator {
 
     private final List<PixelColumn> pixelColumns;
 
+    // Reused for the pixel errors of every pixel column.
+    private final PixelErrorSet pixelErrorSet;
+
     private List<TimeInterval> missingRanges;
 
 
     public MaxErrorEvaluator(ViewPort viewPort, List<PixelColumn> pixelColumns) {
+        this(viewPort, pixelColumns, new BitSetPixelErrorSet(viewPort.getHeight()));
+    }
+
+    public MaxErrorEvaluator(ViewPort viewPort, List<PixelColumn> pixelColumns, PixelErrorSet pixelErrorSet) {
         this.viewPort = viewPort;
         this.pixelColumns = pixelColumns;
+        this.pixelErrorSet = pixelErrorSet;
     }
 
     public List<Double> computeMaxPixelErrorsPerColumn() {
-        List<Double> maxPixelErrorsPerColumn = new ArrayList<>();
+        double[] maxPixelErrors = computeMaxPixelErrors();
+        List<Double> maxPixelErrorsPerColumn = new ArrayList<>(maxPixelErrors.length);
+        for (double maxPixelError : maxPixelErrors) {
+            maxPixelErrorsPerColumn.add(Double.isNaN(maxPixelError) ? null : maxPixelError);
+        }
+        LOG.debug("{}", maxPixelErrorsPerColumn);
+        return maxPixelErrorsPerColumn;
+    }
+
+    /**
+     * Computes the maximum pixel error of every pixel column, as the ratio of possibly wrong pixels to the view port height.
+     * @return the error per pixel column, or NaN for the columns whose error can not be determined.
+     */
+    public double[] computeMaxPixelErrors() {
+        double[] maxPixelErrors = new double[pixelColumns.size()];
         missingRanges = new ArrayList<>();
 
         // The stats aggregator for the whole query interval to keep track of the min/max values
         // and determine the y-axis scale.
         StatsAggregator viewPortStatsAggregator = new StatsAggregator();
-        pixelColumns.forEach(pixelColumn -> viewPortStatsAggregator.combine(pixelColumn.getStats()));
+        for (PixelColumn pixelColumn : pixelColumns) {
+            viewPortStatsAggregator.combine(pixelColumn.getStats());
+        }
         LOG.debug("Viewport stats: {}", viewPortStatsAggregator);
 
         for (int i = 0; i < pixelColumns.size(); i++) {
             PixelColumn currentPixelColumn = pixelColumns.get(i);
-            Range<Integer> maxInnerColumnPixelRanges = currentPixelColumn.computeMaxInnerPixelRange(viewPortStatsAggregator);
-            if (maxInnerColumnPixelRanges == null) {
-                maxPixelErrorsPerColumn.add(null);
+            if (!currentPixelColumn.computeMaxInnerPixelIds(viewPortStatsAggregator)) {
+                maxPixelErrors[i] = Double.NaN;
                 missingRanges.add(currentPixelColumn.getRange()); // add range as missing
                 continue;
             }
-            RangeSet<Integer> pixelErrorRangeSet = TreeRangeSet.create();
+            pixelErrorSet.clear();
 
             // Check if there is a previous PixelColumn
             if (i > 0) {
                 PixelColumn previousPixelColumn = pixelColumns.get(i - 1);
                 if (previousPixelColumn.getStats().getCount() != 0) {
-                    Range<Integer> leftMaxFalsePixels = currentPixelColumn.getPixelIdsForLineSegment(previousPixelColumn.getStats().getLastTimestamp(), previousPixelColumn.getStats().getLastValue(),
-                            currentPixelColumn.getStats().getFirstTimestamp(), currentPixelColumn.getStats().getFirstValue(), viewPortStatsAggregator);
-                    pixelErrorRangeSet.add(leftMaxFalsePixels);
+                    currentPixelColumn.addPixelIdsForLineSegment(previousPixelColumn.getStats().getLastTimestamp(), previousPixelColumn.getStats().getLastValue(),
+                            currentPixelColumn.getStats().getFirstTimestamp(), currentPixelColumn.getStats().getFirstValue(), viewPortStatsAggregator, pixelErrorSet);
 
-                    if (!getMaxMissingInterColumnPixels(previousPixelColumn, currentPixelColumn, pixelErrorRangeSet, viewPortStatsAggregator)){
-                        maxPixelErrorsPerColumn.add(null);
+                    if (!getMaxMissingInterColumnPixels(previousPixelColumn, currentPixelColumn, viewPortStatsAggregator)){
+                        maxPixelErrors[i] = Double.NaN;
                         missingRanges.add(currentPixelColumn.getRange()); // add range as missing
                         continue;
                     }
@@ -66,25 +85,21 @@ public class MaxErrorEvaluator {
             if (i < pixelColumns.size() - 1) {
                 PixelColumn nextPixelColumn = pixelColumns.get(i + 1);
                 if (nextPixelColumn.getStats().getCount() != 0) {
-                    Range<Integer> rightMaxFalsePixels = currentPixelColumn.getPixelIdsForLineSegment(currentPixelColumn.getStats().getLastTimestamp(), currentPixelColumn.getStats().getLastValue(),
-                            nextPixelColumn.getStats().getFirstTimestamp(), nextPixelColumn.getStats().getFirstValue(), viewPortStatsAggregator);
-                    pixelErrorRangeSet.add(rightMaxFalsePixels);
+                    currentPixelColumn.addPixelIdsForLineSegment(currentPixelColumn.getStats().getLastTimestamp(), currentPixelColumn.getStats().getLastValue(),
+                            nextPixelColumn.getStats().getFirstTimestamp(), nextPixelColumn.getStats().getFirstValue(), viewPortStatsAggregator, pixelErrorSet);
 
-                    if (!getMaxMissingInterColumnPixels(currentPixelColumn, nextPixelColumn, pixelErrorRangeSet, viewPortStatsAggregator)){
-                        maxPixelErrorsPerColumn.add(null);
+                    if (!getMaxMissingInterColumnPixels(currentPixelColumn, nextPixelColumn, viewPortStatsAggregator)){
+                        maxPixelErrors[i] = Double.NaN;
                         missingRanges.add(currentPixelColumn.getRange()); // add range as missing
                         continue;
                     }
                 }
             }
-            pixelErrorRangeSet.remove(currentPixelColumn.getActualInnerColumnPixelRange(viewPortStatsAggregator));
-            int maxWrongPixels = pixelErrorRangeSet.asRanges().stream()
-                    .mapToInt(range -> range.upperEndpoint() - range.lowerEndpoint() + 1)
-                    .sum();
-            maxPixelErrorsPerColumn.add(((double) maxWrongPixels / viewPort.getHeight()));
+            int maxWrongPixels = pixelErrorSet.removeAndCount(currentPixelColumn.getActualInnerColumnMinPixelId(viewPortStatsAggregator),
+                    currentPixelColumn.getActualInnerColumnMaxPixelId(viewPortStatsAggregator));
+            maxPixelErrors[i] = (double) maxWrongPixels / viewPort.getHeight();
         }
-        LOG.debug("{}", maxPixelErrorsPerColumn);
-        return maxPixelErrorsPerColumn;
+        return maxPixelErrors;
     }
 
     /**
@@ -98,29 +113,29 @@ public class MaxErrorEvaluator {
      * @return the maximum missing column pixel range or null in case of partially-contained group at the intersection between the two columns.
      */
     private boolean getMaxMissingInterColumnPixels(PixelColumn leftPixelColumn, PixelColumn rightPixelColumn,
-                                                   RangeSet<Integer> pixelErrorRangeSet,
                                                    StatsAggregator viewPortStatsAggregator) {
         // check if there is a partially-contained group at the intersection between the two columns
-        AggregatedDataPoint leftPartial = leftPixelColumn.getLeftPartial();
-        if (leftPartial == null) {
-            if (rightPixelColumn.getLeft().size() > 0 && leftPixelColumn.getRight().size() > 0) {
+        int leftPartial = leftPixelColumn.getLeftPartial();
+        if (leftPartial < 0) {
+            BoundaryGroups left = rightPixelColumn.getLeft();
+            BoundaryGroups right = leftPixelColumn.getRight();
+            if (left.size() > 0 && right.size() > 0) {
                 // case of fully-contained groups at the boundary of the intersection
-                AggregatedDataPoint left = rightPixelColumn.getLeft().get(0);
-                AggregatedDataPoint right = leftPixelColumn.getRight().get(0);
-                int leftMinPixelId = viewPort.getPixelId(left.getStats().getMinValue(), viewPortStatsAggregator);
-                int rightMaxPixelId = viewPort.getPixelId(right.getStats().getMaxValue(), viewPortStatsAggregator);
-                int leftMaxPixelId = viewPort.getPixelId(left.getStats().getMaxValue(), viewPortStatsAggregator);
-                int rightMinPixelId = viewPort.getPixelId(right.getStats().getMinValue(), viewPortStatsAggregator);
+                int leftMinPixelId = viewPort.getPixelId(left.getMinValue(0), viewPortStatsAggregator);
+                int rightMaxPixelId = viewPort.getPixelId(right.getMaxValue(0), viewPortStatsAggregator);
+                int leftMaxPixelId = viewPort.getPixelId(left.getMaxValue(0), viewPortStatsAggregator);
+                int rightMinPixelId = viewPort.getPixelId(right.getMinValue(0), viewPortStatsAggregator);
 
-                pixelErrorRangeSet.add(Range.closed(Math.min(leftMinPixelId, rightMaxPixelId), Math.max(leftMinPixelId, rightMaxPixelId)));
-                pixelErrorRangeSet.add(Range.closed(Math.min(leftMaxPixelId, rightMinPixelId), Math.max(leftMaxPixelId, rightMinPixelId)));
+                pixelErrorSet.add(Math.min(leftMinPixelId, rightMaxPixelId), Math.max(leftMinPixelId, rightMaxPixelId));
+                pixelErrorSet.add(Math.min(leftMaxPixelId, rightMinPixelId), Math.max(leftMaxPixelId, rightMinPixelId));
 
             } else {
                 return false;
             }
         } else {
-            pixelErrorRangeSet.add(Range.closed(viewPort.getPixelId(leftPartial.getStats().getMinValue(), viewPortStatsAggregator),
-                    viewPort.getPixelId(leftPartial.getStats().getMaxValue(), viewPortStatsAggregator)));
+            BoundaryGroups left = leftPixelColumn.getLeft();
+            pixelErrorSet.add(viewPort.getPixelId(left.getMinValue(leftPartial), viewPortStatsAggregator),
+                    viewPort.getPixelId(left.getMaxValue(leftPartial), viewPortStatsAggregator));
         }
         return true;
     }
@@ -1,14 +1,11 @@
 package eu.more2020.visual.middleware.domain;
 
-import com.google.common.collect.ImmutableRangeSet;
 import com.google.common.collect.Range;
-import com.google.common.collect.RangeSet;
-import com.google.common.collect.TreeRangeSet;
+import eu.more2020.visual.middleware.cache.TimeSeriesSpanCursor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class PixelColumn implements TimeInterval {
 
@@ -22,18 +19,29 @@ public class PixelColumn implements TimeInterval {
 
     private final StatsAggregator statsAggregator;
 
-    private final RangeSet<Long> fullyContainedRangeSet = TreeRangeSet.create();
+    // The time ranges covered by the fully contained groups, as start (inclusive) and end (exclusive) arrays.
+    // A range connected to the last one added extends it, so consecutive groups of a span take a single entry.
+    private long[] fullyContainedFroms = new long[4];
+    private long[] fullyContainedTos = new long[4];
+    private int fullyContainedRangeCount = 0;
+    // Whether the ranges are sorted and disjoint.
+    private boolean fullyContainedNormalized = true;
 
     private final StatsAggregator fullyContainedStatsAggregator;
 
 
-    private AggregatedDataPoint leftPartial;
-    private AggregatedDataPoint rightPartial;
+    // The indices of the left and right partially contained groups in the left and right boundary groups, or -1 if there are none.
+    private int leftPartial = -1;
+    private int rightPartial = -1;
 
 
     // The left and right agg data points of this pixel column. These can be either partially-contained inside this pixel column and overlap, or fully-contained.
-    private List<AggregatedDataPoint> left = new ArrayList<>();
-    private List<AggregatedDataPoint> right = new ArrayList<>();
+    private final BoundaryGroups left = new BoundaryGroups();
+    private final BoundaryGroups right = new BoundaryGroups();
+
+    // The bounds of the max inner pixel range, set by computeMaxInnerPixelIds.
+    private int maxInnerMinPixelId;
+    private int maxInnerMaxPixelId;
 
     public PixelColumn(long from, long to, ViewPort viewPort) {
         this.from = from;
@@ -44,105 +52,176 @@ public class PixelColumn implements TimeInterval {
     }
 
     public void addDataPoint(DataPoint dp){
-        statsAggregator.accept(dp);
-        fullyContainedStatsAggregator.accept(dp);
-        fullyContainedRangeSet.add(TimeInterval.toGuavaRange(new TimeRange(from, dp.getTimestamp())));
+        addDataPoint(dp.getTimestamp(), dp.getValue());
     }
 
-    public void addAggregatedDataPoint(AggregatedDataPoint dp) {
-        if (dp.getFrom() <= from) {
-            left.add(ImmutableAggregatedDataPoint.fromAggregatedDataPoint(dp));
+    public void addDataPoint(long timestamp, double value){
+        statsAggregator.accept(timestamp, value);
+        fullyContainedStatsAggregator.accept(timestamp, value);
+        // Up to and including the data point, so that a data point at the start of this pixel column also covers it.
+        addFullyContainedRange(from, timestamp + 1);
+    }
+
+    /**
+     * Adds the line segment between two consecutive raw data points, the first before the end of this pixel column and the second at or after it,
+     * or the first before the start of this pixel column and the second in it. Raw data have no groups at the boundaries of the pixel columns,
+     * so the segment takes their place: its value range is exactly what is drawn between the two pixel columns.
+     */
+    public void addRawSegment(long timestamp, double value, long nextTimestamp, double nextValue) {
+        double minValue = Math.min(value, nextValue);
+        double maxValue = Math.max(value, nextValue);
+        if (timestamp <= from) {
+            left.add(timestamp, nextTimestamp, 2, minValue, maxValue);
+        }
+        if (nextTimestamp >= to) {
+            right.add(timestamp, nextTimestamp, 2, minValue, maxValue);
+        }
+    }
+
+    /**
+     * Adds the current data point of a span cursor to this pixel column.
+     * Same as {@link #addAggregatedDataPoint(AggregatedDataPoint)}, but reads the data point through primitive accessors.
+     */
+    public void addAggregatedDataPoint(TimeSeriesSpanCursor cursor) {
+        addAggregatedDataPoint(cursor.from(), cursor.to(), cursor.count(), cursor.minValue(), cursor.minTs(), cursor.maxValue(), cursor.maxTs());
+    }
+
+    /**
+     * Adds a group with the given range, count, and min and max data points to this pixel column.
+     * Same as {@link #addAggregatedDataPoint(AggregatedDataPoint)}, without a data point object.
+     */
+    public void addAggregatedDataPoint(long dpFrom, long dpTo, int count, double minValue, long minTimestamp, double maxValue, long maxTimestamp) {
+        if (dpFrom <= from) {
+            left.add(dpFrom, dpTo, count, minValue, maxValue);
+        }
+        if (dpTo >= to) {
+            right.add(dpFrom, dpTo, count, minValue, maxValue);
         }
 
-        if (dp.getTo() >= to) {
-            right.add(ImmutableAggregatedDataPoint.fromAggregatedDataPoint(dp));
+        if (from <= dpFrom && to >= dpTo) {
+            addFullyContainedRange(dpFrom, dpTo);
+            if (count > 0) {
+                fullyContainedStatsAggregator.accept(minTimestamp, minValue);
+                fullyContainedStatsAggregator.accept(maxTimestamp, maxValue);
+            }
+        }
+
+        if (count > 0) {
+            if (this.contains(minTimestamp)) {
+                statsAggregator.accept(minTimestamp, minValue);
+            }
+
+            if (this.contains(maxTimestamp)) {
+                statsAggregator.accept(maxTimestamp, maxValue);
+            }
         }
+    }
 
+    public void addAggregatedDataPoint(AggregatedDataPoint dp) {
         Stats stats = dp.getStats();
+        if (dp.getFrom() <= from || dp.getTo() >= to) {
+            double minValue = stats.getCount() > 0 ? stats.getMinValue() : 0;
+            double maxValue = stats.getCount() > 0 ? stats.getMaxValue() : 0;
+            if (dp.getFrom() <= from) {
+                left.add(dp.getFrom(), dp.getTo(), stats.getCount(), minValue, maxValue);
+            }
+            if (dp.getTo() >= to) {
+                right.add(dp.getFrom(), dp.getTo(), stats.getCount(), minValue, maxValue);
+            }
+        }
+
         if (this.encloses(dp)) {
-            fullyContainedRangeSet.add(TimeInterval.toGuavaRange(dp));
+            addFullyContainedRange(dp.getFrom(), dp.getTo());
             if (stats.getCount() > 0) {
-                fullyContainedStatsAggregator.accept(stats.getMinDataPoint());
-                fullyContainedStatsAggregator.accept(stats.getMaxDataPoint());
+                fullyContainedStatsAggregator.accept(stats.getMinTimestamp(), stats.getMinValue());
+                fullyContainedStatsAggregator.accept(stats.getMaxTimestamp(), stats.getMaxValue());
             }
         }
 
         // todo: here, in case we add data from time series span, we add the same min-max point twice. This is not a problem, but it's not optimal.
         if (stats.getCount() > 0){
             if (this.contains(stats.getMinTimestamp())) {
-                statsAggregator.accept(dp.getStats().getMinDataPoint());
+                statsAggregator.accept(stats.getMinTimestamp(), stats.getMinValue());
             }
 
             if (this.contains(stats.getMaxTimestamp())) {
-                statsAggregator.accept(dp.getStats().getMaxDataPoint());
+                statsAggregator.accept(stats.getMaxTimestamp(), stats.getMaxValue());
             }
-
-//            if (this.contains(stats.getFirstTimestamp())) {
-//                statsAggregator.accept(dp.getStats().getFirstDataPoint());
-//            }
-//
-//            if (this.contains(stats.getLastTimestamp())) {
-//                statsAggregator.accept(dp.getStats().getLastDataPoint());
-//            }
         }
     }
 
-
-
-    private void determinePartialContained() {
-        Range<Long> pixelColumnTimeRange = Range.closedOpen(from, to);
-        Range<Long> fullyContainedRange = fullyContainedRangeSet.span();
-
-        ImmutableRangeSet<Long> immutableFullyContainedRangeSet = ImmutableRangeSet.copyOf(fullyContainedRangeSet);
-
-        // Compute difference between pixel column range and fullyContainedRangeSet
-        ImmutableRangeSet<Long> differenceSet = ImmutableRangeSet.of(pixelColumnTimeRange).difference(immutableFullyContainedRangeSet);
-
-        List<Range<Long>> differenceList = differenceSet.asRanges().stream()
-                .collect(Collectors.toList());
-
-        Range<Long> leftSubRange = null;
-        Range<Long> rightSubRange = null;
-
-        if (differenceList.size() == 2) {
-            leftSubRange = differenceList.get(0);
-            rightSubRange = differenceList.get(1);
-        } else if (differenceList.size() == 1) {
-            if (differenceList.get(0).lowerEndpoint() < fullyContainedRange.lowerEndpoint()) {
-                leftSubRange = differenceList.get(0);
-            } else {
-                rightSubRange = differenceList.get(0);
+    private void addFullyContainedRange(long rangeFrom, long rangeTo) {
+        if (rangeTo <= rangeFrom) {
+            return;
+        }
+        int last = fullyContainedRangeCount - 1;
+        if (last >= 0 && rangeFrom <= fullyContainedTos[last] && rangeTo >= fullyContainedFroms[last]) {
+            // Extending the last range backwards may connect it with earlier ones.
+            if (rangeFrom < fullyContainedFroms[last] && last > 0) {
+                fullyContainedNormalized = false;
             }
+            fullyContainedFroms[last] = Math.min(fullyContainedFroms[last], rangeFrom);
+            fullyContainedTos[last] = Math.max(fullyContainedTos[last], rangeTo);
+            return;
         }
+        if (fullyContainedRangeCount == fullyContainedFroms.length) {
+            fullyContainedFroms = Arrays.copyOf(fullyContainedFroms, fullyContainedRangeCount * 2);
+            fullyContainedTos = Arrays.copyOf(fullyContainedTos, fullyContainedRangeCount * 2);
+        }
+        if (last >= 0 && rangeFrom < fullyContainedTos[last]) {
+            fullyContainedNormalized = false;
+        }
+        fullyContainedFroms[fullyContainedRangeCount] = rangeFrom;
+        fullyContainedTos[fullyContainedRangeCount] = rangeTo;
+        fullyContainedRangeCount++;
+    }
 
-
-        if (leftSubRange != null) {
-            Range<Long> finalLeftSubRange = leftSubRange;
-            if(left.size() == 0) leftPartial = null;
-            else {
-                leftPartial = left.stream().filter(aggregatedDataPoint -> aggregatedDataPoint.getTo() >= finalLeftSubRange.upperEndpoint())
-                          .min(Comparator.comparingLong(aggregatedDataPoint -> aggregatedDataPoint.getTo() - aggregatedDataPoint.getFrom()))
-                          .orElseGet(() ->  null);
-//                          .orElseThrow(() ->
-//                                new IllegalStateException("Could not determine the left partially contained group " +
-//                                        DateTimeUtil.format(getFrom()) + " - " + DateTimeUtil.format(getTo())));
+    /**
+     * Sorts the fully contained ranges by their start and merges the connected ones,
+     * so that they are the disjoint ranges covered by the fully contained groups.
+     */
+    private void normalizeFullyContainedRanges() {
+        if (fullyContainedNormalized) {
+            return;
+        }
+        // There are only a few ranges per pixel column, one for every span, so an insertion sort is enough.
+        for (int i = 1; i < fullyContainedRangeCount; i++) {
+            long rangeFrom = fullyContainedFroms[i];
+            long rangeTo = fullyContainedTos[i];
+            int j = i - 1;
+            while (j >= 0 && fullyContainedFroms[j] > rangeFrom) {
+                fullyContainedFroms[j + 1] = fullyContainedFroms[j];
+                fullyContainedTos[j + 1] = fullyContainedTos[j];
+                j--;
             }
-        } else {
-            leftPartial = null;
+            fullyContainedFroms[j + 1] = rangeFrom;
+            fullyContainedTos[j + 1] = rangeTo;
         }
-        if (rightSubRange != null) {
-            Range<Long> finalRightSubRange = rightSubRange;
-            if(right.size() == 0) rightPartial = null;
-            else
-                rightPartial = right.stream().filter(aggregatedDataPoint -> aggregatedDataPoint.getFrom() <= finalRightSubRange.lowerEndpoint())
-                        .min(Comparator.comparingLong(aggregatedDataPoint -> aggregatedDataPoint.getTo() - aggregatedDataPoint.getFrom()))
-                        .orElseGet(() ->  null);
-//                      .orElseThrow(() ->
-//                            new IllegalStateException("Could not determine the right partially contained group " +
-//                                    DateTimeUtil.format(getFrom()) + " - "  + DateTimeUtil.format(getTo())));
-        } else {
-            rightPartial = null;
+        int merged = 0;
+        for (int i = 1; i < fullyContainedRangeCount; i++) {
+            if (fullyContainedFroms[i] <= fullyContainedTos[merged]) {
+                fullyContainedTos[merged] = Math.max(fullyContainedTos[merged], fullyContainedTos[i]);
+            } else {
+                merged++;
+                fullyContainedFroms[merged] = fullyContainedFroms[i];
+                fullyContainedTos[merged] = fullyContainedTos[i];
+            }
         }
+        fullyContainedRangeCount = Math.min(fullyContainedRangeCount, merged + 1);
+        fullyContainedNormalized = true;
+    }
+
+    /**
+     * Determines the partially contained groups at the boundaries of this pixel column.
+     * Must be called when the fully contained groups cover a single contiguous range.
+     * If that range does not reach the start (end) of the pixel column, the left (right) partial is the shortest group
+     * that covers the gap from the start (to the end) of the pixel column.
+     */
+    private void determinePartialContained() {
+        long fullyContainedFrom = fullyContainedFroms[0];
+        long fullyContainedTo = fullyContainedTos[0];
+        leftPartial = from < fullyContainedFrom ? left.shortestEndingAtOrAfter(fullyContainedFrom) : -1;
+        rightPartial = fullyContainedTo < to ? right.shortestStartingAtOrBefore(fullyContainedTo) : -1;
     }
 
 
@@ -154,28 +233,40 @@ public class PixelColumn implements TimeInterval {
      */
 
     public Range<Integer> computeMaxInnerPixelRange(Stats viewPortStats) {
-        Set<Range<Long>> fullyContainedDisjointRanges = fullyContainedRangeSet.asRanges();
-        if (fullyContainedDisjointRanges.size() > 1) {
+        if (!computeMaxInnerPixelIds(viewPortStats)) return null;
+        return Range.closed(maxInnerMinPixelId, maxInnerMaxPixelId);
+    }
+
+    /**
+     * Same as {@link #computeMaxInnerPixelRange(Stats)}, but keeps the bounds of the range in primitive fields.
+     * @param viewPortStats
+     * @return false if there are gaps in the fully contained ranges or no fully contained ranges at all.
+     */
+    public boolean computeMaxInnerPixelIds(Stats viewPortStats) {
+        normalizeFullyContainedRanges();
+        if (fullyContainedRangeCount > 1) {
             LOG.info("There are gaps in the fully contained ranges of this pixel column.");
-            return null;
-        } else if (fullyContainedDisjointRanges.size() == 0) {
+            return false;
+        } else if (fullyContainedRangeCount == 0) {
             LOG.debug("There is no fully contained range in this pixel column.");
-            return null;
+            return false;
         }
         determinePartialContained();
         if(statsAggregator.getCount() > 0) {
             int minPixelId = viewPort.getPixelId(statsAggregator.getMinValue(), viewPortStats);
             int maxPixelId = viewPort.getPixelId(statsAggregator.getMaxValue(), viewPortStats);
-            if (leftPartial != null && leftPartial.getCount() > 0) {
-                minPixelId = Math.min(minPixelId, viewPort.getPixelId(leftPartial.getStats().getMinValue(), viewPortStats));
-                maxPixelId = Math.max(maxPixelId, viewPort.getPixelId(leftPartial.getStats().getMaxValue(), viewPortStats));
+            if (leftPartial >= 0 && left.getCount(leftPartial) > 0) {
+                minPixelId = Math.min(minPixelId, viewPort.getPixelId(left.getMinValue(leftPartial), viewPortStats));
+                maxPixelId = Math.max(maxPixelId, viewPort.getPixelId(left.getMaxValue(leftPartial), viewPortStats));
             }
-            if (rightPartial != null && rightPartial.getCount() > 0 )  {
-                minPixelId = Math.min(minPixelId, viewPort.getPixelId(rightPartial.getStats().getMinValue(), viewPortStats));
-                maxPixelId = Math.max(maxPixelId, viewPort.getPixelId(rightPartial.getStats().getMaxValue(), viewPortStats));
+            if (rightPartial >= 0 && right.getCount(rightPartial) > 0)  {
+                minPixelId = Math.min(minPixelId, viewPort.getPixelId(right.getMinValue(rightPartial), viewPortStats));
+                maxPixelId = Math.max(maxPixelId, viewPort.getPixelId(right.getMaxValue(rightPartial), viewPortStats));
             }
-            return Range.closed(minPixelId, maxPixelId);
-        } else return null;
+            maxInnerMinPixelId = minPixelId;
+            maxInnerMaxPixelId = maxPixelId;
+            return true;
+        } else return false;
     }
 
 
@@ -192,26 +283,36 @@ public class PixelColumn implements TimeInterval {
      * @return A Range object representing the range of pixel IDs that the line segment intersects within the pixel column.
      */
     public Range<Integer> getPixelIdsForLineSegment(double t1, double v1, double t2, double v2, Stats viewPortStats) {
+        int pixelIdStart = getLineSegmentPixelId(Math.max(from, Math.min(t1, t2)), t1, v1, t2, v2, viewPortStats);
+        int pixelIdEnd = getLineSegmentPixelId(Math.min(to, Math.max(t1, t2)), t1, v1, t2, v2, viewPortStats);
+
+        // Create a range from the pixel ids and return it
+        return Range.closed(Math.min(pixelIdStart, pixelIdEnd), Math.max(pixelIdStart, pixelIdEnd));
+    }
+
+    /**
+     * Adds the closed range of pixel IDs that the line segment intersects within this pixel column to a pixel error set.
+     * Same as {@link #getPixelIdsForLineSegment(double, double, double, double, Stats)}, without creating a range.
+     */
+    public void addPixelIdsForLineSegment(double t1, double v1, double t2, double v2, Stats viewPortStats,
+                                          PixelErrorSet pixelErrorSet) {
+        int pixelIdStart = getLineSegmentPixelId(Math.max(from, Math.min(t1, t2)), t1, v1, t2, v2, viewPortStats);
+        int pixelIdEnd = getLineSegmentPixelId(Math.min(to, Math.max(t1, t2)), t1, v1, t2, v2, viewPortStats);
+        pixelErrorSet.add(Math.min(pixelIdStart, pixelIdEnd), Math.max(pixelIdStart, pixelIdEnd));
+    }
+
+    /**
+     * Returns the pixel id of the line segment at timestamp t, with t clamped to this pixel column.
+     */
+    private int getLineSegmentPixelId(double t, double t1, double v1, double t2, double v2, Stats viewPortStats) {
         // Calculate the slope of the line segment
         double slope = (v2 - v1) / (t2 - t1);
 
         // Calculate the y-intercept of the line segment
         double yIntercept = v1 - slope * t1;
 
-        // Find the first and last timestamps of the line segment within the pixel column
-        double tStart = Math.max(from, Math.min(t1, t2));
-        double tEnd = Math.min(to, Math.max(t1, t2));
-
-        // Calculate the values at the start and end timestamps
-        double vStart = slope * tStart + yIntercept;
-        double vEnd = slope * tEnd + yIntercept;
-
-        // Convert the values to pixel ids
-        int pixelIdStart = viewPort.getPixelId(vStart, viewPortStats);
-        int pixelIdEnd = viewPort.getPixelId(vEnd, viewPortStats);
-
-        // Create a range from the pixel ids and return it
-        return Range.closed(Math.min(pixelIdStart, pixelIdEnd), Math.max(pixelIdStart, pixelIdEnd));
+        // Calculate the value at the timestamp and convert it to a pixel id
+        return viewPort.getPixelId(slope * t + yIntercept, viewPortStats);
     }
 
     /**
@@ -222,10 +323,23 @@ public class PixelColumn implements TimeInterval {
      * @return A Range object representing the range of inner-column pixel IDs
      */
     public Range<Integer> getActualInnerColumnPixelRange(Stats viewPortStats) {
-        if(fullyContainedStatsAggregator.getCount() <= 0) return Range.closed(0, 0); // If not initialized or empty
-//        LOG.info("Fully contained stats: {}", fullyContainedStatsAggregator);
-        return Range.closed(viewPort.getPixelId(fullyContainedStatsAggregator.getMinValue(), viewPortStats),
-                viewPort.getPixelId(fullyContainedStatsAggregator.getMaxValue(), viewPortStats));
+        return Range.closed(getActualInnerColumnMinPixelId(viewPortStats), getActualInnerColumnMaxPixelId(viewPortStats));
+    }
+
+    /**
+     * The lower endpoint of {@link #getActualInnerColumnPixelRange(Stats)}.
+     */
+    public int getActualInnerColumnMinPixelId(Stats viewPortStats) {
+        if(fullyContainedStatsAggregator.getCount() <= 0) return 0; // If not initialized or empty
+        return viewPort.getPixelId(fullyContainedStatsAggregator.getMinValue(), viewPortStats);
+    }
+
+    /**
+     * The upper endpoint of {@link #getActualInnerColumnPixelRange(Stats)}.
+     */
+    public int getActualInnerColumnMaxPixelId(Stats viewPortStats) {
+        if(fullyContainedStatsAggregator.getCount() <= 0) return 0; // If not initialized or empty
+        return viewPort.getPixelId(fullyContainedStatsAggregator.getMaxValue(), viewPortStats);
     }
 
 
@@ -247,19 +361,27 @@ public class PixelColumn implements TimeInterval {
         return statsAggregator;
     }
 
-    public AggregatedDataPoint getLeftPartial() {
+    /**
+     * The index of the left partially contained group in {@link #getLeft()}, or -1 if there is none.
+     * Set by {@link #computeMaxInnerPixelIds(Stats)}.
+     */
+    public int getLeftPartial() {
         return leftPartial;
     }
 
-    public AggregatedDataPoint getRightPartial() {
+    /**
+     * The index of the right partially contained group in {@link #getRight()}, or -1 if there is none.
+     * Set by {@link #computeMaxInnerPixelIds(Stats)}.
+     */
+    public int getRightPartial() {
         return rightPartial;
     }
 
-    public List<AggregatedDataPoint> getLeft() {
+    public BoundaryGroups getLeft() {
         return left;
     }
 
-    public List<AggregatedDataPoint> getRight() {
+    public BoundaryGroups getRight() {
         return right;
     }
 
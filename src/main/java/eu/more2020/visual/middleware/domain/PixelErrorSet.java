@@ -0,0 +1,24 @@
+package eu.more2020.visual.middleware.domain;
+
+/**
+ * The vertical pixels of a pixel column that may be drawn wrongly, built from closed ranges of pixel ids.
+ * Instances are reused for every pixel column of a query, so they are cleared before every column.
+ */
+public interface PixelErrorSet {
+
+    void clear();
+
+    /*
+        Add the closed range of pixel ids [lower, upper].
+     */
+    void add(int lower, int upper);
+
+    /**
+     * Removes the closed range of pixel ids [lower, upper] and counts the pixels left.
+     * As in a range set of closed ranges, every disjoint range left counts as its upper minus its lower endpoint plus one,
+     * so a range that is cut by the removal also counts the removed pixel at the cut.
+     *
+     * @return the number of wrong pixels
+     */
+    int removeAndCount(int lower, int upper);
+}
@@ -34,6 +34,7 @@ public class QueryResults implements Serializable {
 
     private Map<Integer, Integer> aggFactors;
 
+    // Whether the query fell back to M4 for some measure. See isFlag().
     private boolean flag;
 
     public TimeInterval getTimeRange() {
@@ -179,6 +180,11 @@ public class QueryResults implements Serializable {
         this.queryTime = queryTime;
     }
 
+    /**
+     * Whether an approximate query fell back to M4 for some of its measures, instead of answering them with min-max aggregates.
+     * This happens when the query planner expects M4 to be the cheapest way to meet the accuracy, or when the fetched aggregates
+     * of a measure do not meet it. The error of those measures is 0. Exact queries, which always use M4, are not flagged.
+     */
     public boolean isFlag() {
         return flag;
     }
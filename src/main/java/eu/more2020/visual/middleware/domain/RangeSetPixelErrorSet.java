@@ -0,0 +1,32 @@
+package eu.more2020.visual.middleware.domain;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+
+/**
+ * A {@link PixelErrorSet} backed by a Guava range set.
+ * It handles pixel ids of any value, but allocates for every added range.
+ */
+public class RangeSetPixelErrorSet implements PixelErrorSet {
+
+    private final RangeSet<Integer> pixelErrorRangeSet = TreeRangeSet.create();
+
+    @Override
+    public void clear() {
+        pixelErrorRangeSet.clear();
+    }
+
+    @Override
+    public void add(int lower, int upper) {
+        pixelErrorRangeSet.add(Range.closed(lower, upper));
+    }
+
+    @Override
+    public int removeAndCount(int lower, int upper) {
+        pixelErrorRangeSet.remove(Range.closed(lower, upper));
+        return pixelErrorRangeSet.asRanges().stream()
+                .mapToInt(range -> range.upperEndpoint() - range.lowerEndpoint() + 1)
+                .sum();
+    }
+}
@@ -60,24 +60,29 @@ public class StatsAggregator implements Consumer<DataPoint>, Stats, Serializable
             accept((AggregatedDataPoint) dataPoint);
             return;
         }
+        accept(dataPoint.getTimestamp(), dataPoint.getValue());
+    }
 
-        double value = dataPoint.getValue();
+    /**
+     * Adds a raw value with the given timestamp into the summary information.
+     */
+    public void accept(long timestamp, double value) {
         sum += value;
         minValue = Math.min(minValue, value);
         if (minValue == value) {
-            minTimestamp = dataPoint.getTimestamp();
+            minTimestamp = timestamp;
         }
         maxValue = Math.max(maxValue, value);
         if (maxValue == value) {
-            maxTimestamp = dataPoint.getTimestamp();
+            maxTimestamp = timestamp;
         }
-        if (firstTimestamp > dataPoint.getTimestamp()) {
+        if (firstTimestamp > timestamp) {
             firstValue = value;
-            firstTimestamp = dataPoint.getTimestamp();
+            firstTimestamp = timestamp;
         }
-        if (lastTimestamp < dataPoint.getTimestamp()) {
+        if (lastTimestamp < timestamp) {
             lastValue = value;
-            lastTimestamp = dataPoint.getTimestamp();
+            lastTimestamp = timestamp;
         }
         count ++;
     }
@@ -85,25 +90,36 @@ public class StatsAggregator implements Consumer<DataPoint>, Stats, Serializable
     public void accept(AggregatedDataPoint dataPoint) {
         Stats stats = dataPoint.getStats();
         if (dataPoint.getCount() != 0) {
-            sum += stats.getSum();
-            minValue = Math.min(minValue, stats.getMinValue());
-            if (minValue == stats.getMinValue()) {
-                minTimestamp = stats.getMinTimestamp();
-            }
-            maxValue = Math.max(maxValue, stats.getMaxValue());
-            if (maxValue == stats.getMaxValue()) {
-                maxTimestamp = stats.getMaxTimestamp();
-            }
-            if (firstTimestamp > stats.getMinTimestamp()) {
-                firstValue = stats.getMinValue();
-                firstTimestamp = stats.getMinTimestamp();
-            }
-            if (lastTimestamp < stats.getMaxTimestamp()) {
-                lastValue = stats.getMaxValue();
-                lastTimestamp = stats.getMaxTimestamp();
-            }
-            count += dataPoint.getCount();
+            accept(dataPoint.getCount(), stats.getSum(), stats.getMinValue(), stats.getMinTimestamp(),
+                    stats.getMaxValue(), stats.getMaxTimestamp());
+        }
+    }
+
+    /**
+     * Adds the aggregates of a group of raw values into the summary information.
+     */
+    public void accept(int count, double sum, double minValue, long minTimestamp, double maxValue, long maxTimestamp) {
+        if (count == 0) {
+            return;
+        }
+        this.sum += sum;
+        this.minValue = Math.min(this.minValue, minValue);
+        if (this.minValue == minValue) {
+            this.minTimestamp = minTimestamp;
+        }
+        this.maxValue = Math.max(this.maxValue, maxValue);
+        if (this.maxValue == maxValue) {
+            this.maxTimestamp = maxTimestamp;
+        }
+        if (firstTimestamp > minTimestamp) {
+            firstValue = minValue;
+            firstTimestamp = minTimestamp;
+        }
+        if (lastTimestamp < maxTimestamp) {
+            lastValue = maxValue;
+            lastTimestamp = maxTimestamp;
         }
+        this.count += count;
     }
 
 
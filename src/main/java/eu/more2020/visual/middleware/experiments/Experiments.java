@@ -7,14 +7,24 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.univocity.parsers.csv.CsvWriter;
 import com.univocity.parsers.csv.CsvWriterSettings;
+import eu.more2020.visual.middleware.cache.DiskSpillTier;
+import eu.more2020.visual.middleware.cache.EvictionPolicyFactory;
+import eu.more2020.visual.middleware.cache.LoggingMetricsReporter;
 import eu.more2020.visual.middleware.cache.MinMaxCache;
+import eu.more2020.visual.middleware.cache.StorageType;
+import eu.more2020.visual.middleware.datasource.CsvQuery;
 import eu.more2020.visual.middleware.datasource.DataSourceQuery;
 import eu.more2020.visual.middleware.datasource.InfluxDBQuery;
 import eu.more2020.visual.middleware.datasource.ModelarDBQuery;
+import eu.more2020.visual.middleware.datasource.QueryExecutor.CsvQueryExecutor;
+import eu.more2020.visual.middleware.datasource.QueryExecutor.H2QueryExecutor;
 import eu.more2020.visual.middleware.datasource.QueryExecutor.QueryExecutor;
 import eu.more2020.visual.middleware.datasource.QueryExecutor.QueryExecutorFactory;
+import eu.more2020.visual.middleware.datasource.QueryExecutor.SyntheticQueryExecutor;
 import eu.more2020.visual.middleware.datasource.SQLQuery;
+import eu.more2020.visual.middleware.datasource.SyntheticQuery;
 import eu.more2020.visual.middleware.domain.Dataset.*;
+import eu.more2020.visual.middleware.domain.H2.H2Connection;
 import eu.more2020.visual.middleware.domain.ModelarDB.ModelarDBConnection;
 import eu.more2020.visual.middleware.domain.PostgreSQL.JDBCConnection;
 import eu.more2020.visual.middleware.domain.InfluxDB.InfluxDBConnection;
@@ -25,6 +35,8 @@ import eu.more2020.visual.middleware.domain.TimeInterval;
 import eu.more2020.visual.middleware.domain.TimeRange;
 import eu.more2020.visual.middleware.domain.ViewPort;
 import eu.more2020.visual.middleware.experiments.util.*;
+import eu.more2020.visual.middleware.index.TimeSeriesIndexUtil;
+import eu.more2020.visual.middleware.index.csv.CsvTTI;
 import eu.more2020.visual.middleware.util.io.SerializationUtilities;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,10 +44,15 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 
@@ -51,7 +68,7 @@ public class Experiments<T> {
     @Parameter(names = "-type", description = "The type of the input")
     public String type;
 
-    @Parameter(names = "-mode", description = "The mode of the experiment (tti/raw/influx/postgres")
+    @Parameter(names = "-mode", description = "The mode of the experiment (minMax/m4/raw/concurrent/all)")
     public String mode;
 
     @Parameter(names = "-measures", variableArity = true, description = "Measures IDs to be used")
@@ -140,12 +157,46 @@ public class Experiments<T> {
     private ViewPort viewPort;
     @Parameter(names = "-runs", description = "Times to run each experiment workflow")
     private Integer runs;
+    @Parameter(names = "-maxMemory", description = "Memory budget of the cache in MB")
+    private Long maxMemory;
+    @Parameter(names = "-eviction", description = "Eviction policy of the cache when the memory budget is exceeded <lru, lfu, gds>")
+    private String eviction = "lru";
+    @Parameter(names = "-storage", description = "Where the cached aggregates are stored <heap, off_heap, compressed>")
+    private StorageType storage = StorageType.HEAP;
+    @Parameter(names = "-parallelism", description = "Number of threads that evaluate the measures of a query in parallel")
+    private int parallelism = 1;
+    @Parameter(names = "-fetchConnections", description = "Number of data source connections that fetch missing data concurrently")
+    private int fetchConnections = 1;
+    @Parameter(names = "-snapshot", description = "Cache snapshot file, restored before the queries if it exists and saved after them")
+    private String snapshot;
+    @Parameter(names = "-spillDir", description = "Directory of the disk tier that evicted spans are spilled to")
+    private String spillDir;
+    @Parameter(names = "-maxSpill", description = "Disk budget of the spill tier in MB")
+    private Long maxSpill;
+    @Parameter(names = "-progressive", description = "Return the results from the cache first and refine them with the missing data")
+    private boolean progressive = false;
+    @Parameter(names = "-scanCost", description = "Cost of scanning a row in the data source, relative to the transfer cost, for the query planner")
+    private double scanCost = 1;
+    @Parameter(names = "-transferCost", description = "Cost of transferring a byte of query results, relative to the scan cost, for the query planner")
+    private double transferCost = 0.25;
+    @Parameter(names = "-indexLevel", description = "Level of the time hierarchy of the leaves of the CSV index <YEAR, MONTH, DAY, HOUR, MINUTE, SECOND>")
+    private String indexLevel = "HOUR";
+    @Parameter(names = "-latency", description = "Latency in ms of every query to the synthetic data source")
+    private double latency = 0;
+    @Parameter(names = "-rowCost", description = "Time in ns the synthetic data source takes per row it scans")
+    private double rowCost = 0;
+    @Parameter(names = "-metricsInterval", description = "Interval in seconds at which the metrics of the cache are logged")
+    private Long metricsInterval;
+    @Parameter(names = "-threads", description = "Number of concurrent users replaying the query sequence (concurrent mode)")
+    private Integer threads = 4;
     @Parameter(names = "--measureMem",  description = "Measure index memory after every query in the sequence")
     private boolean measureMem = false;
 
     @Parameter(names = "--help", help = true, description = "Displays help")
     private boolean help;
 
+    private CsvTTI csvIndex;
+
 
 
     public Experiments() {
@@ -177,6 +228,12 @@ public class Experiments<T> {
             case "modelar":
                 if(config == null) config = "modelarDB.cfg";
                 break;
+            case "h2":
+                if(config == null) config = "h2.cfg";
+                break;
+            case "synthetic":
+            case "csv":
+                break;
             default:
                 Preconditions.checkNotNull(outFolder, "No config files specified.");
         }
@@ -208,20 +265,35 @@ public class Experiments<T> {
         Stopwatch stopwatch = Stopwatch.createUnstarted();
         AbstractDataset dataset = createDataset();
         QueryExecutor queryExecutor = createQueryExecutor(dataset);
-        MinMaxCache minMaxCache = new MinMaxCache(queryExecutor, dataset, p, aggFactor, reductionFactor);
+        List<QueryExecutor> fetchQueryExecutors = new ArrayList<>();
+        fetchQueryExecutors.add(queryExecutor);
+        for (int i = 1; i < fetchConnections; i++) fetchQueryExecutors.add(createQueryExecutor(dataset));
+        long maxMemoryBytes = maxMemory == null ? Long.MAX_VALUE : maxMemory * 1024 * 1024;
+        DiskSpillTier spillTier = spillDir == null ? null
+                : new DiskSpillTier(Paths.get(spillDir), maxSpill == null ? Long.MAX_VALUE : maxSpill * 1024 * 1024);
+        MinMaxCache minMaxCache = new MinMaxCache(fetchQueryExecutors, dataset, p, aggFactor, reductionFactor,
+                maxMemoryBytes, EvictionPolicyFactory.getEvictionPolicy(eviction), storage, parallelism, spillTier);
+        if (snapshot != null && Files.exists(Paths.get(snapshot))) minMaxCache.restoreSnapshot(Paths.get(snapshot));
+        minMaxCache.getQueryPlanner().setCosts(scanCost, transferCost);
+        if (metricsInterval != null) minMaxCache.addMetricsReporter(new LoggingMetricsReporter(), metricsInterval, TimeUnit.SECONDS);
         QueryMethod queryMethod = QueryMethod.MIN_MAX;
         Query q0 = new Query(startTime, endTime, accuracy, null, queryMethod, measures, viewPort, null);
         List<Query> sequence = generateQuerySequence(q0, dataset);
         csvWriter.writeHeaders("dataset", "query #", "operation", "width", "height", "from", "to", "timeRange", "aggFactor", "Results size", "IO Count",
                 "Time (sec)", "Progressive Time (sec)", "Processing Time (sec)", "Query Time (sec)", "Memory", "Est. Raw Datapoints",
-                "Error", "flag");
+                "Error", "flag", "Last Prefetch Time (sec)", "Last Prefetch Outcome");
         for (int i = 0; i < sequence.size(); i += 1) {
             stopwatch.start();
             Query query = (Query) sequence.get(i);
             QueryResults queryResults;
             double time = 0;
             LOG.info("Executing query " + i + " " + query.getOpType() + " " + query.getFromDate() + " - " + query.getToDate());
-            queryResults = minMaxCache.executeQuery(query);
+            if (progressive) {
+                queryResults = minMaxCache.executeQueryProgressively(query,
+                        cachedResults -> LOG.info("Cached results with error {}", cachedResults.getError())).join();
+            } else {
+                queryResults = minMaxCache.executeQuery(query);
+            }
             time = stopwatch.elapsed(TimeUnit.NANOSECONDS) / Math.pow(10d, 9);
             LOG.info("Query time: {}", time);
             long memorySize = minMaxCache.calculateDeepMemorySize();
@@ -246,10 +318,14 @@ public class Experiments<T> {
 //            csvWriter.addValue((double) ((query.getTo() - query.getFrom()) / queryResults.getAggFactor() / query.getViewPort().getWidth()) / dataset.getSamplingInterval().toMillis()); // data reduction factor
             csvWriter.addValue(queryResults.getError());
             csvWriter.addValue(queryResults.isFlag());
+            csvWriter.addValue(minMaxCache.getPrefetchManager().getLastPrefetchTime());
+            csvWriter.addValue(minMaxCache.getPrefetchManager().getLastOutcome());
             csvWriter.writeValuesToRow();
             System.out.println();
             stopwatch.reset();
         }
+        if (snapshot != null) minMaxCache.saveSnapshot(Paths.get(snapshot));
+        minMaxCache.shutdown();
         csvWriter.flush();
     }
 
@@ -294,6 +370,7 @@ public class Experiments<T> {
             stopwatch.reset();
 
         }
+        rawCache.shutdown();
         csvWriter.flush();
     }
 
@@ -333,6 +410,7 @@ public class Experiments<T> {
             DataSourceQuery dataSourceQuery = null;
             switch (type) {
                 case "postgres":
+                case "h2":
                     dataSourceQuery = new SQLQuery(dataset.getSchema(), dataset.getTable(), dataset.getTimeCol(), dataset.getIdCol(), dataset.getValueCol(),
                             query.getFrom(), query.getTo(), missingTimeIntervalsPerMeasureName, numberOfGroupsPerMeasureName);
                     break;
@@ -342,6 +420,12 @@ public class Experiments<T> {
                 case "influx":
                     dataSourceQuery = new InfluxDBQuery(dataset.getSchema(), dataset.getTable(), query.getFrom(), query.getTo(), missingTimeIntervalsPerMeasureName, numberOfGroupsPerMeasureName);
                     break;
+                case "synthetic":
+                    dataSourceQuery = new SyntheticQuery(query.getFrom(), query.getTo(), missingTimeIntervalsPerMeasureName, numberOfGroupsPerMeasureName);
+                    break;
+                case "csv":
+                    dataSourceQuery = new CsvQuery(query.getFrom(), query.getTo(), missingTimeIntervalsPerMeasureName, numberOfGroupsPerMeasureName);
+                    break;
             }
             queryResults = queryExecutor.execute(dataSourceQuery, queryMethod);
             stopwatch.stop();
@@ -363,6 +447,96 @@ public class Experiments<T> {
         csvWriter.flush();
     }
 
+    /**
+     * Stress test for concurrent use of a single {@link MinMaxCache}.
+     * The query sequence is first executed by a single thread on its own cache to get the reference results.
+     * Then, a number of threads replay the same sequence concurrently against one shared cache.
+     * For every query we check that it completed, that its error is within the accuracy bound and whether
+     * the min and max values per measure match the reference results.
+     */
+    private void timeQueriesConcurrent(int run) throws IOException, SQLException {
+        String resultsPath = Paths.get(outFolder, "timeQueries", type, table, "run_" + run, "concurrentResults").toString();
+        File outFile = Paths.get(resultsPath, "results.csv").toFile();
+        CsvWriterSettings csvWriterSettings = new CsvWriterSettings();
+        CsvWriter csvWriter = new CsvWriter(new FileWriter(outFile, false), csvWriterSettings);
+        AbstractDataset dataset = createDataset();
+        QueryExecutor queryExecutor = createQueryExecutor(dataset);
+        QueryMethod queryMethod = QueryMethod.MIN_MAX;
+        Query q0 = new Query(startTime, endTime, accuracy, null, queryMethod, measures, viewPort, null);
+        List<Query> sequence = generateQuerySequence(q0, dataset);
+
+        MinMaxCache referenceCache = new MinMaxCache(queryExecutor, dataset, p, aggFactor, reductionFactor);
+        List<QueryResults> referenceResults = new ArrayList<>(sequence.size());
+        for (Query query : sequence) referenceResults.add(referenceCache.executeQuery(query));
+
+        MinMaxCache sharedCache = new MinMaxCache(queryExecutor, dataset, p, aggFactor, reductionFactor);
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        List<Future<List<QueryResults>>> futures = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            futures.add(executorService.submit(() -> {
+                List<QueryResults> results = new ArrayList<>(sequence.size());
+                for (Query query : sequence) results.add(sharedCache.executeQuery(query));
+                return results;
+            }));
+        }
+        executorService.shutdown();
+
+        csvWriter.writeHeaders("dataset", "thread", "query #", "operation", "from", "to", "Query Time (sec)",
+                "Error", "flag", "Within error bound", "Matches reference");
+        int mismatches = 0;
+        int violations = 0;
+        for (int t = 0; t < threads; t++) {
+            List<QueryResults> results;
+            try {
+                results = futures.get(t).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IllegalStateException("Concurrent query execution failed", e);
+            }
+            for (int i = 0; i < sequence.size(); i++) {
+                Query query = sequence.get(i);
+                QueryResults queryResults = results.get(i);
+                boolean withinErrorBound = queryResults.isFlag() || queryResults.getError().values().stream()
+                        .allMatch(error -> error <= 1 - query.getAccuracy());
+                boolean matchesReference = sameMeasureStats(referenceResults.get(i), queryResults);
+                if (!withinErrorBound) violations++;
+                if (!matchesReference) mismatches++;
+                csvWriter.addValue(table);
+                csvWriter.addValue(t);
+                csvWriter.addValue(i);
+                csvWriter.addValue(query.getOpType());
+                csvWriter.addValue(query.getFrom());
+                csvWriter.addValue(query.getTo());
+                csvWriter.addValue(queryResults.getQueryTime());
+                csvWriter.addValue(queryResults.getError());
+                csvWriter.addValue(queryResults.isFlag());
+                csvWriter.addValue(withinErrorBound);
+                csvWriter.addValue(matchesReference);
+                csvWriter.writeValuesToRow();
+            }
+        }
+        referenceCache.shutdown();
+        sharedCache.shutdown();
+        csvWriter.flush();
+        LOG.info("Concurrent run with {} threads: {} error bound violations, {} results differing from the single-threaded execution",
+                threads, violations, mismatches);
+    }
+
+    private boolean sameMeasureStats(QueryResults expected, QueryResults actual) {
+        // Queries answered with M4 carry no measure stats. Their data are exact, so compare their sizes.
+        if (expected.getMeasureStats() == null || actual.getMeasureStats() == null) {
+            if (!expected.getData().keySet().equals(actual.getData().keySet())) return false;
+            return expected.getData().keySet().stream()
+                    .allMatch(measure -> expected.getData().get(measure).size() == actual.getData().get(measure).size());
+        }
+        if (!expected.getMeasureStats().keySet().equals(actual.getMeasureStats().keySet())) return false;
+        for (Integer measure : expected.getMeasureStats().keySet()) {
+            DoubleSummaryStatistics expectedStats = expected.getMeasureStats().get(measure);
+            DoubleSummaryStatistics actualStats = actual.getMeasureStats().get(measure);
+            if (expectedStats.getMin() != actualStats.getMin() || expectedStats.getMax() != actualStats.getMax()) return false;
+        }
+        return true;
+    }
+
     private void timeQueries() throws IOException, SQLException {
         Preconditions.checkNotNull(mode, "You must define the execution mode (tti, raw, postgres, influx).");
         for  (int i = 0; i < runs; i ++){
@@ -392,6 +566,9 @@ public class Experiments<T> {
                 case "m4":
                     timeQueriesM4(i);
                     break;
+                case "concurrent":
+                    timeQueriesConcurrent(i);
+                    break;
                 case "all":
                     timeQueriesMinMaxCache(i);
                     timeQueriesM4(i);
@@ -431,7 +608,7 @@ public class Experiments<T> {
         FileUtil.build(metadataPath.toString());
     }
 
-    private AbstractDataset createDataset() throws SQLException {
+    private AbstractDataset createDataset() throws IOException, SQLException {
         String p = "";
         AbstractDataset dataset = null;
         switch (type) {
@@ -451,6 +628,27 @@ public class Experiments<T> {
                     SerializationUtilities.storeSerializedObject(dataset, p);
                 }
                 break;
+            case "h2":
+                // The in-memory database starts empty on every run, so the CSV is loaded before the dataset reads its metadata.
+                if (path != null) {
+                    H2Connection h2Connection = new H2Connection(config);
+                    h2Connection.connect();
+                    H2QueryExecutor h2QueryExecutor = h2Connection.getQueryExecutor(createInitDataset());
+                    h2QueryExecutor.drop();
+                    h2QueryExecutor.initialize(path);
+                }
+                dataset = new H2Dataset(config, table, schema, table, timeFormat, timeCol, idCol, valueCol);
+                break;
+            case "synthetic":
+                dataset = new SyntheticDataset(table, schema, table);
+                break;
+            case "csv":
+                // The file is indexed once, and the executors of all the connections share the index.
+                CsvDataset csvDataset = new CsvDataset(path, table, table, timeCol, timeFormat, delimiter, hasHeader);
+                csvIndex = new CsvTTI(path, csvDataset);
+                csvIndex.initialize(TimeSeriesIndexUtil.getTemporalFieldByName(indexLevel.toUpperCase(Locale.ROOT)));
+                dataset = csvDataset;
+                break;
             case "influx":
                 p = String.valueOf(Paths.get("metadata", "influx-" + table));
                 if (new File(p).exists()) dataset = (InfluxDBDataset) SerializationUtilities.loadSerializedObject(p);
@@ -478,6 +676,18 @@ public class Experiments<T> {
             case "postgres":
                 dataset = new PostgreSQLDataset(config, table, schema, table, timeFormat);
                 break;
+            case "h2":
+                dataset = new H2Dataset(config, table, schema, table, timeFormat);
+                dataset.setTimeCol(timeCol);
+                dataset.setIdCol(idCol);
+                dataset.setValueCol(valueCol);
+                break;
+            case "synthetic":
+                dataset = new SyntheticDataset(table, schema, table);
+                break;
+            case "csv":
+                dataset = new CsvDataset(path, table, table, timeCol, timeFormat, delimiter, hasHeader);
+                break;
             case "modelar":
                 dataset = new ModelarDBDataset(config, table, schema, table, timeFormat);
             case "influx":
@@ -498,6 +708,18 @@ public class Experiments<T> {
                 postgreSQLConnection.connect();
                 queryExecutor = postgreSQLConnection.getQueryExecutor(dataset);
                 break;
+            case "h2":
+                H2Connection h2Connection = new H2Connection(config);
+                h2Connection.connect();
+                queryExecutor = h2Connection.getQueryExecutor(dataset);
+                break;
+            case "synthetic":
+                queryExecutor = new SyntheticQueryExecutor((SyntheticDataset) dataset, (long) (latency * 1_000_000), rowCost);
+                break;
+            case "csv":
+                if (csvIndex == null || csvIndex.getDataset() != dataset) csvIndex = new CsvTTI(path, (CsvDataset) dataset);
+                queryExecutor = new CsvQueryExecutor(csvIndex);
+                break;
             case "modelar":
                 ModelarDBConnection modelarDBConnection =
                         new ModelarDBConnection(config);
@@ -13,24 +13,44 @@ import org.apache.log4j.Logger;
 
 import eu.more2020.visual.middleware.domain.Dataset.CsvDataset;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
 import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalField;
 import java.time.temporal.TemporalUnit;
 import java.util.*;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class CsvTTI {
 
     private static final Logger LOG = LogManager.getLogger(CsvTTI.class);
+
+    // The leaves of an index that is built independently of any query are hours, which keeps a year of data in a few thousand nodes.
+    public static final TemporalField DEFAULT_LEAF_LEVEL = ChronoField.HOUR_OF_DAY;
+    // The index of a file is stored next to it, and is only read back by the same version of its format.
+    public static final String INDEX_FILE_EXTENSION = ".tti";
+    private static final int INDEX_FILE_MAGIC = 0x43545449;
+    private static final int INDEX_FILE_VERSION = 1;
     protected CsvTreeNode root;
     private Map<Integer, DoubleSummaryStatistics> measureStats;
     private CsvDataset dataset;
     private String csv;
     private int objectsIndexed = 0;
+    private long firstTimestamp;
+    private long secondTimestamp;
+    private long lastTimestamp;
     private boolean isInitialized = false;
     private DateTimeFormatter formatter;
 
@@ -84,6 +104,48 @@ public class CsvTTI {
         TimeRange timeRange = new TimeRange(TimeSeriesIndexUtil.getTimestampFromLocalDateTime(from.truncatedTo(temporalUnit)),
                 TimeSeriesIndexUtil.getTimestampFromLocalDateTime(to.truncatedTo(temporalUnit)));
 
+        int queryFrequencyLevel = q0Frequency + 1;
+        index(dateTime -> timeRange.contains(TimeSeriesIndexUtil.getTimestampFromLocalDateTime(dateTime.truncatedTo(temporalUnit))) ?
+                queryFrequencyLevel : queryFrequencyLevel - 1);
+    }
+
+    /**
+     * Indexes every row down to the given level of the temporal hierarchy, independently of any query.
+     * The header, measures, time range and sampling interval of the dataset are filled in from the file, unless they are set.
+     * The rows are expected in time order, so that the rows of every node are contiguous in the file.
+     */
+    public void initialize(TemporalField leafLevel) throws IOException {
+        fillDatasetInfo();
+        int depth = TimeSeriesIndexUtil.TEMPORAL_HIERARCHY.indexOf(leafLevel) + 1;
+        if (depth == 0) throw new IllegalArgumentException("Not a level of the time hierarchy: " + leafLevel);
+        Path indexFile = getIndexFile();
+        if (!load(indexFile, depth)) {
+            index(dateTime -> depth);
+            store(indexFile, depth);
+        }
+        if (dataset.getTimeRange() == null) dataset.setTimeRange(new TimeRange(firstTimestamp, lastTimestamp));
+        if (dataset.getSamplingInterval() == null) dataset.setSamplingInterval(Duration.ofMillis(secondTimestamp - firstTimestamp));
+    }
+
+    private void fillDatasetInfo() {
+        CsvParser parser = new CsvParser(createCsvParserSettings());
+        parser.beginParsing(new File(csv), StandardCharsets.US_ASCII);
+        String[] firstRow = parser.parseNext();
+        parser.stopParsing();
+        if (dataset.getHeader() == null) {
+            // Without a header, the columns are named by their index.
+            dataset.setHeader(dataset.getHasHeader() ? firstRow :
+                    IntStream.range(0, firstRow.length).mapToObj(String::valueOf).toArray(String[]::new));
+        }
+        if (dataset.getMeasures().isEmpty()) {
+            int timeIndex = dataset.getMeasureIndex(dataset.getTimeCol());
+            dataset.setMeasures(IntStream.range(0, dataset.getHeader().length).filter(i -> i != timeIndex)
+                    .boxed().collect(Collectors.toList()));
+        }
+    }
+
+    private void index(ToIntFunction<LocalDateTime> depth) throws IOException {
+        root = null;
         measureStats = new HashMap<>();
         for (Integer measureIndex : dataset.getMeasures()) {
             measureStats.put(measureIndex, new DoubleSummaryStatistics());
@@ -104,13 +166,15 @@ public class CsvTTI {
 
         String[] row;
 
-        int queryFrequencyLevel = q0Frequency + 1;
         while ((row = parser.parseNext()) != null) {
             LocalDateTime dateTime = parseStringToDate(row[dataset.getMeasureIndex(dataset.getTimeCol())]);
+            long timestamp = toTimestamp(dateTime);
+            if (objectsIndexed == 0) firstTimestamp = timestamp;
+            else if (objectsIndexed == 1) secondTimestamp = timestamp;
+            lastTimestamp = timestamp;
 
             Stack<Integer> labels = new Stack<>();
-            int lastIndex = timeRange.contains(TimeSeriesIndexUtil.getTimestampFromLocalDateTime(dateTime.truncatedTo(temporalUnit))) ?
-                    queryFrequencyLevel : queryFrequencyLevel - 1;
+            int lastIndex = depth.applyAsInt(dateTime);
             for (int i = 0; i < lastIndex; i++) {
                 labels.add(dateTime.get(TimeSeriesIndexUtil.TEMPORAL_HIERARCHY.get(i)));
             }
@@ -132,6 +196,173 @@ public class CsvTTI {
 //        traverse(root);
     }
 
+    /**
+     * The file the index of the CSV is stored in, next to the CSV.
+     */
+    public Path getIndexFile() {
+        return Paths.get(csv + INDEX_FILE_EXTENSION);
+    }
+
+    /**
+     * Writes the index, along with what it was built from, so that a later start can load it instead of parsing the CSV.
+     * The file is written under a temporary name and then moved in place, so that an interrupted write never leaves a partial index.
+     * An index that cannot be written is only logged, as it will be built again on the next start.
+     */
+    private void store(Path indexFile, int depth) {
+        if (root == null) return;
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try {
+            Path csvPath = Paths.get(csv);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(INDEX_FILE_MAGIC);
+                out.writeInt(INDEX_FILE_VERSION);
+                out.writeLong(Files.size(csvPath));
+                out.writeLong(Files.getLastModifiedTime(csvPath).toMillis());
+                writeParserInfo(out, depth);
+                out.writeInt(dataset.getMeasures().size());
+                for (Integer measure : dataset.getMeasures()) out.writeInt(measure);
+                out.writeLong(firstTimestamp);
+                out.writeLong(secondTimestamp);
+                out.writeLong(lastTimestamp);
+                out.writeInt(objectsIndexed);
+                writeStats(out, measureStats);
+                writeNode(out, root);
+            }
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.info("Stored the index of " + csv + " in " + indexFile);
+        } catch (IOException e) {
+            LOG.warn("Could not store the index of " + csv + " in " + indexFile, e);
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Loads the index stored by {@link #store}, if there is one that was built at the same depth from the CSV as it is now.
+     * The CSV is taken to be unchanged if its size and modification time are the ones it had when the index was built.
+     * Any other index, including one that cannot be read, is ignored so that it is built again.
+     */
+    private boolean load(Path indexFile, int depth) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            Path csvPath = Paths.get(csv);
+            if (in.readInt() != INDEX_FILE_MAGIC || in.readInt() != INDEX_FILE_VERSION) {
+                LOG.info("The index in " + indexFile + " is of another version, rebuilding it");
+                return false;
+            }
+            if (in.readLong() != Files.size(csvPath) || in.readLong() != Files.getLastModifiedTime(csvPath).toMillis()) {
+                LOG.info(csv + " has changed since " + indexFile + " was written, rebuilding it");
+                return false;
+            }
+            ByteArrayOutputStream parserInfo = new ByteArrayOutputStream();
+            writeParserInfo(new DataOutputStream(parserInfo), depth);
+            byte[] expected = parserInfo.toByteArray();
+            byte[] actual = new byte[expected.length];
+            in.readFully(actual);
+            if (!Arrays.equals(expected, actual)) {
+                LOG.info("The index in " + indexFile + " was built with other settings, rebuilding it");
+                return false;
+            }
+            List<Integer> measures = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) measures.add(in.readInt());
+            if (!measures.containsAll(dataset.getMeasures())) {
+                LOG.info("The index in " + indexFile + " is missing some of the measures, rebuilding it");
+                return false;
+            }
+            long first = in.readLong();
+            long second = in.readLong();
+            long last = in.readLong();
+            int count = in.readInt();
+            Map<Integer, DoubleSummaryStatistics> stats = readStats(in);
+            CsvTreeNode node = new CsvTreeNode(0, 0);
+            readNode(in, node);
+
+            firstTimestamp = first;
+            secondTimestamp = second;
+            lastTimestamp = last;
+            objectsIndexed = count;
+            measureStats = stats;
+            root = node;
+            isInitialized = true;
+            LOG.info("Loaded the index of " + csv + " from " + indexFile + ". Total Indexed Objects: " + objectsIndexed);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException | IllegalArgumentException e) {
+            // Statistics that cannot be restored, e.g. of measures with NaN values, are rejected like a corrupt file.
+            LOG.warn("Could not load the index of " + csv + " from " + indexFile + ", rebuilding it", e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the settings that the labels and file offsets of the index depend on.
+     */
+    private void writeParserInfo(DataOutputStream out, int depth) throws IOException {
+        out.writeInt(depth);
+        out.writeUTF(dataset.getDelimiter());
+        out.writeBoolean(dataset.getHasHeader());
+        out.writeUTF(dataset.getTimeFormat());
+        out.writeInt(dataset.getMeasureIndex(dataset.getTimeCol()));
+    }
+
+    private static void writeStats(DataOutputStream out, Map<Integer, DoubleSummaryStatistics> stats) throws IOException {
+        if (stats == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(stats.size());
+        for (Map.Entry<Integer, DoubleSummaryStatistics> entry : stats.entrySet()) {
+            DoubleSummaryStatistics statistics = entry.getValue();
+            out.writeInt(entry.getKey());
+            out.writeLong(statistics.getCount());
+            out.writeDouble(statistics.getMin());
+            out.writeDouble(statistics.getMax());
+            out.writeDouble(statistics.getSum());
+        }
+    }
+
+    private static Map<Integer, DoubleSummaryStatistics> readStats(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) return null;
+        Map<Integer, DoubleSummaryStatistics> stats = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            int measure = in.readInt();
+            long count = in.readLong();
+            double min = in.readDouble();
+            double max = in.readDouble();
+            double sum = in.readDouble();
+            stats.put(measure, count == 0 ? new DoubleSummaryStatistics() : new DoubleSummaryStatistics(count, min, max, sum));
+        }
+        return stats;
+    }
+
+    /**
+     * Writes a node and, depth first, its children in the order they were added, i.e. in time order.
+     */
+    private static void writeNode(DataOutputStream out, CsvTreeNode node) throws IOException {
+        out.writeLong(node.getFileOffsetStart());
+        out.writeInt(node.getDataPointCount());
+        writeStats(out, node.getStats());
+        Collection<TreeNode> children = node.getChildren();
+        out.writeInt(children == null ? 0 : children.size());
+        if (children == null) return;
+        for (TreeNode child : children) {
+            out.writeInt(child.getLabel());
+            writeNode(out, (CsvTreeNode) child);
+        }
+    }
+
+    private static void readNode(DataInputStream in, CsvTreeNode node) throws IOException {
+        node.setFileOffsetStart(in.readLong());
+        node.setDataPointCount(in.readInt());
+        node.setStats(readStats(in));
+        for (int i = in.readInt(); i > 0; i--) {
+            readNode(in, (CsvTreeNode) node.getOrAddChild(in.readInt()));
+        }
+    }
+
     public synchronized QueryResults executeQuery(Query query) throws IOException {
         if (!isInitialized) {
             initialize(query);
@@ -154,6 +385,13 @@ public class CsvTTI {
         return LocalDateTime.parse(s, formatter);
     }
 
+    /**
+     * The epoch timestamp of a date of the file, which is read as UTC like the labels of the nodes.
+     */
+    public long toTimestamp(LocalDateTime dateTime) {
+        return dateTime.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
     public CsvParserSettings createCsvParserSettings() {
         CsvParserSettings parserSettings = new CsvParserSettings();
         parserSettings.getFormat().setDelimiter(((CsvDataset) dataset).getDelimiter().charAt(0));
@@ -164,6 +402,18 @@ public class CsvTTI {
         return parserSettings;
     }
 
+    public CsvTreeNode getRoot() {
+        return root;
+    }
+
+    public CsvDataset getDataset() {
+        return dataset;
+    }
+
+    public boolean isInitialized() {
+        return isInitialized;
+    }
+
     public String getCsv() {
         return csv;
     }
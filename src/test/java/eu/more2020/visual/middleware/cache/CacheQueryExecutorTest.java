@@ -0,0 +1,86 @@
+package eu.more2020.visual.middleware.cache;
+
+import eu.more2020.visual.middleware.datasource.QueryExecutor.SyntheticQueryExecutor;
+import eu.more2020.visual.middleware.datasource.SyntheticQuery;
+import eu.more2020.visual.middleware.domain.DataPoint;
+import eu.more2020.visual.middleware.domain.Dataset.SyntheticDataset;
+import eu.more2020.visual.middleware.domain.Query.Query;
+import eu.more2020.visual.middleware.domain.Query.QueryMethod;
+import eu.more2020.visual.middleware.domain.QueryResults;
+import eu.more2020.visual.middleware.domain.TimeRange;
+import eu.more2020.visual.middleware.domain.ViewPort;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CacheQueryExecutorTest {
+
+    private static final SyntheticDataset DATASET = new SyntheticDataset("synthetic100k", "more", "synthetic100k");
+    private static final int MEASURE = 1;
+
+    private static DoubleSummaryStatistics rawStats(long from, long to) {
+        List<DataPoint> dataPoints = new SyntheticQueryExecutor(DATASET).executeRawQuery(new SyntheticQuery(from, to,
+                Collections.singletonMap(DATASET.getHeader()[MEASURE], Collections.singletonList(new TimeRange(from, to))))).getData().get(MEASURE);
+        return dataPoints.stream().mapToDouble(DataPoint::getValue).summaryStatistics();
+    }
+
+    @Test
+    public void testDeepZoomFetchesAndCachesRawData() {
+        MinMaxCache minMaxCache = new MinMaxCache(Collections.singletonList(new SyntheticQueryExecutor(DATASET)), DATASET, 0, 4, 4,
+                Long.MAX_VALUE, new LRUEvictionPolicy(), StorageType.COMPRESSED, 1);
+        try {
+            // Fewer data points than two per pixel column, so that no min-max aggregation reduces them.
+            long from = DATASET.getTimeRange().getFrom() + 12_345_000L;
+            long to = from + 700 * DATASET.getSamplingInterval().toMillis();
+            Query query = new Query(from, to, 0.95f, null, QueryMethod.MIN_MAX, Collections.singletonList(MEASURE), new ViewPort(500, 300), null);
+            assertEquals(QueryPlan.Method.RAW, minMaxCache.explain(query).get(MEASURE).getChosen().getMethod());
+
+            QueryResults queryResults = minMaxCache.executeQuery(query);
+            DoubleSummaryStatistics expected = rawStats(from, to);
+            DoubleSummaryStatistics actual = queryResults.getData().get(MEASURE).stream().mapToDouble(DataPoint::getValue).summaryStatistics();
+            assertEquals(expected.getMin(), actual.getMin(), 0);
+            assertEquals(expected.getMax(), actual.getMax(), 0);
+            // The error of the raw data points can be determined in every pixel column, and is within the accuracy.
+            assertFalse(queryResults.isFlag());
+            assertTrue(queryResults.getError().get(MEASURE) <= 1 - query.getAccuracy());
+
+            // The raw data are cached, so the query and a query within it, with a few data points per pixel column, are answered from the cache alone.
+            assertEquals(QueryPlan.Method.CACHE, minMaxCache.explain(query).get(MEASURE).getChosen().getMethod());
+            Query zoomIn = new Query(from + 100_000, to - 100_000, 0.95f, null, QueryMethod.MIN_MAX, Collections.singletonList(MEASURE),
+                    new ViewPort(100, 300), null);
+            assertEquals(QueryPlan.Method.CACHE, minMaxCache.explain(zoomIn).get(MEASURE).getChosen().getMethod());
+        } finally {
+            minMaxCache.shutdown();
+        }
+    }
+
+    @Test
+    public void testFallingBackToM4IsFlagged() {
+        long from = DATASET.getTimeRange().getFrom();
+        long to = from + (DATASET.getTimeRange().getTo() - from) / 2;
+        ViewPort viewPort = new ViewPort(20, 300);
+        Query coarse = new Query(from, to, 0.9f, null, QueryMethod.MIN_MAX, Collections.singletonList(MEASURE), viewPort, null);
+        Query fine = new Query(from, to, 0.999f, null, QueryMethod.MIN_MAX, Collections.singletonList(MEASURE), viewPort, null);
+        MinMaxCache coarseCache = new MinMaxCache(new SyntheticQueryExecutor(DATASET), DATASET, 0, 4, 4);
+        MinMaxCache minMaxCache = new MinMaxCache(new SyntheticQueryExecutor(DATASET), DATASET, 0, 4, 4);
+        try {
+            assertFalse(coarseCache.executeQuery(coarse).isFlag());
+            // The spans of the coarse query are handed to a cache that has not learned the density of the measure from fetching them,
+            // so that it estimates the rows of the measure from its sampling interval.
+            minMaxCache.getCacheManager().addToCache(coarseCache.getCacheManager().getAllFromCache());
+
+            // The cached spans are not accurate enough for the fine query, and with free scans M4 transfers the fewest bytes.
+            minMaxCache.getQueryPlanner().setCosts(0, 1);
+            QueryResults fineResults = minMaxCache.executeQuery(fine);
+            assertTrue(fineResults.isFlag());
+            assertEquals(0, fineResults.getError().get(MEASURE), 0);
+            // The results of M4 are not cached, so the planner, which has learned the error of the cached spans, still chooses it.
+            assertEquals(QueryPlan.Method.M4, minMaxCache.explain(fine).get(MEASURE).getChosen().getMethod());
+        } finally {
+            coarseCache.shutdown();
+            minMaxCache.shutdown();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package eu.more2020.visual.middleware.cache;
+
+import eu.more2020.visual.middleware.datasource.QueryExecutor.SyntheticQueryExecutor;
+import eu.more2020.visual.middleware.domain.Dataset.SyntheticDataset;
+import eu.more2020.visual.middleware.domain.Query.Query;
+import eu.more2020.visual.middleware.domain.Query.QueryMethod;
+import eu.more2020.visual.middleware.domain.QueryResults;
+import eu.more2020.visual.middleware.domain.ViewPort;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CacheSnapshotTest {
+
+    private static final SyntheticDataset DATASET = new SyntheticDataset("synthetic100k", "more", "synthetic100k");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static AggregateTimeSeriesSpan aggregateSpan(int measure, long from, int size, long aggregateInterval, StorageType storageType,
+                                                         Random random) {
+        AggregateStorage storage = storageType.allocate(size);
+        for (int i = 0; i < size; i++) {
+            if (random.nextInt(8) == 0) continue;
+            long groupFrom = from + i * aggregateInterval;
+            double a = random.nextGaussian();
+            double b = random.nextGaussian();
+            storage.set(i, 1 + random.nextInt(100), a + b, Math.min(a, b), groupFrom + random.nextInt((int) aggregateInterval),
+                    Math.max(a, b), groupFrom + random.nextInt((int) aggregateInterval));
+        }
+        return new AggregateTimeSeriesSpan(from, from + size * aggregateInterval, measure, aggregateInterval, storage);
+    }
+
+    private static RawTimeSeriesSpan rawSpan(int measure, long from, int count, boolean compressed, Random random) {
+        RawTimeSeriesSpan.Builder builder = new RawTimeSeriesSpan.Builder(from, from + 10L * count, measure, compressed);
+        for (int i = 0; i < count; i++) builder.add(from + 10L * i, random.nextInt(10) == 0 ? -0.0 : random.nextGaussian());
+        return builder.build();
+    }
+
+    /**
+     * Aggregate spans of every storage type and raw spans, of several measures and sizes, which do not fill whole 8 byte words.
+     */
+    private static List<TimeSeriesSpan> spans(Random random) {
+        List<TimeSeriesSpan> spans = new ArrayList<>();
+        StorageType[] storageTypes = {StorageType.HEAP, StorageType.COMPRESSED, StorageType.OFF_HEAP};
+        long from = 0;
+        for (int i = 0; i < 30; i++) {
+            int measure = i % 3;
+            if (i % 5 == 4) {
+                spans.add(rawSpan(measure, from, random.nextInt(300), i % 2 == 0, random));
+            } else {
+                spans.add(aggregateSpan(measure, from, 1 + random.nextInt(200), 1 + random.nextInt(50), storageTypes[i % storageTypes.length], random));
+            }
+            from += 100_000;
+        }
+        return spans;
+    }
+
+    private static void assertSameSpans(List<TimeSeriesSpan> expected, List<TimeSeriesSpan> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            TimeSeriesSpan expectedSpan = expected.get(i);
+            TimeSeriesSpan actualSpan = actual.get(i);
+            assertEquals(expectedSpan.getClass(), actualSpan.getClass());
+            assertEquals(expectedSpan.getMeasure(), actualSpan.getMeasure());
+            assertEquals(expectedSpan.getFrom(), actualSpan.getFrom());
+            assertEquals(expectedSpan.getTo(), actualSpan.getTo());
+            assertEquals(expectedSpan.getAggregateInterval(), actualSpan.getAggregateInterval());
+            TimeSeriesSpanCursor expectedCursor = expectedSpan.cursor(expectedSpan.getFrom(), expectedSpan.getTo());
+            TimeSeriesSpanCursor actualCursor = actualSpan.cursor(actualSpan.getFrom(), actualSpan.getTo());
+            while (expectedCursor.advance()) {
+                assertTrue(actualCursor.advance());
+                assertEquals(expectedCursor.from(), actualCursor.from());
+                assertEquals(expectedCursor.count(), actualCursor.count());
+                if (expectedCursor.count() == 0) continue;
+                assertEquals(Double.doubleToRawLongBits(expectedCursor.minValue()), Double.doubleToRawLongBits(actualCursor.minValue()));
+                assertEquals(expectedCursor.minTs(), actualCursor.minTs());
+                assertEquals(Double.doubleToRawLongBits(expectedCursor.maxValue()), Double.doubleToRawLongBits(actualCursor.maxValue()));
+                assertEquals(expectedCursor.maxTs(), actualCursor.maxTs());
+            }
+            assertFalse(actualCursor.advance());
+        }
+    }
+
+    private static Map<Integer, Integer> aggFactors(int count) {
+        Map<Integer, Integer> aggFactors = new HashMap<>();
+        for (int i = 0; i < count; i++) aggFactors.put(i, 4 + i % 7);
+        return aggFactors;
+    }
+
+    @Test
+    public void testSpansAndHeaderRoundTrip() throws IOException {
+        List<TimeSeriesSpan> spans = spans(new Random(0));
+        // Strings of lengths that need padding, and a header larger than the initial write buffer.
+        for (String version : new String[]{"", "v1", String.join("", Collections.nCopies(70_001, "x"))}) {
+            for (int aggFactorCount : new int[]{0, 1, 3, 20_000}) {
+                Path path = folder.getRoot().toPath().resolve("snapshot-" + version.length() + "-" + aggFactorCount);
+                Map<Integer, Integer> aggFactors = aggFactors(aggFactorCount);
+                CacheSnapshot.write(path, "dataset", version, aggFactors, spans);
+                CacheSnapshot snapshot = CacheSnapshot.read(path);
+                assertEquals("dataset", snapshot.getDatasetIdentity());
+                assertEquals(version, snapshot.getDatasetVersion());
+                assertEquals(aggFactors, snapshot.getAggFactors());
+                assertSameSpans(spans, snapshot.getSpans());
+                snapshot.getSpans().forEach(TimeSeriesSpan::release);
+            }
+        }
+        spans.forEach(TimeSeriesSpan::release);
+    }
+
+    @Test
+    public void testSpansAcrossSegments() throws IOException {
+        List<TimeSeriesSpan> spans = spans(new Random(1));
+        Path path = folder.getRoot().toPath().resolve("snapshot");
+        CacheSnapshot.write(path, "dataset", "v1", aggFactors(3), spans);
+        // Segments that hold only a few records each, so that the file is mapped again at many records.
+        CacheSnapshot snapshot = CacheSnapshot.read(path, 16 * 1024);
+        assertSameSpans(spans, snapshot.getSpans());
+        snapshot.getSpans().forEach(TimeSeriesSpan::release);
+
+        // A record that does not fit in a segment cannot be read.
+        try {
+            CacheSnapshot.read(path, 1024);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+        spans.forEach(TimeSeriesSpan::release);
+    }
+
+    private static void overwrite(Path path, long position, ByteBuffer bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(bytes, position);
+        }
+    }
+
+    private static void assertNotReadable(Path path) {
+        try {
+            CacheSnapshot.read(path).getSpans().forEach(TimeSeriesSpan::release);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testCorruptSnapshotsAreRejected() throws IOException {
+        List<TimeSeriesSpan> spans = spans(new Random(2));
+        String identity = "dataset";
+        String version = "v12";
+        int aggFactorCount = 3;
+        long headerSize = ((5 * Integer.BYTES + identity.getBytes(StandardCharsets.UTF_8).length + version.getBytes(StandardCharsets.UTF_8).length
+                + Long.BYTES - 1) & -Long.BYTES) + 2 * Integer.BYTES + aggFactorCount * 2 * Integer.BYTES + Long.BYTES;
+        Path path = folder.getRoot().toPath().resolve("snapshot");
+
+        // A span count larger than the file can hold.
+        CacheSnapshot.write(path, identity, version, aggFactors(aggFactorCount), spans);
+        overwrite(path, headerSize - Long.BYTES, ByteBuffer.allocate(Long.BYTES).order(ByteOrder.nativeOrder()).putLong(0, Long.MAX_VALUE));
+        assertNotReadable(path);
+
+        // A negative size of the first span.
+        CacheSnapshot.write(path, identity, version, aggFactors(aggFactorCount), spans);
+        overwrite(path, headerSize + 32, ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.nativeOrder()).putInt(0, -1));
+        assertNotReadable(path);
+
+        // A negative agg factor count.
+        CacheSnapshot.write(path, identity, version, aggFactors(aggFactorCount), spans);
+        overwrite(path, headerSize - Long.BYTES - aggFactorCount * 2 * Integer.BYTES - 2 * Integer.BYTES,
+                ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.nativeOrder()).putInt(0, -1));
+        assertNotReadable(path);
+
+        // Files cut short within the header and within the records.
+        CacheSnapshot.write(path, identity, version, aggFactors(aggFactorCount), spans);
+        long fileSize;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            fileSize = channel.size();
+        }
+        for (long size : new long[]{20, headerSize - 4, headerSize + 20, fileSize - 1}) {
+            CacheSnapshot.write(path, identity, version, aggFactors(aggFactorCount), spans);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(size);
+            }
+            assertNotReadable(path);
+        }
+        spans.forEach(TimeSeriesSpan::release);
+    }
+
+    @Test
+    public void testRestoreOnlyForTheSameVersion() throws IOException {
+        Query query = new Query(DATASET.getTimeRange().getFrom(), DATASET.getTimeRange().getFrom() + 10_000_000, 0.95f, null,
+                QueryMethod.MIN_MAX, Arrays.asList(0, 1), new ViewPort(500, 300), null);
+        Path path = folder.getRoot().toPath().resolve("snapshot");
+        MinMaxCache minMaxCache = new MinMaxCache(new SyntheticQueryExecutor(DATASET), DATASET, 0, 4, 4);
+        QueryResults expected;
+        try {
+            expected = minMaxCache.executeQuery(query);
+            minMaxCache.saveSnapshot(path, "v1");
+        } finally {
+            minMaxCache.shutdown();
+        }
+
+        MinMaxCache otherVersion = new MinMaxCache(new SyntheticQueryExecutor(DATASET), DATASET, 0, 4, 4);
+        try {
+            assertFalse(otherVersion.restoreSnapshot(path, "v2"));
+            assertEquals(0, otherVersion.calculateDeepMemorySize());
+        } finally {
+            otherVersion.shutdown();
+        }
+
+        MinMaxCache restored = new MinMaxCache(new SyntheticQueryExecutor(DATASET), DATASET, 0, 4, 4);
+        try {
+            assertTrue(restored.restoreSnapshot(path, "v1"));
+            assertTrue(restored.calculateDeepMemorySize() > 0);
+            // The restored spans answer the query from the cache alone, with the same results.
+            for (int measure : query.getMeasures()) {
+                assertEquals(QueryPlan.Method.CACHE, restored.explain(query).get(measure).getChosen().getMethod());
+            }
+            QueryResults actual = restored.executeQuery(query);
+            for (int measure : query.getMeasures()) {
+                assertEquals(expected.getData().get(measure).size(), actual.getData().get(measure).size());
+                assertEquals(expected.getMeasureStats().get(measure).getMin(), actual.getMeasureStats().get(measure).getMin(), 0);
+                assertEquals(expected.getMeasureStats().get(measure).getMax(), actual.getMeasureStats().get(measure).getMax(), 0);
+            }
+        } finally {
+            restored.shutdown();
+        }
+    }
+}
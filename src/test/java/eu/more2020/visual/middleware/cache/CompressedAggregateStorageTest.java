@@ -0,0 +1,244 @@
+package eu.more2020.visual.middleware.cache;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompressedAggregateStorageTest {
+
+    private static final int MEASURE = 0;
+
+    private static final long AGGREGATE_INTERVAL = 1_000;
+
+    private static final int BLOCK_SIZE = CompressedAggregateStorage.BLOCK_SIZE;
+
+    // Empty, single group, partial first block, exactly one block, and partial last blocks.
+    private static final int[] SIZES = {0, 1, 2, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1, 3 * BLOCK_SIZE + 17, 8 * BLOCK_SIZE};
+
+    private static double randomValue(Random random, boolean shortDecimals) {
+        // Blocks with special values are XOR encoded, so the short decimals have none, to also cover the scaled integers.
+        switch (shortDecimals ? -1 : random.nextInt(12)) {
+            case 0:
+                return Double.NaN;
+            case 1:
+                return -0.0;
+            case 2:
+                return 0.0;
+            case 3:
+                return random.nextBoolean() ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+            default:
+                return shortDecimals ? Math.round(random.nextGaussian() * 10_000) / 100.0 : random.nextGaussian() * 1e6;
+        }
+    }
+
+    /**
+     * Sets the same random group to both storages. About a fifth of the groups are empty,
+     * so that runs of empty groups and empty groups at the ends of blocks occur.
+     */
+    private static void setRandomGroup(Random random, int i, long groupFrom, boolean shortDecimals, AggregateStorage... storages) {
+        if (random.nextInt(5) == 0) {
+            for (AggregateStorage storage : storages) storage.set(i, 0, 0, 0, 0, 0, 0);
+            return;
+        }
+        int count = 1 + random.nextInt(100);
+        // Timestamps at the sampling interval of 10 ms for most groups, and at any millisecond for some.
+        long step = random.nextInt(8) == 0 ? 1 : 10;
+        long minTimestamp = groupFrom + step * random.nextInt((int) (AGGREGATE_INTERVAL / step));
+        long maxTimestamp = groupFrom + step * random.nextInt((int) (AGGREGATE_INTERVAL / step));
+        double minValue = randomValue(random, shortDecimals);
+        double maxValue = randomValue(random, shortDecimals);
+        double sum = random.nextInt(10) == 0 ? -0.0 : randomValue(random, shortDecimals);
+        for (AggregateStorage storage : storages) storage.set(i, count, sum, minValue, minTimestamp, maxValue, maxTimestamp);
+    }
+
+    /**
+     * Builds the same random groups into a heap and a compressed span, in order, as they are filled from a fetch.
+     */
+    private static AggregateTimeSeriesSpan[] spans(long from, int size, boolean shortDecimals, Random random) {
+        AggregateStorage heap = new HeapAggregateStorage(size);
+        AggregateStorage compressed = new CompressedAggregateStorage(size);
+        for (int i = 0; i < size; i++) setRandomGroup(random, i, from + i * AGGREGATE_INTERVAL, shortDecimals, heap, compressed);
+        return new AggregateTimeSeriesSpan[]{
+                new AggregateTimeSeriesSpan(from, from + size * AGGREGATE_INTERVAL, MEASURE, AGGREGATE_INTERVAL, heap),
+                new AggregateTimeSeriesSpan(from, from + size * AGGREGATE_INTERVAL, MEASURE, AGGREGATE_INTERVAL, compressed)};
+    }
+
+    private static void assertSameBits(String message, double expected, double actual) {
+        assertEquals(message, Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual));
+    }
+
+    /**
+     * Checks that both storages hold the same groups. The values of empty groups are not stored, so only their count is compared.
+     */
+    private static void assertSameGroups(AggregateStorage expected, AggregateStorage actual) {
+        assertEquals(expected.size(), actual.size());
+        assertArrayEquals(expected.getCounts(), actual.getCounts());
+        for (int i = 0; i < expected.size(); i++) {
+            String message = "group " + i;
+            assertEquals(message, expected.getCount(i), actual.getCount(i));
+            if (expected.getCount(i) == 0) continue;
+            assertSameBits(message, expected.getSum(i), actual.getSum(i));
+            assertSameBits(message, expected.getMinValue(i), actual.getMinValue(i));
+            assertEquals(message, expected.getMinTimestamp(i), actual.getMinTimestamp(i));
+            assertSameBits(message, expected.getMaxValue(i), actual.getMaxValue(i));
+            assertEquals(message, expected.getMaxTimestamp(i), actual.getMaxTimestamp(i));
+        }
+    }
+
+    private static void assertSameSpans(AggregateTimeSeriesSpan expected, AggregateTimeSeriesSpan actual) {
+        assertEquals(expected.getFrom(), actual.getFrom());
+        assertEquals(expected.getTo(), actual.getTo());
+        assertEquals(expected.getAggregateInterval(), actual.getAggregateInterval());
+        assertSameGroups(expected.getStorage(), actual.getStorage());
+    }
+
+    @Test
+    public void testCompressedStorageHasTheSameGroups() {
+        Random random = new Random(0);
+        for (int size : SIZES) {
+            for (boolean shortDecimals : new boolean[]{false, true}) {
+                AggregateTimeSeriesSpan[] spans = spans(0, size, shortDecimals, random);
+                assertSameGroups(spans[0].getStorage(), spans[1].getStorage());
+            }
+        }
+    }
+
+    @Test
+    public void testBlocksOfEmptyGroups() {
+        Random random = new Random(4);
+        int size = 3 * BLOCK_SIZE + 17;
+        AggregateStorage heap = new HeapAggregateStorage(size);
+        AggregateStorage compressed = new CompressedAggregateStorage(size);
+        for (int i = 0; i < size; i++) {
+            // The second block and the partial last block have only empty groups, and the third one only its last group.
+            boolean empty = i / BLOCK_SIZE == 1 || i / BLOCK_SIZE == 3 || (i / BLOCK_SIZE == 2 && i != 3 * BLOCK_SIZE - 1);
+            if (empty) {
+                heap.set(i, 0, 0, 0, 0, 0, 0);
+                compressed.set(i, 0, 0, 0, 0, 0, 0);
+            } else {
+                do {
+                    setRandomGroup(random, i, i * AGGREGATE_INTERVAL, false, heap, compressed);
+                } while (heap.getCount(i) == 0);
+            }
+        }
+        assertSameGroups(heap, compressed);
+        // Empty groups are skipped while filling a span, so a block may also be left unwritten.
+        AggregateStorage unwritten = new CompressedAggregateStorage(size);
+        heap.copyTo(0, unwritten, 0, BLOCK_SIZE);
+        heap.copyTo(2 * BLOCK_SIZE, unwritten, 2 * BLOCK_SIZE, BLOCK_SIZE);
+        assertSameGroups(heap, unwritten);
+    }
+
+    @Test
+    public void testRewrittenGroupsOfEncodedBlocks() {
+        Random random = new Random(1);
+        int size = 3 * BLOCK_SIZE + 17;
+        AggregateTimeSeriesSpan[] spans = spans(0, size, false, random);
+        AggregateStorage heap = spans[0].getStorage();
+        AggregateStorage compressed = spans[1].getStorage();
+        // Reading encodes the pending block, so every group below is written to an encoded block, which is decoded and encoded again.
+        assertSameGroups(heap, compressed);
+        for (int k = 0; k < 100; k++) {
+            int i = random.nextInt(size);
+            setRandomGroup(random, i, i * AGGREGATE_INTERVAL, random.nextBoolean(), heap, compressed);
+            if (random.nextInt(10) == 0) assertSameGroups(heap, compressed);
+        }
+        assertSameGroups(heap, compressed);
+    }
+
+    @Test
+    public void testCompressedStorageKeepsNaNAndNegativeZero() {
+        double[] values = {1.5, Double.NaN, -0.0, 0.0, -0.0, Double.longBitsToDouble(0x7ff8000000000123L), 2.25};
+        // Without NaN, a block of short decimals may be stored as scaled integers, which must still tell -0.0 from 0.0.
+        double[] shortDecimals = {1.5, -0.0, 2.25, 0.0, -0.0, -3.75};
+        for (double[] groupValues : new double[][]{values, shortDecimals}) {
+            AggregateStorage heap = new HeapAggregateStorage(groupValues.length);
+            AggregateStorage compressed = new CompressedAggregateStorage(groupValues.length);
+            for (int i = 0; i < groupValues.length; i++) {
+                double value = groupValues[i];
+                for (AggregateStorage storage : new AggregateStorage[]{heap, compressed}) {
+                    storage.set(i, 1, value, value, i * AGGREGATE_INTERVAL, value, i * AGGREGATE_INTERVAL);
+                }
+            }
+            assertSameGroups(heap, compressed);
+        }
+    }
+
+    @Test
+    public void testMergeAndSliceCopyTheSameGroups() {
+        Random random = new Random(2);
+        // Offsets that align the blocks of the two spans, so that whole blocks are shared, and offsets that do not.
+        int[] offsets = {BLOCK_SIZE, 2 * BLOCK_SIZE, 1, BLOCK_SIZE - 1, BLOCK_SIZE + 17};
+        for (int firstSize : SIZES) {
+            for (int offset : offsets) {
+                if (offset > firstSize) continue;
+                AggregateTimeSeriesSpan[] first = spans(0, firstSize, false, random);
+                AggregateTimeSeriesSpan[] second = spans(offset * AGGREGATE_INTERVAL, SIZES[random.nextInt(SIZES.length)] + 1, random.nextBoolean(), random);
+                AggregateTimeSeriesSpan heapMerged = first[0].merge(second[0]);
+                AggregateTimeSeriesSpan compressedMerged = first[1].merge(second[1]);
+                assertTrue(compressedMerged.getStorage() instanceof CompressedAggregateStorage || compressedMerged == first[1] || compressedMerged == second[1]);
+                assertSameSpans(heapMerged, compressedMerged);
+                // The merged span shares its blocks with the spans it was merged from, which must be left as they were.
+                assertSameSpans(first[0], first[1]);
+                assertSameSpans(second[0], second[1]);
+            }
+        }
+
+        for (int size : SIZES) {
+            if (size == 0) continue;
+            AggregateTimeSeriesSpan[] spans = spans(0, size, random.nextBoolean(), random);
+            long to = size * AGGREGATE_INTERVAL;
+            // Slices that start at a block, so that blocks are shared, and slices that start within one, and slices up to the partial last block.
+            long[] starts = {0, BLOCK_SIZE * AGGREGATE_INTERVAL, AGGREGATE_INTERVAL, (BLOCK_SIZE + 5) * AGGREGATE_INTERVAL + 1};
+            for (long start : starts) {
+                if (start >= to) continue;
+                for (long end : new long[]{to, to - 1, start + 1, start + (to - start) / 2 + 1, start + BLOCK_SIZE * AGGREGATE_INTERVAL}) {
+                    if (end <= start || end > to) continue;
+                    AggregateTimeSeriesSpan compressedSlice = spans[1].slice(start, end);
+                    assertTrue(compressedSlice.getStorage() instanceof CompressedAggregateStorage);
+                    assertSameSpans(spans[0].slice(start, end), compressedSlice);
+                }
+            }
+            assertSameSpans(spans[0], spans[1]);
+        }
+    }
+
+    @Test
+    public void testCopyToCompressedStorage() {
+        Random random = new Random(5);
+        for (int k = 0; k < 500; k++) {
+            int size = SIZES[1 + random.nextInt(SIZES.length - 1)];
+            AggregateTimeSeriesSpan[] spans = spans(0, size, random.nextBoolean(), random);
+            int srcIndex = random.nextInt(size);
+            int length = 1 + random.nextInt(size - srcIndex);
+            // Mostly block aligned copies, which share blocks where they can, within and across blocks.
+            int destIndex = random.nextBoolean() ? srcIndex % BLOCK_SIZE + BLOCK_SIZE * random.nextInt(3) : random.nextInt(2 * BLOCK_SIZE);
+            int destSize = destIndex + length + (random.nextBoolean() ? 0 : random.nextInt(2 * BLOCK_SIZE));
+            AggregateStorage heapDest = new HeapAggregateStorage(destSize);
+            AggregateStorage compressedDest = new CompressedAggregateStorage(destSize);
+            spans[0].getStorage().copyTo(srcIndex, heapDest, destIndex, length);
+            spans[1].getStorage().copyTo(srcIndex, compressedDest, destIndex, length);
+            assertSameGroups(heapDest, compressedDest);
+        }
+    }
+
+    @Test
+    public void testRollupOfCompressedSpans() {
+        Random random = new Random(3);
+        for (int size : SIZES) {
+            if (size == 0) continue;
+            for (boolean shortDecimals : new boolean[]{false, true}) {
+                AggregateTimeSeriesSpan[] spans = spans(0, size, shortDecimals, random);
+                long to = size * AGGREGATE_INTERVAL;
+                for (int factor : new int[]{2, 3, BLOCK_SIZE, BLOCK_SIZE + 1}) {
+                    long newAggregateInterval = factor * AGGREGATE_INTERVAL;
+                    assertSameSpans(spans[0].rollup(newAggregateInterval, 0, to), spans[1].rollup(newAggregateInterval, 0, to));
+                    long from = random.nextInt(size) * AGGREGATE_INTERVAL + random.nextInt((int) AGGREGATE_INTERVAL);
+                    assertSameSpans(spans[0].rollup(newAggregateInterval, from, to), spans[1].rollup(newAggregateInterval, from, to));
+                }
+            }
+        }
+    }
+}
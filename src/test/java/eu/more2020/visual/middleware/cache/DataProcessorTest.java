@@ -0,0 +1,241 @@
+package eu.more2020.visual.middleware.cache;
+
+import eu.more2020.visual.middleware.datasource.QueryExecutor.QueryExecutor;
+import eu.more2020.visual.middleware.datasource.QueryExecutor.SyntheticQueryExecutor;
+import eu.more2020.visual.middleware.datasource.SyntheticQuery;
+import eu.more2020.visual.middleware.domain.AggregatedDataPointSink;
+import eu.more2020.visual.middleware.domain.DataPoint;
+import eu.more2020.visual.middleware.domain.Dataset.SyntheticDataset;
+import eu.more2020.visual.middleware.domain.MaxErrorEvaluator;
+import eu.more2020.visual.middleware.domain.PixelColumn;
+import eu.more2020.visual.middleware.domain.Query.QueryMethod;
+import eu.more2020.visual.middleware.domain.Stats;
+import eu.more2020.visual.middleware.domain.TimeInterval;
+import eu.more2020.visual.middleware.domain.TimeRange;
+import eu.more2020.visual.middleware.domain.ViewPort;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class DataProcessorTest {
+
+    private static final SyntheticDataset DATASET = new SyntheticDataset("synthetic100k", "more", "synthetic100k");
+
+    /**
+     * Fails every query that asks for the given measure.
+     */
+    private static class FailingQueryExecutor extends SyntheticQueryExecutor {
+
+        private final String failingMeasure;
+
+        FailingQueryExecutor(SyntheticDataset dataset, String failingMeasure) {
+            super(dataset);
+            this.failingMeasure = failingMeasure;
+        }
+
+        @Override
+        public void execute(SyntheticQuery q, QueryMethod method, AggregatedDataPointSink sink) {
+            if (q.getMissingIntervalsPerMeasure().containsKey(failingMeasure)) {
+                throw new IllegalStateException("Failed to fetch " + failingMeasure);
+            }
+            super.execute(q, method, sink);
+        }
+    }
+
+    private static Map<Integer, List<TimeSeriesSpan>> getMissing(DataProcessor dataProcessor, List<Integer> measures) {
+        long from = DATASET.getTimeRange().getFrom();
+        long to = DATASET.getTimeRange().getTo();
+        long step = (to - from) / 4;
+        Map<Integer, List<TimeInterval>> missingIntervals = new HashMap<>();
+        Map<Integer, Integer> aggFactors = new HashMap<>();
+        for (int measure : measures) {
+            missingIntervals.put(measure, Arrays.asList(new TimeRange(from, from + step), new TimeRange(from + 2 * step, from + 3 * step)));
+            aggFactors.put(measure, 4);
+        }
+        return dataProcessor.getMissing(from, to, missingIntervals, aggFactors, new ViewPort(500, 300), QueryMethod.MIN_MAX);
+    }
+
+    private static void assertSameGroups(List<TimeSeriesSpan> expected, List<TimeSeriesSpan> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            TimeSeriesSpanCursor expectedCursor = expected.get(i).cursor(expected.get(i).getFrom(), expected.get(i).getTo());
+            TimeSeriesSpanCursor actualCursor = actual.get(i).cursor(actual.get(i).getFrom(), actual.get(i).getTo());
+            while (expectedCursor.advance()) {
+                assertTrue(actualCursor.advance());
+                assertEquals(expectedCursor.from(), actualCursor.from());
+                assertEquals(expectedCursor.minValue(), actualCursor.minValue(), 0);
+                assertEquals(expectedCursor.maxValue(), actualCursor.maxValue(), 0);
+            }
+            assertFalse(actualCursor.advance());
+        }
+    }
+
+    /**
+     * Checks that a raw fetch builds raw spans in the storage type, with the raw data points of their intervals.
+     */
+    private static void assertRawFetch(DataProcessor dataProcessor, StorageType storageType) {
+        long from = DATASET.getTimeRange().getFrom();
+        long to = DATASET.getTimeRange().getTo();
+        long step = (to - from) / 40;
+        List<Integer> measures = Arrays.asList(0, 3);
+        Map<Integer, List<TimeInterval>> missingIntervals = new HashMap<>();
+        Map<Integer, Integer> aggFactors = new HashMap<>();
+        for (int measure : measures) {
+            missingIntervals.put(measure, new ArrayList<>(Arrays.asList(new TimeRange(from + step, from + 2 * step + 7),
+                    new TimeRange(from + 5 * step + 3, from + 6 * step))));
+            aggFactors.put(measure, 4);
+        }
+        Map<Integer, List<TimeSeriesSpan>> spans = dataProcessor.getMissing(from, to, new HashMap<>(missingIntervals), aggFactors,
+                new ViewPort(500, 300), QueryMethod.RAW);
+        assertEquals(new HashSet<>(measures), spans.keySet());
+        SyntheticQueryExecutor queryExecutor = new SyntheticQueryExecutor(DATASET);
+        for (int measure : measures) {
+            assertEquals(missingIntervals.get(measure).size(), spans.get(measure).size());
+            for (int i = 0; i < spans.get(measure).size(); i++) {
+                TimeInterval interval = missingIntervals.get(measure).get(i);
+                RawTimeSeriesSpan span = (RawTimeSeriesSpan) spans.get(measure).get(i);
+                assertEquals(storageType == StorageType.COMPRESSED, span.isCompressed());
+                assertEquals(interval.getFrom(), span.getFrom());
+                assertEquals(interval.getTo(), span.getTo());
+                List<DataPoint> expected = queryExecutor.executeRawQuery(new SyntheticQuery(interval.getFrom(), interval.getTo(),
+                        Collections.singletonMap(DATASET.getHeader()[measure], Collections.singletonList(interval)))).getData().get(measure);
+                Iterator<DataPoint> actual = span.iterator();
+                for (DataPoint dataPoint : expected) {
+                    assertTrue(actual.hasNext());
+                    DataPoint actualDataPoint = actual.next();
+                    assertEquals(dataPoint.getTimestamp(), actualDataPoint.getTimestamp());
+                    assertEquals(dataPoint.getValue(), actualDataPoint.getValue(), 0);
+                }
+                assertFalse(actual.hasNext());
+            }
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void testRawFetchBuildsRawSpans() {
+        for (StorageType storageType : new StorageType[]{StorageType.HEAP, StorageType.COMPRESSED}) {
+            DataProcessor dataProcessor = new DataProcessor(new SyntheticQueryExecutor(DATASET), DATASET, 4, storageType);
+            DataProcessor concurrentDataProcessor = new DataProcessor(Arrays.asList(new SyntheticQueryExecutor(DATASET),
+                    new SyntheticQueryExecutor(DATASET), new SyntheticQueryExecutor(DATASET)), DATASET, 4, storageType);
+            try {
+                assertRawFetch(dataProcessor, storageType);
+                assertRawFetch(concurrentDataProcessor, storageType);
+            } finally {
+                dataProcessor.shutdown();
+                concurrentDataProcessor.shutdown();
+            }
+        }
+    }
+
+    private static List<PixelColumn> pixelColumns(long from, long pixelColumnInterval, ViewPort viewPort) {
+        List<PixelColumn> pixelColumns = new ArrayList<>();
+        for (int i = 0; i < viewPort.getWidth(); i++) {
+            pixelColumns.add(new PixelColumn(from + i * pixelColumnInterval, from + (i + 1) * pixelColumnInterval, viewPort));
+        }
+        return pixelColumns;
+    }
+
+    /**
+     * A span with random groups, some of them empty, whose values have many ties, so that the timestamps of the min and max data points matter.
+     */
+    private static AggregateTimeSeriesSpan randomSpan(long from, int size, long aggregateInterval, Random random) {
+        AggregateStorage storage = StorageType.HEAP.allocate(size);
+        for (int i = 0; i < size; i++) {
+            if (random.nextInt(6) == 0) continue;
+            long groupFrom = from + i * aggregateInterval;
+            double a = random.nextInt(20);
+            double b = random.nextInt(20);
+            storage.set(i, 1 + random.nextInt(10), a + b, Math.min(a, b), groupFrom + random.nextInt((int) aggregateInterval),
+                    Math.max(a, b), groupFrom + random.nextInt((int) aggregateInterval));
+        }
+        return new AggregateTimeSeriesSpan(from, from + size * aggregateInterval, 0, aggregateInterval, storage);
+    }
+
+    private static void assertSameStats(String message, Stats expected, Stats actual) {
+        assertEquals(message, expected.getCount() > 0, actual.getCount() > 0);
+        if (expected.getCount() == 0) return;
+        assertEquals(message, expected.getMinValue(), actual.getMinValue(), 0);
+        assertEquals(message, expected.getMinTimestamp(), actual.getMinTimestamp());
+        assertEquals(message, expected.getMaxValue(), actual.getMaxValue(), 0);
+        assertEquals(message, expected.getMaxTimestamp(), actual.getMaxTimestamp());
+        assertEquals(message, expected.getFirstValue(), actual.getFirstValue(), 0);
+        assertEquals(message, expected.getFirstTimestamp(), actual.getFirstTimestamp());
+        assertEquals(message, expected.getLastValue(), actual.getLastValue(), 0);
+        assertEquals(message, expected.getLastTimestamp(), actual.getLastTimestamp());
+    }
+
+    @Test
+    public void testMergedInnerGroupsLeavePixelColumnsUnchanged() {
+        DataProcessor dataProcessor = new DataProcessor(new SyntheticQueryExecutor(DATASET), DATASET, 4);
+        Random random = new Random(0);
+        ViewPort viewPort = new ViewPort(100, 50);
+        long pixelColumnInterval = 1_000;
+        long from = 1_000_000;
+        long to = from + viewPort.getWidth() * pixelColumnInterval;
+        for (int k = 0; k < 50; k++) {
+            // Spans much finer than the pixel columns, aligned with them or not, and coarser ones, with gaps between them.
+            List<TimeSeriesSpan> spans = new ArrayList<>();
+            long spanFrom = from - random.nextInt(3_000);
+            while (spanFrom < to) {
+                long aggregateInterval = new long[]{7, 10, 125, 333, 1_000}[random.nextInt(5)];
+                int size = 1 + random.nextInt(20_000 / (int) aggregateInterval);
+                spans.add(randomSpan(spanFrom, size, aggregateInterval, random));
+                spanFrom += size * aggregateInterval + (random.nextBoolean() ? 0 : random.nextInt(5_000));
+            }
+
+            // Every group added on its own, as before the inner groups were merged.
+            List<PixelColumn> expected = pixelColumns(from, pixelColumnInterval, viewPort);
+            for (TimeSeriesSpan span : spans) {
+                TimeSeriesSpanCursor cursor = span.cursor(from, to);
+                while (cursor.advance()) {
+                    int index = (int) ((cursor.from() - from) / pixelColumnInterval);
+                    if (index < viewPort.getWidth()) expected.get(index).addAggregatedDataPoint(cursor);
+                    if (index < viewPort.getWidth() - 1 && expected.get(index + 1).getFrom() < cursor.to()) {
+                        expected.get(index + 1).addAggregatedDataPoint(cursor);
+                    }
+                }
+            }
+            List<PixelColumn> actual = pixelColumns(from, pixelColumnInterval, viewPort);
+            dataProcessor.processDatapoints(from, to, viewPort, actual, spans);
+
+            for (int i = 0; i < viewPort.getWidth(); i++) {
+                assertSameStats("pixel column " + i, expected.get(i).getStats(), actual.get(i).getStats());
+            }
+            MaxErrorEvaluator expectedErrors = new MaxErrorEvaluator(viewPort, expected);
+            MaxErrorEvaluator actualErrors = new MaxErrorEvaluator(viewPort, actual);
+            assertArrayEquals(expectedErrors.computeMaxPixelErrors(), actualErrors.computeMaxPixelErrors(), 0);
+            assertEquals(expectedErrors.getMissingRanges().toString(), actualErrors.getMissingRanges().toString());
+        }
+        dataProcessor.shutdown();
+    }
+
+    @Test(timeout = 30_000)
+    public void testFailedSubQueryFailsTheFetchAndKeepsTheConnections() {
+        List<QueryExecutor> queryExecutors = Arrays.asList(new FailingQueryExecutor(DATASET, "value_2"),
+                new FailingQueryExecutor(DATASET, "value_2"));
+        DataProcessor dataProcessor = new DataProcessor(queryExecutors, DATASET, 4, StorageType.HEAP);
+        DataProcessor reference = new DataProcessor(new SyntheticQueryExecutor(DATASET), DATASET, 4);
+        try {
+            for (int i = 0; i < 3; i++) {
+                try {
+                    getMissing(dataProcessor, Arrays.asList(0, 1));
+                    fail("The fetch should fail with its failed sub-query");
+                } catch (RuntimeException e) {
+                    assertTrue(e.getCause() instanceof IllegalStateException);
+                }
+            }
+            // The connections were returned after the failures, so later fetches still run, with the same groups as a single query.
+            Map<Integer, List<TimeSeriesSpan>> expected = getMissing(reference, Arrays.asList(0, 2));
+            Map<Integer, List<TimeSeriesSpan>> actual = getMissing(dataProcessor, Arrays.asList(0, 2));
+            assertEquals(expected.keySet(), actual.keySet());
+            for (int measure : expected.keySet()) {
+                assertSameGroups(expected.get(measure), actual.get(measure));
+            }
+        } finally {
+            dataProcessor.shutdown();
+            reference.shutdown();
+        }
+    }
+}
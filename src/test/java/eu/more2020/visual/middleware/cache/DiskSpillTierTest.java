@@ -0,0 +1,156 @@
+package eu.more2020.visual.middleware.cache;
+
+import eu.more2020.visual.middleware.domain.Query.Query;
+import eu.more2020.visual.middleware.domain.Query.QueryMethod;
+import eu.more2020.visual.middleware.domain.TimeRange;
+import eu.more2020.visual.middleware.domain.ViewPort;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class DiskSpillTierTest {
+
+    private static final int MEASURE = 0;
+
+    // Room for four spans of 20 groups in a segment.
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static AggregateTimeSeriesSpan aggregateSpan(long from, int size, long aggregateInterval, Random random) {
+        AggregateStorage storage = StorageType.COMPRESSED.allocate(size);
+        for (int i = 0; i < size; i++) {
+            if (random.nextInt(8) == 0) continue;
+            long groupFrom = from + i * aggregateInterval;
+            double a = random.nextGaussian();
+            double b = random.nextGaussian();
+            storage.set(i, 1 + random.nextInt(100), a + b, Math.min(a, b), groupFrom + random.nextInt((int) aggregateInterval),
+                    Math.max(a, b), groupFrom + random.nextInt((int) aggregateInterval));
+        }
+        return new AggregateTimeSeriesSpan(from, from + size * aggregateInterval, MEASURE, aggregateInterval, storage);
+    }
+
+    private static void assertSameGroups(AggregateTimeSeriesSpan expected, TimeSeriesSpan actual) {
+        assertTrue(actual instanceof AggregateTimeSeriesSpan);
+        assertEquals(expected.getFrom(), actual.getFrom());
+        assertEquals(expected.getTo(), actual.getTo());
+        assertEquals(expected.getAggregateInterval(), actual.getAggregateInterval());
+        AggregateStorage expectedStorage = expected.getStorage();
+        AggregateStorage actualStorage = ((AggregateTimeSeriesSpan) actual).getStorage();
+        assertEquals(expectedStorage.size(), actualStorage.size());
+        for (int i = 0; i < expectedStorage.size(); i++) {
+            assertEquals(expectedStorage.getCount(i), actualStorage.getCount(i));
+            if (expectedStorage.getCount(i) == 0) continue;
+            assertEquals(expectedStorage.getSum(i), actualStorage.getSum(i), 0);
+            assertEquals(expectedStorage.getMinValue(i), actualStorage.getMinValue(i), 0);
+            assertEquals(expectedStorage.getMinTimestamp(i), actualStorage.getMinTimestamp(i));
+            assertEquals(expectedStorage.getMaxValue(i), actualStorage.getMaxValue(i), 0);
+            assertEquals(expectedStorage.getMaxTimestamp(i), actualStorage.getMaxTimestamp(i));
+        }
+    }
+
+    private static long segmentFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void testSpilledSpansAreFoundUntilTheirSegmentIsDropped() throws IOException {
+        Path directory = folder.getRoot().toPath().resolve("spill");
+        DiskSpillTier spillTier = new DiskSpillTier(directory, 2 * SEGMENT_SIZE, SEGMENT_SIZE);
+        Random random = new Random(0);
+        List<AggregateTimeSeriesSpan> spans = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            AggregateTimeSeriesSpan span = aggregateSpan(i * 1_000L, 20, 10, random);
+            spans.add(span);
+            assertTrue(spillTier.spill(span));
+        }
+        assertEquals(2 * SEGMENT_SIZE, spillTier.getDiskSize());
+        assertEquals(2, segmentFiles(directory));
+        for (int i = 0; i < 6; i++) {
+            List<TimeSeriesSpan> found = spillTier.getOverlapping(MEASURE, new TimeRange(i * 1_000L + 50, i * 1_000L + 60));
+            assertEquals(1, found.size());
+            assertSameGroups(spans.get(i), found.get(0));
+            found.forEach(TimeSeriesSpan::release);
+        }
+        // The spilled spans are copies, so the evicted spans are released by their owner.
+        spans.forEach(TimeSeriesSpan::release);
+        assertTrue(spillTier.getOverlapping(MEASURE + 1, new TimeRange(0, 6_000)).isEmpty());
+
+        // The spans of the first segment are dropped with it when a third segment exceeds the budget.
+        List<AggregateTimeSeriesSpan> moreSpans = new ArrayList<>();
+        for (int i = 6; i < 9; i++) {
+            AggregateTimeSeriesSpan span = aggregateSpan(i * 1_000L, 20, 10, random);
+            moreSpans.add(span);
+            assertTrue(spillTier.spill(span));
+        }
+        assertEquals(2 * SEGMENT_SIZE, spillTier.getDiskSize());
+        assertEquals(2, segmentFiles(directory));
+        List<TimeSeriesSpan> found = spillTier.getOverlapping(MEASURE, new TimeRange(0, 9_000));
+        assertEquals(Arrays.asList(4_000L, 5_000L, 6_000L, 7_000L, 8_000L),
+                found.stream().map(TimeSeriesSpan::getFrom).sorted().collect(Collectors.toList()));
+        found.forEach(TimeSeriesSpan::release);
+
+        // Spans larger than a segment, raw spans and spans with an interval already spilled are not spilled.
+        AggregateTimeSeriesSpan largeSpan = aggregateSpan(20_000, 100, 10, random);
+        assertFalse(spillTier.spill(largeSpan));
+        RawTimeSeriesSpan.Builder builder = new RawTimeSeriesSpan.Builder(30_000, 30_100, MEASURE, false);
+        builder.add(30_000, 1);
+        RawTimeSeriesSpan rawSpan = builder.build();
+        assertFalse(spillTier.spill(rawSpan));
+        assertFalse(spillTier.spill(moreSpans.get(0)));
+        moreSpans.forEach(TimeSeriesSpan::release);
+        largeSpan.release();
+        rawSpan.release();
+
+        spillTier.close();
+        assertEquals(0, spillTier.getDiskSize());
+        assertEquals(0, segmentFiles(directory));
+        assertTrue(spillTier.getOverlapping(MEASURE, new TimeRange(0, 9_000)).isEmpty());
+    }
+
+    @Test
+    public void testEvictedSpansAreLookedUpFromTheSpillTier() {
+        Random random = new Random(1);
+        AggregateTimeSeriesSpan first = aggregateSpan(0, 20, 10, random);
+        AggregateTimeSeriesSpan second = aggregateSpan(10_000, 20, 10, random);
+        // The spans are kept to compare with, as the cache releases its reference when it evicts them.
+        first.retain();
+        second.retain();
+        // A budget that holds only one of the spans, which are apart so that they are not compacted.
+        long maxMemory = Math.max(first.calculateDeepMemorySize(), second.calculateDeepMemorySize());
+        CacheManager cacheManager = new CacheManager(Collections.singletonList(MEASURE), maxMemory,
+                new LRUEvictionPolicy(), new DiskSpillTier(folder.getRoot().toPath().resolve("spill"), 2 * SEGMENT_SIZE, SEGMENT_SIZE));
+        try {
+            cacheManager.addToCache(new ArrayList<>(Collections.singletonList(first)));
+            cacheManager.addToCache(new ArrayList<>(Collections.singletonList(second)));
+            assertEquals(second.calculateDeepMemorySize(), cacheManager.calculateDeepMemorySize());
+
+            Query query = new Query(0, 200, 0.95f, null, QueryMethod.MIN_MAX, Collections.singletonList(MEASURE), new ViewPort(5, 100), null);
+            List<TimeSeriesSpan> found = cacheManager.getFromCache(query, MEASURE, 40);
+            assertEquals(1, found.size());
+            assertNotSame(first, found.get(0));
+            assertSameGroups(first, found.get(0));
+            found.forEach(TimeSeriesSpan::release);
+
+            // Spilled spans are only used with pixel columns of at least two of their groups, like the cached ones.
+            found = cacheManager.getFromCache(query, MEASURE, 10);
+            assertTrue(found.isEmpty());
+        } finally {
+            cacheManager.shutdown();
+            first.release();
+            second.release();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package eu.more2020.visual.middleware.cache;
+
+import eu.more2020.visual.middleware.domain.Query.QueryMethod;
+import eu.more2020.visual.middleware.domain.TimeInterval;
+import eu.more2020.visual.middleware.domain.TimeRange;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class InFlightFetchesTest {
+
+    private static final int MEASURE = 0;
+    private static final long AGGREGATE_INTERVAL = 10;
+
+    private static InFlightFetches.Claim claim(InFlightFetches inFlightFetches, long from, long to) {
+        Map<Integer, List<TimeInterval>> missingIntervals = Collections.singletonMap(MEASURE,
+                Collections.singletonList(new TimeRange(from, to)));
+        return inFlightFetches.claim(missingIntervals, Collections.singletonMap(MEASURE, AGGREGATE_INTERVAL), QueryMethod.MIN_MAX);
+    }
+
+    @Test
+    public void testWaiterGetsTheGroupsOfTheSharedFetch() {
+        InFlightFetches inFlightFetches = new InFlightFetches();
+        InFlightFetches.Claim first = claim(inFlightFetches, 0, 100);
+        InFlightFetches.Claim second = claim(inFlightFetches, 50, 150);
+        assertEquals(Collections.singletonList(new TimeRange(100, 150)), second.getToFetch().get(MEASURE));
+
+        TimeSeriesSpan fetched = new AggregateTimeSeriesSpan(0, 100, MEASURE, AGGREGATE_INTERVAL);
+        inFlightFetches.complete(first, Collections.singletonMap(MEASURE, Collections.singletonList(fetched)));
+
+        List<TimeSeriesSpan> shared = inFlightFetches.await(second).get(MEASURE);
+        assertEquals(1, shared.size());
+        assertEquals(50, shared.get(0).getFrom());
+        assertEquals(100, shared.get(0).getTo());
+    }
+
+    @Test
+    public void testErrorOfTheSharedFetchFailsTheWaiters() {
+        InFlightFetches inFlightFetches = new InFlightFetches();
+        InFlightFetches.Claim first = claim(inFlightFetches, 0, 100);
+        InFlightFetches.Claim second = claim(inFlightFetches, 0, 100);
+        assertTrue(second.getToFetch().isEmpty());
+
+        Error error = new StackOverflowError();
+        inFlightFetches.fail(first, error);
+        try {
+            inFlightFetches.await(second);
+            fail("The waiter should fail with the error of the fetch");
+        } catch (RuntimeException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void testAwaitIsBounded() {
+        InFlightFetches inFlightFetches = new InFlightFetches(100);
+        InFlightFetches.Claim first = claim(inFlightFetches, 0, 100);
+        InFlightFetches.Claim second = claim(inFlightFetches, 0, 100);
+        try {
+            inFlightFetches.await(second);
+            fail("The waiter should time out, as the fetch it waits for never completes");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof java.util.concurrent.TimeoutException);
+        }
+        // A fetch that completes after its waiter gave up still completes, and later claims fetch the interval again.
+        inFlightFetches.complete(first, Collections.singletonMap(MEASURE,
+                Collections.singletonList(new AggregateTimeSeriesSpan(0, 100, MEASURE, AGGREGATE_INTERVAL))));
+        assertEquals(1, claim(inFlightFetches, 0, 100).getToFetch().get(MEASURE).size());
+    }
+}
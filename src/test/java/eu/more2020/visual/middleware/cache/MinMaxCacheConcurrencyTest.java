@@ -0,0 +1,168 @@
+package eu.more2020.visual.middleware.cache;
+
+import eu.more2020.visual.middleware.datasource.QueryExecutor.SyntheticQueryExecutor;
+import eu.more2020.visual.middleware.domain.Dataset.SyntheticDataset;
+import eu.more2020.visual.middleware.domain.Query.Query;
+import eu.more2020.visual.middleware.domain.Query.QueryMethod;
+import eu.more2020.visual.middleware.domain.QueryResults;
+import eu.more2020.visual.middleware.domain.ViewPort;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs query sequences on one cache from several threads at once, over the in-process synthetic data source,
+ * and checks that every thread gets the same results as a single-threaded run.
+ * <p>
+ * The results of an approximate query depend on the spans cached by the queries before it, so a query only has a single
+ * expected result if the cache held the same data when it ran. Every thread therefore queries a measure of its own:
+ * the spans, agg factors and learned errors that shape its results are kept per measure, while the cache,
+ * the data processor and the query planner are shared by all threads.
+ * A second test has the threads share measures under a memory budget that forces evictions, where the results cannot be compared,
+ * and checks that the queries still succeed within their accuracy and that the cache keeps account of its memory.
+ */
+public class MinMaxCacheConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final SyntheticDataset DATASET = new SyntheticDataset("synthetic1m", "more", "synthetic1m", 1_000_000, THREADS,
+            Duration.ofSeconds(1), 0, 0);
+
+    /**
+     * Pans and zooms over the dataset, so that the queries partially overlap the data cached by the previous ones.
+     */
+    private static List<Query> querySequence(int measure, int count) {
+        return querySequence(measure, measure, count);
+    }
+
+    private static List<Query> querySequence(int measure, long seed, int count) {
+        long from = DATASET.getTimeRange().getFrom();
+        long to = DATASET.getTimeRange().getTo();
+        Random random = new Random(seed);
+        ViewPort viewPort = new ViewPort(500, 300);
+        long width = (to - from) / 8;
+        long start = from + (to - from) / 4;
+        List<Query> queries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            queries.add(new Query(start, start + width, 0.95f, null, QueryMethod.MIN_MAX, Collections.singletonList(measure),
+                    viewPort, null));
+            switch (random.nextInt(3)) {
+                case 0:
+                    width = Math.max(width / 2, (to - from) / 200);
+                    break;
+                case 1:
+                    width = Math.min(width * 2, (to - from) / 2);
+                    break;
+                default:
+                    break;
+            }
+            long shift = (long) ((random.nextDouble() - 0.5) * width);
+            start = Math.max(from, Math.min(to - width, start + shift));
+        }
+        return queries;
+    }
+
+    private static boolean sameResults(int measure, QueryResults expected, QueryResults actual) {
+        DoubleSummaryStatistics expectedStats = expected.getMeasureStats().get(measure);
+        DoubleSummaryStatistics actualStats = actual.getMeasureStats().get(measure);
+        return expectedStats.getMin() == actualStats.getMin() && expectedStats.getMax() == actualStats.getMax()
+                && expected.getData().get(measure).size() == actual.getData().get(measure).size();
+    }
+
+    @Test(timeout = 120_000)
+    public void testConcurrentQueriesMatchSingleThreadedQueries() throws InterruptedException, ExecutionException {
+        List<Integer> measures = DATASET.getMeasures();
+        List<List<Query>> sequences = new ArrayList<>(THREADS);
+        for (int measure : measures) sequences.add(querySequence(measure, 40));
+
+        MinMaxCache referenceCache = new MinMaxCache(new SyntheticQueryExecutor(DATASET), DATASET, 0, 4, 4);
+        List<List<QueryResults>> referenceResults = new ArrayList<>(THREADS);
+        for (List<Query> sequence : sequences) {
+            List<QueryResults> results = new ArrayList<>(sequence.size());
+            for (Query query : sequence) results.add(referenceCache.executeQuery(query));
+            referenceResults.add(results);
+        }
+        referenceCache.shutdown();
+
+        // Two connections, so that the fetches of the threads also run as concurrent sub-queries.
+        MinMaxCache sharedCache = new MinMaxCache(Arrays.asList(new SyntheticQueryExecutor(DATASET), new SyntheticQueryExecutor(DATASET)),
+                DATASET, 0, 4, 4, Long.MAX_VALUE, new LRUEvictionPolicy(), StorageType.HEAP, 2);
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        try {
+            CyclicBarrier start = new CyclicBarrier(THREADS);
+            List<Future<List<QueryResults>>> futures = new ArrayList<>(THREADS);
+            for (List<Query> sequence : sequences) {
+                futures.add(executorService.submit(() -> {
+                    start.await();
+                    List<QueryResults> results = new ArrayList<>(sequence.size());
+                    for (Query query : sequence) results.add(sharedCache.executeQuery(query));
+                    return results;
+                }));
+            }
+            int mismatches = 0;
+            for (int t = 0; t < THREADS; t++) {
+                List<QueryResults> results = futures.get(t).get();
+                for (int i = 0; i < results.size(); i++) {
+                    if (!sameResults(measures.get(t), referenceResults.get(t).get(i), results.get(i))) mismatches++;
+                }
+            }
+            assertEquals("Results that differ from the single-threaded execution", 0, mismatches);
+        } finally {
+            executorService.shutdownNow();
+            sharedCache.shutdown();
+        }
+    }
+
+    @Test(timeout = 120_000)
+    public void testSharedMeasuresUnderEviction() throws InterruptedException, ExecutionException {
+        // Two threads on every measure, with different query sequences.
+        List<Integer> measures = DATASET.getMeasures().subList(0, THREADS / 2);
+        List<List<Query>> sequences = new ArrayList<>(THREADS);
+        for (int t = 0; t < THREADS; t++) sequences.add(querySequence(measures.get(t % measures.size()), 100 + t, 40));
+
+        // A budget well below the memory the queries need, so that the spans of a measure are evicted while other threads read and insert them.
+        long maxMemory = 256 * 1024;
+        MinMaxCache sharedCache = new MinMaxCache(Arrays.asList(new SyntheticQueryExecutor(DATASET), new SyntheticQueryExecutor(DATASET)),
+                DATASET, 0, 4, 4, maxMemory, new LRUEvictionPolicy(), StorageType.HEAP, 2);
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        try {
+            CyclicBarrier start = new CyclicBarrier(THREADS);
+            List<Future<List<QueryResults>>> futures = new ArrayList<>(THREADS);
+            for (List<Query> sequence : sequences) {
+                futures.add(executorService.submit(() -> {
+                    start.await();
+                    List<QueryResults> results = new ArrayList<>(sequence.size());
+                    for (Query query : sequence) results.add(sharedCache.executeQuery(query));
+                    return results;
+                }));
+            }
+            for (int t = 0; t < THREADS; t++) {
+                // Any exception of a query fails the test here.
+                List<QueryResults> results = futures.get(t).get();
+                for (int i = 0; i < results.size(); i++) {
+                    Query query = sequences.get(t).get(i);
+                    int measure = query.getMeasures().get(0);
+                    QueryResults queryResults = results.get(i);
+                    assertFalse(queryResults.getData().get(measure).isEmpty());
+                    double error = queryResults.getError().get(measure);
+                    assertTrue("Error " + error + " of query " + i + " of thread " + t,
+                            queryResults.isFlag() || error <= 1 - query.getAccuracy());
+                }
+            }
+            assertTrue(sharedCache.getMetrics().getSpansEvicted() > 0);
+
+            // Once the queries are done, the memory size kept by the cache is the size of the spans in it, and within the budget.
+            List<TimeSeriesSpan> cachedSpans = sharedCache.getCacheManager().getAllFromCache();
+            long cachedMemory = cachedSpans.stream().mapToLong(TimeSeriesSpan::calculateDeepMemorySize).sum();
+            cachedSpans.forEach(TimeSeriesSpan::release);
+            assertEquals(cachedMemory, sharedCache.calculateDeepMemorySize());
+            assertTrue(sharedCache.calculateDeepMemorySize() <= maxMemory);
+        } finally {
+            executorService.shutdownNow();
+            sharedCache.shutdown();
+        }
+    }
+}
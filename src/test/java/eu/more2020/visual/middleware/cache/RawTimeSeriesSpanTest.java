@@ -0,0 +1,134 @@
+package eu.more2020.visual.middleware.cache;
+
+import eu.more2020.visual.middleware.domain.DataPoint;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RawTimeSeriesSpanTest {
+
+    private static final int MEASURE = 0;
+
+    /**
+     * Builds the same data points into a plain and a compressed span. The timestamps have irregular gaps, and the values are either
+     * short decimals, which are stored as scaled integers, or full precision doubles mixed with NaN, infinities, 0.0 and -0.0.
+     */
+    private static RawTimeSeriesSpan[] spans(int count, boolean shortDecimals, Random random) {
+        long from = 1_000;
+        RawTimeSeriesSpan.Builder plain = new RawTimeSeriesSpan.Builder(from, from + 100L * count + 1, MEASURE, false);
+        RawTimeSeriesSpan.Builder compressed = new RawTimeSeriesSpan.Builder(from, from + 100L * count + 1, MEASURE, true);
+        long timestamp = from;
+        for (int i = 0; i < count; i++) {
+            timestamp += random.nextInt(10) == 0 ? 1 + random.nextInt(100) : 10;
+            double value;
+            // Blocks with special values are XOR encoded, so the short decimals have none, to also cover the scaled integers.
+            switch (shortDecimals ? -1 : random.nextInt(12)) {
+                case 0:
+                    value = Double.NaN;
+                    break;
+                case 1:
+                    value = -0.0;
+                    break;
+                case 2:
+                    value = 0.0;
+                    break;
+                case 3:
+                    value = random.nextBoolean() ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+                    break;
+                default:
+                    value = shortDecimals ? Math.round(random.nextGaussian() * 10_000) / 100.0 : random.nextGaussian() * 1e6;
+            }
+            plain.add(timestamp, value);
+            compressed.add(timestamp, value);
+        }
+        return new RawTimeSeriesSpan[]{plain.build(), compressed.build()};
+    }
+
+    private static void assertSameDataPoints(RawTimeSeriesSpan expected, RawTimeSeriesSpan actual, long from, long to) {
+        TimeSeriesSpanCursor expectedCursor = expected.cursor(from, to);
+        TimeSeriesSpanCursor actualCursor = actual.cursor(from, to);
+        while (expectedCursor.advance()) {
+            assertTrue(actualCursor.advance());
+            assertEquals(expectedCursor.minTs(), actualCursor.minTs());
+            // The values must be the same bits, so that NaN and -0.0 are kept exactly.
+            assertEquals(Double.doubleToRawLongBits(expectedCursor.minValue()), Double.doubleToRawLongBits(actualCursor.minValue()));
+        }
+        assertFalse(actualCursor.advance());
+
+        Iterator<DataPoint> expectedIterator = expected.iterator(from, to);
+        Iterator<DataPoint> actualIterator = actual.iterator(from, to);
+        while (expectedIterator.hasNext()) {
+            assertTrue(actualIterator.hasNext());
+            DataPoint expectedDataPoint = expectedIterator.next();
+            DataPoint actualDataPoint = actualIterator.next();
+            assertEquals(expectedDataPoint.getTimestamp(), actualDataPoint.getTimestamp());
+            assertEquals(Double.doubleToRawLongBits(expectedDataPoint.getValue()), Double.doubleToRawLongBits(actualDataPoint.getValue()));
+        }
+        assertFalse(actualIterator.hasNext());
+    }
+
+    private static void assertSameSpans(RawTimeSeriesSpan plain, RawTimeSeriesSpan compressed, Random random) {
+        assertFalse(plain.isCompressed());
+        assertTrue(compressed.isCompressed());
+        assertEquals(plain.getCount(), compressed.getCount());
+        assertArrayEquals(plain.getTimestamps(), compressed.getTimestamps());
+        double[] plainValues = plain.getValues();
+        double[] compressedValues = compressed.getValues();
+        assertEquals(plainValues.length, compressedValues.length);
+        for (int i = 0; i < plainValues.length; i++) {
+            assertEquals(Double.doubleToRawLongBits(plainValues[i]), Double.doubleToRawLongBits(compressedValues[i]));
+        }
+        assertSameDataPoints(plain, compressed, plain.getFrom(), plain.getTo());
+        long length = plain.getTo() - plain.getFrom();
+        for (int i = 0; i < 200; i++) {
+            // Ranges that start and end before, inside and after the span, on timestamps of data points or between them.
+            long from = plain.getFrom() - 50 + (long) (random.nextDouble() * (length + 100));
+            long to = from + (long) (random.nextDouble() * (length + 100));
+            assertSameDataPoints(plain, compressed, from, to);
+            RawTimeSeriesSpan plainSlice = plain.slice(from, to);
+            RawTimeSeriesSpan compressedSlice = compressed.slice(from, to);
+            assertEquals(plainSlice.getFrom(), compressedSlice.getFrom());
+            assertEquals(plainSlice.getTo(), compressedSlice.getTo());
+            assertTrue(compressedSlice.isCompressed() || compressedSlice.getCount() == 0);
+            assertSameDataPoints(plainSlice, compressedSlice, from, to);
+        }
+    }
+
+    @Test
+    public void testCompressedSpansHaveTheSameDataPoints() {
+        Random random = new Random(0);
+        // Empty, single point, partial first block, exactly one block, and partial last blocks.
+        for (int count : new int[]{0, 1, 2, 127, RawTimeSeriesSpan.BLOCK_SIZE, RawTimeSeriesSpan.BLOCK_SIZE + 1, 3 * RawTimeSeriesSpan.BLOCK_SIZE + 17,
+                8 * RawTimeSeriesSpan.BLOCK_SIZE}) {
+            for (boolean shortDecimals : new boolean[]{false, true}) {
+                RawTimeSeriesSpan[] spans = spans(count, shortDecimals, random);
+                assertSameSpans(spans[0], spans[1], random);
+            }
+        }
+    }
+
+    private static void assertKeptExactly(double[] values) {
+        RawTimeSeriesSpan.Builder builder = new RawTimeSeriesSpan.Builder(0, 10L * values.length, MEASURE, true);
+        for (int i = 0; i < values.length; i++) builder.add(i * 10, values[i]);
+        double[] decoded = builder.build().getValues();
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(decoded[i]));
+        }
+    }
+
+    @Test
+    public void testCompressedSpansKeepNaNAndNegativeZero() {
+        assertKeptExactly(new double[]{1.5, Double.NaN, -0.0, 0.0, -0.0, Double.longBitsToDouble(0x7ff8000000000123L), 2.25});
+        // Without NaN, a block of short decimals may be stored as scaled integers, which must still tell -0.0 from 0.0.
+        assertKeptExactly(new double[]{1.5, -0.0, 2.25, 0.0, -0.0, -3.75});
+    }
+
+    @Test
+    public void testShortDecimalsCompress() {
+        RawTimeSeriesSpan[] spans = spans(8 * RawTimeSeriesSpan.BLOCK_SIZE, true, new Random(1));
+        assertTrue(spans[1].calculateDeepMemorySize() < spans[0].calculateDeepMemorySize());
+    }
+}
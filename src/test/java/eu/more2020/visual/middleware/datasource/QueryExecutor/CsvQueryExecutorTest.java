@@ -0,0 +1,62 @@
+package eu.more2020.visual.middleware.datasource.QueryExecutor;
+
+import eu.more2020.visual.middleware.datasource.CsvQuery;
+import eu.more2020.visual.middleware.domain.DataPoint;
+import eu.more2020.visual.middleware.domain.Dataset.CsvDataset;
+import eu.more2020.visual.middleware.domain.TimeInterval;
+import eu.more2020.visual.middleware.domain.TimeRange;
+import eu.more2020.visual.middleware.index.csv.CsvTTI;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoField;
+import java.util.*;
+
+import static eu.more2020.visual.middleware.datasource.QueryExecutor.SyntheticQueryExecutorTest.assertSamePoints;
+import static eu.more2020.visual.middleware.datasource.QueryExecutor.SyntheticQueryExecutorTest.m4;
+
+public class CsvQueryExecutorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CsvQueryExecutor createQueryExecutor() throws IOException {
+        File csv = folder.newFile("series.csv");
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        LocalDateTime start = LocalDateTime.of(2020, 1, 1, 0, 0);
+        Random random = new Random(0);
+        try (PrintWriter writer = new PrintWriter(csv)) {
+            writer.println("timestamp,value");
+            // Two hours with a row every 3 seconds, so that groups cross the leaves of the index, which are minutes.
+            for (int i = 0; i < 2400; i++) {
+                writer.println(start.plusSeconds(3L * i).format(formatter) + "," + random.nextInt(1000));
+            }
+        }
+        CsvDataset dataset = new CsvDataset(csv.getPath(), "series", "series", "timestamp", "yyyy-MM-dd HH:mm:ss", ",", true);
+        CsvTTI csvTTI = new CsvTTI(csv.getPath(), dataset);
+        csvTTI.initialize(ChronoField.MINUTE_OF_HOUR);
+        return new CsvQueryExecutor(csvTTI);
+    }
+
+    @Test
+    public void testM4QueryReturnsTheFirstMinMaxAndLastRowOfEveryGroup() throws IOException {
+        CsvQueryExecutor queryExecutor = createQueryExecutor();
+        long from = LocalDateTime.of(2020, 1, 1, 0, 7, 11).toInstant(ZoneOffset.UTC).toEpochMilli();
+        long to = LocalDateTime.of(2020, 1, 1, 1, 53, 2).toInstant(ZoneOffset.UTC).toEpochMilli();
+        Map<String, List<TimeInterval>> missingIntervals = Collections.singletonMap("value",
+                Collections.singletonList(new TimeRange(from, to)));
+
+        List<DataPoint> raw = queryExecutor.executeRawQuery(new CsvQuery(from, to, missingIntervals)).getData().get(1);
+        CsvQuery m4Query = new CsvQuery(from, to, missingIntervals, Collections.singletonMap("value", 41));
+        List<DataPoint> m4 = queryExecutor.executeM4Query(m4Query).getData().get(1);
+
+        assertSamePoints(m4(raw, from, m4Query.getAggregateIntervals().get("value")), m4);
+    }
+}
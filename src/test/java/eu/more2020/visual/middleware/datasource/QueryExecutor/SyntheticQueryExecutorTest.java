@@ -0,0 +1,65 @@
+package eu.more2020.visual.middleware.datasource.QueryExecutor;
+
+import eu.more2020.visual.middleware.datasource.SyntheticQuery;
+import eu.more2020.visual.middleware.domain.DataPoint;
+import eu.more2020.visual.middleware.domain.Dataset.SyntheticDataset;
+import eu.more2020.visual.middleware.domain.TimeInterval;
+import eu.more2020.visual.middleware.domain.TimeRange;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class SyntheticQueryExecutorTest {
+
+    /**
+     * The distinct first, min, max and last points of every group of the raw points, sorted by time, as the M4 query returns them.
+     */
+    static List<DataPoint> m4(List<DataPoint> points, long from, long aggregateInterval) {
+        Map<Long, List<DataPoint>> groups = new TreeMap<>();
+        for (DataPoint point : points) {
+            groups.computeIfAbsent((point.getTimestamp() - from) / aggregateInterval, k -> new ArrayList<>()).add(point);
+        }
+        List<DataPoint> m4 = new ArrayList<>();
+        for (List<DataPoint> group : groups.values()) {
+            DataPoint min = group.get(0);
+            DataPoint max = group.get(0);
+            for (DataPoint point : group) {
+                if (point.getValue() < min.getValue()) min = point;
+                if (point.getValue() > max.getValue()) max = point;
+            }
+            SortedMap<Long, DataPoint> extremes = new TreeMap<>();
+            for (DataPoint point : Arrays.asList(group.get(0), min, max, group.get(group.size() - 1))) {
+                extremes.put(point.getTimestamp(), point);
+            }
+            m4.addAll(extremes.values());
+        }
+        return m4;
+    }
+
+    static void assertSamePoints(List<DataPoint> expected, List<DataPoint> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getTimestamp(), actual.get(i).getTimestamp());
+            assertEquals(expected.get(i).getValue(), actual.get(i).getValue(), 0);
+        }
+    }
+
+    @Test
+    public void testM4QueryReturnsTheFirstMinMaxAndLastPointOfEveryGroup() {
+        SyntheticDataset dataset = new SyntheticDataset("synthetic10k", "more", "synthetic10k");
+        SyntheticQueryExecutor queryExecutor = new SyntheticQueryExecutor(dataset);
+        long from = dataset.getTimeRange().getFrom() + 1234;
+        long to = dataset.getTimeRange().getTo() - 5678;
+        int groups = 97;
+        Map<String, List<TimeInterval>> missingIntervals = Collections.singletonMap("value_2",
+                Collections.singletonList(new TimeRange(from, to)));
+
+        List<DataPoint> raw = queryExecutor.executeRawQuery(new SyntheticQuery(from, to, missingIntervals)).getData().get(1);
+        SyntheticQuery m4Query = new SyntheticQuery(from, to, missingIntervals, Collections.singletonMap("value_2", groups));
+        List<DataPoint> m4 = queryExecutor.executeM4Query(m4Query).getData().get(1);
+
+        assertSamePoints(m4(raw, from, m4Query.getAggregateIntervals().get("value_2")), m4);
+    }
+}
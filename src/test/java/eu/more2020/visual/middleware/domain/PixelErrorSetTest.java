@@ -0,0 +1,85 @@
+package eu.more2020.visual.middleware.domain;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class PixelErrorSetTest {
+
+    private static final int HEIGHT = 300;
+
+    /**
+     * A pixel id that is mostly inside [0, height], but sometimes outside it, as for groups partially outside the view port.
+     */
+    private static int randomPixelId(Random random) {
+        return random.nextInt(10) == 0 ? random.nextInt(HEIGHT + 41) - 20 : random.nextInt(HEIGHT + 1);
+    }
+
+    /**
+     * Fills both sets with the same random columns, reusing them across columns like a query does,
+     * and checks that every column counts the same wrong pixels.
+     */
+    private static void assertSameCounts(Random random, int columns, int maxRanges) {
+        PixelErrorSet rangeSet = new RangeSetPixelErrorSet();
+        PixelErrorSet bitSet = new BitSetPixelErrorSet(HEIGHT);
+        for (int column = 0; column < columns; column++) {
+            rangeSet.clear();
+            bitSet.clear();
+            int ranges = random.nextInt(maxRanges + 1);
+            for (int i = 0; i < ranges; i++) {
+                int a = randomPixelId(random);
+                int b = random.nextInt(4) == 0 ? a : randomPixelId(random);
+                rangeSet.add(Math.min(a, b), Math.max(a, b));
+                bitSet.add(Math.min(a, b), Math.max(a, b));
+            }
+            int a = randomPixelId(random);
+            int b = randomPixelId(random);
+            assertEquals("column " + column, rangeSet.removeAndCount(Math.min(a, b), Math.max(a, b)),
+                    bitSet.removeAndCount(Math.min(a, b), Math.max(a, b)));
+        }
+    }
+
+    @Test
+    public void testBitSetCountsTheSameAsRangeSet() {
+        assertSameCounts(new Random(0), 10_000, 4);
+    }
+
+    @Test
+    public void testBitSetCountsTheSameAsRangeSetForManyRanges() {
+        assertSameCounts(new Random(1), 2_000, 40);
+    }
+
+    @Test
+    public void testAdjacentRangesStayDisjoint() {
+        PixelErrorSet rangeSet = new RangeSetPixelErrorSet();
+        PixelErrorSet bitSet = new BitSetPixelErrorSet(HEIGHT);
+        for (PixelErrorSet pixelErrorSet : new PixelErrorSet[]{rangeSet, bitSet}) {
+            pixelErrorSet.add(1, 3);
+            pixelErrorSet.add(4, 6);
+        }
+        // Removing [3, 4] cuts both ranges, and each cut counts the removed pixel at the cut.
+        assertEquals(rangeSet.removeAndCount(3, 4), bitSet.removeAndCount(3, 4));
+    }
+
+    @Test
+    public void testOutOfRangePixelIdsFallBackToRangeSet() {
+        PixelErrorSet rangeSet = new RangeSetPixelErrorSet();
+        PixelErrorSet bitSet = new BitSetPixelErrorSet(HEIGHT);
+        for (PixelErrorSet pixelErrorSet : new PixelErrorSet[]{rangeSet, bitSet}) {
+            pixelErrorSet.add(10, 20);
+            pixelErrorSet.add(-5, 2);
+            pixelErrorSet.add(HEIGHT - 3, HEIGHT + 7);
+        }
+        assertEquals(rangeSet.removeAndCount(0, 15), bitSet.removeAndCount(0, 15));
+
+        // The next column starts over in the bitsets.
+        rangeSet.clear();
+        bitSet.clear();
+        for (PixelErrorSet pixelErrorSet : new PixelErrorSet[]{rangeSet, bitSet}) {
+            pixelErrorSet.add(0, HEIGHT);
+        }
+        assertEquals(rangeSet.removeAndCount(-10, 5), bitSet.removeAndCount(-10, 5));
+    }
+}